@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper for implementing EvictionPolicies. Keeps the hit/miss counters,
+ * and a buffer of hits for policies whose queues cannot be reordered
+ * without a lock.
+ */
+public abstract class AbstractEvictionPolicy implements EvictionPolicy {
+
+    /** Number of buffered hits at which a hit drains the buffer itself. */
+    public static final int DRAIN_THRESHOLD = 256;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final ConcurrentLinkedQueue<PageId> pendingAccesses = new ConcurrentLinkedQueue<PageId>();
+    private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+    public void setCapacity(int numPages) {
+    }
+
+    public void pageAccessed(PageId pid) {
+        hits.incrementAndGet();
+        accessed(pid);
+    }
+
+    public void pageAdded(PageId pid) {
+        misses.incrementAndGet();
+        added(pid);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Queue a hit for applyAccess without taking a lock.  Once
+     * DRAIN_THRESHOLD hits are waiting, the hit that crosses it drains the
+     * buffer under the policy's monitor, so the buffer stays bounded even
+     * when the pool never has to evict.
+     */
+    protected final void bufferAccess(PageId pid) {
+        pendingAccesses.add(pid);
+        if (pendingCount.incrementAndGet() >= DRAIN_THRESHOLD) {
+            synchronized (this) {
+                drainAccesses();
+            }
+        }
+    }
+
+    /**
+     * Apply the buffered hits in the order they were queued.  The caller
+     * must hold the policy's monitor; policies that buffer hits call this
+     * before choosing a victim.
+     */
+    protected final void drainAccesses() {
+        PageId pid;
+        while ((pid = pendingAccesses.poll()) != null) {
+            pendingCount.decrementAndGet();
+            applyAccess(pid);
+        }
+    }
+
+    /**
+     * Update the replacement state for a buffered hit; called with the
+     * policy's monitor held.  The page may have left the pool since.
+     */
+    protected void applyAccess(PageId pid) {
+    }
+
+    /** Update the replacement state for a hit on a resident page. */
+    protected abstract void accessed(PageId pid);
+
+    /** Start tracking a page that just became resident. */
+    protected abstract void added(PageId pid);
+}
@@ -110,9 +110,16 @@ public class Aggregate extends Operator {
 	// some code goes here
         child.open();
         super.open();
-        while (child.hasNext()) {
-            agg.mergeTupleIntoGroup(child.next());
-        }       
+        if (agg instanceof IntegerAggregator) {
+            // merge the child's tuples a batch at a time
+            TupleBatch batch;
+            while ((batch = child.nextBatch(TupleBatch.DEFAULT_SIZE)) != null)
+                ((IntegerAggregator) agg).mergeBatch(batch);
+        } else {
+            while (child.hasNext()) {
+                agg.mergeTupleIntoGroup(child.next());
+            }
+        }
         it = agg.iterator();
         it.open();        
     }
@@ -133,6 +140,7 @@ public class Aggregate extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
 	// some code goes here
+        super.rewind();
         this.it.rewind();
     }
 
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 import simpledb.Predicate.Op;
@@ -12,6 +13,43 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Transactions that lock pages (not snapshot or optimistic ones) reach a
+ * leaf by latch crabbing: a descent holds a shared latch on a page (see
+ * {@link PageLatches}) until it has latched the child it goes on to, and
+ * locks only the leaf, until commit, not the internal pages.  It does not
+ * wait for locks on internal pages either: a structure change that is not
+ * committed holds locks on every page it changed, and only moves keys
+ * between leaves it changed, so a descent through it reaches either a leaf
+ * it did not change, which holds the same keys whether the change commits
+ * or not, or one it did, whose lock the descent waits for before going
+ * down again.  Since a scan
+ * locks every leaf it reads, including the one with the first key past its
+ * range, and an insert locks its leaf exclusively, the leaf locks double as
+ * next-key locks: no key can be inserted into or deleted from a range
+ * another transaction has scanned until it completes.
+ * <p>
+ * An insert into a leaf with room, and a delete that leaves its leaf at least
+ * half full, change only the leaf.  Otherwise the structure changes: the
+ * path is latched exclusively from the root down, keeping the latches only
+ * from the last page the change cannot go past, and the split or merge
+ * changes the pages under exclusive latches and locks.  The locks and the
+ * latches off the path are only taken if they are free; if one is not, the
+ * change is undone, the lock waited for with no latch held, and the change
+ * tried again.
+ * <p>
+ * A full leaf is split by a system transaction of its own, like a nested
+ * top action, which commits before it lets go of the latches, without
+ * waiting for the log to be forced, and the insert goes down again; the
+ * split outlives the inserting transaction if that aborts.  Pages are
+ * logged and rolled back as images, though, so a structure change cannot be
+ * separated from changes to its pages that are not committed: a leaf the
+ * inserting transaction has locked, which it may have changed, or one the
+ * split needs, is split as part of the inserting transaction, as are the
+ * merges of deletes, whose transaction has locked the leaf, to read the
+ * tuples it deletes.  Such a transaction keeps the locks on the pages it
+ * changed, internal ones included, until it completes, which only holds up
+ * structure changes that need the same pages.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -25,6 +63,92 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final PageIO io;
+	private final PageLatches latches = new PageLatches();
+
+	/**
+	 * Thrown by a latched descent or structure change that needs a lock or a
+	 * latch it cannot have right away.  The operation lets go of its latches,
+	 * waits for the lock, if it was one, and starts over.  Escaping the
+	 * operation, it aborts the transaction.
+	 */
+	private static class Restart extends TransactionAbortedException {
+		private static final long serialVersionUID = 1L;
+		final BTreePageId pid;
+		final Permissions perm; // the lock to wait for, or null for a latch
+
+		Restart(BTreePageId pid, Permissions perm) {
+			this.pid = pid;
+			this.perm = perm;
+		}
+	}
+
+	/**
+	 * The dirtypages of a structure change by a system transaction, or by a
+	 * transaction that locks pages.
+	 * A page fetched with READ_WRITE is locked if the lock is free, and latched
+	 * exclusively if it is not a leaf or a header page, or else Restart is
+	 * thrown; a copy of it is kept (see BufferPool#copyPage) so the change can
+	 * be undone if it has to start over.  Pages fetched with READ_ONLY are read
+	 * without locks: the change only reads pages it holds latches on, parent
+	 * pointers, which only change under the latch on the parent, and header
+	 * pages, which it locks before it relies on what it read.
+	 */
+	private static class Workspace extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+		final TransactionId tid;
+		private final PageLatches latches;
+		// the latches held, the path from the root down first
+		private final LinkedList<PageId> latched = new LinkedList<PageId>();
+		private final HashMap<PageId, Page> saved = new HashMap<PageId, Page>();
+
+		Workspace(TransactionId tid, PageLatches latches) {
+			this.tid = tid;
+			this.latches = latches;
+		}
+
+		Page getPage(BTreePageId pid, Permissions perm) throws DbException, TransactionAbortedException {
+			BufferPool pool = Database.getBufferPool();
+			if(perm == Permissions.READ_ONLY)
+				return pool.getUnlockedPage(pid);
+			if(pool.tryPage(tid, pid, perm) == null)
+				throw new Restart(pid, perm);
+			// pages off the latched path are latched out of order, so only if free
+			int categ = pid.pgcateg();
+			if(categ != BTreePageId.LEAF && categ != BTreePageId.HEADER && !latched.contains(pid)) {
+				if(!latches.tryAcquire(pid, true))
+					throw new Restart(pid, null);
+				latched.add(pid);
+			}
+			saved.put(pid, pool.copyPage(tid, pid));
+			Page page = pool.getUnlockedPage(pid);
+			put(pid, page);
+			return page;
+		}
+
+		void latch(PageId pid) {
+			latches.acquire(pid, true);
+			latched.add(pid);
+		}
+
+		// release the latches on the pages above pid
+		void unlatchAbove(PageId pid) {
+			while(!latched.getFirst().equals(pid))
+				latches.release(latched.removeFirst(), true);
+		}
+
+		// put the pages back as they were before the change
+		void undo() throws DbException {
+			Database.getBufferPool().restorePages(saved.values());
+			saved.clear();
+			clear();
+		}
+
+		void unlatchAll() {
+			while(!latched.isEmpty())
+				latches.release(latched.removeFirst(), true);
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -39,6 +163,7 @@ public class BTreeFile implements DbFile {
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.io = PageIO.forFile(f);
 	}
 
 	/**
@@ -48,6 +173,14 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Serve reads of this file from a memory mapping instead of the file
+	 * channel.  Worth it for indexes that are rarely updated.
+	 */
+	public void setMemoryMapped(boolean mapped) {
+		io.setMapped(mapped);
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -79,39 +212,18 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BTreeRootPtrPage.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-				}
+				readPageData(0, pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				BTreeRootPtrPage p = new BTreeRootPtrPage(id, pageBuf);
 				return p;
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) != 
-						BTreeRootPtrPage.getPageSize() + (id.pageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
-					throw new IllegalArgumentException("Read past end of table");
-				}
-				if (retval < BufferPool.getPageSize()) {
-					throw new IllegalArgumentException("Unable to read "
-							+ BufferPool.getPageSize() + " bytes from BTreeFile");
-				}
+				readPageData(pageOffset(id.pageNumber()), pageBuf);
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
 					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
@@ -128,17 +240,47 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * Fetch a run of consecutive internal, leaf or header pages with one read.
+	 * The root pointer page is smaller than the others and is never staged.
+	 * 
+	 * @see DbFile#stagePages(int, int)
+	 */
+	public void stagePages(int firstPageNo, int numPages) throws IOException {
+		if(firstPageNo < 1)
+			return;
+		io.stage(pageOffset(firstPageNo), numPages * BufferPool.getPageSize());
+	}
+
+	/**
+	 * Read a whole page image starting at the specified offset of the file
+	 * 
+	 * @param offset - the offset of the page in the file
+	 * @param pageBuf - the buffer to read the page into
+	 * @throws IllegalArgumentException if the page is not entirely in the file
+	 */
+	private void readPageData(long offset, byte[] pageBuf) throws IOException {
+		int retval = io.read(offset, ByteBuffer.wrap(pageBuf));
+		if (retval == 0) {
+			throw new IllegalArgumentException("Read past end of table");
+		}
+		if (retval < pageBuf.length) {
+			throw new IllegalArgumentException("Unable to read "
+					+ pageBuf.length + " bytes from BTreeFile");
+		}
+	}
+
+	/**
+	 * Returns the offset in the file of the internal, leaf or header page
+	 * with the specified page number
+	 */
+	private static long pageOffset(int pageNo) {
+		return BTreeRootPtrPage.getPageSize() + (long)(pageNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -149,15 +291,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			io.write(0, data);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().pageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			io.write(pageOffset(page.getId().pageNumber()), data);
 		}
 	}
 	
@@ -196,27 +334,26 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-		if (pid.pgcateg() == 2) { //the leaf page
+		if (pid.pgcateg() == BTreePageId.LEAF) {
 			return (BTreeLeafPage)this.getPage(tid, dirtypages, pid, perm);
-		}					
-		else if (pid.pgcateg() == 1) {
-			BTreeInternalPage BIP = (BTreeInternalPage)this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			BTreeInternalPageIterator it = (BTreeInternalPageIterator)BIP.iterator();
-			BTreeEntry BE = null;
-			if (f == null) {
-				BE = it.next();
-				return findLeafPage(tid, dirtypages, BE.getLeftChild(), perm, f);
-			}
-		//	IndexPredicate cmp = new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, f);
-			while (it.hasNext()) {
-				BE = it.next();
-				if (f.compare(Predicate.Op.LESS_THAN_OR_EQ, BE.getKey()))
-					return findLeafPage(tid, dirtypages, BE.getLeftChild(), perm, f);
-			}
-			if (BE != null) 
-				return findLeafPage(tid, dirtypages, BE.getRightChild(), perm, f); 
 		}
-        return null;
+		BTreeInternalPage BIP = (BTreeInternalPage)this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(BIP, f), perm, f);
+	}
+
+	// the child of an internal page on the way to the left-most leaf page
+	// possibly containing the key field f, or to the left-most leaf if f is null
+	private static BTreePageId childFor(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = it.next();
+		if (f == null)
+			return e.getLeftChild();
+		while (!f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey())) {
+			if (!it.hasNext())
+				return e.getRightChild();
+			e = it.next();
+		}
+		return e.getLeftChild();
 	}
 	
 	/**
@@ -238,6 +375,114 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Find and lock the left-most leaf page possibly containing the key field f,
+	 * or the left-most leaf if f is null, starting from the root.  Transactions
+	 * that lock pages crab down with shared latches and lock only the leaf (see
+	 * the class comment); the others lock their way down as in
+	 * {@link #findLeafPage(TransactionId, BTreePageId, Permissions, Field)}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @return the left-most leaf page possibly containing the key field f, or
+	 * null if the tree has no root yet
+	 */
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f)
+			throws DbException, TransactionAbortedException {
+		return findLeafPage(tid, perm, f, new boolean[1]);
+	}
+
+	// findLeafPage, setting heldBefore[0] to whether tid held a lock on the
+	// leaf before, and so may have changed it
+	private BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f, boolean[] heldBefore)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		if(!pool.isLocking(tid)) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) pool.getPage(tid, rootPtrId, Permissions.READ_ONLY);
+			BTreePageId root = rootPtr.getRootId();
+			return root == null ? null : findLeafPage(tid, root, perm, f);
+		}
+
+		while(true) {
+			BTreePageId held = rootPtrId;
+			BTreePageId pid;
+			latches.acquire(held, false);
+			try {
+				pid = ((BTreeRootPtrPage) readLatched(held)).getRootId();
+				if(pid == null)
+					return null;
+				while(pid.pgcateg() == BTreePageId.INTERNAL) {
+					latches.acquire(pid, false);
+					latches.release(held, false);
+					held = pid;
+					pid = childFor((BTreeInternalPage) readLatched(pid), f);
+				}
+				// the leaf is locked under the latch on its parent, so no
+				// change can move its keys elsewhere in between
+				heldBefore[0] = pool.holdsLock(tid, pid);
+				Page leaf = pool.tryPage(tid, pid, perm);
+				if(leaf != null)
+					return (BTreeLeafPage) leaf;
+			}
+			finally {
+				latches.release(held, false);
+			}
+			// a lock only waited for is let go again: a split may have moved
+			// the key off that leaf, and holding it would make the retry take
+			// the leaf for one tid changed
+			awaitLock(tid, pid, perm);
+			if(perm != null && !heldBefore[0])
+				pool.releasePage(tid, pid);
+		}
+	}
+
+	// read a page under a latch without locking it (see the class comment)
+	private static Page readLatched(BTreePageId pid) throws DbException {
+		return Database.getBufferPool().getUnlockedPage(pid);
+	}
+
+	// wait, holding no latches, for a lock a latched operation could not have
+	// right away, or just let others run if it was a latch
+	private void awaitLock(TransactionId tid, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(perm == null)
+			Thread.yield();
+		else
+			Database.getBufferPool().getPage(tid, pid, perm);
+	}
+
+	/**
+	 * Read the entries of an internal page without locking it, for
+	 * transactions that lock pages, as a hint of what a scan reads next.  The
+	 * entries are read under a shared latch, but may be out of date by the
+	 * time they are used.
+	 * 
+	 * @return the entries
+	 */
+	List<BTreeEntry> peekEntries(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		List<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		if(!pool.isLocking(tid)) {
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) pool.getPage(tid, pid, Permissions.READ_ONLY)).iterator();
+			while(it.hasNext())
+				entries.add(it.next());
+			return entries;
+		}
+		latches.acquire(pid, false);
+		try {
+			Iterator<BTreeEntry> it = ((BTreeInternalPage) readLatched(pid)).iterator();
+			while(it.hasNext())
+				entries.add(it.next());
+			return entries;
+		}
+		finally {
+			latches.release(pid, false);
+		}
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -470,6 +715,9 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * For the dirtypages of a latched structure change, pages are fetched as described
+	 * by {@link Workspace}.
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -485,6 +733,9 @@ public class BTreeFile implements DbFile {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
+		else if(dirtypages instanceof Workspace) {
+			return ((Workspace) dirtypages).getPage(pid, perm);
+		}
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
@@ -506,8 +757,174 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		if(!Database.getBufferPool().isLocking(tid))
+			return insertTuple(tid, new HashMap<PageId, Page>(), t);
+		createRootPtrPage();
+		Field key = t.getField(keyField);
+		boolean[] held = new boolean[1];
+		while(true) {
+			// crab down with shared latches; a leaf with room is all that changes
+			BTreeLeafPage leafPage = findLeafPage(tid, Permissions.READ_WRITE, key, held);
+			if(leafPage != null && leafPage.getNumEmptySlots() > 0) {
+				leafPage.insertTuple(t);
+				ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+				dirtyPagesArr.add(leafPage);
+				return dirtyPagesArr;
+			}
+
+			// otherwise have a system transaction split the leaf, which tid
+			// has not changed, and go down again
+			if(leafPage != null) {
+				if(held[0])
+					return splitAndInsert(tid, t);
+				Database.getBufferPool().releasePage(tid, leafPage.getId());
+			}
+			Transaction sys = new Transaction();
+			sys.start();
+			boolean split = false;
+			boolean done = false;
+			try {
+				split = splitForInsert(tid, sys, key);
+				done = true;
+			}
+			finally {
+				if(!done)
+					sys.abort();
+			}
+			if(!split)
+				return splitAndInsert(tid, t);
+		}
+	}
+
+	/**
+	 * Split the full leaf for a key in a system transaction, and commit the
+	 * system transaction, whether or not it could split the leaf.
+	 * Locks that cannot be had right away are waited for by tid, the
+	 * transaction the split is for, holding no latches and none of the
+	 * system transaction's locks, so that deadlocks with the locks of tid
+	 * are found; tid lets go of them again.
+	 * 
+	 * @return false if the split needs a page tid holds a lock on, which
+	 * tid may have changed, so tid has to split it itself
+	 */
+	private boolean splitForInsert(TransactionId tid, Transaction sys, Field key)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		while(true) {
+			Workspace ws = new Workspace(sys.getId(), latches);
+			BTreePageId wait;
+			Permissions waitPerm;
+			try {
+				BTreePageId leafId = latchForInsert(ws, key);
+				if(leafId == null) { // the root has just been created, so set the root pointer to point to it
+					leafId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(ws.tid, ws, BTreeRootPtrPage.getId(tableid), 
+							Permissions.READ_WRITE);
+					rootPtr.setRootId(leafId);
+				}
+				BTreeLeafPage leafPage = (BTreeLeafPage) getPage(ws.tid, ws, leafId, Permissions.READ_WRITE);
+				if(leafPage.getNumEmptySlots() == 0) {
+					splitLeafPage(ws.tid, ws, leafPage, key);
+				}
+				pool.installPages(ws.tid, ws.values());
+				commitSystem(sys);
+				return true;
+			}
+			catch(Restart w) {
+				ws.undo();
+				wait = w.pid;
+				waitPerm = w.perm;
+			}
+			finally {
+				ws.unlatchAll();
+			}
+			pool.getLockManager().releaseAllLock(ws.tid);
+			if(waitPerm == null) {
+				Thread.yield();
+			}
+			else if(pool.holdsLock(tid, wait)) {
+				commitSystem(sys);
+				return false;
+			}
+			else {
+				pool.getPage(tid, wait, waitPerm);
+				pool.releasePage(tid, wait);
+			}
+		}
+	}
 
+	// split the leaf for t as part of tid, which may have changed it, and
+	// insert t; the pages stay locked by tid until it completes
+	private ArrayList<Page> splitAndInsert(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		Field key = t.getField(keyField);
+		while(true) {
+			Workspace ws = new Workspace(tid, latches);
+			BTreePageId wait;
+			Permissions waitPerm;
+			try {
+				BTreePageId leafId = latchForInsert(ws, key);
+				if(leafId == null) { // the root has just been created, so set the root pointer to point to it
+					leafId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+					BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, ws, BTreeRootPtrPage.getId(tableid), 
+							Permissions.READ_WRITE);
+					rootPtr.setRootId(leafId);
+				}
+				BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, ws, leafId, Permissions.READ_WRITE);
+				if(leafPage.getNumEmptySlots() == 0) {
+					leafPage = splitLeafPage(tid, ws, leafPage, key);
+				}
+				leafPage.insertTuple(t);
+				Database.getBufferPool().installPages(tid, ws.values());
+				return new ArrayList<Page>(ws.values());
+			}
+			catch(Restart w) {
+				ws.undo();
+				wait = w.pid;
+				waitPerm = w.perm;
+			}
+			finally {
+				ws.unlatchAll();
+			}
+			awaitLock(tid, wait, waitPerm);
+		}
+	}
+
+	// commit a system transaction without waiting for the log to be forced:
+	// its pages and its commit record are logged ahead of any change that can
+	// depend on them, and its locks are released
+	private static void commitSystem(Transaction sys) throws IOException {
+		BufferPool pool = Database.getBufferPool();
+		pool.logPages(sys.getId());
+		Database.getLogFile().logSystemCommit(sys.getId());
+		pool.transactionComplete(sys.getId(), true);
+	}
+
+	/**
+	 * Crab down to the leaf for a key with exclusive latches, keeping the latches
+	 * from the last page with an empty slot down, since a split below it stops there.
+	 * The root pointer is kept latched if the root may split.
+	 * 
+	 * @return the id of the leaf, or null if the tree has no root yet
+	 */
+	private BTreePageId latchForInsert(Workspace ws, Field key) throws DbException, Restart {
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		ws.latch(pid);
+		pid = ((BTreeRootPtrPage) readLatched(pid)).getRootId();
+		while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+			ws.latch(pid);
+			BTreeInternalPage page = (BTreeInternalPage) readLatched(pid);
+			if(page.getNumEmptySlots() > 0)
+				ws.unlatchAbove(pid);
+			pid = childFor(page, key);
+		}
+		return pid;
+	}
+
+	// insertTuple for optimistic transactions, which change private copies
+	// of the pages and so need no latches
+	private ArrayList<Page> insertTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the root page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
@@ -997,8 +1414,95 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		if(!Database.getBufferPool().isLocking(tid))
+			return deleteTuple(tid, new HashMap<PageId, Page>(), t);
 
+		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
+				BTreePageId.LEAF);
+		BTreeLeafPage page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+		page.deleteTuple(t);
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.add(page);
+		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+		if(page.getNumEmptySlots() <= maxEmptySlots) {
+			return dirtyPagesArr;
+		}
+
+		// the page is below minimum occupancy: latch its ancestors exclusively
+		// and merge or redistribute.  The deletion is marked, so that undoing
+		// the merge keeps it
+		page.markDirty(true, tid);
+		while(true) {
+			Workspace ws = new Workspace(tid, latches);
+			BTreePageId wait;
+			Permissions waitPerm;
+			try {
+				if(!latchForDelete(ws, pageId))
+					continue;
+				page = (BTreeLeafPage) getPage(tid, ws, pageId, Permissions.READ_WRITE);
+				handleMinOccupancyPage(tid, ws, page);
+				Database.getBufferPool().installPages(tid, ws.values());
+				return new ArrayList<Page>(ws.values());
+			}
+			catch(Restart w) {
+				ws.undo();
+				wait = w.pid;
+				waitPerm = w.perm;
+			}
+			finally {
+				ws.unlatchAll();
+			}
+			awaitLock(tid, wait, waitPerm);
+		}
+	}
+
+	/**
+	 * Latch the ancestors of a leaf exclusively, from the root pointer down,
+	 * keeping the latches from the last page that stays at least half full
+	 * if it loses an entry, since a merge below it stops there.  The ancestors
+	 * are found by their parent pointers before they are latched, so the path
+	 * is checked again as it is latched.
+	 * 
+	 * @return false if the path changed, and nothing is latched
+	 */
+	private boolean latchForDelete(Workspace ws, BTreePageId leafId) throws DbException, Restart {
+		BufferPool pool = Database.getBufferPool();
+		LinkedList<BTreePageId> path = new LinkedList<BTreePageId>();
+		BTreePageId pid = leafId;
+		do {
+			pid = ((BTreePage) pool.getUnlockedPage(pid)).getParentId();
+			path.addFirst(pid);
+		} while(pid.pgcateg() != BTreePageId.ROOT_PTR);
+
+		BTreePageId parentId = path.removeFirst();
+		ws.latch(parentId);
+		BTreePageId rootId = ((BTreeRootPtrPage) readLatched(parentId)).getRootId();
+		if(!rootId.equals(path.isEmpty() ? leafId : path.getFirst())) {
+			ws.unlatchAll();
+			return false;
+		}
+		for(BTreePageId id : path) {
+			ws.latch(id);
+			BTreeInternalPage page = (BTreeInternalPage) readLatched(id);
+			if(!page.getParentId().equals(parentId)) {
+				ws.unlatchAll();
+				return false;
+			}
+			int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
+			boolean safe = parentId.pgcateg() == BTreePageId.ROOT_PTR ?
+					page.getNumEmptySlots() < page.getMaxEntries() - 1 :
+					page.getNumEmptySlots() < maxEmptySlots;
+			if(safe)
+				ws.unlatchAbove(id);
+			parentId = id;
+		}
+		return true;
+	}
+
+	// deleteTuple for optimistic transactions, which change private copies
+	// of the pages and so need no latches
+	private ArrayList<Page> deleteTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(), 
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -1028,23 +1532,22 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createRootPtrPage();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	// create the root pointer page and the root page of an empty file
+	private synchronized void createRootPtrPage() throws IOException {
+		if(f.length() == 0) {
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			io.append(emptyRootPtrData);
+			io.append(emptyLeafData);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -1093,11 +1596,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				io.append(emptyData);
 				emptyPageNo = numPages();
 			}
 		}
@@ -1127,15 +1627,19 @@ public class BTreeFile implements DbFile {
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
-		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
-		
-		// make sure the page is not in the buffer pool	or in the local cache		
+		// make sure the page is not in the buffer pool, nor being written
+		// by it, or in the local cache
 		Database.getBufferPool().discardPage(newPageId);
 		dirtypages.remove(newPageId);
+
+		// write empty page to disk, once the log has what was there before
+		byte[] emptyData = BTreePage.createEmptyPageData();
+		byte[] oldData = new byte[emptyData.length];
+		io.read(pageOffset(emptyPageNo), ByteBuffer.wrap(oldData));
+		LogFile log = Database.getLogFile();
+		log.force(log.logReset(tid, newPageId, oldData, emptyData));
+		io.write(pageOffset(emptyPageNo), emptyData);
+		log.pageWritten(newPageId);
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1264,6 +1768,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
+	ReadAhead readAhead;
 
 	/**
 	 * Constructor for this iterator
@@ -1273,16 +1778,17 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
 		this.f = f;
 		this.tid = tid;
+		this.readAhead = new ReadAhead(new BTreeLeafSequence(f, tid, null));
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		if(curp == null)
+			return;
+		readAhead.visit(curp.getId());
 		it = curp.iterator();
 	}
 
@@ -1305,6 +1811,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.visit(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1346,6 +1853,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	ReadAhead readAhead;
 
 	/**
 	 * Constructor for this iterator
@@ -1357,6 +1865,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.readAhead = new ReadAhead(new BTreeLeafSequence(f, tid, ipred));
 	}
 
 	/**
@@ -1364,16 +1873,16 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
 		}
+		if(curp == null)
+			return;
+		readAhead.visit(curp.getId());
 		it = curp.iterator();
 	}
 
@@ -1414,6 +1923,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				readAhead.visit(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1437,3 +1947,99 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		it = null;
 	}
 }
+
+/**
+ * The order in which a scan visits the leaf pages of a BTreeFile, for
+ * read-ahead.  The leaves that follow a leaf are the children to its right
+ * in their parent, so read-ahead stays exact without reading the leaves
+ * themselves; at the end of a parent it continues with the right sibling of
+ * the current leaf.  For a predicate that ends the scan early (LESS_THAN,
+ * LESS_THAN_OR_EQ or EQUALS), only leaves the scan is certain to reach are
+ * returned: a leaf is reached if the keys of the leaf before it all satisfy
+ * the predicate, and those keys are bounded by the separator key between
+ * the two.  Parents are read without locks (see
+ * {@link BTreeFile#peekEntries}), so read-ahead may be out of date, which
+ * costs no more than a wasted read.
+ */
+class BTreeLeafSequence implements ReadAhead.PageSequence {
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final IndexPredicate ipred;
+	// parent of each leaf returned so far
+	private final HashMap<PageId, BTreePageId> parents = new HashMap<PageId, BTreePageId>();
+
+	/**
+	 * @param f - the BTreeFile being scanned
+	 * @param tid - the transaction id of the scan
+	 * @param ipred - the predicate of the scan, or null for a full scan
+	 */
+	public BTreeLeafSequence(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this.f = f;
+		this.tid = tid;
+		this.ipred = ipred;
+	}
+
+	/**
+	 * @return true if a scan that has seen only keys up to key, all of
+	 * them satisfying the predicate, is certain to go on to the next leaf
+	 */
+	private boolean continuesPast(Field key) {
+		if(ipred == null)
+			return true;
+		switch(ipred.getOp()) {
+		case LESS_THAN:
+			return key.compare(Op.LESS_THAN, ipred.getField());
+		case LESS_THAN_OR_EQ:
+		case EQUALS:
+			return key.compare(Op.LESS_THAN_OR_EQ, ipred.getField());
+		default:
+			return true;
+		}
+	}
+
+	public List<PageId> pagesAfter(PageId pid, int n)
+			throws DbException, TransactionAbortedException {
+		List<PageId> pids = new ArrayList<PageId>();
+		BTreePageId parentId = parents.get(pid);
+		BTreeLeafPage leaf = null;
+		if(parentId == null) {
+			// only happens for the leaf the scan is on, which is resident
+			leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			parentId = leaf.getParentId();
+		}
+
+		List<BTreeEntry> entries = null;
+		if(parentId.pgcateg() == BTreePageId.INTERNAL)
+			entries = f.peekEntries(tid, parentId);
+		if(entries != null) {
+			Iterator<BTreeEntry> it = entries.iterator();
+			boolean found = false;
+			while(it.hasNext() && pids.size() < n) {
+				BTreeEntry e = it.next();
+				if(!found) {
+					if(e.getRightChild().equals(pid)) {
+						found = true;
+						continue;
+					}
+					if(!e.getLeftChild().equals(pid))
+						continue;
+					found = true;
+				}
+				if(!continuesPast(e.getKey()))
+					return pids;
+				pids.add(e.getRightChild());
+				parents.put(e.getRightChild(), parentId);
+			}
+		}
+
+		if(pids.isEmpty() && leaf != null) {
+			// pid is the last child of its parent
+			BTreePageId sibling = leaf.getRightSiblingId();
+			Iterator<Tuple> it = leaf.reverseIterator();
+			if(sibling != null && (!it.hasNext() || continuesPast(it.next().getField(f.keyField()))))
+				pids.add(sibling);
+		}
+		return pids;
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -13,6 +14,9 @@ import simpledb.Predicate.Op;
 
 public class BTreeFileEncoder {
 
+	/** The fill factor sorted copies are bulk loaded with, leaving room for inserts */
+	public static final double DEFAULT_FILL_FACTOR = 0.9;
+
 	/**
 	 * Encode the file using the BTreeFile's Insert method.
 	 * 
@@ -107,6 +111,194 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Copy a table in the catalog into a new B+ tree table keyed on one of
+	 * its fields, like CREATE TABLE ... AS SELECT * ... ORDER BY: the table
+	 * is scanned and sorted on the field with an external sort, so it may be
+	 * larger than memory, the tree is bulk loaded into copyFile, and the
+	 * copy is added to the catalog under copyName, with the field as its
+	 * primary key.
+	 * <p>
+	 * The copy is a snapshot, not an index of the table: later inserts and
+	 * deletes on the table do not reach it, and queries on the table do not
+	 * use it.
+	 * 
+	 * @param tid - the transaction to scan the table in
+	 * @param copyName - the name to add the copy to the catalog under
+	 * @param tableName - the table to copy
+	 * @param fieldName - the field to sort and key the copy on
+	 * @param copyFile - the file to write the copy to, which must be empty or
+	 *        not exist, and not belong to a table in the catalog
+	 * @param fillFactor - the fraction of each page to fill, from 0.5 to 1
+	 * @param memoryPages - the pages of tuples the sort may hold in memory
+	 * @return the BTreeFile
+	 */
+	public static BTreeFile createSortedCopy(TransactionId tid, String copyName, String tableName,
+			String fieldName, File copyFile, double fillFactor, int memoryPages)
+					throws DbException, IOException, TransactionAbortedException {
+		int tableid = Database.getCatalog().getTableId(tableName);
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+		int keyField = td.fieldNameToIndex(fieldName);
+		checkUnused(copyName, copyFile);
+		BTreeFile bf = new BTreeFile(copyFile, keyField, td);
+		ExternalSort sort = new ExternalSort(keyField, true, new SeqScan(tid, tableid), memoryPages);
+		sort.open();
+		try {
+			bulkLoad(bf, sort, sort.getNumTuples(), fillFactor);
+		} finally {
+			sort.close();
+		}
+		Database.getCatalog().addTable(bf, copyName, fieldName);
+		return bf;
+	}
+
+	// refuse to replace a table in the catalog, or any data, with a new table
+	private static void checkUnused(String name, File file) throws DbException {
+		Catalog catalog = Database.getCatalog();
+		try {
+			catalog.getTableId(name);
+			throw new DbException("a table named " + name + " already exists");
+		} catch (NoSuchElementException e) {
+			// the name is free
+		}
+		if (file.length() > 0)
+			throw new DbException(file + " already holds data");
+		Iterator<Integer> it = catalog.tableIdIterator();
+		while (it.hasNext()) {
+			DbFile f = catalog.getDatabaseFile(it.next());
+			File used = f instanceof HeapFile ? ((HeapFile) f).getFile()
+					: f instanceof BTreeFile ? ((BTreeFile) f).getFile() : null;
+			if (used != null && used.getAbsoluteFile().equals(file.getAbsoluteFile()))
+				throw new DbException(file + " belongs to a table in the catalog");
+		}
+	}
+
+	/**
+	 * Bulk load a B+ tree from tuples sorted on its key field, writing its
+	 * file from start to end in one pass: the root pointer page, the leaves,
+	 * then each level of internal pages up to the root.  The shape of the
+	 * tree follows from the number of tuples, so every page is written once,
+	 * with its parent and sibling pointers already set, and nothing but the
+	 * separator keys of one level is held in memory.
+	 * <p>
+	 * Pages are filled to the fill factor, with the tuples and children
+	 * spread evenly over each level, except that no page but the root is
+	 * left under half full.  The file should not be in use: pages of it in
+	 * the BufferPool are not updated.
+	 * 
+	 * @param bf - the BTreeFile to write
+	 * @param sorted - the tuples, open and ascending on the key field of bf
+	 * @param numTuples - the number of tuples sorted returns
+	 * @param fillFactor - the fraction of each page to fill, from 0.5 to 1
+	 */
+	public static void bulkLoad(BTreeFile bf, DbIterator sorted, int numTuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if (fillFactor < 0.5 || fillFactor > 1)
+			throw new IllegalArgumentException("fill factor must be from 0.5 to 1: " + fillFactor);
+		TupleDesc td = bf.getTupleDesc();
+		int keyField = bf.keyField();
+		int tableid = bf.getId();
+		int npagebytes = BufferPool.getPageSize();
+		Type[] typeAr = new Type[td.numFields()];
+		for (int i = 0; i < typeAr.length; i++)
+			typeAr[i] = td.getFieldType(i);
+
+		// the number of pages of each level, leaves first; leaves hold
+		// tuples, internal pages hold children, one more than their entries
+		int maxTuples = (npagebytes * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+		int nentrybytes = typeAr[keyField].getLen() + BTreeInternalPage.INDEX_SIZE;
+		int maxEntries = (npagebytes * 8 - (2 * BTreeInternalPage.INDEX_SIZE + 1) * 8 - 1) / (nentrybytes * 8 + 1);
+		ArrayList<Integer> levels = new ArrayList<Integer>();
+		levels.add(levelPages(numTuples, maxTuples, maxTuples / 2, fillFactor));
+		while (levels.get(levels.size() - 1) > 1) {
+			levels.add(levelPages(levels.get(levels.size() - 1), maxEntries + 1,
+					maxEntries / 2 + 1, fillFactor));
+		}
+		int[] firstPage = new int[levels.size() + 1];
+		firstPage[0] = 1;
+		for (int l = 0; l < levels.size(); l++)
+			firstPage[l + 1] = firstPage[l] + levels.get(l);
+		int root = firstPage[levels.size()] - 1;
+		int rootCategory = levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(bf.getFile()),
+				BufferPool.DEFAULT_PAGES * npagebytes);
+		try {
+			out.write(convertToRootPtrPage(root, rootCategory, 0));
+
+			// the leaves, keeping the first key of each for the level above
+			ArrayList<Field> keys = new ArrayList<Field>();
+			int leaves = levels.get(0);
+			ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+			for (int p = 0; p < leaves; p++) {
+				tuples.clear();
+				for (int n = spread(numTuples, leaves, p + 1) - spread(numTuples, leaves, p); n > 0; n--) {
+					if (!sorted.hasNext())
+						throw new DbException("fewer than " + numTuples + " tuples to load");
+					tuples.add(sorted.next());
+				}
+				keys.add(tuples.isEmpty() ? null : tuples.get(0).getField(keyField));
+				byte[] data = convertToLeafPage(tuples, npagebytes, typeAr.length, typeAr, keyField);
+				ByteBuffer.wrap(data)
+						.putInt(0, parent(levels, firstPage, 0, p))
+						.putInt(4, p > 0 ? firstPage[0] + p - 1 : 0)
+						.putInt(8, p < leaves - 1 ? firstPage[0] + p + 1 : 0);
+				out.write(data);
+			}
+
+			// each level of internal pages, separating their children by the
+			// first key of each child but the first
+			for (int l = 1; l < levels.size(); l++) {
+				int children = levels.get(l - 1);
+				int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+				ArrayList<Field> parentKeys = new ArrayList<Field>();
+				for (int p = 0; p < levels.get(l); p++) {
+					int first = spread(children, levels.get(l), p);
+					int last = spread(children, levels.get(l), p + 1);
+					ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+					for (int c = first + 1; c < last; c++) {
+						entries.add(new BTreeEntry(keys.get(c),
+								new BTreePageId(tableid, firstPage[l - 1] + c - 1, childCategory),
+								new BTreePageId(tableid, firstPage[l - 1] + c, childCategory)));
+					}
+					parentKeys.add(keys.get(first));
+					byte[] data = convertToInternalPage(entries, npagebytes, typeAr[keyField], childCategory);
+					ByteBuffer.wrap(data).putInt(0, parent(levels, firstPage, l, p));
+					out.write(data);
+				}
+				keys = parentKeys;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	// the pages a level of the tree needs for n items, filled to fillFactor
+	// of max but holding at least min each when there are enough items
+	private static int levelPages(int n, int max, int min, double fillFactor) {
+		int target = Math.max(min, (int) (max * fillFactor));
+		int pages = (n + target - 1) / target;
+		if (min > 0)
+			pages = Math.min(pages, n / min);
+		// but never more than a page holds
+		pages = Math.max(pages, (n + max - 1) / max);
+		return Math.max(1, pages);
+	}
+
+	// the first of n items spread evenly over pages pages that page p holds
+	private static int spread(int n, int pages, int p) {
+		return (int) ((long) n * p / pages);
+	}
+
+	// the page number of the parent of page p of level l, or 0 for the root
+	private static int parent(ArrayList<Integer> levels, int[] firstPage, int l, int p) {
+		if (l == levels.size() - 1)
+			return 0;
+		int n = levels.get(l);
+		int pages = levels.get(l + 1);
+		return firstPage[l + 1] + (int) (((long) (p + 1) * pages - 1) / n);
+	}
+
 	/** 
 	 * comparator to sort Tuples by key field
 	 */
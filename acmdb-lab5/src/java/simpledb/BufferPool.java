@@ -2,8 +2,13 @@ package simpledb;
 
 import java.io.*;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -13,6 +18,35 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Resident pages live in a concurrent page table, so a cache hit is a single
+ * lock-free lookup.  A miss reads the page from disk without holding the
+ * BufferPool monitor; concurrent misses on the same page wait on the same
+ * pending load instead of reading the page twice.  The monitor is only taken
+ * to install a loaded page and to pick pages to evict or write; the log is
+ * forced and pages are written outside it.
+ * <p>
+ * Heap file pages are read into a fixed arena of off-heap frames (see
+ * {@link FrameArena}) and are views over their frame, so the memory used by
+ * the pool is bounded by numPages frames no matter what is on the pages.
+ * <p>
+ * Pages are written under write-ahead logging with STEAL and NO-FORCE: a
+ * commit only logs the changes of its pages and forces the log, and any
+ * page may be evicted once its changes are logged and the log is on disk
+ * up to them, whether or not the transaction that changed it committed.
+ * Committed pages left in the pool are written by a background page writer
+ * in page order.  A page is only ever written as it was last logged (its
+ * before image), so nothing reaches disk ahead of the log.
+ * <p>
+ * Snapshot transactions (see {@link #beginSnapshot}) read without locks:
+ * they get the pages as of the last commit before they began from the
+ * pool's {@link VersionStore}.
+ * <p>
+ * Optimistic transactions (see {@link #beginOptimistic}) read without locks
+ * too, into private copies of the committed pages, and change only their
+ * copies.  At commit, {@link #validate} locks what they read and wrote and
+ * checks that no commit changed it since, then puts their changed pages in
+ * the pool for the commit to log.
  * 
  * @Threadsafe, all fields are final
  */
@@ -27,29 +61,126 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of segments the page table is striped into. */
+    private static final int CONCURRENCY_LEVEL = 16;
+
+    /** How long the page writer lets logged pages gather before a round of
+        writes, in milliseconds. */
+    private static final long WRITER_DELAY_MS = 10;
+
+    // the order the page writer writes pages in: by file, then page number
+    private static final Comparator<PageId> PAGE_ORDER = new Comparator<PageId>() {
+        public int compare(PageId a, PageId b) {
+            if (a.getTableId() != b.getTableId())
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            return a.pageNumber() < b.pageNumber() ? -1 : (a.pageNumber() == b.pageNumber() ? 0 : 1);
+        }
+    };
+
     private  final int numPages;
-    private final Page[] pageArray;
-    private final HashMap<PageId, Integer> pageIndexHashMap;
-    private final LinkedList<PageId> FIFO;
-    private final Queue<Integer> queue;
+    private final ConcurrentHashMap<PageId, Page> pageTable;
+    private final ConcurrentHashMap<PageId, FutureTask<Page>> pendingLoads;
+    private final EvictionPolicy policy;
+    // pages read ahead that nobody asked for yet; evicted only as a last resort
+    private final Set<PageId> prefetched;
+    // bumped by every discardPage, so a load that read a page before it was
+    // discarded does not install that image
+    private volatile long discards; // written under this
+    private final FrameArena frames;
     private final LockManager Lock_Manage = new LockManager();
+    private final VersionStore versions = new VersionStore();
+    // the private pages of the running optimistic transactions
+    private final ConcurrentHashMap<TransactionId, Workspace> optimistic =
+        new ConcurrentHashMap<TransactionId, Workspace>();
+    // the pages logged since they were last written, with the LSN of their
+    // last record, which must be on disk before the page is
+    private final ConcurrentHashMap<PageId, Long> unwritten;
+    // the pages being written; one write of a page runs at a time
+    private final Set<PageId> writing = new HashSet<PageId>(); // protected by this
+    private final Object writerLock = new Object();
+    private Thread pageWriter; // started with the first commit; protected by writerLock
+    private boolean closed; // protected by writerLock
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new ClockEvictionPolicy());
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the eviction policy deciding which pages to throw out;
+     *        must not be shared with another BufferPool
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
         // some code goes here
         this.numPages = numPages;
-        this.pageArray = new Page[numPages];
-        this.pageIndexHashMap = new HashMap<PageId, Integer>();
-        this.FIFO = new LinkedList<PageId>();
-        this.queue = new LinkedList<Integer>();
-        for (int i = 0; i < numPages; i++)
-            queue.add(i);
+        this.pageTable = new ConcurrentHashMap<PageId, Page>(numPages, 0.75f, CONCURRENCY_LEVEL);
+        this.pendingLoads = new ConcurrentHashMap<PageId, FutureTask<Page>>(16, 0.75f, CONCURRENCY_LEVEL);
+        this.prefetched = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+        this.unwritten = new ConcurrentHashMap<PageId, Long>(16, 0.75f, CONCURRENCY_LEVEL);
+        this.policy = policy;
+        this.policy.setCapacity(numPages);
+        this.frames = new FrameArena(numPages, pageSize);
     }
     
+    /** @return the maximum number of pages in this buffer pool */
+    public int getNumPages() {
+        return numPages;
+    }
+
+    /** @return the lock manager of this buffer pool, e.g. to read its deadlock counters or tune escalation */
+    public LockManager getLockManager() {
+        return Lock_Manage;
+    }
+
+    /** @return the version store of this buffer pool, e.g. to count the page versions it keeps */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Start a read-only transaction that reads a snapshot of the database
+     * as of the last commit, without acquiring locks.  It ends with
+     * transactionComplete like any other transaction.
+     *
+     * @return the timestamp of the snapshot
+     */
+    public long beginSnapshot(TransactionId tid) {
+        return versions.begin(tid);
+    }
+
+    /**
+     * Start an optimistic transaction: its reads take no locks, and its
+     * changes stay private until it commits.  Before the commit is logged,
+     * {@link #validate} must succeed; it ends with transactionComplete like
+     * any other transaction.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        this.optimistic.put(tid, new Workspace());
+    }
+
+    /**
+     * The pages an optimistic transaction read, each a private copy of the
+     * page as some commit left it, with the timestamp of that commit.
+     * Used by one thread at a time, the transaction's.
+     */
+    private static class Workspace {
+        final Map<PageId, Page> pages = new HashMap<PageId, Page>();
+        final Map<PageId, Long> stamps = new HashMap<PageId, Long>();
+    }
+
+    /** @return the eviction policy of this buffer pool, e.g. to read its hit/miss counters */
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
+    }
+
     public static int getPageSize() {
       return pageSize;
     }
@@ -83,6 +214,21 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
         // some code goes here
 
+        if (versions.isSnapshot(tid)) {
+            if (perm != Permissions.READ_ONLY)
+                throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+            while (true) {
+                Page current = residentPage(pid);
+                synchronized (this) {
+                    if (this.pageTable.get(pid) == current)
+                        return versions.read(tid, current);
+                }
+            }
+        }
+        Workspace workspace = this.optimistic.get(tid);
+        if (workspace != null)
+            return privatePage(workspace, pid);
+
         if (perm == Permissions.READ_ONLY) {
             Lock_Manage.acquireLock(tid, pid, 0);
         }
@@ -92,25 +238,383 @@ public class BufferPool {
         else 
             throw new DbException("Perm not true");
 
-        synchronized (this) {
-            Page targetPage;
-            if (!this.pageIndexHashMap.containsKey(pid))
-            {
-                targetPage = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-                while (queue.size() == 0)
-                    this.evictPage();
-                int index = queue.poll();
-                this.pageIndexHashMap.put(pid, index);
-                this.FIFO.addLast(pid);
-                this.pageArray[index] = targetPage;
+        return residentPage(pid);
+    }
+
+    // an optimistic transaction's copy of a page, made on first access.
+    // Like snapshot reads, the copy is taken while the page is still in the
+    // pool, since a page replaced by a commit gives its frame away and would
+    // read its older image back from disk.
+    private Page privatePage(Workspace workspace, PageId pid) throws DbException {
+        Page page = workspace.pages.get(pid);
+        while (page == null) {
+            Page current = residentPage(pid);
+            synchronized (this) {
+                if (this.pageTable.get(pid) != current)
+                    continue;
+                synchronized (versions) {
+                    workspace.stamps.put(pid, versions.stamp(pid));
+                    page = versions.committed(current);
+                }
+            }
+        }
+        workspace.pages.put(pid, page);
+        return page;
+    }
+
+    /**
+     * @return true if tid locks the pages it reads and changes them in the
+     *         pool; false for snapshot and optimistic transactions
+     */
+    public boolean isLocking(TransactionId tid) {
+        return !versions.isSnapshot(tid) && !this.optimistic.containsKey(tid);
+    }
+
+    /**
+     * Retrieve a page like {@link #getPage}, but only if the lock can be
+     * granted right away.
+     *
+     * @return the page, or null if tid would have to wait for the lock
+     */
+    public Page tryPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (!isLocking(tid))
+            return getPage(tid, pid, perm);
+        if (!Lock_Manage.tryAcquireLock(tid, pid, perm == Permissions.READ_WRITE ? 1 : 0))
+            return null;
+        return residentPage(pid);
+    }
+
+    /**
+     * The page in the pool, read into it if needed, without locking it.
+     * Only for callers that keep the page from changing under them some other
+     * way, such as the latches on B+ tree internal pages.
+     */
+    public Page getUnlockedPage(PageId pid) throws DbException {
+        return residentPage(pid);
+    }
+
+    /**
+     * The page if it is resident, without locking it or reading it in, e.g.
+     * for hints about it more recent than the page on disk.
+     *
+     * @return the page, or null if it is not in the pool
+     */
+    public Page peekPage(PageId pid) {
+        return this.pageTable.get(pid);
+    }
+
+    /**
+     * A copy of a page tid holds an exclusive lock on, to undo the changes
+     * tid is about to make with {@link #restorePages}.  Changes to the page
+     * that were not logged yet are logged first, so the copy's before image
+     * is the page as last logged, as for a page in the pool.
+     */
+    public Page copyPage(TransactionId tid, PageId pid) throws DbException {
+        while (true) {
+            Page current = residentPage(pid);
+            synchronized (this) {
+                if (this.pageTable.get(pid) != current)
+                    continue;
+                try {
+                    logUpdate(current);
+                } catch (IOException e) {
+                    throw new DbException("could not log page " + pid + ": " + e.getMessage());
+                }
+                return current.getBeforeImage();
+            }
+        }
+    }
+
+    /**
+     * Mark pages dirtied by tid and put them in the pool, all at once, as
+     * insertTuple and deleteTuple do, for callers that must have them there
+     * before they let other threads see the pages, e.g. before they release
+     * a latch: a page evicted before it is marked dirty would be read back
+     * from disk without the changes.
+     */
+    public void installPages(TransactionId tid, Collection<Page> pages) throws DbException {
+        for (Page page : pages) {
+            page.markDirty(true, tid);
+            this.cacheDirtyPage(page);
+        }
+    }
+
+    /**
+     * Put copies taken with {@link #copyPage} back in the pool, dropping the
+     * changes made to the pages since.
+     */
+    public void restorePages(Collection<Page> copies) throws DbException {
+        for (Page copy : copies)
+            this.cacheDirtyPage(copy);
+    }
+
+    /**
+     * Validate an optimistic transaction at commit.  The pages it read get
+     * shared locks and those it changed exclusive ones, in page order, so
+     * validating transactions never deadlock with each other and no commit
+     * can change the pages until this transaction's commit is over.  Then
+     * every page must carry the stamp it had when it was read; if one does
+     * not, a commit changed it since and the transaction must abort.  The
+     * changed pages then replace those in the pool, dirtied by tid, for the
+     * commit to log as usual.
+     *
+     * @throws TransactionAbortedException if a page the transaction read was
+     *         changed by a later commit, or if it lost a deadlock while locking
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException, DbException {
+        Workspace workspace = this.optimistic.get(tid);
+        if (workspace == null)
+            return;
+        List<PageId> pids = new ArrayList<PageId>(workspace.pages.keySet());
+        Collections.sort(pids, PAGE_ORDER);
+        List<Page> changed = new ArrayList<Page>();
+        for (PageId pid : pids) {
+            Page page = workspace.pages.get(pid);
+            if (page.isDirty() != null) {
+                Lock_Manage.acquireLock(tid, pid, 1);
+                changed.add(page);
+            } else {
+                Lock_Manage.acquireLock(tid, pid, 0);
+            }
+        }
+        for (PageId pid : pids) {
+            if (versions.stamp(pid) != workspace.stamps.get(pid))
+                throw new TransactionAbortedException();
+        }
+        for (Page page : changed)
+            this.cacheDirtyPage(page);
+        this.optimistic.remove(tid);
+    }
+
+    // the page in the pool, read into it if it is not resident
+    private Page residentPage(PageId pid) throws DbException {
+        Page targetPage = this.pageTable.get(pid);
+        if (targetPage != null) {
+            this.policy.pageAccessed(pid);
+        } else {
+            targetPage = loadPage(pid);
+        }
+        if (!this.prefetched.isEmpty())
+            this.prefetched.remove(pid);
+        return targetPage;
+    }
+
+    /**
+     * Read a page that is not resident and install it in the page table.
+     * Only the first thread to miss on pid performs the read; the others
+     * block on its pending load and get the same page object back.  The disk
+     * read happens outside the BufferPool monitor.
+     *
+     * @param pid the ID of the page to load
+     */
+    private Page loadPage(final PageId pid) throws DbException {
+        FutureTask<Page> task = newLoad(pid, false);
+        FutureTask<Page> pending = this.pendingLoads.putIfAbsent(pid, task);
+        if (pending == null) {
+            pending = task;
+            try {
+                task.run();
+            } finally {
+                this.pendingLoads.remove(pid, task);
+            }
+        }
+        try {
+            return pending.get();
+        } catch (CancellationException e) {
+            // an abandoned prefetch, read the page ourselves
+            return loadPage(pid);
+        } catch (InterruptedException e) {
+            throw new DbException("interrupted while loading page " + pid);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DbException)
+                throw (DbException)e.getCause();
+            throw new DbException("failed to load page " + pid + ": " + e.getCause());
+        }
+    }
+
+    /**
+     * Create the task that reads pid and installs it in the page table.  The
+     * task rechecks the page table first, since the page may have been
+     * installed between a miss and the claim on its pending load, and reads
+     * the page again if a page was discarded while it was reading.
+     *
+     * @param prefetch true if the page is read ahead of its first request
+     */
+    private FutureTask<Page> newLoad(final PageId pid, final boolean prefetch) {
+        return new FutureTask<Page>(new Callable<Page>() {
+            public Page call() throws DbException {
+                while (true) {
+                    Page resident = pageTable.get(pid);
+                    if (resident != null)
+                        return resident;
+                    long seen = discards;
+                    Page loaded = readPage(pid);
+                    if (loaded == null)
+                        throw new DbException("unable to read page " + pid);
+                    if (prefetch)
+                        prefetched.add(pid);
+                    Page page = installPage(pid, loaded, seen);
+                    if (page != null)
+                        return page;
+                }
+            }
+        });
+    }
+
+    /**
+     * Read the specified pages into the pool ahead of a scan that is about to
+     * ask for them.  No locks are acquired, so under STEAL a page read this
+     * way may hold the changes of a transaction that is still running.  A
+     * reader only sees it through getPage, once it holds the lock on the
+     * page, and a rollback discards it; a prefetch that overlaps the discard
+     * reads the page again.  Pages that are resident or already being loaded
+     * are skipped, and runs of consecutive pages are fetched from their file
+     * with one large read.
+     * A getPage on a page being prefetched waits for the prefetch instead
+     * of reading the page again, and prefetched pages are only evicted
+     * before they were asked for if nothing else can be.
+     * <p>
+     * Called by {@link ReadAhead} on its background threads.
+     *
+     * @param pids the ids of the pages to read, in the order they will be used
+     */
+    public void prefetchPages(List<PageId> pids) {
+        List<PageId> claimed = new ArrayList<PageId>();
+        List<FutureTask<Page>> tasks = new ArrayList<FutureTask<Page>>();
+        for (PageId pid : pids) {
+            if (this.pageTable.containsKey(pid))
+                continue;
+            FutureTask<Page> task = newLoad(pid, true);
+            if (this.pendingLoads.putIfAbsent(pid, task) == null) {
+                claimed.add(pid);
+                tasks.add(task);
+            }
+        }
+        try {
+            int start = 0;
+            while (start < claimed.size()) {
+                // find the run of consecutive pages of one file starting here
+                PageId first = claimed.get(start);
+                int end = start + 1;
+                while (end < claimed.size()) {
+                    PageId pid = claimed.get(end);
+                    if (pid.getTableId() != first.getTableId()
+                            || pid.pageNumber() != first.pageNumber() + (end - start))
+                        break;
+                    end++;
+                }
+                try {
+                    if (end - start > 1)
+                        Database.getCatalog().getDatabaseFile(first.getTableId())
+                                .stagePages(first.pageNumber(), end - start);
+                    for (int i = start; i < end; i++)
+                        tasks.get(i).run();
+                } catch (IOException e) {
+                    // read the pages one at a time
+                    for (int i = start; i < end; i++)
+                        tasks.get(i).run();
+                } finally {
+                    PageIO.unstage();
+                }
+                start = end;
+            }
+        } finally {
+            for (int i = 0; i < claimed.size(); i++) {
+                // make sure nobody waits on a task that will never run
+                tasks.get(i).cancel(false);
+                this.pendingLoads.remove(claimed.get(i), tasks.get(i));
+            }
+        }
+    }
+
+    /**
+     * Read a page from its file, into a frame of the arena if it is a heap
+     * file page and a frame is available.
+     */
+    private Page readPage(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (!(file instanceof HeapFile) || frames.getFrameSize() != getPageSize())
+            return file.readPage(pid);
+        ByteBuffer frame = frames.allocate();
+        if (frame == null)
+            return file.readPage(pid);
+        Page page = ((HeapFile)file).readPage(pid, frame);
+        if (page == null)
+            frames.release(frame);
+        return page;
+    }
+
+    /**
+     * Give back the arena frame a page that is leaving the pool was using.
+     * The page keeps a copy of its image unless it is on disk as it is.
+     */
+    private void releaseFrame(Page page) {
+        if (page instanceof HeapPage) {
+            boolean onDisk = !this.unwritten.containsKey(page.getId());
+            ByteBuffer frame = ((HeapPage)page).detachFrame(onDisk);
+            if (frame != null)
+                frames.release(frame);
+        }
+    }
+
+    /**
+     * Put a freshly read page into the page table, evicting if the pool is
+     * full.  If another version of the page is already resident (e.g. a dirty
+     * page installed by insertTuple), that version wins and is returned.
+     * Returns null, dropping the page, if a page was discarded since the
+     * read began, as the read may have seen an image a rollback replaced.
+     *
+     * @param seen the value of discards before the page was read
+     */
+    private Page installPage(PageId pid, Page page, long seen) throws DbException {
+        while (true) {
+            synchronized (this) {
+                Page resident = this.pageTable.get(pid);
+                if (resident != null) {
+                    releaseFrame(page);
+                    return resident;
+                }
+                if (this.discards != seen) {
+                    releaseFrame(page);
+                    return null;
+                }
+                if (this.pageTable.size() < this.numPages) {
+                    this.pageTable.put(pid, page);
+                    this.policy.pageAdded(pid);
+                    return page;
+                }
             }
-            else
-            {
-                int pageArrayId = this.pageIndexHashMap.get(pid);
-                targetPage = this.pageArray[pageArrayId];
+            try {
+                makeRoom();
+            } catch (DbException e) {
+                releaseFrame(page);
+                throw e;
             }
+        }
+    }
 
-            return targetPage;
+    /**
+     * Replace the cached version of a page with one dirtied by an operator,
+     * evicting another page if it is not resident yet.
+     */
+    private void cacheDirtyPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            synchronized (this) {
+                if (this.pageTable.containsKey(pid)) {
+                    Page old = this.pageTable.put(pid, page);
+                    if (old != page)
+                        releaseFrame(old);
+                    return;
+                }
+                if (this.pageTable.size() < this.numPages) {
+                    this.pageTable.put(pid, page);
+                    this.policy.pageAdded(pid);
+                    return;
+                }
+            }
+            makeRoom();
         }
     }
 
@@ -149,28 +653,56 @@ public class BufferPool {
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction.  A commit logs the changes of the transaction's pages
+     * and forces the log, without holding the monitor while it waits for
+     * the force, but leaves writing the pages to the page writer.
+     * An abort drops the changes that were never logged; rolling back the
+     * logged ones is up to the log (see {@link LogFile#logAbort}).
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
-    public synchronized  void transactionComplete(TransactionId tid, boolean commit)
+    public void transactionComplete(TransactionId tid, boolean commit)
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        if (versions.isSnapshot(tid)) {
+            versions.end(tid);
+            return;
+        }
+        this.optimistic.remove(tid);
         if (commit == true) {
-            this.flushPages(tid);
+            long lsn = this.logPages(tid);
+            if (lsn > 0)
+                Database.getLogFile().force(lsn);
+            versions.commit(tid);
         }
         else {
             if (this.Lock_Manage.holdsLock(tid)) {
-                ArrayList<PageId> pages = this.Lock_Manage.holdsPage(tid);
-                for (PageId pid: pages) 
-                    this.discardPage(pid);
+                for (PageId pid: pagesOf(tid))
+                    this.revertPage(pid);
             }
+            versions.abort(tid);
         }
         this.Lock_Manage.releaseAllLock(tid);
     }
 
+    /**
+     * Drop the changes to a page that were never logged, including those an
+     * operator made but did not mark yet.  A page with logged changes that
+     * are not on disk goes back to how it was logged; any other page is read
+     * from disk again.
+     */
+    private synchronized void revertPage(PageId pid) {
+        Page page = this.pageTable.get(pid);
+        if (page == null || !this.unwritten.containsKey(pid)) {
+            this.discardPage(pid);
+        } else {
+            this.pageTable.put(pid, page.getBeforeImage());
+            releaseFrame(page);
+        }
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other 
@@ -181,6 +713,7 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
+     * The pages of an optimistic transaction stay private until it commits.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -192,22 +725,85 @@ public class BufferPool {
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> dirtyPageList = file.insertTuple(tid, t);
+        boolean pooled = !this.optimistic.containsKey(tid);
         for (Page dirtyPage : dirtyPageList) {
             dirtyPage.markDirty(true, tid);
-            PageId pid = dirtyPage.getId();
-            if (pageIndexHashMap.containsKey(pid)) {
-                int index = pageIndexHashMap.get(pid);
-                this.pageArray[index] = dirtyPage;
+            if (pooled)
+                this.cacheDirtyPage(dirtyPage);
+        }
+    }
+
+    /**
+     * Add a stream of tuples to the specified table on behalf of transaction
+     * tid, on new pages appended to the end of a heap file.  The pages are
+     * filled in memory an extent at a time (see {@link HeapFile#fillPages}),
+     * locked exclusively, logged with whole images, and written with one
+     * write per extent once the log is forced up to them; they do not pass
+     * through the pool.  Tables that are not heap files, and snapshot and
+     * optimistic transactions, get the tuples one at a time through
+     * {@link #insertTuple}.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add, already open
+     * @return the number of tuples added
+     */
+    public int bulkInsert(TransactionId tid, int tableId, DbIterator tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        int n = 0;
+        if (!(file instanceof HeapFile) || versions.isSnapshot(tid) || this.optimistic.containsKey(tid)) {
+            for (; tuples.hasNext(); n++)
+                insertTuple(tid, tableId, tuples.next());
+            return n;
+        }
+        HeapFile hf = (HeapFile)file;
+        byte[] empty = HeapPage.createEmptyPageData();
+        for (List<HeapPage> pages = hf.fillPages(tuples); !pages.isEmpty(); pages = hf.fillPages(tuples)) {
+            long lsn = 0;
+            for (HeapPage page : pages) {
+                Lock_Manage.acquireLock(tid, page.getId(), 1);
+                lsn = Database.getLogFile().logReset(tid, page.getId(), empty, page.getPageData());
+                // snapshots and optimistic readers see the page empty
+                versions.logged(tid, new HeapPage(page.getId(), empty));
+                n += HeapPage.slotsPerPage(hf.getTupleDesc()) - page.getNumEmptySlots();
             }
-            else {
-                while (queue.size() == 0)
-                    this.evictPage();
-                int index = queue.poll();
-                this.pageIndexHashMap.put(pid, index);
-                this.FIFO.addLast(pid);
-                this.pageArray[index] = dirtyPage;
+            Database.getLogFile().force(lsn);
+            List<FutureTask<Page>> claims = new ArrayList<FutureTask<Page>>();
+            for (HeapPage page : pages)
+                claims.add(claimPage(page.getId()));
+            try {
+                hf.writePages(pages);
+                for (HeapPage page : pages)
+                    Database.getLogFile().pageWritten(page.getId());
+            } finally {
+                for (int i = 0; i < pages.size(); i++) {
+                    claims.get(i).cancel(false);
+                    this.pendingLoads.remove(pages.get(i).getId(), claims.get(i));
+                }
             }
         }
+        return n;
+    }
+
+    /**
+     * Keep a page from being loaded while it is written behind the pool's
+     * back, and drop it if it is resident.  Loads already under way are
+     * waited for; later ones wait on the returned claim, and read the page
+     * again once it is cancelled.
+     */
+    private FutureTask<Page> claimPage(PageId pid) {
+        FutureTask<Page> claim = newLoad(pid, false);
+        FutureTask<Page> pending;
+        while ((pending = this.pendingLoads.putIfAbsent(pid, claim)) != null) {
+            try {
+                pending.get();
+            } catch (Exception e) {
+                // the load failed or was abandoned; either way it is over
+            }
+        }
+        discardPage(pid);
+        return claim;
     }
 
     /**
@@ -219,6 +815,7 @@ public class BufferPool {
      * their markDirty bit, and adds versions of any pages that have 
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
+     * The pages of an optimistic transaction stay private until it commits.
      *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
@@ -229,35 +826,24 @@ public class BufferPool {
         // not necessary for lab1
         DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> dirtyPageList = file.deleteTuple(tid, t);
+        boolean pooled = !this.optimistic.containsKey(tid);
         for (Page dirtyPage : dirtyPageList) {
             dirtyPage.markDirty(true, tid);
-            PageId pid = dirtyPage.getId();
-            if (pageIndexHashMap.containsKey(pid)) {
-                int index = pageIndexHashMap.get(pid);
-                this.pageArray[index] = dirtyPage;
-            }
-            else {
-                while (queue.size() == 0)
-                    this.evictPage();
-                int index = queue.poll();
-                this.pageIndexHashMap.put(pid, index);
-                this.FIFO.addLast(pid);
-                this.pageArray[index] = dirtyPage;
-            }
+            if (pooled)
+                this.cacheDirtyPage(dirtyPage);
         }
 
     }
     
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Flush all dirty pages to disk.  The changes of uncommitted
+     * transactions are logged first, so their rollback can undo them.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid : pageIndexHashMap.keySet())
+        for (PageId pid : pageTable.keySet())
         {
             flushPage(pid);
         }
@@ -274,77 +860,334 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        if (pageIndexHashMap.containsKey(pid))
-        {
-            this.FIFO.remove(pid);
-            this.queue.add(pageIndexHashMap.get(pid));
-            this.pageIndexHashMap.remove(pid);
-
+        // a write under way would put the page back on disk as it was
+        awaitWrite(pid);
+        Page page = pageTable.remove(pid);
+        this.prefetched.remove(pid);
+        this.discards++;
+        if (page != null) {
+            this.policy.pageRemoved(pid);
+            releaseFrame(page);
         }
+        this.unwritten.remove(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (this.pageIndexHashMap.containsKey(pid))
-        {
-            int pageArrayIndex = pageIndexHashMap.get(pid);
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(pageArray[pageArrayIndex]);
+        synchronized (this) {
+            Page page = this.pageTable.get(pid);
+            if (page == null)
+                return;
+            logUpdate(page);
+        }
+        writeLogged(pid);
+    }
+
+    /**
+     * Log an UPDATE record for a page if it is dirty.  The page as logged
+     * is the before image of its next record, which logs what changed since,
+     * and the page is clean until it changes again, but unwritten.
+     * @return the LSN of the record, or 0 if the page is clean
+     */
+    private long logUpdate(Page page) throws IOException {
+        TransactionId dirtier = page.isDirty();
+        if (dirtier == null)
+            return 0;
+        Page before = page.getBeforeImage();
+        long lsn = Database.getLogFile().logWrite(dirtier, before, page);
+        // snapshots may still need the page as it was before dirtier
+        versions.logged(dirtier, before);
+        page.setBeforeImage();
+        page.markDirty(false, null);
+        this.unwritten.put(page.getId(), lsn);
+        return lsn;
+    }
+
+    /**
+     * Write a page as it was last logged, if that is not on disk yet.  The
+     * log is forced up to the page's last record first, and changes made
+     * since the page was logged stay in memory.  The image and the LSN are
+     * taken under the monitor, but the force and the write happen outside
+     * it; if the page is logged again meanwhile, it stays unwritten.
+     */
+    private void writeLogged(PageId pid) throws IOException {
+        Page image;
+        Long lsn;
+        synchronized (this) {
+            awaitWrite(pid);
+            Page page = this.pageTable.get(pid);
+            lsn = this.unwritten.get(pid);
+            if (page == null || lsn == null)
+                return;
+            image = page.getBeforeImage();
+            this.writing.add(pid);
+        }
+        boolean written = false;
+        try {
+            Database.getLogFile().force(lsn);
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(image);
+            written = true;
+        } finally {
+            synchronized (this) {
+                if (written && this.unwritten.remove(pid, lsn))
+                    Database.getLogFile().pageWritten(pid);
+                this.writing.remove(pid);
+                notifyAll();
+            }
+        }
+    }
+
+    // wait, holding the monitor, until no write of pid is under way
+    private void awaitWrite(PageId pid) {
+        boolean interrupted = false;
+        while (this.writing.contains(pid)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Wait until no page is being written.  For the log, which writes pages
+     * itself while it holds the monitor, so no write can start meanwhile.
+     */
+    synchronized void awaitWrites() {
+        boolean interrupted = false;
+        while (!this.writing.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Log the changes of all pages of the specified transaction without
+     * writing the pages, which the page writer does later.  The records are
+     * durable once the log is forced, e.g. by the transaction's commit.
+     * @return the LSN of the last record, or 0 if no page had changes
+     */
+    public synchronized long logPages(TransactionId tid) throws IOException {
+        long lsn = 0;
+        for (PageId pid: pagesOf(tid)) {
+            Page page = this.pageTable.get(pid);
+            if (page != null)
+                lsn = Math.max(lsn, logUpdate(page));
+        }
+        if (lsn > 0)
+            wakeWriter();
+        return lsn;
+    }
+
+    /**
+     * The page as it was last logged, if it is in the pool.  Used by the log
+     * to roll back the changes of a transaction that may not be on disk.
+     */
+    Page loggedPage(PageId pid) {
+        Page page = this.pageTable.get(pid);
+        return page == null ? null : page.getBeforeImage();
+    }
+
+    /**
+     * Write every page whose logged changes are not on disk yet, which is
+     * what the page writer does in the background.
+     */
+    public void writeLoggedPages() throws IOException {
+        List<PageId> pids = new ArrayList<PageId>(this.unwritten.keySet());
+        Collections.sort(pids, PAGE_ORDER);
+        for (PageId pid : pids)
+            writeLogged(pid);
+    }
+
+    /**
+     * Stop the page writer, waiting for the page it is writing, if any.
+     * Logged changes not written yet are left to recovery; called when the
+     * pool is replaced.
+     */
+    public void close() {
+        Thread writer;
+        synchronized (writerLock) {
+            closed = true;
+            writerLock.notifyAll();
+            writer = pageWriter;
+        }
+        if (writer == null || writer == Thread.currentThread())
+            return;
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    // start the page writer if needed and let it know there are pages to write
+    private void wakeWriter() {
+        synchronized (writerLock) {
+            if (pageWriter == null && !closed) {
+                pageWriter = new Thread(new PageWriter(), "simpledb-page-writer");
+                pageWriter.setDaemon(true);
+                pageWriter.start();
+            }
+            writerLock.notifyAll();
+        }
+    }
+
+    /**
+     * Writes the pages committed transactions left in the pool, in rounds,
+     * so that eviction seldom has to write and the log can be truncated.
+     */
+    private class PageWriter implements Runnable {
+        public void run() {
+            while (true) {
+                synchronized (writerLock) {
+                    try {
+                        while (unwritten.isEmpty() && !closed)
+                            writerLock.wait();
+                        if (!closed)
+                            writerLock.wait(WRITER_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (closed)
+                        return;
+                }
+                try {
+                    // stop between pages once closed, as close() waits
+                    List<PageId> pids = new ArrayList<PageId>(unwritten.keySet());
+                    Collections.sort(pids, PAGE_ORDER);
+                    for (PageId pid : pids) {
+                        synchronized (writerLock) {
+                            if (closed)
+                                return;
+                        }
+                        writeLogged(pid);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        ArrayList<PageId> pages = this.Lock_Manage.holdsPage(tid);
-        for (PageId pid: pages) {
-            this.flushPage(pid);
+        List<PageId> pids = new ArrayList<PageId>();
+        long lsn = 0;
+        synchronized (this) {
+            for (PageId pid: pagesOf(tid)) {
+                Page page = this.pageTable.get(pid);
+                if (page != null) {
+                    pids.add(pid);
+                    lsn = Math.max(lsn, logUpdate(page));
+                }
+            }
         }
+        // one force of the log covers the update records of all the pages
+        if (lsn > 0)
+            Database.getLogFile().force(lsn);
+        for (PageId pid : pids)
+            writeLogged(pid);
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The pages tid may have changed: those it locked exclusively, and under
+     * an exclusive table lock, which needs no page locks, those it dirtied.
      */
-    private synchronized  void evictPage() throws DbException {
+    private Set<PageId> pagesOf(TransactionId tid) {
+        Set<PageId> pages = new LinkedHashSet<PageId>(this.Lock_Manage.holdsPage(tid));
+        if (this.Lock_Manage.holdsExclusiveTable(tid)) {
+            for (Page p : pageTable.values()) {
+                if (tid.equals(p.isDirty()))
+                    pages.add(p.getId());
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Discards pages from the buffer pool until there is room for one more.
+     * Pages that are on disk as they are go first; failing those, a page is
+     * written out, after its changes are logged if they were not, even if
+     * its transaction is running.  The page is written outside the monitor
+     * and evicted on a later round, once it is on disk as it is; another
+     * thread may take the room first, so callers check again.
+     */
+    private void makeRoom() throws DbException {
         // some code goes here
         // not necessary for lab1
-        PageId evictPid = null;
-        ArrayList<PageId> A = new ArrayList<PageId>();
-        int pageArrayId = 0;
-        while (!FIFO.isEmpty()) {
-            evictPid = FIFO.pollFirst();  
-            try {
-                pageArrayId = pageIndexHashMap.get(evictPid);
+        while (true) {
+            PageId evictPid;
+            synchronized (this) {
+                if (this.pageTable.size() < this.numPages)
+                    return;
+                evictPid = chooseVictim(false, false);
+                if (evictPid == null && !this.prefetched.isEmpty()) {
+                    // nothing else to evict, give up on read-ahead
+                    this.prefetched.clear();
+                    evictPid = chooseVictim(false, true);
+                }
+                if (evictPid != null) {
+                    Page page = this.pageTable.remove(evictPid);
+                    this.policy.pageRemoved(evictPid);
+                    this.prefetched.remove(evictPid);
+                    releaseFrame(page);
+                    return;
+                }
+                evictPid = chooseVictim(true, true);
+                if (evictPid == null)
+                    throw new DbException("no page in BufferPool to evict!");
+                try {
+                    logUpdate(this.pageTable.get(evictPid));
+                } catch (IOException e) {
+                    throw new DbException("could not log page " + evictPid + " to evict it: " + e.getMessage());
+                }
             }
-            catch (Exception e) {
-                throw new DbException("all dirty pages!");
+
+            // write the page out before dropping it from the table, so that a
+            // concurrent miss on it can never read a stale disk image; a page
+            // that could not be written stays resident
+            try {
+                writeLogged(evictPid);
+            } catch (IOException e) {
+                throw new DbException("could not write page " + evictPid + " to evict it: " + e.getMessage());
             }
-            if (this.pageArray[pageArrayId].isDirty() == null)
-                break;
-            A.add(evictPid);
         }
+    }
 
-        if (evictPid == null)
-            throw new DbException("all dirty pages in BufferPool!");
-
-        for (PageId p: A) 
-            FIFO.addLast(p);
-        
-        try  {
-            flushPage(evictPid);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println("IOException happens in evictPage()\n");
-        }
-        this.pageIndexHashMap.remove(evictPid);
-        this.queue.add(pageArrayId);
+    /**
+     * Ask the eviction policy for a victim.
+     * @param steal true to allow pages that must be written first
+     * @param ahead true to allow pages read ahead but not asked for yet
+     */
+    private PageId chooseVictim(final boolean steal, final boolean ahead) {
+        return this.policy.chooseVictim(new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                Page page = pageTable.get(pid);
+                if (page == null || (!ahead && prefetched.contains(pid)))
+                    return false;
+                return steal || (page.isDirty() == null && !unwritten.containsKey(pid));
+            }
+        });
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * CLOCK (second chance) replacement.  Resident pages sit in a circular
+ * array of frames, each with a reference bit that is set on every hit.  The
+ * clock hand sweeps the frames, clearing set bits and evicting the first
+ * evictable page whose bit is already clear.
+ * <p>
+ * A hit only sets an AtomicBoolean, so it never takes a lock.
+ */
+public class ClockEvictionPolicy extends AbstractEvictionPolicy {
+
+    private final ConcurrentHashMap<PageId, AtomicBoolean> refBits =
+        new ConcurrentHashMap<PageId, AtomicBoolean>();
+    private final ArrayList<PageId> frames = new ArrayList<PageId>(); // protected by this
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>(); // protected by this
+    private final ArrayDeque<Integer> freeFrames = new ArrayDeque<Integer>(); // protected by this
+    private int hand = 0; // protected by this
+
+    protected void accessed(PageId pid) {
+        AtomicBoolean ref = refBits.get(pid);
+        if (ref != null)
+            ref.set(true);
+    }
+
+    protected synchronized void added(PageId pid) {
+        if (frameOf.containsKey(pid))
+            return;
+        int frame;
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+        } else {
+            frame = freeFrames.poll();
+            frames.set(frame, pid);
+        }
+        frameOf.put(pid, frame);
+        refBits.put(pid, new AtomicBoolean(false));
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame == null)
+            return;
+        frames.set(frame, null);
+        freeFrames.add(frame);
+        refBits.remove(pid);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        int n = frames.size();
+        // two full sweeps: the first may only clear reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            if (hand >= n)
+                hand = 0;
+            PageId pid = frames.get(hand);
+            hand++;
+            if (pid == null)
+                continue;
+            AtomicBoolean ref = refBits.get(pid);
+            if (ref != null && ref.getAndSet(false))
+                continue;
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
@@ -55,11 +55,27 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, new ClockEvictionPolicy());
+    }
+
+    /**
+     * Method used for testing and benchmarking -- create a new instance of
+     * the buffer pool that evicts pages with the given policy, and return it.
+     * The committed pages the old pool had not written yet are written first.
+     */
+    public static BufferPool resetBufferPool(int pages, EvictionPolicy policy) {
         java.lang.reflect.Field bufferPoolF=null;
+        BufferPool old = getBufferPool();
+        try {
+            old.writeLoggedPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        old.close();
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policy));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +91,8 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        getBufferPool().close();
+        PageIO.closeAll();
         _instance.set(new Database());
     }
 
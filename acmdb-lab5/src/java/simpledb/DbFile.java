@@ -19,6 +19,17 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Fetch the specified run of consecutive pages with one large read and
+     * serve the calling thread's following readPage() calls for them from
+     * memory, until {@link PageIO#unstage()} is called.  Used by read-ahead.
+     *
+     * @param firstPageNo the page number of the first page of the run
+     * @param numPages the number of pages in the run
+     * @throws IOException if the read fails
+     */
+    public void stagePages(int firstPageNo, int numPages) throws IOException;
+
     /**
      * Push the specified page to disk.
      *
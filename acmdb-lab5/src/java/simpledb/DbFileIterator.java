@@ -33,6 +33,20 @@ public interface DbFileIterator{
      */
     public void rewind() throws DbException, TransactionAbortedException;
 
+    /**
+     * Adds the next tuples to a batch until it is full or there are no more.
+     * By default the tuples are read one at a time with next(); files that
+     * can decode their pages straight into the columns of the batch override
+     * this.  Calls to next() and nextBatch() may be mixed.
+     *
+     * @param batch the batch to add the tuples to
+     */
+    public default void nextBatch(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        while (!batch.isFull() && hasNext())
+            batch.addTuple(next());
+    }
+
     /**
      * Closes the iterator.
      */
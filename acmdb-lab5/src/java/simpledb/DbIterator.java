@@ -34,6 +34,29 @@ public interface DbIterator extends Serializable{
    */
   public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next tuples from the operator as a batch of columns (see
+   * {@link TupleBatch}).  By default the tuples are read one at a time with
+   * next(); operators that can process many tuples per call override this.
+   * Calls to next() and nextBatch() may be mixed.
+   *
+   * @param maxTuples the most tuples to return
+   * @return a batch of at least one selected tuple, or null if there are no
+   *         more tuples
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch(int maxTuples)
+      throws DbException, TransactionAbortedException {
+    TupleBatch batch = null;
+    while ((batch == null || !batch.isFull()) && hasNext()) {
+      Tuple t = next();
+      if (batch == null)
+        batch = new TupleBatch(t.getTupleDesc(), maxTuples);
+      batch.addTuple(t);
+    }
+    return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -52,6 +52,7 @@ public class Delete extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        super.rewind();
         this.child.rewind();
     }
 
@@ -0,0 +1,55 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool throws out when
+ * it needs room for another one.  The BufferPool tells the policy about every
+ * hit, every page that becomes resident and every page that leaves, and asks
+ * it for a victim when the pool is full.
+ * <p>
+ * pageAccessed may be called concurrently from many threads without holding
+ * the BufferPool monitor; the other methods are called with the monitor held.
+ *
+ * @see BufferPool
+ * @see AbstractEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /** Tells the policy whether a resident page may be evicted right now. */
+    public interface Evictable {
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Called once by the BufferPool this policy is attached to.
+     *
+     * @param numPages the maximum number of pages the pool holds
+     */
+    public void setCapacity(int numPages);
+
+    /** A resident page was requested again (a cache hit). */
+    public void pageAccessed(PageId pid);
+
+    /** A page became resident (a cache miss, or a newly created page). */
+    public void pageAdded(PageId pid);
+
+    /** A page left the pool, either evicted or discarded. */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose the page to evict next.  The page is not removed from the
+     * policy until pageRemoved is called for it.
+     *
+     * @param evictable tells which resident pages can be evicted
+     * @return the victim, or null if no resident page is evictable
+     */
+    public PageId chooseVictim(Evictable evictable);
+
+    /** @return the number of cache hits seen by this policy */
+    public long getHits();
+
+    /** @return the number of cache misses seen by this policy */
+    public long getMisses();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStats();
+}
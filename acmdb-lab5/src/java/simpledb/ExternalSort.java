@@ -0,0 +1,307 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * ExternalSort is an ORDER BY that is not limited by memory.  It sorts the
+ * child's tuples in runs that fit in a budget of pages, spills each run to a
+ * temporary file and merges the runs; when there are more runs than the
+ * budget can merge at once, they are merged in several passes.  A child that
+ * fits in one run is sorted in memory and nothing is spilled.
+ */
+public class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** A sorted run spilled to a temporary file. */
+    private static class Run {
+        final File file;
+        final int size;
+
+        Run(File file, int size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    /** Reads a run back, a tuple at a time. */
+    private class RunReader {
+        final DataInputStream in;
+        int remaining;
+        Tuple head; // the next tuple of the run, or null at its end
+
+        RunReader(Run run) throws IOException, DbException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file),
+                    BufferPool.getPageSize()));
+            remaining = run.size;
+            advance();
+        }
+
+        void advance() throws IOException, DbException {
+            if (remaining == 0) {
+                head = null;
+                in.close();
+                return;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("corrupt sort run: " + e.getMessage());
+            }
+            head = t;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written, there is nothing to lose
+            }
+        }
+    }
+
+    private DbIterator child;
+    private final TupleDesc td;
+    private final int sortField;
+    private final boolean asc;
+    private final int memoryPages;
+    private final TupleComparator comparator;
+
+    private ArrayList<Tuple> sorted; // all the tuples, when they fit in one run
+    private Iterator<Tuple> it;
+    private List<Run> runs = new ArrayList<Run>(); // the runs left to merge
+    private PriorityQueue<RunReader> merge;
+    private int numTuples;
+    private int numRuns;
+
+    /**
+     * Creates a new ExternalSort node over the tuples from the iterator.
+     *
+     * @param sortField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            the pages of tuples to hold in memory at a time; also
+     *            bounds the runs merged at once to memoryPages - 1.
+     */
+    public ExternalSort(int sortField, boolean asc, DbIterator child, int memoryPages) {
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.sortField = sortField;
+        this.asc = asc;
+        this.memoryPages = memoryPages;
+        this.comparator = new TupleComparator(sortField, asc);
+    }
+
+    public boolean isASC() {
+        return asc;
+    }
+
+    public int getSortField() {
+        return sortField;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples sorted; known once the sort is open */
+    public int getNumTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of runs spilled, over all merge passes */
+    public int getNumRuns() {
+        return numRuns;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        int runTuples = Math.max(1, memoryPages * BufferPool.getPageSize() / td.getSize());
+        int fanIn = memoryPages - 1;
+        numTuples = 0;
+        numRuns = 0;
+        sorted = null;
+        it = null;
+        child.open();
+        try {
+            ArrayList<Tuple> run = new ArrayList<Tuple>();
+            while (child.hasNext()) {
+                run.add(child.next());
+                numTuples++;
+                if (run.size() == runTuples) {
+                    Collections.sort(run, comparator);
+                    runs.add(spill(run));
+                    run.clear();
+                }
+            }
+            Collections.sort(run, comparator);
+            if (runs.isEmpty()) {
+                sorted = run;
+            } else {
+                if (!run.isEmpty())
+                    runs.add(spill(run));
+                // merge fanIn runs at a time until one pass can merge the rest
+                while (runs.size() > fanIn) {
+                    List<Run> merged = new ArrayList<Run>();
+                    for (int i = 0; i < runs.size(); i += fanIn)
+                        merged.add(mergeRuns(runs.subList(i, Math.min(i + fanIn, runs.size()))));
+                    runs = merged;
+                }
+            }
+        } catch (IOException e) {
+            deleteRuns();
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        rewind();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMerge();
+        deleteRuns();
+        sorted = null;
+        it = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        if (sorted != null) {
+            it = sorted.iterator();
+            return;
+        }
+        closeMerge();
+        try {
+            merge = openRuns(runs);
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child operator
+     * in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null)
+            return it.hasNext() ? it.next() : null;
+        if (merge == null || merge.isEmpty())
+            return null;
+        try {
+            return next(merge);
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+    // write the tuples of a sorted list to a new run
+    private Run spill(List<Tuple> tuples) throws IOException {
+        File f = File.createTempFile("sort", ".run");
+        f.deleteOnExit();
+        DataOutputStream out = output(f);
+        try {
+            for (Tuple t : tuples)
+                write(out, t);
+        } finally {
+            out.close();
+        }
+        numRuns++;
+        return new Run(f, tuples.size());
+    }
+
+    // merge runs into one, deleting them
+    private Run mergeRuns(List<Run> group) throws IOException, DbException {
+        File f = File.createTempFile("sort", ".run");
+        f.deleteOnExit();
+        PriorityQueue<RunReader> queue = openRuns(group);
+        DataOutputStream out = output(f);
+        int size = 0;
+        try {
+            for (; !queue.isEmpty(); size++)
+                write(out, next(queue));
+        } finally {
+            out.close();
+            for (RunReader r : queue)
+                r.close();
+        }
+        for (Run run : group)
+            run.file.delete();
+        numRuns++;
+        return new Run(f, size);
+    }
+
+    private static DataOutputStream output(File f) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+                BufferPool.getPageSize()));
+    }
+
+    private void write(DataOutputStream out, Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+    }
+
+    private PriorityQueue<RunReader> openRuns(List<Run> group) throws IOException, DbException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, group.size()),
+                new Comparator<RunReader>() {
+                    public int compare(RunReader r1, RunReader r2) {
+                        return comparator.compare(r1.head, r2.head);
+                    }
+                });
+        for (Run run : group) {
+            RunReader r = new RunReader(run);
+            if (r.head != null)
+                queue.add(r);
+        }
+        return queue;
+    }
+
+    // take the least head tuple of the runs
+    private Tuple next(PriorityQueue<RunReader> queue) throws IOException, DbException {
+        RunReader r = queue.poll();
+        Tuple t = r.head;
+        r.advance();
+        if (r.head != null)
+            queue.add(r);
+        return t;
+    }
+
+    private void closeMerge() {
+        if (merge == null)
+            return;
+        for (RunReader r : merge)
+            r.close();
+        merge = null;
+    }
+
+    private void deleteRuns() {
+        for (Run run : runs)
+            run.file.delete();
+        runs = new ArrayList<Run>();
+    }
+}
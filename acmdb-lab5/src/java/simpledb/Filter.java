@@ -51,6 +51,7 @@ public class Filter extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        super.rewind();
         this.child.rewind();
     }
 
@@ -74,6 +75,21 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Filters the child's tuples a batch at a time, dropping the tuples that
+     * do not pass the predicate from the batch's selection.
+     */
+    protected TupleBatch fetchNextBatch(int maxTuples) throws TransactionAbortedException,
+            DbException {
+        TupleBatch batch;
+        while ((batch = this.child.nextBatch(maxTuples)) != null) {
+            batch.filter(this.p);
+            if (!batch.isEmpty())
+                return batch;
+        }
+        return null;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * FrameArena is the fixed set of page frames owned by a BufferPool.  All
+ * frames are carved out of a few large direct ByteBuffers allocated up
+ * front, so the memory used by cached page images lives off the Java heap,
+ * is allocated once, and never has to be collected.
+ * <p>
+ * The BufferPool reads heap file pages straight into a frame with
+ * {@link HeapFile#readPage(PageId, ByteBuffer)}.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    private final int frameSize;
+    private final int numFrames;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @param numFrames the number of frames to allocate
+     * @param frameSize the size of each frame in bytes
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.numFrames = numFrames;
+        int framesPerChunk = Math.max(1, Integer.MAX_VALUE / frameSize);
+        int allocated = 0;
+        while (allocated < numFrames) {
+            int chunkFrames = Math.min(framesPerChunk, numFrames - allocated);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(chunkFrames * frameSize);
+            for (int i = 0; i < chunkFrames; i++) {
+                chunk.limit((i + 1) * frameSize);
+                chunk.position(i * frameSize);
+                free.add(chunk.slice());
+            }
+            allocated += chunkFrames;
+        }
+    }
+
+    /** @return the size of each frame in bytes */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the total number of frames in this arena */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** @return the number of frames that are not handed out */
+    public int getNumFree() {
+        return free.size();
+    }
+
+    /**
+     * Hand out a free frame.  Its contents are whatever the previous user
+     * left in it.
+     *
+     * @return a cleared frame, or null if every frame is in use
+     */
+    public ByteBuffer allocate() {
+        ByteBuffer frame = free.poll();
+        if (frame != null)
+            frame.clear();
+        return frame;
+    }
+
+    /** Give a frame obtained from allocate() back to the arena. */
+    public void release(ByteBuffer frame) {
+        free.add(frame);
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * FreeSpaceMap keeps roughly how many free slots each page of a HeapFile
+ * has, so an insert goes straight to a page with room instead of probing
+ * the pages in order.
+ * <p>
+ * The counts are hints.  The file's own inserts and deletes keep them up
+ * to date, but they may lag behind aborts and recovery; an insert that finds
+ * its page full after all just records that and picks again.  The pages with
+ * room are also kept in an array, so picking one takes constant time, and
+ * each transaction picks by its id, which spreads concurrent inserters over
+ * different pages when there are several to choose from.
+ *
+ * @Threadsafe
+ */
+class FreeSpaceMap {
+    private int[] free = new int[16]; // free slots, by page number
+    private int pages = 0; // the number of pages known
+    // the pages with room, in no particular order, and where each page is in
+    // that array, or -1 if it is full
+    private int[] open = new int[16];
+    private int[] position = new int[16];
+    private int numOpen = 0;
+
+    /** @return the number of pages known, which are pages 0 to pages() - 1 */
+    synchronized int pages() {
+        return pages;
+    }
+
+    /** @return the free slots a page had when last seen */
+    synchronized int free(int pgNo) {
+        return pgNo < pages ? free[pgNo] : 0;
+    }
+
+    /**
+     * Pick a page for tid to insert into.
+     * @return the number of a page with room, or -1 if no page has any
+     */
+    synchronized int pick(TransactionId tid) {
+        if (numOpen == 0)
+            return -1;
+        long id = tid == null ? 0 : tid.getId();
+        return open[(int)(id % numOpen)];
+    }
+
+    /**
+     * Record the free slots of a page if it is known already; a page that is
+     * not is left for whoever adds it to look at.
+     */
+    synchronized void updateKnown(int pgNo, int freeSlots) {
+        if (pgNo < pages)
+            update(pgNo, freeSlots);
+    }
+
+    /**
+     * Record the free slots of a page, adding it if it is new.  Pages not
+     * known yet before it are added as full.
+     */
+    synchronized void update(int pgNo, int freeSlots) {
+        if (pgNo >= free.length) {
+            int length = Math.max(pgNo + 1, free.length * 2);
+            free = Arrays.copyOf(free, length);
+            open = Arrays.copyOf(open, length);
+            position = Arrays.copyOf(position, length);
+        }
+        for (; pages <= pgNo; pages++)
+            position[pages] = -1;
+        free[pgNo] = freeSlots;
+        int at = position[pgNo];
+        if (freeSlots > 0 && at < 0) {
+            open[numOpen] = pgNo;
+            position[pgNo] = numOpen++;
+        } else if (freeSlots <= 0 && at >= 0) {
+            int last = open[--numOpen];
+            open[at] = last;
+            position[last] = at;
+            position[pgNo] = -1;
+        }
+    }
+}
@@ -1,24 +1,160 @@
 package simpledb;
 
+import java.io.*;
+import java.text.ParseException;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * HashEquiJoin joins two children on equal join fields by hashing.  It
+ * builds a hash table, keyed by the join field, on whichever child fits in a
+ * budget of pages (trying the inner, right child first), and streams the
+ * other child past it, returning matches as they are found.
+ * <p>
+ * When neither child fits, the join becomes a hybrid hash join: both
+ * children are split into partitions by a hash of the join field, the first
+ * partition of the inner child stays in memory (while it fits) and is joined
+ * on the fly, and the others are spilled to temporary files and joined one
+ * pair at a time afterwards, building on the smaller of the two.  A spilled
+ * partition that still does not fit is partitioned again with a different
+ * hash; one that does not shrink after a few passes (many equal keys) is
+ * joined a budget of tuples at a time, rereading the other partition for
+ * each.  Finding out which child fits may hold a budget of tuples of each.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends JoinOperator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The pages of tuples the join hashes in memory by default. */
+    public static final int DEFAULT_MEMORY_PAGES = 256;
+    private static final int MAX_PARTITIONS = 64;
+    // partitioning passes over a spilled partition before joining it in blocks
+    private static final int MAX_LEVELS = 3;
+
+    /** Tuples from a child or a spilled partition. */
+    private interface Source {
+        Tuple next() throws IOException, DbException, TransactionAbortedException;
+    }
+
+    /** A partition spilled to a temporary file. */
+    private static class Spill {
+        final File file;
+        DataOutputStream out;
+        int size;
+
+        Spill() throws IOException {
+            file = File.createTempFile("hashjoin", ".part");
+            file.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    BufferPool.getPageSize()));
+        }
+
+        void write(Tuple t) throws IOException {
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                t.getField(i).serialize(out);
+            size++;
+        }
+
+        void finish() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        void delete() {
+            try {
+                finish();
+            } catch (IOException e) {
+                // the file is going away, there is nothing to lose
+            }
+            file.delete();
+        }
+    }
+
+    /** Reads a finished spill back, a tuple at a time. */
+    private static class SpillReader implements Source {
+        final TupleDesc td;
+        final DataInputStream in;
+        int remaining;
+
+        SpillReader(Spill spill, TupleDesc td) throws IOException {
+            this.td = td;
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill.file),
+                    BufferPool.getPageSize()));
+            remaining = spill.size;
+        }
+
+        public Tuple next() throws IOException, DbException {
+            if (remaining == 0) {
+                in.close();
+                return null;
+            }
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (ParseException e) {
+                throw new DbException("corrupt hash join partition: " + e.getMessage());
+            }
+            return t;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing was written, there is nothing to lose
+            }
+        }
+    }
+
+    /** A spilled pair of outer and inner partitions left to join. */
+    private static class Pair {
+        final Spill left;
+        final Spill right;
+        final int level;
+
+        Pair(Spill left, Spill right, int level) {
+            this.left = left;
+            this.right = right;
+            this.level = level;
+        }
+
+        void delete() {
+            left.delete();
+            right.delete();
+        }
+    }
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
     private TupleDesc merge;
-    private ArrayList<Tuple> store;
-    private Iterator<Tuple> it;
+    private final int memoryPages;
+
+    private boolean buildLeft; // the hash table holds tuples of child1
+    private int memoryTuples; // the tuples the hash table holds at most
+    private HashMap<Field, ArrayList<Tuple>> table; // tuples by join field
+    private boolean fits; // all of one child is in table
+    private int level; // the partitioning passes the current tuples went through
+    // the partitions of the current pass, or 0 if the tuples it builds on are
+    // all in table; which of them are spilled, and their files
+    private int partitions;
+    private boolean[] spilled;
+    private Spill[] buildSpills;
+    private Spill[] probeSpills;
+    private LinkedList<Pair> pending = new LinkedList<Pair>();
+    private Pair current; // the spilled pair being joined, if any
+    private Source block; // the rest of a partition joined in blocks
+    private Source probe; // the tuples probing the hash table in the current pass
+    private Tuple probed;
+    private Iterator<Tuple> matches; // the tuples in the table matching probed
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -27,13 +163,32 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        // some code goes here
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with a memory budget.
+     *
+     * @param memoryPages
+     *            the pages of tuples to hash in memory at a time; larger
+     *            children are partitioned, into up to memoryPages - 1
+     *            partitions at a time.
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("a hash join needs at least 3 pages");
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
         this.merge = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
-        this.store = new ArrayList<Tuple>();
-        this.it = null;
+        this.memoryPages = memoryPages;
+    }
+
+    /** @return the tuples of a given size that fit in a budget of pages */
+    static int memoryTuples(int memoryPages, int tupleSize) {
+        return Math.max(1, memoryPages * BufferPool.getPageSize() / tupleSize);
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -45,7 +200,7 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return merge;
     }
-    
+
     public String getJoinField1Name()
     {
         // some code goes here
@@ -57,60 +212,45 @@ public class HashEquiJoin extends Operator {
         // some code goes here
         return this.child2.getTupleDesc().getFieldName(p.getField2());
     }
-    
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-            super.open();
-            this.child1.open();
-            this.child2.open();
-            int index1 = this.p.getField1();
-            int index2 = this.p.getField2();
-            int len1 = this.child1.getTupleDesc().numFields();
-            int len2 = this.child2.getTupleDesc().numFields();
-            Tuple tmp1 = null;
-            Tuple tmp2 = null;
-            while (child1.hasNext()) {
-                tmp1 = child1.next();
-                child2.rewind();
-                Field f1 = tmp1.getField(index1);
-                while (child2.hasNext()) {
-                    tmp2 = child2.next();
-                    Field f2 = tmp2.getField(index2);
-                    if (f1.compare(this.p.getOperator(), f2)) {
-                        Tuple tmp = new Tuple(merge);
-                        for (int i = 0; i < len1; i++) 
-                            tmp.setField(i, tmp1.getField(i));
-                        for (int i = 0; i < len2; i++)
-                            tmp.setField(i + len1, tmp2.getField(i));
-                        this.store.add(tmp);
-                    }
-                }
-            }
-            this.it = this.store.iterator();
-        // some code goes here
+        child1.open();
+        child2.open();
+        start();
+        super.open();
     }
 
     public void close() {
-        // some code goes here
-        this.store.clear();
+        super.close();
+        cleanUp();
         this.child1.close();
         this.child2.close();
-        super.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        // some code goes here
-        this.close();
-        this.open();
+        super.rewind();
+        probed = null;
+        matches = null;
+        if (fits) {
+            DbIterator other = buildLeft ? child2 : child1;
+            other.rewind();
+            probe = source(null, other);
+            return;
+        }
+        cleanUp();
+        child1.rewind();
+        child2.rewind();
+        start();
     }
 
     transient Iterator<Tuple> listIt = null;
 
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * Finds the next pair of tuples joined by the join and gives it to out,
+     * or returns false if there are no more. Logically, this is the next
+     * tuple in r1 cross r2 that satisfies the join predicate. There are many
+     * possible implementations; the simplest is a nested loops join.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -120,15 +260,47 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
-     * @return The next matching tuple.
+     *
+     * @return true if a matching pair was found
      * @see JoinPredicate#filter
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        // some code goes here
-        if (this.it.hasNext())
-            return this.it.next();
-        return null;
+    protected boolean nextPair(Sink out) throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (matches != null && matches.hasNext()) {
+                    Tuple match = matches.next();
+                    if (buildLeft)
+                        out.addJoined(match, probed);
+                    else
+                        out.addJoined(probed, match);
+                    return true;
+                }
+                matches = null;
+                Tuple t = probe.next();
+                if (t == null) {
+                    if (!nextPass())
+                        return false;
+                    continue;
+                }
+                Field key = t.getField(buildLeft ? p.getField2() : p.getField1());
+                if (partitions > 0) {
+                    int part = partition(key);
+                    if (spilled[part]) {
+                        if (probeSpills[part] == null)
+                            probeSpills[part] = new Spill();
+                        probeSpills[part].write(t);
+                        continue;
+                    }
+                }
+                ArrayList<Tuple> m = table.get(key);
+                if (m != null) {
+                    probed = t;
+                    matches = m.iterator();
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("hash join failed: " + e.getMessage());
+        }
     }
 
     @Override
@@ -146,5 +318,243 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
+    // the tuples read ahead, if any, and then the rest of a child
+    private static Source source(final Iterator<Tuple> ahead, final DbIterator child) {
+        return new Source() {
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (ahead != null && ahead.hasNext())
+                    return ahead.next();
+                return child.hasNext() ? child.next() : null;
+            }
+        };
+    }
+
+    // read up to one more than n tuples of a child, to see if it fits in n
+    private static ArrayList<Tuple> readAhead(DbIterator child, int n) throws DbException,
+            TransactionAbortedException {
+        ArrayList<Tuple> ts = new ArrayList<Tuple>();
+        while (ts.size() <= n && child.hasNext())
+            ts.add(child.next());
+        return ts;
+    }
+
+    private void buildOn(boolean left) {
+        buildLeft = left;
+        memoryTuples = memoryTuples(memoryPages, (left ? child1 : child2).getTupleDesc().getSize());
+    }
+
+    // build the hash table on a child that fits, or failing that, partition
+    // child2, and start probing with the other child
+    private void start() throws DbException, TransactionAbortedException {
+        try {
+            buildOn(false);
+            ArrayList<Tuple> right = readAhead(child2, memoryTuples);
+            fits = right.size() <= memoryTuples;
+            if (fits) {
+                build(source(right.iterator(), child2), 0);
+                probe = source(null, child1);
+                return;
+            }
+            buildOn(true);
+            ArrayList<Tuple> left = readAhead(child1, memoryTuples);
+            fits = left.size() <= memoryTuples;
+            if (fits) {
+                build(source(left.iterator(), child1), 0);
+                probe = source(right.iterator(), child2);
+                return;
+            }
+            buildOn(false);
+            build(source(right.iterator(), child2), 0);
+            probe = source(left.iterator(), child1);
+        } catch (IOException e) {
+            cleanUp();
+            throw new DbException("hash join failed: " + e.getMessage());
+        }
+    }
+
+    // the partition of a key in the current pass; each level hashes the keys
+    // differently, so a partition that is too large splits when partitioned
+    // again
+    private int partition(Field key) {
+        int h = key.hashCode() + level * 0x9E3779B9;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % partitions;
+    }
+
+    /**
+     * Read tuples into the hash table.  If they overflow it, partition them,
+     * keeping partition 0 in memory while it fits, or past the last level,
+     * keep the rest for later blocks.
+     */
+    private void build(Source src, int lvl) throws IOException, DbException,
+            TransactionAbortedException {
+        level = lvl;
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        partitions = 0;
+        block = null;
+        int inTable = 0;
+        while (true) {
+            if (partitions == 0 && inTable == memoryTuples) {
+                if (lvl >= MAX_LEVELS) {
+                    block = src;
+                    return;
+                }
+                inTable = split();
+            }
+            Tuple t = src.next();
+            if (t == null)
+                return;
+            if (partitions > 0) {
+                int part = partition(t.getField(buildField()));
+                if (spilled[part]) {
+                    buildSpills[part].write(t);
+                    continue;
+                }
+            }
+            add(t);
+            if (++inTable > memoryTuples) {
+                // partition 0 does not fit either
+                for (ArrayList<Tuple> ts : table.values())
+                    for (Tuple s : ts)
+                        buildSpills[0].write(s);
+                table.clear();
+                spilled[0] = true;
+                inTable = 0;
+            }
+        }
+    }
+
+    private int buildField() {
+        return buildLeft ? p.getField1() : p.getField2();
+    }
+
+    private void add(Tuple t) {
+        Field key = t.getField(buildField());
+        ArrayList<Tuple> ts = table.get(key);
+        if (ts == null) {
+            ts = new ArrayList<Tuple>(1);
+            table.put(key, ts);
+        }
+        ts.add(t);
+    }
+
+    // start partitioning, moving the tuples in the table outside partition 0
+    // to their spills; returns the tuples left in the table
+    private int split() throws IOException {
+        partitions = Math.max(2, Math.min(MAX_PARTITIONS, memoryPages - 1));
+        spilled = new boolean[partitions];
+        buildSpills = new Spill[partitions];
+        probeSpills = new Spill[partitions];
+        for (int i = 0; i < partitions; i++) {
+            buildSpills[i] = new Spill();
+            spilled[i] = i > 0;
+        }
+        HashMap<Field, ArrayList<Tuple>> all = table;
+        table = new HashMap<Field, ArrayList<Tuple>>();
+        int inTable = 0;
+        for (Map.Entry<Field, ArrayList<Tuple>> e : all.entrySet()) {
+            int part = partition(e.getKey());
+            if (part == 0) {
+                table.put(e.getKey(), e.getValue());
+                inTable += e.getValue().size();
+            } else {
+                for (Tuple t : e.getValue())
+                    buildSpills[part].write(t);
+            }
+        }
+        return inTable;
+    }
+
+    /**
+     * Move on once the probing tuples of a pass are used up: queue the
+     * spilled partitions of the pass, then join the next block or spilled
+     * pair.
+     * @return false if the join is done
+     */
+    private boolean nextPass() throws IOException, DbException, TransactionAbortedException {
+        if (partitions > 0) {
+            for (int i = 0; i < partitions; i++) {
+                if (!spilled[i])
+                    continue;
+                buildSpills[i].finish();
+                if (probeSpills[i] == null) {
+                    buildSpills[i].delete();
+                    continue;
+                }
+                probeSpills[i].finish();
+                if (buildLeft)
+                    pending.add(new Pair(buildSpills[i], probeSpills[i], level + 1));
+                else
+                    pending.add(new Pair(probeSpills[i], buildSpills[i], level + 1));
+            }
+            partitions = 0;
+            buildSpills = probeSpills = null;
+        }
+        if (block != null) {
+            table = new HashMap<Field, ArrayList<Tuple>>();
+            Tuple t = null;
+            for (int n = 0; n < memoryTuples && (t = block.next()) != null; n++)
+                add(t);
+            if (t == null)
+                block = null;
+            if (!table.isEmpty()) {
+                probe = probeReader();
+                return true;
+            }
+        }
+        if (current != null) {
+            current.delete();
+            current = null;
+        }
+        current = pending.poll();
+        if (current == null)
+            return false;
+        // build on the smaller partition
+        buildOn(current.left.size * child1.getTupleDesc().getSize()
+                < current.right.size * child2.getTupleDesc().getSize());
+        SpillReader src = buildLeft ? new SpillReader(current.left, child1.getTupleDesc())
+                : new SpillReader(current.right, child2.getTupleDesc());
+        build(src, current.level);
+        if (block == null)
+            src.close();
+        probe = probeReader();
+        return true;
+    }
+
+    private SpillReader probeReader() throws IOException {
+        if (buildLeft)
+            return new SpillReader(current.right, child2.getTupleDesc());
+        return new SpillReader(current.left, child1.getTupleDesc());
+    }
+
+    // drop the hash table and delete any spills
+    private void cleanUp() {
+        if (probe instanceof SpillReader)
+            ((SpillReader) probe).close();
+        if (block instanceof SpillReader)
+            ((SpillReader) block).close();
+        for (Spill[] spills : Arrays.asList(buildSpills, probeSpills))
+            if (spills != null)
+                for (Spill s : spills)
+                    if (s != null)
+                        s.delete();
+        for (Pair pair : pending)
+            pair.delete();
+        if (current != null)
+            current.delete();
+        pending = new LinkedList<Pair>();
+        current = null;
+        buildSpills = probeSpills = null;
+        spilled = null;
+        partitions = 0;
+        block = null;
+        probe = null;
+        table = null;
+        probed = null;
+        matches = null;
+    }
 }
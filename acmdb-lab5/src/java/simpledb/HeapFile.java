@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -9,14 +10,26 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Inserts find a page with room through a {@link FreeSpaceMap}, which is
+ * filled the first time an insert needs it, from the pages in the
+ * BufferPool, which may have changed since they were written, and the page
+ * headers on disk for the rest.
+ * Large inserts can instead append whole extents of new pages, filled in
+ * memory (see {@link BufferPool#bulkInsert}).
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** Number of pages a bulk append fills in memory and writes at once. */
+    static final int EXTENT_PAGES = 64;
+
     private File f;
     private TupleDesc td;
+    private final PageIO io;
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -29,6 +42,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.f = f;
         this.td = td;
+        this.io = PageIO.forFile(f);
     }
 
     /**
@@ -41,6 +55,14 @@ public class HeapFile implements DbFile {
         return this.f;
     }
 
+    /**
+     * Serve reads of this file from a memory mapping instead of the file
+     * channel.  Worth it for read-mostly tables.
+     */
+    public void setMemoryMapped(boolean mapped) {
+        this.io.setMapped(mapped);
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -71,11 +93,8 @@ public class HeapFile implements DbFile {
         byte[] data = new byte[BufferPool.getPageSize()];
         Page ret = null;
         try {
-            RandomAccessFile RAF = new RandomAccessFile(this.f, "r");
-            RAF.seek(pid.pageNumber() * BufferPool.getPageSize());
-            RAF.read(data, 0, BufferPool.getPageSize());
+            readPageData(pid, ByteBuffer.wrap(data));
             ret = new HeapPage((HeapPageId)pid, data);
-            RAF.close();
         }
         catch (Exception e) {
             e.printStackTrace();
@@ -84,15 +103,47 @@ public class HeapFile implements DbFile {
         return ret;
     }
 
+    /**
+     * Read the specified page straight into a BufferPool frame, which the
+     * page keeps as its image until the pool takes it back with
+     * {@link HeapPage#detachFrame}.
+     *
+     * @param frame a frame of one page
+     * @return the page, or null if it could not be read, in which case the
+     *         frame is not used
+     */
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        try {
+            readPageData(pid, frame);
+            return new HeapPage((HeapPageId)pid, frame);
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void stagePages(int firstPageNo, int numPages) throws IOException {
+        this.io.stage((long)firstPageNo * BufferPool.getPageSize(), numPages * BufferPool.getPageSize());
+    }
+
+    /**
+     * Read the raw image of the specified page into buf.  Bytes past the end
+     * of the file read as zeroes, like an empty page.
+     */
+    void readPageData(PageId pid, ByteBuffer buf) throws IOException {
+        buf.clear();
+        this.io.read((long)pid.pageNumber() * BufferPool.getPageSize(), buf);
+        buf.clear();
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
         byte[] data = page.getPageData();
-        RandomAccessFile RAF = new RandomAccessFile(this.f,"rw");
-        RAF.seek(page.getId().pageNumber() * BufferPool.getPageSize());
-        RAF.write(data, 0, BufferPool.getPageSize());
-        RAF.close();
+        this.io.write((long)page.getId().pageNumber() * BufferPool.getPageSize(), data);
     }
 
     /**
@@ -110,26 +161,128 @@ public class HeapFile implements DbFile {
         if (!this.td.equals(t.getTupleDesc()))
             throw new DbException("Unsupport insert");
         ArrayList<Page> dirtyList = new ArrayList<Page>();
-        int num = numPages();
-        for (int i = 0; i < num; i++) {
+        BufferPool pool = Database.getBufferPool();
+        FreeSpaceMap map = freeSpace();
+        // a page the map has wrong is corrected, and another one picked; the
+        // lock on it is let go again unless tid held one before, since
+        // nothing on it changed
+        for (int i = map.pick(tid); i >= 0; i = map.pick(tid)) {
             PageId pid = new HeapPageId(this.getId(), i);
-            HeapPage p = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+            boolean held = pool.holdsLock(tid, pid);
+            HeapPage p = (HeapPage)pool.getPage(tid, pid, Permissions.READ_WRITE);
             try {
                 p.insertTuple(t);
-                dirtyList.add(p);
-                return dirtyList;
             }
             catch (DbException e) {
-
+                map.update(i, 0);
+                if (!held)
+                    pool.releasePage(tid, pid);
+                continue;
             }
+            map.update(i, p.getNumEmptySlots());
+            dirtyList.add(p);
+            return dirtyList;
         }
-        HeapPage hp = new HeapPage(new HeapPageId(getId(), num), HeapPage.createEmptyPageData());
+        // the new page is added to the file empty, and the tuple through the
+        // buffer pool, so it is logged and undone like any other change
+        HeapPageId pid = new HeapPageId(getId(), allocatePages(1));
+        HeapPage hp = (HeapPage)pool.getPage(tid, pid, Permissions.READ_WRITE);
         hp.insertTuple(t);
+        map.update(pid.pageNumber(), hp.getNumEmptySlots());
         dirtyList.add(hp);
-        writePage(hp);
         return dirtyList;
     }
 
+    /**
+     * Add pages to the end of the file, which read as empty pages until
+     * they are written.  The free space map has them as full; whoever
+     * allocated them says how much room they have once they are filled.
+     *
+     * @return the number of the first new page
+     */
+    int allocatePages(int n) throws IOException {
+        synchronized (freeSpace) {
+            freeSpace();
+            int first = numPages();
+            this.io.allocate((long)(first + n) * BufferPool.getPageSize());
+            for (int i = first; i < first + n; i++)
+                freeSpace.update(i, 0);
+            return first;
+        }
+    }
+
+    /**
+     * Take the next tuples of a stream, as many as fit on EXTENT_PAGES pages,
+     * and put them on new pages allocated for them at the end of the file.
+     * The pages are only filled in memory; see {@link #writePages}.
+     *
+     * @return the new pages, in order, or none if the stream is exhausted
+     */
+    List<HeapPage> fillPages(DbIterator tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        int slots = HeapPage.slotsPerPage(td);
+        List<Tuple> batch = new ArrayList<Tuple>();
+        while (batch.size() < slots * EXTENT_PAGES && tuples.hasNext()) {
+            Tuple t = tuples.next();
+            if (!this.td.equals(t.getTupleDesc()))
+                throw new DbException("Unsupport insert");
+            batch.add(t);
+        }
+        List<HeapPage> pages = new ArrayList<HeapPage>();
+        if (batch.isEmpty())
+            return pages;
+        int first = allocatePages((batch.size() + slots - 1) / slots);
+        byte[] empty = HeapPage.createEmptyPageData();
+        for (int i = 0; i < batch.size(); i++) {
+            if (i % slots == 0)
+                pages.add(new HeapPage(new HeapPageId(getId(), first + i / slots), empty));
+            pages.get(pages.size() - 1).insertTuple(batch.get(i));
+        }
+        return pages;
+    }
+
+    /**
+     * Write consecutive pages of this file with one write, and note the
+     * room they have left in the free space map.
+     */
+    void writePages(List<HeapPage> pages) throws IOException {
+        int size = BufferPool.getPageSize();
+        ByteBuffer extent = ByteBuffer.allocate(pages.size() * size);
+        for (HeapPage page : pages)
+            extent.put(page.getPageData());
+        extent.flip();
+        this.io.write((long)pages.get(0).getId().pageNumber() * size, extent);
+        for (HeapPage page : pages)
+            freeSpace.update(page.getId().pageNumber(), page.getNumEmptySlots());
+    }
+
+    /**
+     * The free space map, after adding the pages it does not know yet (all
+     * of them, the first time) with their free slots: those of the page in
+     * the BufferPool if it is resident, since under NO-FORCE it may not be
+     * written yet, or else those its header on disk shows.
+     */
+    private FreeSpaceMap freeSpace() throws IOException {
+        synchronized (freeSpace) {
+            int num = numPages();
+            if (freeSpace.pages() < num) {
+                BufferPool pool = Database.getBufferPool();
+                ByteBuffer header = ByteBuffer.allocate((HeapPage.slotsPerPage(td) + 7) / 8);
+                for (int i = freeSpace.pages(); i < num; i++) {
+                    Page page = pool.peekPage(new HeapPageId(getId(), i));
+                    if (page instanceof HeapPage) {
+                        freeSpace.update(i, ((HeapPage)page).getNumEmptySlots());
+                        continue;
+                    }
+                    header.clear();
+                    this.io.read((long)i * BufferPool.getPageSize(), header);
+                    freeSpace.update(i, HeapPage.countEmptySlots(td, header));
+                }
+            }
+        }
+        return freeSpace;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -139,6 +292,9 @@ public class HeapFile implements DbFile {
         ArrayList<Page> dirtyList = new ArrayList<Page>();
         HeapPage hp = (HeapPage)Database.getBufferPool().getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
         hp.deleteTuple(t);
+        // if the map does not know the page yet, it finds the page in the
+        // BufferPool when it does
+        freeSpace.updateKnown(hp.getId().pageNumber(), hp.getNumEmptySlots());
         dirtyList.add(hp);
         return dirtyList;
         // not necessary for lab1
@@ -148,17 +304,32 @@ public class HeapFile implements DbFile {
         private int pagepos = 0;
         private Iterator<Tuple> pageiterator;
         private TransactionId tid;
+        private final ReadAhead readAhead = new ReadAhead(new ReadAhead.PageSequence() {
+            public List<PageId> pagesAfter(PageId pid, int n) {
+                List<PageId> pids = new ArrayList<PageId>();
+                int end = Math.min(numPages(), pid.pageNumber() + 1 + n);
+                for (int i = pid.pageNumber() + 1; i < end; i++)
+                    pids.add(new HeapPageId(getId(), i));
+                return pids;
+            }
+        });
 
         public HeapIterator(TransactionId tid) {
             this.tid = tid;
         }
 
+        private HeapPage visitPage(int pgNo) throws DbException, TransactionAbortedException {
+            HeapPageId pid = new HeapPageId(getId(), pgNo);
+            readAhead.visit(pid);
+            return (HeapPage)Database.getBufferPool().getPage(this.tid, pid, Permissions.READ_ONLY);
+        }
+
         @Override 
         public void open() throws DbException, TransactionAbortedException {
             if (tid == null) 
                 throw new TransactionAbortedException();
             this.pagepos = 0;
-            HeapPage page = (HeapPage)Database.getBufferPool().getPage(this.tid, new HeapPageId(getId(), pagepos), Permissions.READ_ONLY);
+            HeapPage page = visitPage(pagepos);
             this.pageiterator = page.iterator();
 
         }
@@ -169,36 +340,29 @@ public class HeapFile implements DbFile {
                 return false;
             if (tid == null) 
                 throw new TransactionAbortedException();
-            if (pageiterator.hasNext()) 
-                return true;
+            // move on to the next page with tuples, so that next() does not
+            // have to get it from the BufferPool a second time
             int num = numPages();
-            int cnt = pagepos + 1;
-            while (cnt < num) {
-                HeapPage page = (HeapPage)Database.getBufferPool().getPage(this.tid, new HeapPageId(getId(), cnt), Permissions.READ_ONLY);
-                Iterator<Tuple> iterator = page.iterator();
-                if (iterator.hasNext()) 
-                    return true;
-                cnt++;
+            while (!pageiterator.hasNext()) {
+                if (pagepos + 1 >= num)
+                    return false;
+                pagepos++;
+                pageiterator = visitPage(pagepos).iterator();
             }
-            return false;
+            return true;
         }
 
         @Override
         public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
             if (!hasNext()) 
                 throw new NoSuchElementException();
-            if (pageiterator.hasNext())
-                return pageiterator.next();
-            int num = numPages();
-            pagepos++;
-            while (pagepos < num) {
-                HeapPage page = (HeapPage)Database.getBufferPool().getPage(this.tid, new HeapPageId(getId(), pagepos), Permissions.READ_ONLY);
-                pageiterator = page.iterator();
-                if (pageiterator.hasNext()) 
-                    return pageiterator.next();
-                pagepos++;
-            }
-            throw new NoSuchElementException();
+            return pageiterator.next();
+        }
+
+        @Override
+        public void nextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+            while (!batch.isFull() && hasNext())
+                ((HeapPage.TupleIterator)pageiterator).nextBatch(batch);
         }
 
         @Override
@@ -2,10 +2,16 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage is a view over the raw page image rather than an array of
+ * decoded tuples: tuples are parsed lazily and inserts and deletes are
+ * applied to the image in place.  Pages read through the BufferPool use one
+ * of its off-heap frames as their image.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,14 +21,22 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    private final int headerSize;
     private TransactionId lastdirty;
     private boolean isdirty = false;
 
-    byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    // The page image.  Either a heap buffer owned by this page, or a frame
+    // of the BufferPool's FrameArena; null once a page that is on disk as it
+    // is has given its frame back, in which case it is read from disk again
+    // on next access.
+    private ByteBuffer data; // protected by this
+    private boolean framed = false; // protected by this
+    // tuples decoded so far, allocated on first access
+    private Tuple tuples[]; // protected by this
+
+    // before image; null means the page has not changed since it was taken
+    byte[] oldData; // protected by this
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -36,6 +50,8 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * Tuples are not decoded here; each one is parsed from the page image
+     * the first time it is accessed.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -44,24 +60,24 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        if (data.length < headerSize + numSlots * td.getSize())
+            throw new EOFException("page data is too short");
+        this.data = ByteBuffer.wrap(data.clone());
+    }
 
-        setBeforeImage();
+    /**
+     * Create a HeapPage that is a view over a BufferPool frame.  The frame
+     * must hold the page image read from disk; the page keeps using it until
+     * the BufferPool takes it back with {@link #detachFrame}.
+     */
+    HeapPage(HeapPageId id, ByteBuffer frame) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.data = frame;
+        this.framed = true;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -69,8 +85,29 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
+        return slotsPerPage(td);
+
+    }
+
+    /** @return the number of tuple slots on a page of tuples of td */
+    static int slotsPerPage(TupleDesc td) {
         return (int)Math.floor((BufferPool.getPageSize()*8) / (td.getSize() * 8 + 1));
+    }
 
+    /**
+     * Count the free slots of a page of tuples of td from its header alone.
+     * @param header the first ceil(slotsPerPage(td) / 8) bytes of the page image
+     */
+    static int countEmptySlots(TupleDesc td, ByteBuffer header) {
+        int slots = slotsPerPage(td);
+        int used = 0;
+        for (int i = 0; i < (slots + 7) / 8; i++) {
+            int bits = header.get(i) & 0xff;
+            if (i == slots / 8)
+                bits &= (1 << (slots % 8)) - 1;
+            used += Integer.bitCount(bits);
+        }
+        return slots - used;
     }
 
     /**
@@ -89,9 +126,9 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock)
+            synchronized(this)
             {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -102,11 +139,65 @@ public class HeapPage implements Page {
         return null;
     }
     
-    public void setBeforeImage() {
-        synchronized(oldDataLock)
-        {
-        oldData = getPageData().clone();
+    public synchronized void setBeforeImage() {
+        // the current contents are the before image until the next change
+        oldData = null;
+    }
+
+    /**
+     * Keep a copy of the current contents as the before image, if one has
+     * not been taken since the last setBeforeImage.  Called before every
+     * change to the page.
+     */
+    private void saveBeforeImage() {
+        if (oldData == null)
+            oldData = getPageData();
+    }
+
+    /**
+     * Give the BufferPool frame this page is a view over back to the caller,
+     * so the frame can be reused for another page.  A page that is on disk
+     * as it is simply forgets its image and reads it from disk again if it
+     * is ever accessed after this; a dirty page, or one whose logged changes
+     * are not written yet, keeps a private copy.
+     *
+     * @param onDisk true if the page's file holds the page as it is
+     * @return the frame, or null if this page does not use one
+     */
+    synchronized ByteBuffer detachFrame(boolean onDisk) {
+        if (!framed)
+            return null;
+        ByteBuffer frame = data;
+        if (isdirty || !onDisk) {
+            byte[] copy = new byte[frame.capacity()];
+            ByteBuffer src = frame.duplicate();
+            src.clear();
+            src.get(copy);
+            data = ByteBuffer.wrap(copy);
+        } else {
+            data = null;
+        }
+        framed = false;
+        return frame;
+    }
+
+    /** The page image, re-reading it from disk if the frame was given back. */
+    private ByteBuffer image() {
+        if (data == null) {
+            ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+            HeapFile f = (HeapFile)Database.getCatalog().getDatabaseFile(pid.getTableId());
+            try {
+                f.readPageData(pid, buf);
+            } catch (IOException e) {
+                throw new RuntimeException("unable to reread page " + pid, e);
+            }
+            data = buf;
         }
+        return data;
+    }
+
+    private int slotOffset(int i) {
+        return headerSize + i * td.getSize();
     }
 
     /**
@@ -118,37 +209,60 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in the specified slot, caching the result.
+     *
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
+    synchronized Tuple getTuple(int slotId) {
+        if (!isSlotUsed(slotId))
             return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
+        if (tuples == null)
+            tuples = new Tuple[numSlots];
+        if (tuples[slotId] == null) {
+            ByteBuffer buf = image();
+            Tuple t = new Tuple(td);
+            t.setRecordId(new RecordId(pid, slotId));
+            int offset = slotOffset(slotId);
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+                Type type = td.getFieldType(j);
+                t.setField(j, type.parse(buf, offset));
+                offset += type.getLen();
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            tuples[slotId] = t;
         }
+        return tuples[slotId];
+    }
 
-        return t;
+    /**
+     * Decode the tuples in the used slots after a slot straight into the
+     * columns of a batch, with their RecordIds, until the batch is full.
+     * Unlike getTuple, no Tuple or Field is made.
+     *
+     * @return the last slot decoded, or from if there was none
+     */
+    synchronized int decodeInto(TupleBatch batch, int from) {
+        ByteBuffer buf = image();
+        int last = from;
+        for (int i = from + 1; i < numSlots && !batch.isFull(); i++) {
+            if (!isSlotUsed(i))
+                continue;
+            int row = batch.addStoredRow(new RecordId(pid, i));
+            int offset = slotOffset(i);
+            for (int j = 0; j < td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                if (type == Type.INT_TYPE) {
+                    batch.getInts(j)[row] = buf.getInt(offset);
+                } else {
+                    byte[] bs = new byte[buf.getInt(offset)];
+                    for (int k = 0; k < bs.length; k++)
+                        bs[k] = buf.get(offset + 4 + k);
+                    batch.getStrings(j)[row] = new String(bs);
+                }
+                offset += type.getLen();
+            }
+            last = i;
+        }
+        return last;
     }
 
     /**
@@ -162,65 +276,12 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        byte[] out = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = image().duplicate();
+        src.clear();
+        src.get(out, 0, Math.min(out.length, src.remaining()));
+        return out;
     }
 
     /**
@@ -244,7 +305,7 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         RecordId r = t.getRecordId();
@@ -252,7 +313,15 @@ public class HeapPage implements Page {
             throw new DbException("Tuple Not in this page");
         if (!isSlotUsed(r.tupleno()))
             throw new DbException("Tuple has been deleted");
+        saveBeforeImage();
         markSlotUsed(r.tupleno(), false);
+        // empty slots are all zeroes on disk
+        ByteBuffer buf = image();
+        int offset = slotOffset(r.tupleno());
+        for (int i = 0; i < td.getSize(); i++)
+            buf.put(offset + i, (byte)0);
+        if (tuples != null)
+            tuples[r.tupleno()] = null;
     }
 
     /**
@@ -262,7 +331,7 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
         if (!t.getTupleDesc().equals(this.td))
@@ -270,8 +339,24 @@ public class HeapPage implements Page {
         int index = getNoEmptySlots();
         if (index == -1)
             throw new DbException("no empty slots"); 
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("unable to serialize tuple: " + e);
+        }
+        saveBeforeImage();
+        ByteBuffer buf = image().duplicate();
+        buf.clear();
+        buf.position(slotOffset(index));
+        buf.put(baos.toByteArray());
         markSlotUsed(index, true);
         t.setRecordId(new RecordId(this.pid, index));
+        if (tuples == null)
+            tuples = new Tuple[numSlots];
         tuples[index] = t;
     }
 
@@ -300,7 +385,7 @@ public class HeapPage implements Page {
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
         int ret = 0;
         int num = numSlots;
@@ -312,7 +397,7 @@ public class HeapPage implements Page {
       Returns the position of empty slots on this page.
     **/
 
-    public int getNoEmptySlots() {
+    public synchronized int getNoEmptySlots() {
         int num = numSlots;
         for (int i = 0; i < num; i++)
             if (!isSlotUsed(i)) 
@@ -323,9 +408,9 @@ public class HeapPage implements Page {
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         // some code goes here
-        return ((header[i>>3] & (1<<(i%8))) != 0);
+        return ((image().get(i>>3) & (1<<(i%8))) != 0);
     }
 
     /**
@@ -334,13 +419,14 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int old = header[i >> 3];
+        ByteBuffer buf = image();
+        int old = buf.get(i >> 3);
         int index = (1 << (i % 8));
         if (value)
             old = (old | index);
         else 
-            old = (old ^ index);
-        header[i >> 3] = (byte)old;
+            old = (old & ~index);
+        buf.put(i >> 3, (byte)old);
     }
 
     public class TupleIterator implements Iterator<Tuple> {
@@ -369,10 +455,15 @@ public class HeapPage implements Page {
                     flag = true;
                     break;
                 }
-            if (flag) return tuples[pos];
+            if (flag) return getTuple(pos);
             throw new NoSuchElementException();
         }
 
+        /** Decode the next tuples of the page into a batch (see decodeInto). */
+        void nextBatch(TupleBatch batch) {
+            pos = decodeInto(batch, pos);
+        }
+
         @Override 
         public void remove() throws UnsupportedOperationException {
             throw new UnsupportedOperationException();
@@ -0,0 +1,241 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins an outer child with an inner table stored in a
+ * B+ tree keyed on the join field, looking up the tuples matching each outer
+ * tuple with {@link BTreeFile#indexIterator} instead of scanning the inner.
+ * The outer is read in batches sorted on the join field, and outer tuples
+ * with the same key share one lookup.  The inner child must be a
+ * {@link SeqScan} of the B+ tree, possibly under {@link Filter}s, whose
+ * predicates are applied to the tuples found (see {@link #canProbe}).
+ */
+public class IndexNestedLoopJoin extends JoinOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The pages of outer tuples sorted and looked up in a batch by default. */
+    public static final int DEFAULT_BATCH_PAGES = 16;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final TupleDesc merge;
+    private final int batchPages;
+    private BTreeFile file;
+    private TransactionId tid;
+    private ArrayList<Predicate> filters = new ArrayList<Predicate>();
+    private Predicate.Op probeOp; // p, with the inner on the left
+
+    // the current batch of outer tuples, the run of them with the key being
+    // looked up, and the inner tuple they are being joined with
+    private ArrayList<Tuple> batch = new ArrayList<Tuple>();
+    private int runStart;
+    private int runEnd;
+    private DbFileIterator probe;
+    private Tuple inner;
+    private int pos;
+
+    /** The index lookups made since the join was opened. */
+    int lookups;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join; a scan of a
+     *            B+ tree keyed on the join field
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BATCH_PAGES);
+    }
+
+    /**
+     * Constructor with a batch size.
+     *
+     * @param batchPages
+     *            the pages of outer tuples sorted and looked up together
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int batchPages) {
+        this.probeOp = innerOp(p.getOperator());
+        if (probeOp == null)
+            throw new IllegalArgumentException("an index join cannot join on " + p.getOperator());
+        if (!canProbe(child2, p.getField2()))
+            throw new IllegalArgumentException("the inner of an index join must scan a B+ tree keyed on the join field");
+        if (batchPages < 1)
+            throw new IllegalArgumentException("an index join needs a batch of at least 1 page");
+        this.p = p;
+        this.merge = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.batchPages = batchPages;
+        setChildren(new DbIterator[] { child1, child2 });
+    }
+
+    // the operator comparing an inner key with an outer one, for an operator
+    // comparing the outer with the inner, or null if an index cannot find
+    // the matches
+    private static Predicate.Op innerOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return true if an iterator is a scan of a B+ tree keyed on a field,
+     *         possibly filtered, so an index join can look up its tuples
+     */
+    public static boolean canProbe(DbIterator it, int field) {
+        while (it instanceof Filter)
+            it = ((Filter) it).getChildren()[0];
+        if (!(it instanceof SeqScan))
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return merge;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // the inner is only read through the index
+        child1.open();
+        super.open();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        endLookup();
+        batch.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child1.rewind();
+        endLookup();
+        start();
+    }
+
+    private void start() {
+        batch.clear();
+        runStart = 0;
+        runEnd = 0;
+        inner = null;
+        lookups = 0;
+    }
+
+    private void endLookup() {
+        if (probe != null)
+            probe.close();
+        probe = null;
+        inner = null;
+    }
+
+    // read the next batch of outer tuples, sorted on the join field; false
+    // past the end of the outer
+    private boolean readBatch() throws DbException, TransactionAbortedException {
+        batch.clear();
+        int tuples = HashEquiJoin.memoryTuples(batchPages, child1.getTupleDesc().getSize());
+        while (batch.size() < tuples && child1.hasNext())
+            batch.add(child1.next());
+        Collections.sort(batch, new TupleComparator(p.getField1(), true));
+        return !batch.isEmpty();
+    }
+
+    private boolean matches(Tuple t) {
+        for (Predicate f : filters)
+            if (!f.filter(t))
+                return false;
+        return true;
+    }
+
+    protected boolean nextPair(Sink out) throws TransactionAbortedException, DbException {
+        while (true) {
+            if (inner != null) {
+                if (pos < runEnd) {
+                    out.addJoined(batch.get(pos++), inner);
+                    return true;
+                }
+                inner = null;
+            }
+            if (probe != null) {
+                while (inner == null && probe.hasNext()) {
+                    Tuple t = probe.next();
+                    if (matches(t)) {
+                        inner = t;
+                        pos = runStart;
+                    }
+                }
+                if (inner != null)
+                    continue;
+                endLookup();
+                runStart = runEnd;
+            }
+            if (runStart >= batch.size()) {
+                if (!readBatch())
+                    return false;
+                runStart = 0;
+            }
+            // look up the inner tuples matching the run of outer tuples
+            // with the next key
+            Field key = batch.get(runStart).getField(p.getField1());
+            runEnd = runStart + 1;
+            while (runEnd < batch.size() && batch.get(runEnd).getField(p.getField1()).equals(key))
+                runEnd++;
+            probe = file.indexIterator(tid, new IndexPredicate(probeOp, key));
+            probe.open();
+            lookups++;
+        }
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+        filters.clear();
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        SeqScan scan = (SeqScan) it;
+        file = (BTreeFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        tid = scan.getTransactionId();
+    }
+}
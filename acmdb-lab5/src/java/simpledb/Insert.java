@@ -7,6 +7,8 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+    /** Tuples past this many pages' worth go in with a bulk append. */
+    private static final int BULK_AFTER_PAGES = 4;
     private TransactionId t;
     private DbIterator child;
     private int tableId;
@@ -59,6 +61,7 @@ public class Insert extends Operator {
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        super.rewind();
         this.child.rewind();
     }
 
@@ -74,6 +77,7 @@ public class Insert extends Operator {
      *         null if called more than once.
      * @see Database#getBufferPool
      * @see BufferPool#insertTuple
+     * @see BufferPool#bulkInsert
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -81,15 +85,19 @@ public class Insert extends Operator {
             return null;
         BufferPool bp = Database.getBufferPool();
         int cnt = 0;
-        while (child.hasNext()) {
-            Tuple tmp = child.next();
-            try {
-                bp.insertTuple(this.t, this.tableId, tmp);
+        // a few tuples fill the room the table has; a large child gets the
+        // rest appended on new pages
+        int bulkAfter = HeapPage.slotsPerPage(Database.getCatalog().getTupleDesc(this.tableId)) * BULK_AFTER_PAGES;
+        try {
+            while (child.hasNext() && cnt < bulkAfter) {
+                bp.insertTuple(this.t, this.tableId, child.next());
                 cnt++;
             }
-            catch (IOException e) {
-                throw new DbException("IO problem");
-            }
+            if (child.hasNext())
+                cnt += bp.bulkInsert(this.t, this.tableId, child);
+        }
+        catch (IOException e) {
+            throw new DbException("IO problem");
         }
         Tuple ret = new Tuple(this.td);
         ret.setField(0, new IntField(cnt));
@@ -61,18 +61,37 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        int val = ((IntField)tup.getField(afield)).getValue();
+        merge(tup.getTupleDesc(), gbfield == NO_GROUPING ? null : tup.getField(gbfield),
+                ((IntField)tup.getField(afield)).getValue());
+    }
+
+    /**
+     * Merge the selected tuples of a batch into the aggregate, reading the
+     * aggregate field from its column
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int[] values = batch.getInts(afield);
+        int[] selection = batch.getSelection();
+        for (int i = 0; i < batch.numSelected(); i++) {
+            int row = selection[i];
+            merge(batch.getTupleDesc(),
+                    gbfield == NO_GROUPING ? null : batch.getField(row, gbfield), values[row]);
+        }
+    }
+
+    // merge a value into the aggregate of its group (null without grouping),
+    // for tuples described by tupTd
+    private void merge(TupleDesc tupTd, Field f, int val) {
         this.sum = this.sum + val;
         this.cnt = this.cnt + 1;
         if (gbfield != NO_GROUPING) {
-            Field f = tup.getField(gbfield);
             if (td == null) {
                 Type[] type = new Type[2];
                 String[] name = new String[2];
                 type[0] = gbfieldtype;
                 type[1] =Type.INT_TYPE;
-                name[0] = tup.getTupleDesc().getFieldName(gbfield);
-                name[1] = tup.getTupleDesc().getFieldName(afield);
+                name[0] = tupTd.getFieldName(gbfield);
+                name[1] = tupTd.getFieldName(afield);
                 td = new TupleDesc(type, name);
             }
             if (!hashmap.containsKey(f)) {
@@ -102,7 +121,7 @@ public class IntegerAggregator implements Aggregator {
                 Type[] type = new Type[1];
                 String[] name = new String[1];
                 type[0] =Type.INT_TYPE;
-                name[0] = tup.getTupleDesc().getFieldName(afield);
+                name[0] = tupTd.getFieldName(afield);
                 td = new TupleDesc(type, name);
             }
             if (what == Op.COUNT)
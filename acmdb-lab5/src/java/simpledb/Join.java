@@ -3,17 +3,27 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation, as a block
+ * nested loops join: it reads a block of outer tuples, a budget of pages'
+ * worth, and scans the inner child once per block instead of once per outer
+ * tuple.  Matches are returned as they are found, so at most a block of
+ * outer tuples is held, whatever the size of the result.
  */
-public class Join extends Operator {
+public class Join extends JoinOperator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The pages of outer tuples held in a block by default. */
+    public static final int DEFAULT_BLOCK_PAGES = 64;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
     private TupleDesc merge;
-    private ArrayList<Tuple> store;
-    private Iterator<Tuple> it;
+    private final int blockTuples;
+    private ArrayList<Tuple> block; // the outer tuples of the current block
+    private Tuple inner; // the inner tuple being matched with the block
+    private int pos; // the next outer tuple in the block to match with inner
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -27,13 +37,25 @@ public class Join extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
-        // some code goes here
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor with a block size.
+     *
+     * @param blockPages
+     *            the pages of outer tuples to read per scan of the inner
+     */
+    public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
+        if (blockPages < 1)
+            throw new IllegalArgumentException("a block needs at least 1 page");
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
         this.merge = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
-        this.store = new ArrayList<Tuple>();
-        this.it = null;
+        this.blockTuples = Math.max(1, blockPages * BufferPool.getPageSize()
+                / child1.getTupleDesc().getSize());
+        this.block = new ArrayList<Tuple>();
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -76,34 +98,15 @@ public class Join extends Operator {
         super.open();
         this.child1.open();
         this.child2.open();
-        int len1 = child1.getTupleDesc().numFields();
-        int len2 = child2.getTupleDesc().numFields();
-        Tuple tmp1 = null;
-        Tuple tmp2 = null;
-        while (child1.hasNext()) {
-            tmp1 = child1.next();
-            child2.rewind();
-            while (child2.hasNext()) {
-                tmp2 = child2.next();
-                if (this.p.filter(tmp1, tmp2)) {
-                    Tuple tmp = new Tuple(this.merge);
-                    for (int i = 0; i < len1; i++)
-                        tmp.setField(i, tmp1.getField(i));
-                    for (int i = 0; i < len2; i++)
-                        tmp.setField(i + len1, tmp2.getField(i));
-                    this.store.add(tmp);
-                }
-            }
-        }
-        this.it = this.store.iterator();
-
+        readBlock();
     }
 
     public void close() {
         // some code goes here
         this.child1.close();
         this.child2.close();
-        this.store.clear();
+        this.block.clear();
+        this.inner = null;
         super.close();
     }
 
@@ -113,11 +116,20 @@ public class Join extends Operator {
         this.open();
     }
 
+    // read the next block of outer tuples; false if there are none left
+    private boolean readBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        inner = null;
+        while (block.size() < blockTuples && child1.hasNext())
+            block.add(child1.next());
+        return !block.isEmpty();
+    }
+
     /**
-     * Returns the next tuple generated by the join, or null if there are no
-     * more tuples. Logically, this is the next tuple in r1 cross r2 that
-     * satisfies the join predicate. There are many possible implementations;
-     * the simplest is a nested loops join.
+     * Finds the next pair of tuples joined by the join and gives it to out,
+     * or returns false if there are no more. Logically, this is the next
+     * tuple in r1 cross r2 that satisfies the join predicate. There are many
+     * possible implementations; the simplest is a nested loops join.
      * <p>
      * Note that the tuples returned from this particular implementation of Join
      * are simply the concatenation of joining tuples from the left and right
@@ -128,14 +140,30 @@ public class Join extends Operator {
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
      * 
-     * @return The next matching tuple.
+     * @return true if a matching pair was found
      * @see JoinPredicate#filter
      */
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+    protected boolean nextPair(Sink out) throws TransactionAbortedException, DbException {
         // some code goes here
-        if (this.it.hasNext())
-            return this.it.next();
-        return null;
+        while (!block.isEmpty()) {
+            if (inner != null) {
+                while (pos < block.size()) {
+                    Tuple outer = block.get(pos++);
+                    if (p.filter(outer, inner)) {
+                        out.addJoined(outer, inner);
+                        return true;
+                    }
+                }
+                inner = null;
+            }
+            if (child2.hasNext()) {
+                inner = child2.next();
+                pos = 0;
+            } else if (readBlock()) {
+                child2.rewind();
+            }
+        }
+        return false;
     }
 
     @Override
@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * JoinOperator is the base of the join operators.  A join finds its pairs
+ * of matching tuples in {@link #nextPair}, which hands each pair to a
+ * {@link Sink}: to return tuples one at a time, the pair is merged into a
+ * tuple, and to return a batch, it is added to the columns of the batch
+ * (see {@link TupleBatch#addJoined}).
+ */
+public abstract class JoinOperator extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Receives the pairs of tuples a join finds. */
+    public interface Sink {
+        /**
+         * Take a pair of joined tuples, whose fields are those of t1
+         * followed by those of t2.
+         */
+        void addJoined(Tuple t1, Tuple t2);
+    }
+
+    // merges the pair it is given into the tuple fetchNext returns
+    private class Merger implements Sink {
+        Tuple joined;
+
+        public void addJoined(Tuple t1, Tuple t2) {
+            int len1 = t1.getTupleDesc().numFields();
+            joined = new Tuple(getTupleDesc());
+            for (int i = 0; i < len1; i++)
+                joined.setField(i, t1.getField(i));
+            for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+                joined.setField(i + len1, t2.getField(i));
+        }
+    }
+
+    private final Merger merger = new Merger();
+
+    /**
+     * Find the next pair of joined tuples, and give it to out.
+     *
+     * @return true if a pair was found, false if the join is finished
+     */
+    protected abstract boolean nextPair(Sink out) throws DbException,
+            TransactionAbortedException;
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!nextPair(merger))
+            return null;
+        Tuple t = merger.joined;
+        merger.joined = null;
+        return t;
+    }
+
+    /**
+     * Joins tuples into a batch, adding each pair found to its columns
+     * rather than merging it into a tuple.
+     */
+    protected TupleBatch fetchNextBatch(int maxTuples) throws DbException,
+            TransactionAbortedException {
+        TupleBatch out = new TupleBatch(getTupleDesc(), maxTuples);
+        while (!out.isFull() && nextPair(out))
+            ;
+        return out.isEmpty() ? null : out;
+    }
+}
@@ -72,7 +72,20 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        // merge inputs already in order of their join fields, such as scans
+        // of B+ trees or the output of an earlier sort-merge join
+        boolean sorted1 = SortMergeJoin.isSorted(plan1, t1id);
+        boolean sorted2 = SortMergeJoin.isSorted(plan2, t2id);
+        if (lj.indexLookup && IndexNestedLoopJoin.canProbe(plan2, t2id))
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        else if (lj.p == Predicate.Op.EQUALS && sorted1 && sorted2)
+            j = new SortMergeJoin(p, plan1, plan2);
+        else if (lj.p == Predicate.Op.EQUALS)
+            j = new HashEquiJoin(p, plan1, plan2);
+        else if (isBand(lj.p) && (sorted1 || sorted2))
+            j = new SortMergeJoin(p, plan1, plan2);
+        else
+            j = new Join(p, plan1, plan2);
 
         return j;
 
@@ -115,12 +128,159 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            if (j.p == Predicate.Op.EQUALS)
-                return cost1 + cost2 + card1 * card2;
-            return cost1 + cost1 * card2 + card1 * card2;
+            // both sides are taken to be base tables here
+            return estimateJoinCost(j, card1, card2, cost1, cost2,
+                    isSorted(j.t1Alias, j.f1PureName), isSorted(j.t2Alias, j.f2PureName));
         }
     }
 
+    /**
+     * Estimate the cost of a join of two sides that are or are not in order
+     * of their join fields, as instantiateJoin would run it.
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return card1 + cost1 + cost2;
+        if (j.p == Predicate.Op.EQUALS && sorted1 && sorted2) {
+            // a SortMergeJoin merges the two scans
+            return cost1 + cost2 + card1 + card2;
+        }
+        if (j.p == Predicate.Op.EQUALS)
+            return estimateHashJoinCost(j, card1, card2, cost1, cost2);
+        if (isBand(j.p) && (sorted1 || sorted2)) {
+            // a SortMergeJoin sorts the side it matches prefixes of, the
+            // inner for > and >= and the outer for < and <=, writing and
+            // reading it once more, and only compares pairs up to the
+            // first that does not match
+            double cost = cost1 + cost2 + card1 + card2 + card1 * (double) card2 / 2;
+            if (drivesLeft(j.p) && !sorted2)
+                cost += 2 * cost2;
+            if (!drivesLeft(j.p) && !sorted1)
+                cost += 2 * cost1;
+            return cost;
+        }
+        // a block nested loops Join scans the inner once per block of
+        // outer tuples, and applies the predicate to every pair
+        return cost1 + Math.ceil((double) card1 / blockTuples(j.t1Alias)) * cost2
+                + card1 * card2;
+    }
+
+    private static boolean isBand(Predicate.Op op) {
+        return op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    // whether a SortMergeJoin on op is driven by its outer
+    private static boolean drivesLeft(Predicate.Op op) {
+        return op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /*
+     * Whether the plan instantiateJoin builds for a left-deep order of joins
+     * comes out in order of a field.  This is the rule of
+     * SortMergeJoin.isSorted: only a last join that is a SortMergeJoin
+     * keeps an order, both join fields for =, and for an inequality
+     * whatever order its driving side has.
+     */
+    private boolean isSorted(Vector<LogicalJoinNode> plan, String alias, String pureFieldName) {
+        if (plan.isEmpty())
+            return false;
+        LogicalJoinNode last = plan.lastElement();
+        if (last.indexLookup || last instanceof LogicalSubplanJoinNode)
+            return false;
+        Vector<LogicalJoinNode> rest = new Vector<LogicalJoinNode>(plan.subList(0, plan.size() - 1));
+        boolean sorted1 = isInputSorted(rest, last.t1Alias, last.t1Alias, last.f1PureName);
+        boolean sorted2 = isInputSorted(rest, last.t2Alias, last.t2Alias, last.f2PureName);
+        if (last.p == Predicate.Op.EQUALS) {
+            return sorted1 && sorted2
+                    && (alias.equals(last.t1Alias) && pureFieldName.equals(last.f1PureName)
+                    || alias.equals(last.t2Alias) && pureFieldName.equals(last.f2PureName));
+        }
+        if (!isBand(last.p) || !(sorted1 || sorted2))
+            return false;
+        if (drivesLeft(last.p))
+            return isInputSorted(rest, last.t1Alias, alias, pureFieldName);
+        return isInputSorted(rest, last.t2Alias, alias, pureFieldName);
+    }
+
+    // whether the side of a join holding side, either rest or that base
+    // table, is in order of alias.pureFieldName
+    private boolean isInputSorted(Vector<LogicalJoinNode> rest, String side,
+            String alias, String pureFieldName) {
+        if (doesJoin(rest, side))
+            return doesJoin(rest, alias) && isSorted(rest, alias, pureFieldName);
+        return side.equals(alias) && isSorted(alias, pureFieldName);
+    }
+
+    // whether a table is a B+ tree keyed on a field, so it is scanned in
+    // order of the field
+    private boolean isSorted(String alias, String pureFieldName) {
+        Integer tableId = p.getTableId(alias);
+        if (tableId == null)
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        try {
+            return f instanceof BTreeFile
+                    && ((BTreeFile) f).keyField() == f.getTupleDesc().fieldNameToIndex(pureFieldName);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    // the outer tuples in a block of a Join, for a table's tuples
+    private int blockTuples(String alias) {
+        Integer tableId = p.getTableId(alias);
+        int size = tableId == null ? Type.INT_TYPE.getLen()
+                : Database.getCatalog().getTupleDesc(tableId).getSize();
+        return Math.max(1, Join.DEFAULT_BLOCK_PAGES * BufferPool.getPageSize() / size);
+    }
+
+    /**
+     * Estimate the cost of a HashEquiJoin: one scan of each side, and a hash
+     * table insert or probe per tuple.  The join builds on the smaller side;
+     * the part of it that does not fit in the join's memory is spilled and
+     * read back, along with the same part of the other side.
+     */
+    private double estimateHashJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        double cost = cost1 + cost2 + card1 + card2;
+        int build = min(card1, card2);
+        Integer tableId = p.getTableId(card1 < card2 ? j.t1Alias : j.t2Alias);
+        if (tableId != null) {
+            int size = Database.getCatalog().getTupleDesc(tableId).getSize();
+            int fit = HashEquiJoin.memoryTuples(HashEquiJoin.DEFAULT_MEMORY_PAGES, size);
+            if (build > fit)
+                cost += 2 * (cost1 + cost2) * (build - fit) / build;
+        }
+        return cost;
+    }
+
+    /**
+     * Estimate the cost of an IndexNestedLoopJoin: one scan of the outer,
+     * and for each outer tuple, a descent through the internal pages of the
+     * B+ tree of t2 and a read of the leaves holding its matches.  Infinite
+     * unless the join is an equality and t2 is a B+ tree keyed on f2.
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode || j.p != Predicate.Op.EQUALS
+                || !isSorted(j.t2Alias, j.f2PureName))
+            return Double.POSITIVE_INFINITY;
+        BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(p.getTableId(j.t2Alias));
+        int pages = Math.max(1, f.numPages());
+        double pageCost = cost2 / pages;
+        int keySize = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        int fanout = Math.max(2, BufferPool.getPageSize() / (keySize + Type.INT_TYPE.getLen()));
+        double levels = Math.max(1, Math.ceil(Math.log(pages) / Math.log(fanout)));
+        double perLeaf = Math.max(1, BufferPool.getPageSize() / f.getTupleDesc().getSize());
+        // an outer tuple matches at most one tuple on a primary key
+        double matches = isPkey(j.t2Alias, j.f2PureName) ? 1
+                : (double) max(card1, card2) / Math.max(1, card1);
+        return cost1 + card1 * pageCost * (levels + Math.ceil(matches / perLeaf))
+                + card1 + card1 * matches;
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -320,6 +480,7 @@ public class JoinOptimizer {
         double t1cost, t2cost;
         int t1card, t2card;
         boolean leftPkey, rightPkey;
+        boolean leftBase = true, rightBase = true; // not joined in prevBest
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
@@ -363,6 +524,7 @@ public class JoinOptimizer {
                                 filterSelectivities.get(j.t2Alias));
                 rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
                         j.f2PureName);
+                leftBase = false;
             } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
                                                         // (both
                 // shouldn't be)
@@ -375,7 +537,7 @@ public class JoinOptimizer {
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
+                rightBase = false;
             } else {
                 // don't consider this plan if one of j.t1 or j.t2
                 // isn't a table joined in prevBest (cross product)
@@ -383,21 +545,41 @@ public class JoinOptimizer {
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        // a base table is in order if it is a B+ tree on the join field,
+        // and prevBest only if it ends in a SortMergeJoin that keeps it
+        boolean sorted1 = leftBase ? isSorted(j.t1Alias, j.f1PureName)
+                : isSorted(prevBest, j.t1Alias, j.f1PureName);
+        boolean sorted2 = rightBase ? isSorted(j.t2Alias, j.f2PureName)
+                : isSorted(prevBest, j.t2Alias, j.f2PureName);
+
+        // case where prevbest is left; an inner that is a base table may
+        // instead be looked up in its B+ tree
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, sorted1, sorted2);
+        double index1 = rightBase ? estimateIndexJoinCost(j, t1card, t2card, t1cost, t2cost)
+                : Double.POSITIVE_INFINITY;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, sorted2, sorted1);
+        double index2 = leftBase ? estimateIndexJoinCost(j2, t2card, t1card, t2cost, t1cost)
+                : Double.POSITIVE_INFINITY;
+        boolean lookup = index1 < cost1;
+        cost1 = min(cost1, index1);
+        if (min(cost2, index2) < cost1) {
             boolean tmp;
             j = j2;
-            cost1 = cost2;
+            lookup = index2 < cost2;
+            cost1 = min(cost2, index2);
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (lookup) {
+            // the nodes of joinSet are shared by other subplans
+            j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+            j.indexLookup = true;
+        }
 
         CostCard cc = new CostCard();
 
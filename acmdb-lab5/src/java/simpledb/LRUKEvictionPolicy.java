@@ -0,0 +1,102 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum).  Each resident page keeps
+ * the logical times of its last K references; the victim is the page whose
+ * K-th most recent reference is oldest.  Pages referenced fewer than K times
+ * have an infinite backward K-distance and go first, in LRU order, so a
+ * single scan cannot push out pages that are referenced repeatedly.
+ * <p>
+ * Pages are kept in a TreeSet ordered by backward K-distance.  A hit only
+ * queues the page id (see AbstractEvictionPolicy.bufferAccess), and the
+ * buffered hits are applied in order, O(log n) each, when a victim is
+ * chosen, so the hit path never waits on the policy's monitor.
+ */
+public class LRUKEvictionPolicy extends AbstractEvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private long clock = 0; // protected by this
+    private final HashMap<PageId, History> histories = new HashMap<PageId, History>(); // protected by this
+    private final TreeSet<History> order = new TreeSet<History>(); // protected by this
+
+    /** Reference history of one resident page. */
+    private static class History implements Comparable<History> {
+        final PageId pid;
+        final long[] times; // times[0] is the most recent reference
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        void reference(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+        }
+
+        public int compareTo(History o) {
+            // 0 means "fewer than K references", i.e. infinitely far back
+            int c = Long.compare(times[times.length - 1], o.times[o.times.length - 1]);
+            if (c != 0)
+                return c;
+            // logical times are unique, so this breaks every remaining tie
+            return Long.compare(times[0], o.times[0]);
+        }
+    }
+
+    public LRUKEvictionPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of references remembered per page; must be at least 1
+     */
+    public LRUKEvictionPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+    }
+
+    protected void accessed(PageId pid) {
+        bufferAccess(pid);
+    }
+
+    protected void applyAccess(PageId pid) {
+        History h = histories.get(pid);
+        if (h == null)
+            return;
+        order.remove(h);
+        h.reference(++clock);
+        order.add(h);
+    }
+
+    protected synchronized void added(PageId pid) {
+        if (histories.containsKey(pid)) {
+            applyAccess(pid);
+            return;
+        }
+        History h = new History(pid, k);
+        h.reference(++clock);
+        histories.put(pid, h);
+        order.add(h);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = histories.remove(pid);
+        if (h != null)
+            order.remove(h);
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        drainAccesses();
+        for (History h : order) {
+            if (evictable.canEvict(h.pid))
+                return h.pid;
+        }
+        return null;
+    }
+}
@@ -2,39 +2,95 @@ package simpledb;
 
 import java.util.*;
 
+/**
+ * A lock on a page or a table, with the mode each holder has it in.  Pages
+ * are locked in the shared and exclusive modes; tables also in the intention
+ * modes, which a transaction takes on a table before it locks pages of it.
+ */
 public class Lock {
-	private int type; // 0 for shared 1 for exclusive
-	private PageId pid; // the pid to be locked
-	private Set<TransactionId> havelock;
 
-	public Lock(int type, PageId pid) {
-		this.type = type;
-		this.pid = pid;
-		this.havelock = new HashSet<TransactionId>();
+	public static final int NONE = -1;
+	public static final int SHARED = 0;
+	public static final int EXCLUSIVE = 1;
+	public static final int INTENTION_SHARED = 2;
+	public static final int INTENTION_EXCLUSIVE = 3;
+	public static final int SHARED_INTENTION_EXCLUSIVE = 4;
+
+	// COMPATIBLE[a][b]: whether one transaction may hold mode a while another holds b
+	private static final boolean[][] COMPATIBLE = {
+		//          S      X      IS     IX     SIX
+		/* S   */ { true,  false, true,  false, false },
+		/* X   */ { false, false, false, false, false },
+		/* IS  */ { true,  false, true,  true,  true  },
+		/* IX  */ { false, false, true,  true,  false },
+		/* SIX */ { false, false, true,  false, false },
+	};
+
+	/**
+	 * A request for a lock that could not be granted right away.  The
+	 * requesting thread waits on the request itself until it is granted or
+	 * aborted, so a release wakes exactly the threads it lets through.
+	 */
+	public static class Request {
+		final TransactionId tid;
+		final int type;
+		final Lock lock;
+		boolean granted;
+		boolean aborted;
+
+		Request(TransactionId tid, int type, Lock lock) {
+			this.tid = tid;
+			this.type = type;
+			this.lock = lock;
+		}
+	}
+
+	private Object resource; // the PageId, or the Integer table id, to be locked
+	private Map<TransactionId, Integer> havelock; // the holders and their modes
+	private LinkedList<Request> waiters; // requests blocked on this lock, in the order they are granted
+
+	public Lock(Object resource) {
+		this.resource = resource;
+		this.havelock = new HashMap<TransactionId, Integer>();
+		this.waiters = new LinkedList<Request>();
 	}
 
-	public int getLockType() {
-		return this.type;
+	public static boolean compatible(int a, int b) {
+		return a == NONE || b == NONE || COMPATIBLE[a][b];
 	}
 
-	public PageId getLockPid() {
-		return this.pid;
+	/** @return the weakest mode at least as strong as both a and b */
+	public static int join(int a, int b) {
+		if (a == NONE || a == b)
+			return b;
+		if (b == NONE)
+			return a;
+		if (a == EXCLUSIVE || b == EXCLUSIVE)
+			return EXCLUSIVE;
+		if (a == INTENTION_SHARED)
+			return b;
+		if (b == INTENTION_SHARED)
+			return a;
+		// two of IX, S and SIX
+		return SHARED_INTENTION_EXCLUSIVE;
 	}
 
-	public void upgrade() {
-		this.type = 1;
+	public Object getResource() {
+		return this.resource;
 	}
 
-	public void downgrade() {
-		this.type = 0;
+	/** @return the mode tid holds this lock in, or NONE */
+	public int mode(TransactionId tid) {
+		Integer m = havelock.get(tid);
+		return m == null ? NONE : m;
 	}
 
 	public boolean empty() {
 		return havelock.isEmpty();
 	}
 
-	public void addtid(TransactionId tid) {
-		havelock.add(tid);
+	public void addtid(TransactionId tid, int mode) {
+		havelock.put(tid, mode);
 	}
 
 	public void removetid(TransactionId tid) {
@@ -42,11 +98,52 @@ public class Lock {
 	}
 
 	public boolean contains(TransactionId tid) {
-		return havelock.contains(tid);
+		return havelock.containsKey(tid);
+	}
+
+	/** @return true if every other holder's mode is compatible with mode */
+	public boolean admits(TransactionId tid, int mode) {
+		for (Map.Entry<TransactionId, Integer> e : havelock.entrySet()) {
+			if (!e.getKey().equals(tid) && !compatible(mode, e.getValue()))
+				return false;
+		}
+		return true;
+	}
+
+	public Set<TransactionId> holders() {
+		return Collections.unmodifiableSet(havelock.keySet());
+	}
+
+	/**
+	 * Queue a request behind the ones already waiting.  An upgrade by a
+	 * holder goes ahead of the requests of transactions that do not hold
+	 * the lock yet, since those could never get it before the upgrade.
+	 */
+	public void enqueue(Request r) {
+		if (!contains(r.tid)) {
+			waiters.addLast(r);
+			return;
+		}
+		ListIterator<Request> it = waiters.listIterator();
+		while (it.hasNext()) {
+			if (!contains(it.next().tid)) {
+				it.previous();
+				break;
+			}
+		}
+		it.add(r);
+	}
+
+	public void dequeue(Request r) {
+		waiters.remove(r);
+	}
+
+	public List<Request> waiters() {
+		return waiters;
 	}
 
-	public boolean onlyone(TransactionId tid) {
-		return (this.havelock.size() == 1 && this.havelock.contains(tid)); 
+	public boolean haswaiters() {
+		return !waiters.isEmpty();
 	}
 
 	@Override
@@ -56,12 +153,12 @@ public class Lock {
 		if (o == null || getClass() != o.getClass())
 			return false;
 		Lock l = (Lock) o;
-		return l.type == this.type && l.pid.equals(this.pid);
+		return l.resource.equals(this.resource);
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(type, pid);
+		return resource.hashCode();
 	}
 
-}
\ No newline at end of file
+}
\ No newline at end of file
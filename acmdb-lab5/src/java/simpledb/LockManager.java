@@ -1,185 +1,616 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * LockManager hands out page-level shared (0) and exclusive (1) locks, and
+ * the table-level locks above them.
+ * <p>
+ * Locking is multi-granularity: before a page lock, a transaction takes an
+ * intention lock on the page's table (IS for a shared page lock, IX for an
+ * exclusive one), and a shared or exclusive table lock covers every page of
+ * the table without page locks.  Once a transaction holds more page locks on
+ * one table than the escalation threshold, they are traded for one S or X
+ * lock on the table.  Escalation only happens if the table lock can be had
+ * right away, so it never adds a wait; otherwise it is tried again after
+ * twice as many pages.
+ * <p>
+ * The lock table is split into stripes by PageId or table id, each with its
+ * own monitor, so transactions working on different pages do not contend.  A request
+ * that cannot be granted right away is queued on its Lock and its thread
+ * waits on the request alone.  Releases grant queued requests in order, as
+ * many at the head of the queue as are compatible, and wake only those.
+ * <p>
+ * The wait queues form a wait-for graph (a waiter waits for the conflicting
+ * holders of its lock and the conflicting requests queued ahead of it),
+ * which is searched for a cycle each time a request blocks.  A cycle is
+ * broken right away by aborting its youngest transaction, the one with the
+ * least work to lose; waiters that are not part of a cycle block for as
+ * long as it takes.
+ */
 public class LockManager {
-	private Hashtable<PageId, Lock> pidtolock;
-	private Hashtable<TransactionId, HashSet<Lock>> tidtolock;
-	public static final Random rg = new Random();
-	
+	/** Default number of stripes of the lock table */
+	public static final int DEFAULT_STRIPES = 64;
+	/** Default number of page locks on one table a transaction holds before they are escalated */
+	public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+	// the table-level locks of one transaction on one table
+	private static class TableLocks {
+		volatile int mode = Lock.NONE;
+		// page locks held on the table
+		final AtomicInteger pages = new AtomicInteger();
+		volatile int escalateAt;
+
+		TableLocks(int escalateAt) {
+			this.escalateAt = escalateAt;
+		}
+	}
+
+	// locks keyed by PageId for pages and by Integer table id for tables
+	private final HashMap<Object, Lock>[] stripes;
+	private final int stripeShift;
+	private final ConcurrentHashMap<TransactionId, Set<PageId>> tidtolock;
+	private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<Integer, TableLocks>> tidtotable;
+	// wait-for graph: the requests each blocked transaction waits on
+	private final ConcurrentHashMap<TransactionId, Set<Lock.Request>> waiting;
+	// transactions chosen to break a deadlock, failing their requests until they complete
+	private final Set<TransactionId> victims;
+	// serializes deadlock searches, so each one sees the waits of the ones before
+	private final Object detector = new Object();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong deadlocks = new AtomicLong();
+	private final AtomicLong escalations = new AtomicLong();
+	private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
 
 	public LockManager() {
-		this.tidtolock = new Hashtable<TransactionId, HashSet<Lock>>();
-        this.pidtolock = new Hashtable<PageId, Lock>();
-	}
-
-	public synchronized void acquireLock(TransactionId tid, PageId pid, int type) throws TransactionAbortedException {
-		Lock tmplock;
-		if (type == 0) {   // shared lock
-			if (!pidtolock.keySet().contains(pid)) {
-				tmplock = new Lock(type, pid);
-				tmplock.addtid(tid);
-				pidtolock.put(pid, tmplock);
-				if (tidtolock.keySet().contains(tid)) 
-					tidtolock.get(tid).add(tmplock);
-				else {
-					HashSet<Lock> H = new HashSet<Lock>();
-					H.add(tmplock);
-					tidtolock.put(tid, H);
-				}
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param numStripes the number of stripes of the lock table, a power of 2
+	 */
+	@SuppressWarnings("unchecked")
+	public LockManager(int numStripes) {
+		if (numStripes < 1 || Integer.bitCount(numStripes) != 1)
+			throw new IllegalArgumentException("number of stripes must be a power of 2");
+		this.stripes = new HashMap[numStripes];
+		for (int i = 0; i < numStripes; i++)
+			this.stripes[i] = new HashMap<Object, Lock>();
+		this.stripeShift = 32 - Integer.numberOfTrailingZeros(numStripes);
+		this.tidtolock = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+		this.tidtotable = new ConcurrentHashMap<TransactionId, ConcurrentHashMap<Integer, TableLocks>>();
+		this.waiting = new ConcurrentHashMap<TransactionId, Set<Lock.Request>>();
+		this.victims = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+	}
+
+	/**
+	 * Set the number of page locks on one table a transaction may hold before
+	 * they are escalated to a table lock; Integer.MAX_VALUE turns escalation
+	 * off.  Applies to the tables transactions start locking afterwards.
+	 */
+	public void setEscalationThreshold(int pages) {
+		if (pages < 1)
+			throw new IllegalArgumentException("escalation threshold must be positive");
+		this.escalationThreshold = pages;
+	}
+
+	// the stripe holding the lock of key; its monitor guards the lock
+	private HashMap<Object, Lock> stripe(Object key) {
+		if (stripeShift == 32)
+			return stripes[0];
+		// page ids hash to nearby values, spread them over the stripes
+		return stripes[(key.hashCode() * 0x9E3779B9) >>> stripeShift];
+	}
+
+	// the table locks of tid on table, created if it has none yet
+	private TableLocks tablelocks(TransactionId tid, Integer table) {
+		ConcurrentHashMap<Integer, TableLocks> T = tidtotable.get(tid);
+		if (T == null) {
+			ConcurrentHashMap<Integer, TableLocks> created = new ConcurrentHashMap<Integer, TableLocks>();
+			T = tidtotable.putIfAbsent(tid, created);
+			if (T == null)
+				T = created;
+		}
+		TableLocks t = T.get(table);
+		if (t == null) {
+			TableLocks created = new TableLocks(escalationThreshold);
+			t = T.putIfAbsent(table, created);
+			if (t == null)
+				t = created;
+		}
+		return t;
+	}
+
+	// the mode tid holds the lock on table in, or Lock.NONE
+	private int tablemode(TransactionId tid, int table) {
+		ConcurrentHashMap<Integer, TableLocks> T = tidtotable.get(tid);
+		TableLocks t = T == null ? null : T.get(table);
+		return t == null ? Lock.NONE : t.mode;
+	}
+
+	// whether a table lock in mode covers a page lock of the specified type
+	private static boolean covers(int mode, int type) {
+		if (type == Lock.EXCLUSIVE)
+			return mode == Lock.EXCLUSIVE;
+		return mode == Lock.SHARED || mode == Lock.SHARED_INTENTION_EXCLUSIVE || mode == Lock.EXCLUSIVE;
+	}
+
+	/**
+	 * Acquire a lock of the specified type on the specified page, blocking
+	 * until it is granted.  Takes the matching intention lock on the table
+	 * first, and nothing else if the table lock already covers the page.
+	 *
+	 * @throws TransactionAbortedException if tid was aborted to break a
+	 *         deadlock, or interrupted while waiting
+	 */
+	public void acquireLock(TransactionId tid, PageId pid, int type) throws TransactionAbortedException {
+		if (victims.contains(tid))
+			throw new TransactionAbortedException();
+		Integer table = pid.getTableId();
+		int held = tablemode(tid, table);
+		if (covers(held, type))
+			return;
+		int intention = type == Lock.EXCLUSIVE ? Lock.INTENTION_EXCLUSIVE : Lock.INTENTION_SHARED;
+		if (Lock.join(held, intention) != held)
+			acquire(tid, table, intention);
+		acquire(tid, pid, type);
+		TableLocks t = tablelocks(tid, table);
+		if (t.pages.get() >= t.escalateAt)
+			escalate(tid, table, t);
+	}
+
+	/**
+	 * Acquire a lock like {@link #acquireLock}, but only if it can be granted
+	 * right away; a request that would wait is not queued.  For callers that
+	 * must not block, such as a thread holding a page latch.  The intention
+	 * lock on the table may be kept even if the page lock is not granted.
+	 *
+	 * @return true if the lock was granted
+	 * @throws TransactionAbortedException if tid was aborted to break a deadlock
+	 */
+	public boolean tryAcquireLock(TransactionId tid, PageId pid, int type) throws TransactionAbortedException {
+		if (victims.contains(tid))
+			throw new TransactionAbortedException();
+		Integer table = pid.getTableId();
+		int held = tablemode(tid, table);
+		if (covers(held, type))
+			return true;
+		int intention = type == Lock.EXCLUSIVE ? Lock.INTENTION_EXCLUSIVE : Lock.INTENTION_SHARED;
+		if (Lock.join(held, intention) != held && !tryAcquire(tid, table, intention))
+			return false;
+		if (!tryAcquire(tid, pid, type))
+			return false;
+		TableLocks t = tablelocks(tid, table);
+		if (t.pages.get() >= t.escalateAt)
+			escalate(tid, table, t);
+		return true;
+	}
+
+	/**
+	 * Whether tid could be granted a lock of the specified type on the page
+	 * right now: no other transaction holds a conflicting lock on the page or
+	 * on its table.  Nothing is acquired, so this is a lock of instant
+	 * duration, which tells that whoever changed the page has completed.
+	 * Queued requests are not considered.
+	 */
+	public boolean isLockable(TransactionId tid, PageId pid, int type) {
+		Integer table = pid.getTableId();
+		int held = tablemode(tid, table);
+		if (covers(held, type))
+			return true;
+		int intention = type == Lock.EXCLUSIVE ? Lock.INTENTION_EXCLUSIVE : Lock.INTENTION_SHARED;
+		return admits(tid, table, intention) && admits(tid, pid, type);
+	}
+
+	/**
+	 * Acquire a lock in the specified mode (Lock.SHARED, Lock.EXCLUSIVE or
+	 * one of the intention modes) on a whole table, blocking until it is
+	 * granted.
+	 *
+	 * @throws TransactionAbortedException if tid was aborted to break a
+	 *         deadlock, or interrupted while waiting
+	 */
+	public void acquireTableLock(TransactionId tid, int tableid, int mode) throws TransactionAbortedException {
+		if (victims.contains(tid))
+			throw new TransactionAbortedException();
+		acquire(tid, Integer.valueOf(tableid), mode);
+	}
+
+	private void acquire(TransactionId tid, Object key, int type) throws TransactionAbortedException {
+		HashMap<Object, Lock> stripe = stripe(key);
+		Lock.Request r;
+		synchronized (stripe) {
+			Lock lock = stripe.get(key);
+			if (lock == null) {
+				lock = new Lock(key);
+				stripe.put(key, lock);
 			}
-			else {
-				tmplock = pidtolock.get(pid);
-				if (tmplock.getLockType() == 0) {
-					tmplock.addtid(tid);
-					if (tidtolock.keySet().contains(tid))
-						tidtolock.get(tid).add(tmplock);
-					else {
-						HashSet<Lock> H = new HashSet<Lock>();
-						H.add(tmplock);
-						tidtolock.put(tid, H);
-					}	
-				}
-				else {
-					long startTime = System.currentTimeMillis();
-					while (pidtolock.keySet().contains(pid) && pidtolock.get(pid).getLockType() == 1) {
-						Lock lock = pidtolock.get(pid);
-						if (lock.onlyone(tid)) {
-							//lock.downgrade();
-							break;
-						}
-						long waittime = 500 + rg.nextInt(500);
-						if (System.currentTimeMillis() - startTime > waittime) {
-							throw new TransactionAbortedException();
-						}
-						try {
-							wait(50);
-						}
-						catch (Exception e) {
-							throw new TransactionAbortedException();
-						}
-					}
-					if (!pidtolock.keySet().contains(pid)) {
-						tmplock = new Lock(type, pid);
-						tmplock.addtid(tid);
-						pidtolock.put(pid, tmplock);
-						if (tidtolock.keySet().contains(tid)) 
-							tidtolock.get(tid).add(tmplock);
-						else {
-							HashSet<Lock> H = new HashSet<Lock>();
-							H.add(tmplock);
-							tidtolock.put(tid, H);
-						}
-					}
-					else {
-						tmplock = pidtolock.get(pid);
-						tmplock.addtid(tid);
-						pidtolock.put(pid, tmplock);
-						if (tidtolock.keySet().contains(tid)) 
-							tidtolock.get(tid).add(tmplock);
-						else {
-							HashSet<Lock> H = new HashSet<Lock>();
-							H.add(tmplock);
-							tidtolock.put(tid, H);
-				        }
-					}
-				}
+			if (grantable(lock, tid, type, true)) {
+				grant(lock, tid, type);
+				return;
+			}
+			r = new Lock.Request(tid, type, lock);
+			lock.enqueue(r);
+			addwaiting(r);
+		}
+		waits.incrementAndGet();
+		try {
+			// a wait can close several cycles; break each of them
+			TransactionId victim;
+			while ((victim = findDeadlock(tid)) != null) {
+				if (victim.equals(tid))
+					throw new TransactionAbortedException();
+				abort(victim);
+			}
+			synchronized (r) {
+				while (!r.granted && !r.aborted)
+					r.wait();
+				if (r.aborted)
+					throw new TransactionAbortedException();
+			}
+		}
+		catch (InterruptedException e) {
+			throw new TransactionAbortedException();
+		}
+		finally {
+			removewaiting(r);
+			cancel(r);
+		}
+	}
+
+	// grant a lock on key if that takes no wait; a request that would wait is dropped
+	private boolean tryAcquire(TransactionId tid, Object key, int type) {
+		HashMap<Object, Lock> stripe = stripe(key);
+		synchronized (stripe) {
+			Lock lock = stripe.get(key);
+			if (lock == null) {
+				lock = new Lock(key);
+				stripe.put(key, lock);
+			}
+			if (!grantable(lock, tid, type, true)) {
+				if (lock.empty() && !lock.haswaiters())
+					stripe.remove(key);
+				return false;
+			}
+			grant(lock, tid, type);
+			return true;
+		}
+	}
+
+	// whether the lock on key admits tid in the specified mode, joined with the one it holds
+	private boolean admits(TransactionId tid, Object key, int type) {
+		HashMap<Object, Lock> stripe = stripe(key);
+		synchronized (stripe) {
+			Lock lock = stripe.get(key);
+			return lock == null || lock.admits(tid, Lock.join(lock.mode(tid), type));
+		}
+	}
+
+	/**
+	 * @param arriving true for a new request, which must also queue behind
+	 *        the requests already waiting; false for the head of the queue
+	 */
+	private boolean grantable(Lock lock, TransactionId tid, int type, boolean arriving) {
+		int held = lock.mode(tid);
+		int want = Lock.join(held, type);
+		if (want == held)
+			return true;
+		if (arriving && held == Lock.NONE && lock.haswaiters())
+			return false;
+		return lock.admits(tid, want);
+	}
+
+	// caller holds the monitor of the lock's stripe
+	private void grant(Lock lock, TransactionId tid, int type) {
+		int held = lock.mode(tid);
+		int mode = Lock.join(held, type);
+		lock.addtid(tid, mode);
+		Object key = lock.getResource();
+		if (key instanceof Integer) {
+			tablelocks(tid, (Integer) key).mode = mode;
+			return;
+		}
+		if (held != Lock.NONE)
+			return;
+		PageId pid = (PageId) key;
+		Set<PageId> H = tidtolock.get(tid);
+		if (H == null) {
+			Set<PageId> created = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+			H = tidtolock.putIfAbsent(tid, created);
+			if (H == null)
+				H = created;
+		}
+		H.add(pid);
+		tablelocks(tid, pid.getTableId()).pages.incrementAndGet();
+	}
+
+	/**
+	 * Trade the page locks of tid on table for a table lock, S if they were
+	 * all shared and X otherwise, if no other transaction is in the way.
+	 */
+	private void escalate(TransactionId tid, Integer table, TableLocks t) {
+		int mode = t.mode == Lock.INTENTION_SHARED ? Lock.SHARED : Lock.EXCLUSIVE;
+		HashMap<Object, Lock> stripe = stripe(table);
+		synchronized (stripe) {
+			Lock lock = stripe.get(table);
+			if (lock == null || !lock.admits(tid, mode)) {
+				t.escalateAt = 2 * t.escalateAt;
+				return;
+			}
+			grant(lock, tid, mode);
+		}
+		escalations.incrementAndGet();
+		Set<PageId> H = tidtolock.get(tid);
+		if (H == null)
+			return;
+		for (PageId pid : H) {
+			if (pid.getTableId() == table) {
+				H.remove(pid);
+				release(tid, pid);
 			}
 		}
-		else {        // exclusive lock
-			if (!pidtolock.keySet().contains(pid)) {
-				//assert(false);
-				tmplock = new Lock(type, pid);
-				tmplock.addtid(tid);
-				pidtolock.put(pid, tmplock);
-				if (tidtolock.keySet().contains(tid)) 
-					tidtolock.get(tid).add(tmplock);
-				else {
-					HashSet<Lock> H = new HashSet<Lock>();
-					H.add(tmplock);
-					tidtolock.put(tid, H);
+	}
+
+	/**
+	 * Grant the requests at the head of the queue of lock for as long as
+	 * they are compatible with the holders, and wake their threads.  The
+	 * caller holds the monitor of the lock's stripe.
+	 */
+	private void promote(Lock lock) {
+		Iterator<Lock.Request> it = lock.waiters().iterator();
+		while (it.hasNext()) {
+			Lock.Request r = it.next();
+			if (!grantable(lock, r.tid, r.type, false))
+				break;
+			it.remove();
+			grant(lock, r.tid, r.type);
+			synchronized (r) {
+				r.granted = true;
+				r.notify();
+			}
+		}
+	}
+
+	// drop a request that ended without being granted from its queue.  A
+	// deadlock victim's request is dequeued by abort() already, so its lock
+	// may have emptied and been replaced in the stripe since; only the lock
+	// the request was queued on is removed
+	private void cancel(Lock.Request r) {
+		Object key = r.lock.getResource();
+		HashMap<Object, Lock> stripe = stripe(key);
+		synchronized (stripe) {
+			if (r.granted)
+				return;
+			r.lock.dequeue(r);
+			promote(r.lock);
+			if (r.lock.empty() && !r.lock.haswaiters() && stripe.get(key) == r.lock)
+				stripe.remove(key);
+		}
+	}
+
+	/**
+	 * Abort the waiting requests of a deadlock victim.  Its threads wake up
+	 * and throw TransactionAbortedException, and its later requests fail,
+	 * until the transaction completes.
+	 */
+	private void abort(TransactionId victim) {
+		Set<Lock.Request> R = waiting.get(victim);
+		if (R == null)
+			return;
+		for (Lock.Request r : R) {
+			HashMap<Object, Lock> stripe = stripe(r.lock.getResource());
+			synchronized (stripe) {
+				if (r.granted)
+					continue;
+				r.lock.dequeue(r);
+				promote(r.lock);
+				synchronized (r) {
+					r.aborted = true;
+					r.notify();
 				}
 			}
-			else {
-				long startTime = System.currentTimeMillis();
-				long waittime = 500 + rg.nextInt(500);
-				while (pidtolock.keySet().contains(pid)) {	
-					Lock lock = pidtolock.get(pid);
-				//	assert(!lock.empty());
-					if (lock.onlyone(tid)) {
-						lock.upgrade();
-						//assert(false);
-						return;
-					}
-					if (System.currentTimeMillis() - startTime > waittime) {
-						throw new TransactionAbortedException();
-					}
-					try {
-						wait(50);
-					}
-					catch (Exception e) {
-						throw new TransactionAbortedException();
-					}
+		}
+	}
+
+	private void addwaiting(Lock.Request r) {
+		Set<Lock.Request> R = waiting.get(r.tid);
+		if (R == null) {
+			Set<Lock.Request> created = Collections.newSetFromMap(new ConcurrentHashMap<Lock.Request, Boolean>());
+			R = waiting.putIfAbsent(r.tid, created);
+			if (R == null)
+				R = created;
+		}
+		R.add(r);
+	}
+
+	private void removewaiting(Lock.Request r) {
+		Set<Lock.Request> R = waiting.get(r.tid);
+		if (R != null) {
+			R.remove(r);
+			if (R.isEmpty())
+				waiting.remove(r.tid, R);
+		}
+	}
+
+	/**
+	 * Look for a cycle in the wait-for graph through the specified waiting
+	 * transaction, and choose its youngest transaction as the victim.
+	 * Transactions already chosen as victims are on their way out and do
+	 * not count as waiting.
+	 *
+	 * @return the victim, or null if there is no cycle
+	 */
+	private TransactionId findDeadlock(TransactionId tid) {
+		synchronized (detector) {
+			LinkedList<TransactionId> path = new LinkedList<TransactionId>();
+			path.add(tid);
+			if (!reaches(tid, tid, path, new HashSet<TransactionId>()))
+				return null;
+			TransactionId youngest = tid;
+			for (TransactionId t : path) {
+				if (t.getId() > youngest.getId())
+					youngest = t;
+			}
+			victims.add(youngest);
+			deadlocks.incrementAndGet();
+			return youngest;
+		}
+	}
+
+	// depth first search for target among the transactions that from waits for
+	private boolean reaches(TransactionId from, TransactionId target, LinkedList<TransactionId> path,
+			HashSet<TransactionId> visited) {
+		if (victims.contains(from))
+			return false;
+		for (TransactionId t : waitsFor(from)) {
+			if (t.equals(target))
+				return true;
+			if (!visited.add(t))
+				continue;
+			path.add(t);
+			if (reaches(t, target, path, visited))
+				return true;
+			path.removeLast();
+		}
+		return false;
+	}
+
+	/**
+	 * The transactions whose locks or queued requests block the requests of
+	 * tid: the holders whose modes conflict with the one requested, and
+	 * every request queued ahead, since grants are in order.
+	 */
+	private Set<TransactionId> waitsFor(TransactionId tid) {
+		Set<TransactionId> blockers = new HashSet<TransactionId>();
+		Set<Lock.Request> R = waiting.get(tid);
+		if (R == null)
+			return blockers;
+		for (Lock.Request r : R) {
+			synchronized (stripe(r.lock.getResource())) {
+				if (r.granted || r.aborted)
+					continue;
+				int want = Lock.join(r.lock.mode(tid), r.type);
+				for (TransactionId h : r.lock.holders()) {
+					if (!Lock.compatible(want, r.lock.mode(h)))
+						blockers.add(h);
 				}
-				tmplock = new Lock(type, pid);
-				tmplock.addtid(tid);
-				pidtolock.put(pid, tmplock);
-				if (tidtolock.keySet().contains(tid)) 
-					tidtolock.get(tid).add(tmplock);
-				else {
-					HashSet<Lock> H = new HashSet<Lock>();
-					H.add(tmplock);
-					tidtolock.put(tid, H);
+				for (Lock.Request ahead : r.lock.waiters()) {
+					if (ahead == r)
+						break;
+					blockers.add(ahead.tid);
 				}
 			}
 		}
+		blockers.remove(tid);
+		return blockers;
 	}
 
-	public synchronized void releaseLock(TransactionId tid, PageId pid) {
-		if (this.tidtolock.keySet().contains(tid) && this.pidtolock.keySet().contains(pid)) {
-			Lock tmplock = this.pidtolock.get(pid);
-			this.tidtolock.get(tid).remove(tmplock);
-			tmplock.removetid(tid);
-			if (tmplock.empty()) 
-				this.pidtolock.remove(pid);
+	public void releaseLock(TransactionId tid, PageId pid) {
+		Set<PageId> H = tidtolock.get(tid);
+		if (H != null)
+			H.remove(pid);
+		release(tid, pid);
+	}
+
+	private void release(TransactionId tid, Object key) {
+		HashMap<Object, Lock> stripe = stripe(key);
+		synchronized (stripe) {
+			Lock lock = stripe.get(key);
+			if (lock == null || !lock.contains(tid))
+				return;
+			lock.removetid(tid);
+			promote(lock);
+			if (lock.empty() && !lock.haswaiters())
+				stripe.remove(key);
+		}
+		if (key instanceof PageId) {
+			ConcurrentHashMap<Integer, TableLocks> T = tidtotable.get(tid);
+			TableLocks t = T == null ? null : T.get(((PageId) key).getTableId());
+			if (t != null)
+				t.pages.decrementAndGet();
 		}
-		notifyAll();
 	}
 
-	public synchronized void releaseAllLock(TransactionId tid) {
-		if (tidtolock.keySet().contains(tid)) {
-	        HashSet<Lock> H = tidtolock.get(tid);
-	        ArrayList<Lock> A = new ArrayList<Lock>();
-	        for (Lock lock: H) 
-	        	A.add(lock);
-	        for (Lock lock: A) 
-	        	releaseLock(tid, lock.getLockPid());
-	        notifyAll();
+	public void releaseAllLock(TransactionId tid) {
+		Set<PageId> H = tidtolock.remove(tid);
+		if (H != null) {
+			for (PageId pid: H)
+				release(tid, pid);
+		}
+		ConcurrentHashMap<Integer, TableLocks> T = tidtotable.remove(tid);
+		if (T != null) {
+			for (Integer table : T.keySet())
+				release(tid, table);
 		}
+		victims.remove(tid);
 	}
 
-	public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-		if (!this.pidtolock.keySet().contains(pid))
-			return false;
-		if (!this.tidtolock.keySet().contains(tid)) 
-			return false;
-		Lock lock = this.pidtolock.get(pid);
-		return lock.contains(tid);
+	/** @return true if tid holds a lock on pid, or a table lock covering it */
+	public boolean holdsLock(TransactionId tid, PageId pid) {
+		if (covers(tablemode(tid, pid.getTableId()), Lock.SHARED))
+			return true;
+		HashMap<Object, Lock> stripe = stripe(pid);
+		synchronized (stripe) {
+			Lock lock = stripe.get(pid);
+			return lock != null && lock.contains(tid);
+		}
 	}
 
-	public synchronized boolean holdsLock(TransactionId tid) {
-		return this.tidtolock.keySet().contains(tid);
+	public boolean holdsLock(TransactionId tid) {
+		return tidtolock.containsKey(tid) || tidtotable.containsKey(tid);
 	}
 
-	public synchronized ArrayList<PageId> holdsPage(TransactionId tid) {
+	/** @return the mode tid holds the lock on the table in, or Lock.NONE */
+	public int getTableLockMode(TransactionId tid, int tableid) {
+		return tablemode(tid, tableid);
+	}
+
+	/**
+	 * @return true if tid holds an exclusive lock on some table, so it may
+	 *         have changed pages it holds no page lock on
+	 */
+	public boolean holdsExclusiveTable(TransactionId tid) {
+		ConcurrentHashMap<Integer, TableLocks> T = tidtotable.get(tid);
+		if (T == null)
+			return false;
+		for (TableLocks t : T.values()) {
+			if (t.mode == Lock.EXCLUSIVE)
+				return true;
+		}
+		return false;
+	}
+
+	public ArrayList<PageId> holdsPage(TransactionId tid) {
 		ArrayList<PageId> tmp = new ArrayList<PageId>();
-		if (!this.tidtolock.keySet().contains(tid))
+		Set<PageId> H = tidtolock.get(tid);
+		if (H == null)
 			return tmp;
-		HashSet<Lock> H = tidtolock.get(tid);
-		for (Lock lock: H) {
-			if (lock.getLockType() == 1)
-				tmp.add(lock.getLockPid());
+		for (PageId pid: H) {
+			HashMap<Object, Lock> stripe = stripe(pid);
+			synchronized (stripe) {
+				Lock lock = stripe.get(pid);
+				if (lock != null && lock.mode(tid) == Lock.EXCLUSIVE)
+					tmp.add(pid);
+			}
 		}
-		return tmp; 
+		return tmp;
+	}
+
+	/** @return the number of lock requests that had to wait */
+	public long getWaitCount() {
+		return waits.get();
+	}
+
+	/** @return the number of transactions aborted to break a deadlock */
+	public long getDeadlockCount() {
+		return deadlocks.get();
+	}
+
+	/** @return the number of times page locks were escalated to a table lock */
+	public long getEscalationCount() {
+		return escalations.get();
 	}
-}
\ No newline at end of file
+}
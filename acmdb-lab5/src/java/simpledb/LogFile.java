@@ -4,6 +4,14 @@ package simpledb;
 import java.io.*;
 import java.util.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -18,7 +26,7 @@ Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
 synchronized (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
+pages (on rollback and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
 must not be declared synchronized and must begin with a block like:
 
@@ -32,40 +40,88 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+BufferPool writes pages outside its monitor, so an operation that writes
+pages itself first waits for those writes with
+{@link BufferPool#awaitWrites}, between the two synchronized lines; no
+write starts while it holds the BufferPool's monitor.
+
+<u> Group commit: </u>
+<p>
+
+A committing transaction appends its COMMIT record and waits, without
+holding the LogFile monitor, until a background flusher thread has
+forced the log past the end of the record.  The flusher forces once for
+all the commits that arrived in the meantime, so under concurrency many
+commits share one fsync.  It forces as soon as it is free, or, with a
+batch window set (see setGroupCommit), once the window has passed or
+enough committers are waiting, whichever comes first.
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> Log records are addressed by log sequence number (LSN).  LSNs grow
+with every byte appended and are never reused, so they stay valid when
+the log is truncated.  Records are appended through a LogWriter, which
+buffers them in memory and writes them to the log in large sequential
+writes; force(lsn) makes the log durable up to an LSN.
+
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file holds a header of three long integers.  The first
+represents the LSN of the last written checkpoint, or -1 if there are
+no checkpoints
+
+<li> The second long integer is the LSN of the oldest byte in the log;
+the LSNs of a new log start at HEADER_SIZE, so no record has LSN 0
+
+<li> The third long integer is the size of the log's segments.  The
+log records are in segment files next to the log file (see
+LogSegments), and truncating the log deletes the segments before the
+oldest record still needed
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
+records are variable length, and never span two segments: a record
+that does not fit in what is left of a segment starts the next one, and
+the rest of the segment is filled with zeroes.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer LSN representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, and DELTA
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+methods.  A page image starts with a one byte tag for the kind of page
+(see HEAP_PAGE, BTREE_PAGE), followed by the integers of its id and
+the page data; pages of other kinds are tagged OTHER_PAGE and carry
+their class names.
+
+<li>DELTA records log a change to a page by the bytes it changed.  They
+consist of the page's tag and id, as in a page image, an integer count
+of ranges, and for each range its integer offset and length followed by
+the bytes in it before and after the change.  A page is logged with an
+UPDATE record the first time it changes after a checkpoint, and with
+DELTA records after that, so every DELTA record applies to the page as
+the record before it left it.
 
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+as a long integer transaction id and a long integer first record LSN
+for each active transaction.  The dirty page table follows: an integer
+count of the pages whose logged changes may not be on disk yet, and for
+each a long integer for its place (its table id and page number) and
+the LSN of the first of those changes.  Checkpoints flush no pages;
+recovery starts at the oldest LSN in the record.
 
 </ul>
 
@@ -82,17 +138,70 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    // fills the end of a segment that the next record did not fit in
+    static final int PADDING = 0;
     static final long NO_CHECKPOINT_ID = -1;
 
+    // tags of the kinds of page images
+    static final byte OTHER_PAGE = 0;
+    static final byte HEAP_PAGE = 1;
+    static final byte BTREE_PAGE = 2;
+
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
-
-    long currentOffset = -1;//protected by this
+    final static int HEADER_SIZE = 3 * LONG_SIZE;
+    // the size of the shortest records, ABORT, COMMIT and BEGIN
+    private final static int MIN_RECORD_SIZE = INT_SIZE + 2 * LONG_SIZE;
+
+    /** Default size of a log segment, in bytes */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    // the sides of an UPDATE or DELTA record
+    private static final int BEFORE_IMAGE = 0;
+    private static final int AFTER_IMAGE = 1;
+
+    // unchanged bytes between two changed ranges of a page are logged as
+    // part of one range if there are this few of them, which is cheaper
+    // than starting another range
+    private static final int MAX_RANGE_GAP = INT_SIZE;
+
+    private final int bufferSize;
+    private final long segmentSize; // of a new log
+    private LogSegments segments; // protected by this
+    private long firstLsn; // the LSN of the oldest byte in the log; protected by this
+    private volatile LogWriter writer; // replaced when the log is reset; protected by this
+    // records are built here, then appended in one piece; protected by this
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    // the pages, by slot(), logged with an UPDATE record since the last
+    // checkpoint; protected by this
+    private final Set<Long> imaged = new HashSet<Long>();
+    // the pages, by slot(), whose logged changes may not be on disk yet,
+    // with the LSN of the first of those changes; protected by this
+    private final Map<Long, Long> dirtyPages = new LinkedHashMap<Long, Long>();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /** Default number of waiting committers that makes the flusher force without waiting out the window */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+    private volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private volatile long groupCommitWindowNanos = 0;
+
+    // guards the group commit state below; never held while acquiring this
+    private final Object flushLock = new Object();
+    private long durableLsn = 0; // the log is on disk up to here
+    private long requestedLsn = 0; // the committers wait for the log to be on disk up to here
+    private int committers = 0; // committers waiting
+    private IOException flushFailure;
+    private Thread flusher;
+    private volatile boolean closed;
+    private long forces = 0;
+    private long commits = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -105,9 +214,30 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, LogWriter.DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param bufferSize The size of the in-memory log buffer, in bytes
+    */
+    public LogFile(File f, int bufferSize) throws IOException {
+        this(f, bufferSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.
+        @param f The log file's name
+        @param bufferSize The size of the in-memory log buffer, in bytes
+        @param segmentSize The size of the segments of a new log, in bytes;
+        a log that is recovered keeps the size it was written with
+    */
+    public LogFile(File f, int bufferSize, long segmentSize) throws IOException {
 	this.logFile = f;
+        this.bufferSize = bufferSize;
+        this.segmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        openWriter();
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -120,6 +250,24 @@ public class LogFile {
         // may not match tableids in the current catalog.
     }
 
+    // set up the writer to append to the log whose header is in raf, or
+    // to a new log if raf is empty
+    private void openWriter() throws IOException {
+        firstLsn = HEADER_SIZE;
+        long size = segmentSize;
+        if (raf.length() >= HEADER_SIZE) {
+            raf.seek(LONG_SIZE);
+            firstLsn = raf.readLong();
+            size = raf.readLong();
+        }
+        if (segments == null || segments.getSegmentSize() != size) {
+            if (segments != null)
+                segments.close();
+            segments = new LogSegments(logFile, size);
+        }
+        writer = new LogWriter(segments, segments.end(firstLsn), bufferSize);
+    }
+
     // we're about to append a log record. if we weren't sure whether the
     // DB wants to do recovery, we're sure now -- it didn't. So truncate
     // the log.
@@ -130,14 +278,97 @@ public class LogFile {
             raf.seek(0);
             raf.setLength(0);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            raf.writeLong(HEADER_SIZE);
+            raf.writeLong(segmentSize);
+            segments.deleteAll();
+            openWriter();
+        }
+    }
+
+    // start building a record of the specified type; caller holds this
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        recordBytes.reset();
+        record.writeInt(type);
+        record.writeLong(tid);
+        return record;
+    }
+
+    /** Finish the record being built and append it to the log; caller holds this.
+        @return the LSN of the record
+    */
+    private long appendRecord() throws IOException {
+        long lsn = writer.end();
+        int length = recordBytes.size() + LONG_SIZE;
+        long left = segments.segmentEnd(lsn) - lsn;
+        if (length > left) {
+            if (length > segments.getSegmentSize())
+                throw new IOException("a record of " + length + " bytes does not fit in a log segment");
+            writer.append(new byte[(int) left], 0, (int) left);
+            lsn += left;
         }
+        record.writeLong(lsn);
+        record.flush();
+        writer.append(recordBytes.toByteArray(), 0, recordBytes.size());
+        return lsn;
+    }
+
+    /** @return the LSN the next record will get */
+    public synchronized long getEndLsn() {
+        return writer.end();
+    }
+
+    /** Position the log file at the record with the specified LSN, to
+        read it.  Writes out the buffered log first.
+        @return the log file
+    */
+    synchronized RandomAccessFile seek(long lsn) throws IOException {
+        LogWriter w = writer;
+        w.writeOut(w.end());
+        RandomAccessFile f = segments.open(lsn);
+        f.seek(segments.offset(lsn));
+        return f;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** Configure group commit.
+        @param size the number of waiting committers that makes the
+        flusher force right away
+        @param windowMicros how long the flusher waits for more
+        committers to join a batch; 0 forces as soon as the flusher is free
+    */
+    public void setGroupCommit(int size, long windowMicros) {
+        if (size < 1 || windowMicros < 0)
+            throw new IllegalArgumentException("group commit size must be positive, window not negative");
+        groupCommitSize = size;
+        groupCommitWindowNanos = windowMicros * 1000;
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
+    /** @return the number of times the flusher forced the log */
+    public long getForceCount() {
+        synchronized (flushLock) {
+            return forces;
+        }
+    }
+
+    /** @return the number of commits logged */
+    public long getCommitCount() {
+        synchronized (flushLock) {
+            return commits;
+        }
+    }
+
+    /** @return the LSN up to which the log is known to be on disk */
+    public long getDurableLsn() {
+        synchronized (flushLock) {
+            return durableLsn;
+        }
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -148,6 +379,8 @@ public class LogFile {
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
+            // rollback writes pages behind the BufferPool's back
+            Database.getBufferPool().awaitWrites();
 
             synchronized(this) {
                 preAppend();
@@ -158,124 +391,357 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                beginRecord(ABORT_RECORD, tid.getId());
+                appendRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
-    /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+    /** Write a commit record to disk for the specified tid, and
+        wait until the log is forced to disk past it.  The force is
+        shared with the other transactions committing at the same time.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn = logSystemCommit(tid);
+        synchronized (flushLock) {
+            commits++;
+        }
+        force(lsn);
+    }
+
+    /** Write a commit record for the specified tid without waiting
+        for the log to be forced, for a system transaction that changes
+        the structure of a B+ tree on behalf of another: the change is
+        durable once anything forces the log past the record, and no
+        change made after it, to the same pages or by the transaction it
+        was made for, can be durable before.
+
+        @param tid The committing system transaction.
+        @return the LSN of the record
+    */
+    public synchronized long logSystemCommit(TransactionId tid) throws IOException {
         preAppend();
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        beginRecord(COMMIT_RECORD, tid.getId());
+        long lsn = appendRecord();
         tidToFirstLogRecord.remove(tid.getId());
+        return lsn;
+    }
+
+    /** Wait until the log is on disk up to and including the record at
+        the specified LSN, e.g. to write ahead of a page the record
+        describes.  The force is shared with the commits and other calls
+        waiting at the same time.
+    */
+    public void force(long lsn) throws IOException {
+        synchronized (flushLock) {
+            if (durableLsn > lsn)
+                return;
+            if (flusher == null) {
+                flusher = new Thread(new Flusher(), "simpledb-log-flusher");
+                flusher.setDaemon(true);
+                flusher.start();
+            }
+            if (lsn >= requestedLsn)
+                requestedLsn = lsn + 1;
+            committers++;
+            flushLock.notifyAll();
+            try {
+                while (durableLsn <= lsn && flushFailure == null)
+                    flushLock.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for the log to be forced");
+            } finally {
+                committers--;
+            }
+            if (durableLsn <= lsn)
+                throw new IOException("forcing the log failed", flushFailure);
+        }
+    }
+
+    // record that the log is on disk up to lsn, and wake the committers waiting for it
+    private void markDurable(long lsn) {
+        synchronized (flushLock) {
+            if (lsn > durableLsn) {
+                durableLsn = lsn;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces the log for waiting committers, one batch at a time.  The force
+     * runs without the LogFile monitor, so records keep being appended
+     * meanwhile; they go with the next batch.
+     */
+    private class Flusher implements Runnable {
+        public void run() {
+            while (true) {
+                synchronized (flushLock) {
+                    try {
+                        while (requestedLsn <= durableLsn)
+                            flushLock.wait();
+                        long deadline = System.nanoTime() + groupCommitWindowNanos;
+                        long left;
+                        while (committers < groupCommitSize && (left = deadline - System.nanoTime()) > 0)
+                            flushLock.wait(left / 1000000, (int)(left % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                LogWriter w = writer;
+                try {
+                    long lsn = w.force();
+                    synchronized (flushLock) {
+                        forces++;
+                    }
+                    markDurable(lsn);
+                } catch (ClosedChannelException e) {
+                    // the segments were reset under the flusher, or the log shut down
+                    if (!closed) {
+                        Thread.yield();
+                        continue;
+                    }
+                    synchronized (flushLock) {
+                        flushFailure = e;
+                        flushLock.notifyAll();
+                    }
+                    return;
+                } catch (IOException e) {
+                    synchronized (flushLock) {
+                        flushFailure = e;
+                        flushLock.notifyAll();
+                    }
+                    return;
+                }
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
-        (with provided         before and after images.)
+        (with provided         before and after images.)  The record
+        logs whole page images the first time the page changes after a
+        checkpoint, and only the bytes that changed after that.
         @param tid The transaction performing the write
-        @param before The before image of the page
+        @param before The before image of the page: the page as it was
+        when it was last logged, or last read from disk
         @param after The after image of the page
+        @return the LSN of the record; the record is durable once the
+        log is forced up to it
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
+        Debug.log("WRITE, lsn = " + writer.end());
+        return appendUpdate(tid.getId(), pageTag(after), after.getClass().getName(), after.getId(),
+                before.getPageData(), after.getPageData());
+    }
+
+    /** Write a record for a page that is about to be reset to new data by
+        writing it straight to its file rather than through the
+        BufferPool, as a B+ tree does with pages it reuses.  The record
+        logs whole page images, and must be forced before the page is
+        written.
+        @param tid The transaction resetting the page
+        @param pid The page
+        @param before The data of the page on disk
+        @param after The data the page is reset to
+        @return the LSN of the record
+    */
+    public synchronized long logReset(TransactionId tid, PageId pid, byte[] before, byte[] after)
+        throws IOException {
+        if (!(pid instanceof HeapPageId || pid instanceof BTreePageId))
+            throw new IllegalArgumentException("cannot log a reset of " + pid);
+        preAppend();
+        imaged.remove(slot(pid));
+        return appendUpdate(tid.getId(), pid instanceof HeapPageId ? HEAP_PAGE : BTREE_PAGE, null, pid,
+                before, after);
+    }
 
-           record type
-           transaction id
-           before page data (see writePageData)
-           after page data
-           start offset
-        */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+    /* an update record conists of
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+       record type
+       transaction id
+       before page data (see writePageData)
+       after page data
+       start lsn
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+       and a delta record of
+
+       record type
+       transaction id
+       page header (see writePageHeader)
+       number of ranges
+       offset, length, before bytes and after bytes of each range
+       start lsn
+
+       caller holds this
+    */
+    private long appendUpdate(long tid, byte tag, String pageClassName, PageId pid,
+                              byte[] before, byte[] after) throws IOException {
+        if (imaged.add(slot(pid))) {
+            DataOutputStream out = beginRecord(UPDATE_RECORD, tid);
+            writePageHeader(out, tag, pageClassName, pid);
+            writeBytes(out, before);
+            writePageHeader(out, tag, pageClassName, pid);
+            writeBytes(out, after);
+            return logged(pid, appendRecord());
+        }
+        DataOutputStream out = beginRecord(DELTA_RECORD, tid);
+        writePageHeader(out, tag, pageClassName, pid);
+        List<int[]> ranges = changedRanges(before, after);
+        out.writeInt(ranges.size());
+        for (int[] range : ranges) {
+            out.writeInt(range[0]);
+            out.writeInt(range[1]);
+            out.write(before, range[0], range[1]);
+            out.write(after, range[0], range[1]);
+        }
+        return logged(pid, appendRecord());
+    }
+
+    // note that a change to pid was logged at lsn; caller holds this
+    private long logged(PageId pid, long lsn) {
+        if (!dirtyPages.containsKey(slot(pid)))
+            dirtyPages.put(slot(pid), lsn);
+        return lsn;
+    }
+
+    /** Note that a page is on disk as it was last logged, so recovery
+        need not start from its changes any more.  Called after every
+        write of a logged page.
+        @param pid The page that was written
+    */
+    public synchronized void pageWritten(PageId pid) {
+        dirtyPages.remove(slot(pid));
+    }
+
+    /** @return the {offset, length} ranges of bytes that differ between
+        before and after, which are the same length */
+    static List<int[]> changedRanges(byte[] before, byte[] after) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < after.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1; // after the last changed byte of the range
+            for (i = end; i < after.length && i - end <= MAX_RANGE_GAP; i++) {
+                if (before[i] != after[i])
+                    end = i + 1;
+            }
+            ranges.add(new int[] { start, end - start });
+            i = end;
+        }
+        return ranges;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
+    // pages are told apart by their place in their file, as a B+ tree
+    // page keeps its number when it is reused as another kind of page
+    private static Long slot(PageId pid) {
+        return ((long) pid.getTableId() << 32) | (pid.pageNumber() & 0xffffffffL);
+    }
+
+    private static byte pageTag(Page p) {
         PageId pid = p.getId();
+        if (p instanceof HeapPage && pid instanceof HeapPageId)
+            return HEAP_PAGE;
+        if (pid instanceof BTreePageId)
+            return BTREE_PAGE;
+        return OTHER_PAGE;
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
+        writePageHeader(out, pageTag(p), p.getClass().getName(), p.getId());
+        writeBytes(out, p.getPageData());
+    }
+
+    private void writePageHeader(DataOutput out, byte tag, String pageClassName, PageId pid)
+        throws IOException {
         int pageInfo[] = pid.serialize();
 
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
+        // page kind tag
+        // page class name and id class name, for other kinds only
+        // id class bytes, for other kinds only
         // id class data
         // page class bytes
         // page class data
+        // the header is the data up to the page class bytes
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
-
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
-
-        raf.writeInt(pageInfo.length);
+        out.writeByte(tag);
+        if (tag == OTHER_PAGE) {
+            out.writeUTF(pageClassName);
+            out.writeUTF(pid.getClass().getName());
+            out.writeInt(pageInfo.length);
+        }
         for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
+            out.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    private static void writeBytes(DataOutput out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    Page readPageData(DataInput in) throws IOException {
+        LogRecord r = new LogRecord();
+        readPageHeader(in, r);
+        return newPage(r, readBytes(in));
+    }
+
+    // make a page of the kind and id read into r by readPageHeader
+    private Page newPage(LogRecord r, byte[] data) throws IOException {
+        PageId pid = r.pid;
+        if (r.tag == HEAP_PAGE)
+            return new HeapPage((HeapPageId) pid, data);
+        if (r.tag == BTREE_PAGE) {
+            BTreePageId bpid = (BTreePageId) pid;
+            switch (bpid.pgcateg()) {
+            case BTreePageId.ROOT_PTR:
+                return new BTreeRootPtrPage(bpid, data);
+            case BTreePageId.HEADER:
+                return new BTreeHeaderPage(bpid, data);
+            }
+            int keyField = ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+            if (bpid.pgcateg() == BTreePageId.INTERNAL)
+                return new BTreeInternalPage(bpid, data, keyField);
+            return new BTreeLeafPage(bpid, data, keyField);
+        }
 
+        String pageClassName = r.pageClassName;
+        Page newPage = null;
         try {
-            Class<?> idClass = Class.forName(idClassName);
             Class<?> pageClass = Class.forName(pageClassName);
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
+            // use the Page(PageId, byte[]) constructor; pages may have others
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[0].isAssignableFrom(pid.getClass())
+                        && params[1] == byte[].class)
+                    pageConst = c;
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+            if (pageConst == null)
+                throw new IOException("no (PageId, byte[]) constructor in " + pageClassName);
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+            pageArgs[1] = data;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -295,6 +761,247 @@ public class LogFile {
 
     }
 
+    // read the kind and id of a page, as writePageHeader wrote them, into r
+    private void readPageHeader(DataInput in, LogRecord r) throws IOException {
+        r.tag = in.readByte();
+        String idClassName = null;
+        if (r.tag == OTHER_PAGE) {
+            r.pageClassName = in.readUTF();
+            idClassName = in.readUTF();
+        }
+        r.pid = readPageId(in, r.tag, idClassName);
+    }
+
+    // read the id of a page image, after its tag and class names
+    private PageId readPageId(DataInput in, byte tag, String idClassName) throws IOException {
+        if (tag == HEAP_PAGE)
+            return new HeapPageId(in.readInt(), in.readInt());
+        if (tag == BTREE_PAGE)
+            return new BTreePageId(in.readInt(), in.readInt(), in.readInt());
+        if (tag != OTHER_PAGE)
+            throw new IOException("unknown page tag " + tag);
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object idArgs[] = new Object[numIdArgs];
+            for (int i = 0; i<numIdArgs;i++) {
+                idArgs[i] = new Integer(in.readInt());
+            }
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException e){
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            throw new IOException();
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    // skip the specified number of bytes
+    private static void skipFully(DataInput in, int n) throws IOException {
+        for (int left = n; left > 0; ) {
+            int skipped = in.skipBytes(left);
+            if (skipped <= 0)
+                throw new EOFException();
+            left -= skipped;
+        }
+    }
+
+    // a record found by scan(): where it is, and what analysis needs of it
+    private static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        int length;
+        // the page of UPDATE and DELTA records
+        byte tag;
+        String pageClassName;
+        PageId pid;
+
+        boolean isUpdate() {
+            return type == UPDATE_RECORD || type == DELTA_RECORD;
+        }
+    }
+
+    // counts the bytes read through it, to tell where records end
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /** Read the records of the log from the specified LSN on, in one
+        sequential pass that skips over the page images.  Stops at the
+        end of the log, or at a torn record a crash left behind.
+        @return the LSN after the last complete record
+    */
+    private long scan(long from, List<LogRecord> records) throws IOException {
+        LogWriter w = writer;
+        w.writeOut(w.end());
+        long lsn = from;
+        while (true) {
+            long end = scanSegment(lsn, records);
+            long segmentEnd = segments.segmentEnd(lsn);
+            if (end < segmentEnd || !segments.file(segmentEnd).exists())
+                return end;
+            lsn = segmentEnd;
+        }
+    }
+
+    /** scan() the records in the segment of from.
+        @return the LSN after the last complete record, or the end of the
+        segment if the records fill it up to its padding
+    */
+    private long scanSegment(long from, List<LogRecord> records) throws IOException {
+        File file = segments.file(from);
+        if (!file.exists())
+            return from;
+        long segmentEnd = segments.segmentEnd(from);
+        // a segment that was padded or filled was written to its end
+        boolean full = file.length() == segments.getSegmentSize();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            fis.getChannel().position(segments.offset(from));
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(fis, 1 << 16));
+            DataInputStream in = new DataInputStream(counter);
+            long lsn = from;
+            while (true) {
+                if (segmentEnd - lsn < MIN_RECORD_SIZE)
+                    return full ? segmentEnd : lsn;
+                LogRecord r = new LogRecord();
+                r.lsn = lsn;
+                try {
+                    r.type = in.readInt();
+                    if (r.type == PADDING)
+                        return full ? segmentEnd : lsn;
+                    r.tid = in.readLong();
+                    switch (r.type) {
+                    case UPDATE_RECORD:
+                        readPageHeader(in, r);
+                        skipFully(in, in.readInt());
+                        readPageHeader(in, r);
+                        skipFully(in, in.readInt());
+                        break;
+                    case DELTA_RECORD:
+                        readPageHeader(in, r);
+                        for (int n = in.readInt(); n > 0; n--) {
+                            in.readInt();
+                            skipFully(in, 2 * in.readInt());
+                        }
+                        break;
+                    case CHECKPOINT_RECORD:
+                        // the transactions, then the dirty pages
+                        for (int i = 0; i < 2; i++) {
+                            for (int n = in.readInt(); n > 0; n--) {
+                                in.readLong();
+                                in.readLong();
+                            }
+                        }
+                        break;
+                    case ABORT_RECORD:
+                    case COMMIT_RECORD:
+                    case BEGIN_RECORD:
+                        break;
+                    default:
+                        return lsn;
+                    }
+                    if (in.readLong() != lsn)
+                        return lsn;
+                } catch (EOFException e) {
+                    return lsn;
+                } catch (IOException e) {
+                    // garbage where a page id should be
+                    return lsn;
+                }
+                long next = from + counter.count;
+                r.length = (int)(next - lsn);
+                records.add(r);
+                lsn = next;
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    /** Apply the before or after side of the UPDATE or DELTA record r
+        to the page data in image, which must be the page as the record
+        left it or found it, respectively.  An UPDATE record replaces the
+        data, so image may be null for it.  Safe to call from several
+        threads at once.
+        @return the page data
+    */
+    private byte[] apply(LogRecord r, int which, byte[] image) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(r.length);
+        segments.read(buf, r.lsn);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array()));
+        in.readInt();
+        in.readLong();
+        LogRecord header = new LogRecord();
+        readPageHeader(in, header);
+        if (r.type == UPDATE_RECORD) {
+            byte[] before = readBytes(in);
+            if (which == BEFORE_IMAGE)
+                return before;
+            readPageHeader(in, header);
+            return readBytes(in);
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            int offset = in.readInt();
+            int length = in.readInt();
+            if (which == AFTER_IMAGE)
+                skipFully(in, length);
+            in.readFully(image, offset, length);
+            if (which == BEFORE_IMAGE)
+                skipFully(in, length);
+        }
+        return image;
+    }
+
+    // the data of the page of r as it is on disk
+    private static byte[] readPage(LogRecord r) {
+        return Database.getCatalog().getDatabaseFile(r.pid.getTableId()).readPage(r.pid).getPageData();
+    }
+
+    // write page data straight to the file of the page of r
+    private void install(LogRecord r, byte[] image) throws IOException {
+        Database.getCatalog().getDatabaseFile(r.pid.getTableId()).writePage(newPage(r, image));
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -307,150 +1014,103 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        tidToFirstLogRecord.put(tid.getId(), appendRecord());
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN LSN = " + writer.end());
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The checkpoint
+        is fuzzy: it records the running transactions and the dirty page
+        table rather than flushing pages, so it holds up other log appends
+        only while it builds its record.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long cpLsn;
+        synchronized (this) {
+            preAppend();
+            DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            // and the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<Long, Long> e : dirtyPages.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            cpLsn = appendRecord();
+            // the pages' next changes after the checkpoint log them whole
+            imaged.clear();
+        }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+        //once the CP is on disk, make sure the CP location at the
+        // beginning of the log file is updated
+        force(cpLsn);
+        synchronized (this) {
+            raf.seek(0);
+            if (raf.readLong() < cpLsn) {
                 raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+                raf.writeLong(cpLsn);
             }
         }
 
         logTruncate();
     }
 
+    /** Read the checkpoint record at the specified LSN.
+        @param active The set to add the transactions running at the
+        checkpoint to
+        @return the LSN recovery starts from: the oldest of the
+        checkpoint, the first records of the running transactions, and
+        the first unwritten changes of the dirty pages
+    */
+    private long readCheckpoint(long cpLsn, Set<Long> active) throws IOException {
+        RandomAccessFile in = seek(cpLsn);
+        if (in.readInt() != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        in.readLong();
+        long start = cpLsn;
+        for (int n = in.readInt(); n > 0; n--) {
+            active.add(in.readLong());
+            start = Math.min(start, in.readLong());
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            in.readLong();
+            start = Math.min(start, in.readLong());
+        }
+        return start;
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Records are addressed by LSN, so this only deletes
+        the segments before the oldest record recovery needs. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
         raf.seek(0);
         long cpLoc = raf.readLong();
 
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            // every record may still be needed
+            return;
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        long minLogRecord = readCheckpoint(cpLoc, new HashSet<Long>());
+        if (minLogRecord <= firstLsn)
+            return;
+
+        // the header must not point into a segment that is gone
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord);
+        raf.seek(LONG_SIZE);
+        raf.writeLong(minLogRecord);
+        raf.getChannel().force(true);
+        firstLsn = minLogRecord;
+        segments.deleteBefore(minLogRecord);
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -464,13 +1124,66 @@ public class LogFile {
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitWrites();
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("no live transaction " + tid.getId());
+                List<LogRecord> records = new ArrayList<LogRecord>();
+                scan(first, records);
+                Map<Long, List<LogRecord>> updates = new LinkedHashMap<Long, List<LogRecord>>();
+                for (LogRecord r : records) {
+                    if (r.isUpdate() && r.tid == tid.getId())
+                        updatesOf(updates, r).add(r);
+                }
+
+                // the pages are as the last records of tid left them, in
+                // the BufferPool if they were not written since, else on
+                // disk; undo the records newest first, and log the undo
+                // itself, so that replaying the log repeats it
+                Map<LogRecord, byte[]> restored = new LinkedHashMap<LogRecord, byte[]>();
+                for (List<LogRecord> page : updates.values()) {
+                    LogRecord last = page.get(page.size() - 1);
+                    Page resident = Database.getBufferPool().loggedPage(last.pid);
+                    byte[] current = resident != null ? resident.getPageData() : readPage(last);
+                    byte[] image = current.clone();
+                    for (int i = page.size() - 1; i >= 0; i--)
+                        image = apply(page.get(i), BEFORE_IMAGE, image);
+                    appendUpdate(tid.getId(), last.tag, last.pageClassName, last.pid, current, image);
+                    restored.put(last, image);
+                }
+                force();
+                for (Map.Entry<LogRecord, byte[]> e : restored.entrySet()) {
+                    install(e.getKey(), e.getValue());
+                    pageWritten(e.getKey().pid);
+                }
+                for (List<LogRecord> page : updates.values())
+                    discardPages(page);
             }
         }
     }
 
+    // the list of the updates to the page of r in updates, by slot()
+    private static List<LogRecord> updatesOf(Map<Long, List<LogRecord>> updates, LogRecord r) {
+        List<LogRecord> page = updates.get(slot(r.pid));
+        if (page == null) {
+            page = new ArrayList<LogRecord>();
+            updates.put(slot(r.pid), page);
+        }
+        return page;
+    }
+
+    // drop the pages of the records, which may be different kinds of page
+    // in the same place, from the BufferPool
+    private static void discardPages(List<LogRecord> records) {
+        Set<PageId> pids = new HashSet<PageId>();
+        for (LogRecord r : records) {
+            if (pids.add(r.pid))
+                Database.getBufferPool().discardPage(r.pid);
+        }
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
@@ -478,7 +1191,9 @@ public class LogFile {
     public synchronized void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+            closed = true;
             raf.close();
+            segments.close();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -491,20 +1206,156 @@ public class LogFile {
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
+            Database.getBufferPool().awaitWrites();
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
+                if (raf.length() < HEADER_SIZE)
+                    return;
+
+                // analysis: the transactions active at the checkpoint, and
+                // from the oldest of their records on, which transactions
+                // ended and which records updated each page
+                raf.seek(0);
+                long cpLsn = raf.readLong();
+                long start = firstLsn;
+                Set<Long> losers = new HashSet<Long>();
+                if (cpLsn != NO_CHECKPOINT_ID)
+                    start = readCheckpoint(cpLsn, losers);
+                List<LogRecord> records = new ArrayList<LogRecord>();
+                long end = scan(start, records);
+                Set<Long> ended = new HashSet<Long>();
+                final Map<Long, List<LogRecord>> updates = new HashMap<Long, List<LogRecord>>();
+                for (LogRecord r : records) {
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        losers.add(r.tid);
+                        break;
+                    case ABORT_RECORD:
+                        // rolled back, with the undo logged
+                    case COMMIT_RECORD:
+                        losers.remove(r.tid);
+                        ended.add(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                        updatesOf(updates, r).add(r);
+                        if (!ended.contains(r.tid))
+                            losers.add(r.tid);
+                        break;
+                    }
+                }
+
+                // redo: repeat history on every page, from its last whole
+                // image in the log, or from the page on disk if there is
+                // none; a range of bytes ends up as the last record that
+                // changed it left it, as ranges hold absolute contents
+                final Map<Long, byte[]> images = new ConcurrentHashMap<Long, byte[]>();
+                parallel(updates.keySet(), new SlotTask() {
+                    public void run(Long slot) throws IOException {
+                        List<LogRecord> page = updates.get(slot);
+                        int from = page.size() - 1;
+                        while (from > 0 && page.get(from).type != UPDATE_RECORD)
+                            from--;
+                        byte[] image = page.get(from).type == UPDATE_RECORD ? null : readPage(page.get(from));
+                        for (int i = from; i < page.size(); i++)
+                            image = apply(page.get(i), AFTER_IMAGE, image);
+                        images.put(slot, image);
+                    }
+                });
+
+                // drop a torn tail, so that the log can be appended to
+                segments.truncate(end);
+                openWriter();
+                tidToFirstLogRecord.clear();
+                imaged.clear();
+
+                // undo: a loser holds the pages it updated locked, so its
+                // records are the last ones of those pages; undo them
+                // newest first, log the undo, and end the losers
+                for (List<LogRecord> page : updates.values()) {
+                    LogRecord last = page.get(page.size() - 1);
+                    if (!losers.contains(last.tid))
+                        continue;
+                    byte[] current = images.get(slot(last.pid));
+                    byte[] image = current.clone();
+                    for (int i = page.size() - 1; i >= 0 && page.get(i).tid == last.tid; i--)
+                        image = apply(page.get(i), BEFORE_IMAGE, image);
+                    appendUpdate(last.tid, last.tag, last.pageClassName, last.pid, current, image);
+                    images.put(slot(last.pid), image);
+                }
+                for (Long tid : losers) {
+                    beginRecord(ABORT_RECORD, tid);
+                    appendRecord();
+                }
+                force();
+
+                parallel(updates.keySet(), new SlotTask() {
+                    public void run(Long slot) throws IOException {
+                        List<LogRecord> page = updates.get(slot);
+                        install(page.get(page.size() - 1), images.get(slot));
+                    }
+                });
+                for (List<LogRecord> page : updates.values())
+                    discardPages(page);
+                dirtyPages.clear();
             }
          }
     }
 
+    /** Number of threads that redo and install pages during recovery */
+    public static final int RECOVERY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // work on the page in one place of a file
+    private interface SlotTask {
+        void run(Long slot) throws IOException;
+    }
+
+    /** Run task on each of the specified slots, on RECOVERY_THREADS
+        threads.  The slots are split among the threads, so every page
+        has one writer.
+    */
+    private void parallel(Collection<Long> slots, final SlotTask task) throws IOException {
+        if (slots.isEmpty())
+            return;
+        int nthreads = Math.min(RECOVERY_THREADS, slots.size());
+        final List<List<Long>> parts = new ArrayList<List<Long>>();
+        for (int i = 0; i < nthreads; i++)
+            parts.add(new ArrayList<Long>());
+        for (Long slot : slots)
+            parts.get((slot.hashCode() & Integer.MAX_VALUE) % nthreads).add(slot);
+        ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (final List<Long> part : parts) {
+                done.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (Long slot : part)
+                            task.run(slot);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    throw new IOException("recovery failed", e.getCause());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted during recovery");
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        markDurable(writer.force());
     }
 
 }
@@ -0,0 +1,171 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * LogSegments keeps the bytes of the log in segment files of a fixed size.
+ * The byte with LSN x is in segment x / segmentSize, at offset
+ * x % segmentSize, and segment n is the file named like the log file with
+ * "." and n appended.  Records never span segments, so the log is
+ * truncated by deleting the segments before the oldest record still needed.
+ */
+class LogSegments {
+    private final File base;
+    private final long segmentSize;
+    // the segment files opened so far, by number; protected by this
+    private final TreeMap<Long, RandomAccessFile> open = new TreeMap<Long, RandomAccessFile>();
+    // the segments written to since they were last forced; protected by this
+    private final Set<Long> unforced = new HashSet<Long>();
+
+    /**
+     * @param base the log file, which names the segments
+     * @param segmentSize the size of a segment, in bytes
+     */
+    LogSegments(File base, long segmentSize) {
+        this.base = base;
+        this.segmentSize = segmentSize;
+    }
+
+    long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** @return the LSN after the last byte the segment of lsn can hold */
+    long segmentEnd(long lsn) {
+        return (lsn / segmentSize + 1) * segmentSize;
+    }
+
+    /** @return the file of the segment that holds lsn */
+    File file(long lsn) {
+        return segmentFile(lsn / segmentSize);
+    }
+
+    private File segmentFile(long n) {
+        return new File(base.getPath() + "." + n);
+    }
+
+    long offset(long lsn) {
+        return lsn % segmentSize;
+    }
+
+    /** @return the segment file that holds lsn, created if there is none */
+    synchronized RandomAccessFile open(long lsn) throws IOException {
+        long n = lsn / segmentSize;
+        RandomAccessFile f = open.get(n);
+        if (f == null) {
+            f = new RandomAccessFile(file(lsn), "rw");
+            open.put(n, f);
+        }
+        return f;
+    }
+
+    /** Write src at lsn; its bytes must all belong to the segment of lsn. */
+    void write(ByteBuffer src, long lsn) throws IOException {
+        FileChannel channel = open(lsn).getChannel();
+        long pos = offset(lsn);
+        while (src.hasRemaining())
+            pos += channel.write(src, pos);
+        synchronized (this) {
+            unforced.add(lsn / segmentSize);
+        }
+    }
+
+    /** Fill dst from lsn on, which must be in the segment of lsn. */
+    void read(ByteBuffer dst, long lsn) throws IOException {
+        FileChannel channel = open(lsn).getChannel();
+        long pos = offset(lsn);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, pos);
+            if (n < 0)
+                throw new EOFException();
+            pos += n;
+        }
+    }
+
+    /** Force the segments written to since the last force to disk. */
+    void force() throws IOException {
+        List<FileChannel> channels = new ArrayList<FileChannel>();
+        synchronized (this) {
+            for (Long n : unforced)
+                channels.add(open.get(n).getChannel());
+            unforced.clear();
+        }
+        for (FileChannel c : channels)
+            c.force(true);
+    }
+
+    /** @return the LSN after the last byte in the segment files, or
+        from if there are none from the segment of from on */
+    long end(long from) {
+        long end = from;
+        for (long n : numbers()) {
+            if (n >= from / segmentSize)
+                end = Math.max(end, n * segmentSize + segmentFile(n).length());
+        }
+        return end;
+    }
+
+    /** Delete the segments that hold only bytes before lsn. */
+    synchronized void deleteBefore(long lsn) throws IOException {
+        for (long n : numbers()) {
+            if (n < lsn / segmentSize)
+                delete(n);
+        }
+    }
+
+    /** Drop the bytes from lsn on. */
+    synchronized void truncate(long lsn) throws IOException {
+        for (long n : numbers()) {
+            if (n > lsn / segmentSize)
+                delete(n);
+        }
+        File f = file(lsn);
+        if (f.exists())
+            open(lsn).setLength(offset(lsn));
+    }
+
+    /** Delete every segment. */
+    synchronized void deleteAll() throws IOException {
+        for (long n : numbers())
+            delete(n);
+    }
+
+    synchronized void close() throws IOException {
+        for (RandomAccessFile f : open.values())
+            f.close();
+        open.clear();
+        unforced.clear();
+    }
+
+    private void delete(long n) throws IOException {
+        RandomAccessFile f = open.remove(n);
+        if (f != null)
+            f.close();
+        unforced.remove(n);
+        segmentFile(n).delete();
+    }
+
+    // the numbers of the segment files there are, in order
+    private List<Long> numbers() {
+        List<Long> numbers = new ArrayList<Long>();
+        File dir = base.getAbsoluteFile().getParentFile();
+        String prefix = base.getName() + ".";
+        String[] names = dir.list();
+        if (names == null)
+            return numbers;
+        for (String name : names) {
+            if (!name.startsWith(prefix))
+                continue;
+            try {
+                numbers.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+}
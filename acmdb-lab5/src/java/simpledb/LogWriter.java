@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * LogWriter appends records to the end of the log through an in-memory ring
+ * buffer.  Every byte of the log has a log sequence number (LSN); LSNs only
+ * grow, and the segments map them to places in files.
+ * <p>
+ * Appending copies a record into the ring and returns its LSN; the bytes are
+ * written behind, in order and in as few writes as the ring and the segment
+ * boundaries allow, when someone asks for them with {@link #writeOut} or
+ * {@link #force}, or when the ring runs full.  A record larger than the ring
+ * is written directly.
+ * <p>
+ * Appends must be serialized by the caller; writing out and forcing may run
+ * concurrently with them, from any thread.
+ */
+class LogWriter {
+    /** Default size of the ring buffer, in bytes */
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final LogSegments segments;
+    private final ByteBuffer ring;
+    private final int capacity;
+
+    // serializes writes to the segments, so they happen in LSN order
+    private final Object writeLock = new Object();
+    private long end; // LSN after the last appended byte; protected by this
+    private long written; // LSN up to which the bytes are in the segments; protected by this
+
+    /**
+     * @param segments the files of the log
+     * @param end the LSN after the last byte in the segments
+     * @param capacity the size of the ring buffer, in bytes
+     */
+    LogWriter(LogSegments segments, long end, int capacity) {
+        this.segments = segments;
+        this.end = end;
+        this.written = end;
+        this.capacity = capacity;
+        this.ring = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** @return the LSN the next record will get */
+    synchronized long end() {
+        return end;
+    }
+
+    /**
+     * Append a record.  Callers must not append concurrently.
+     *
+     * @return the LSN of the first byte of the record
+     */
+    long append(byte[] b, int off, int len) throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = end;
+        }
+        if (len > capacity) {
+            synchronized (writeLock) {
+                writeOut(lsn);
+                for (int done = 0; done < len; ) {
+                    int n = (int)Math.min(len - done, segments.segmentEnd(lsn + done) - (lsn + done));
+                    segments.write(ByteBuffer.wrap(b, off + done, n), lsn + done);
+                    done += n;
+                }
+                synchronized (this) {
+                    end = lsn + len;
+                    written = end;
+                }
+            }
+            return lsn;
+        }
+        boolean full;
+        synchronized (this) {
+            full = lsn + len - written > capacity;
+        }
+        if (full)
+            writeOut(lsn);
+        // the bytes from end on are free: writers only read below end
+        int at = (int)(lsn % capacity);
+        int first = Math.min(len, capacity - at);
+        ByteBuffer dst = ring.duplicate();
+        dst.position(at);
+        dst.put(b, off, first);
+        if (first < len) {
+            dst.position(0);
+            dst.put(b, off + first, len - first);
+        }
+        synchronized (this) {
+            end = lsn + len;
+        }
+        return lsn;
+    }
+
+    /**
+     * Write the buffered bytes up to at least the specified LSN to the file,
+     * without forcing them to disk.
+     */
+    void writeOut(long lsn) throws IOException {
+        synchronized (writeLock) {
+            long from, to;
+            synchronized (this) {
+                from = written;
+                to = end;
+            }
+            if (lsn <= from || to <= from)
+                return;
+            // one write, or more where the buffered bytes wrap around the
+            // ring or cross into another segment
+            while (from < to) {
+                int at = (int)(from % capacity);
+                int n = (int)Math.min(Math.min(to - from, capacity - at), segments.segmentEnd(from) - from);
+                ByteBuffer src = ring.duplicate();
+                src.limit(at + n);
+                src.position(at);
+                segments.write(src, from);
+                from += n;
+            }
+            synchronized (this) {
+                written = to;
+            }
+        }
+    }
+
+    /**
+     * Write out and force everything appended so far.
+     *
+     * @return the LSN up to which the log is now on disk
+     */
+    long force() throws IOException {
+        long lsn = end();
+        writeOut(lsn);
+        segments.force();
+        return lsn;
+    }
+}
@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the join looks up the t2 tuples matching each t1 tuple in a
+     * B+ tree of t2 keyed on f2 (see {@link IndexNestedLoopJoin}). */
+    public boolean indexLookup;
+
     public LogicalJoinNode() {
     }
 
@@ -33,6 +33,40 @@ public abstract class Operator implements DbIterator {
         return result;
     }
 
+    public TupleBatch nextBatch(int maxTuples) throws DbException,
+            TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        if (next == null)
+            return fetchNextBatch(maxTuples);
+        // the tuple fetched ahead by hasNext comes first
+        TupleBatch batch = new TupleBatch(next.getTupleDesc(), maxTuples);
+        batch.addTuple(next);
+        next = null;
+        Tuple t;
+        while (!batch.isFull() && (t = fetchNext()) != null)
+            batch.addTuple(t);
+        return batch;
+    }
+
+    /**
+     * Returns the next tuples in the iterator as a batch, or null if the
+     * iteration is finished. Operator uses this method to implement
+     * <code>nextBatch</code>; by default it calls <code>fetchNext</code> for
+     * each tuple, and operators that process batches natively override it.
+     */
+    protected TupleBatch fetchNextBatch(int maxTuples) throws DbException,
+            TransactionAbortedException {
+        TupleBatch batch = null;
+        Tuple t;
+        while ((batch == null || !batch.isFull()) && (t = fetchNext()) != null) {
+            if (batch == null)
+                batch = new TupleBatch(t.getTupleDesc(), maxTuples);
+            batch.addTuple(t);
+        }
+        return batch;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -54,6 +88,15 @@ public abstract class Operator implements DbIterator {
         this.open = false;
     }
 
+    /**
+     * Rewinds this iterator, dropping any tuple fetched ahead by
+     * <code>hasNext</code>. Subclasses should call super.rewind() before
+     * rewinding their own state and children.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        next = null;
+    }
+
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
@@ -70,6 +70,7 @@ public class OrderBy extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         it = childTups.iterator();
     }
 
@@ -0,0 +1,291 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageIO is the page-I/O layer shared by the DbFile implementations.  There
+ * is one PageIO per table file, holding a single long-lived FileChannel that
+ * all reads and writes of the file go through, so a page miss costs one
+ * positional read instead of an open, a seek, a read and a close.
+ * <p>
+ * Read-mostly files can additionally be memory mapped; reads are then served
+ * by copying out of the mapping.  Writes always go through the channel, and
+ * the mapping is refreshed when the file grows past it.
+ * <p>
+ * A thread about to read a run of consecutive pages can {@link #stage} the
+ * run: it is fetched with one large read, and the thread's reads that fall
+ * inside it are served from memory until {@link #unstage}.
+ * <p>
+ * The channel is opened on first use.  {@link #closeAll} closes every open
+ * channel; a PageIO that is used again afterwards simply reopens its file.
+ *
+ * @Threadsafe
+ */
+public class PageIO {
+
+    private static final ConcurrentHashMap<File, PageIO> files = new ConcurrentHashMap<File, PageIO>();
+
+    /** A run of a file read ahead of time for the reads of one thread */
+    private static class Staged {
+        PageIO io;
+        long offset;
+        int valid;      // bytes of the run that were in the file
+        ByteBuffer data;
+    }
+
+    private static final ThreadLocal<Staged> staged = new ThreadLocal<Staged>() {
+        @Override
+        protected Staged initialValue() {
+            return new Staged();
+        }
+    };
+
+    private final File f;
+    private volatile FileChannel channel;
+    private volatile boolean mapped;
+    private volatile MappedByteBuffer mapping;
+
+    private PageIO(File f) {
+        this.f = f;
+    }
+
+    /**
+     * Return the PageIO of the specified file.  All callers asking for the
+     * same file share one PageIO, and therefore one channel.
+     */
+    public static PageIO forFile(File f) {
+        File key = f.getAbsoluteFile();
+        PageIO io = files.get(key);
+        if (io == null) {
+            PageIO created = new PageIO(key);
+            io = files.putIfAbsent(key, created);
+            if (io == null)
+                io = created;
+        }
+        return io;
+    }
+
+    /** Close the channels of all files. */
+    public static void closeAll() {
+        for (PageIO io : files.values())
+            io.close();
+    }
+
+    /** @return the file this PageIO reads and writes */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * Turn memory mapped reads on or off.  Mapping pays off for tables that
+     * are scanned often and rarely written.
+     */
+    public synchronized void setMapped(boolean mapped) {
+        this.mapped = mapped;
+        this.mapping = null;
+    }
+
+    /** @return true if reads are served from a memory mapping of the file */
+    public boolean isMapped() {
+        return mapped;
+    }
+
+    /** Close the channel of this file; it is reopened on the next use. */
+    public synchronized void close() {
+        mapping = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing was buffered, there is nothing to lose
+            }
+            channel = null;
+        }
+    }
+
+    private synchronized FileChannel open() throws IOException {
+        FileChannel c = channel;
+        if (c == null || !c.isOpen()) {
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(f, "rw");
+            } catch (FileNotFoundException e) {
+                // read-only file
+                raf = new RandomAccessFile(f, "r");
+            }
+            c = raf.getChannel();
+            channel = c;
+            mapping = null;
+        }
+        return c;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c != null && c.isOpen())
+            return c;
+        return open();
+    }
+
+    /** @return the current size of the file in bytes */
+    public long size() throws IOException {
+        while (true) {
+            try {
+                return channel().size();
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed under us by closeAll(), reopen and retry
+            }
+        }
+    }
+
+    /**
+     * Fill buf, from its position to its limit, with the bytes of the file
+     * starting at the specified offset.  The part of buf that lies past the
+     * end of the file is zero filled.
+     *
+     * @return the number of bytes actually read from the file
+     */
+    public int read(long offset, ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        int fromStage = readStaged(offset, buf);
+        if (fromStage >= 0)
+            return fromStage;
+        while (true) {
+            try {
+                if (mapped && readMapped(offset, buf))
+                    return buf.position() - start;
+                FileChannel c = channel();
+                while (buf.hasRemaining()) {
+                    if (c.read(buf, offset + buf.position() - start) < 0)
+                        break;
+                }
+                int n = buf.position() - start;
+                while (buf.hasRemaining())
+                    buf.put((byte)0);
+                return n;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed under us by closeAll(), reopen and retry
+                buf.position(start);
+            }
+        }
+    }
+
+    /**
+     * Read the specified range of the file with one read and keep it for the
+     * calling thread, replacing whatever it had staged before.
+     */
+    public void stage(long offset, int length) throws IOException {
+        Staged s = staged.get();
+        s.io = null;
+        if (s.data == null || s.data.capacity() < length)
+            s.data = ByteBuffer.allocateDirect(length);
+        s.data.clear();
+        s.data.limit(length);
+        s.valid = read(offset, s.data);
+        s.offset = offset;
+        s.io = this;
+    }
+
+    /** Drop the range staged by the calling thread. */
+    public static void unstage() {
+        staged.get().io = null;
+    }
+
+    /**
+     * Copy a range of the file out of the calling thread's staged run.
+     *
+     * @return the number of bytes of the range that were in the file, or -1
+     *         if the range is not entirely staged
+     */
+    private int readStaged(long offset, ByteBuffer buf) {
+        Staged s = staged.get();
+        if (s.io != this || offset < s.offset
+                || offset + buf.remaining() > s.offset + s.data.limit())
+            return -1;
+        int from = (int)(offset - s.offset);
+        int valid = Math.max(0, Math.min(buf.remaining(), s.valid - from));
+        ByteBuffer src = s.data.duplicate();
+        src.limit(from + buf.remaining());
+        src.position(from);
+        buf.put(src);
+        return valid;
+    }
+
+    /**
+     * Copy a range of the file out of the mapping, remapping if the file grew
+     * since it was mapped.
+     *
+     * @return false if the range cannot be served from a mapping
+     */
+    private boolean readMapped(long offset, ByteBuffer buf) throws IOException {
+        long end = offset + buf.remaining();
+        MappedByteBuffer m = mapping;
+        if (m == null || end > m.capacity()) {
+            synchronized (this) {
+                m = mapping;
+                if (m == null || end > m.capacity()) {
+                    long size = channel().size();
+                    if (end > size || size > Integer.MAX_VALUE)
+                        return false;
+                    m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    mapping = m;
+                }
+            }
+        }
+        ByteBuffer src = m.duplicate();
+        src.limit((int)end);
+        src.position((int)offset);
+        buf.put(src);
+        return true;
+    }
+
+    /**
+     * Write the bytes of buf, from its position to its limit, to the file
+     * starting at the specified offset.
+     */
+    public void write(long offset, ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        while (true) {
+            try {
+                FileChannel c = channel();
+                while (buf.hasRemaining())
+                    c.write(buf, offset + buf.position() - start);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // closed under us by closeAll(), reopen and retry
+                buf.position(start);
+            }
+        }
+    }
+
+    /** Write data to the file starting at the specified offset. */
+    public void write(long offset, byte[] data) throws IOException {
+        write(offset, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Grow the file to at least size bytes.  Only the last byte is written;
+     * the bytes before it read as zeroes until they are written.
+     */
+    public synchronized void allocate(long size) throws IOException {
+        if (size() < size)
+            write(size - 1, new byte[1]);
+    }
+
+    /** Append data to the end of the file. */
+    public synchronized void append(byte[] data) throws IOException {
+        write(size(), data);
+    }
+}
@@ -0,0 +1,58 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * PageLatches hands out latches on pages: short-term shared or exclusive
+ * locks a thread holds while it reads or changes a page, for a few steps of
+ * one operation.  Unlike the transaction locks of the {@link LockManager},
+ * latches are never held until commit and are not part of the wait-for
+ * graph, so deadlocks among them are avoided by the order they are taken in
+ * (for a B+ tree, from the root down), and a thread must never wait for a
+ * transaction lock while it holds a latch.
+ *
+ * @Threadsafe
+ */
+public class PageLatches {
+    private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> latches =
+            new ConcurrentHashMap<PageId, ReentrantReadWriteLock>();
+
+    private ReentrantReadWriteLock latch(PageId pid) {
+        ReentrantReadWriteLock latch = latches.get(pid);
+        if (latch == null) {
+            ReentrantReadWriteLock created = new ReentrantReadWriteLock();
+            latch = latches.putIfAbsent(pid, created);
+            if (latch == null)
+                latch = created;
+        }
+        return latch;
+    }
+
+    /** Latch a page, blocking until the latch is free. */
+    public void acquire(PageId pid, boolean exclusive) {
+        if (exclusive)
+            latch(pid).writeLock().lock();
+        else
+            latch(pid).readLock().lock();
+    }
+
+    /**
+     * Latch a page only if the latch is free, e.g. to take latches out of
+     * their usual order without risking a deadlock.
+     * @return true if the latch was acquired
+     */
+    public boolean tryAcquire(PageId pid, boolean exclusive) {
+        if (exclusive)
+            return latch(pid).writeLock().tryLock();
+        return latch(pid).readLock().tryLock();
+    }
+
+    /** Release a latch the calling thread holds on a page. */
+    public void release(PageId pid, boolean exclusive) {
+        if (exclusive)
+            latch(pid).writeLock().unlock();
+        else
+            latch(pid).readLock().unlock();
+    }
+}
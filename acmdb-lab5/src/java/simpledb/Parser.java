@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -484,6 +486,79 @@ public class Parser {
                 "Cannot generate logical plan for expression : " + s);
     }
 
+    // CREATE TABLE name AS SELECT * FROM table ORDER BY field, which Zql
+    // does not parse
+    private static final Pattern CREATE_SORTED = Pattern.compile(
+            "\\s*create\\s+table\\s+(\\w+)\\s+as\\s+select\\s+\\*\\s+from\\s+(\\w+)"
+            + "\\s+order\\s+by\\s+(\\w+)\\s*;?\\s*",
+            Pattern.CASE_INSENSITIVE);
+    // how far into a statement to look for CREATE TABLE ... AS
+    private static final int CREATE_SORTED_LENGTH = 1024;
+
+    /**
+     * Read a CREATE TABLE ... AS SELECT * FROM ... ORDER BY statement from
+     * the start of is, if there is one.  Otherwise is is left as it was.
+     *
+     * @return the new table, table and field names, or null
+     */
+    private static String[] readCreateSorted(InputStream is) throws IOException {
+        is.mark(CREATE_SORTED_LENGTH);
+        StringBuilder statement = new StringBuilder();
+        int c;
+        while (statement.length() < CREATE_SORTED_LENGTH - 1 && (c = is.read()) >= 0) {
+            statement.append((char) c);
+            if (c == ';')
+                break;
+        }
+        Matcher m = CREATE_SORTED.matcher(statement);
+        if (m.matches())
+            return new String[] { m.group(1), m.group(2), m.group(3) };
+        is.reset();
+        return null;
+    }
+
+    /**
+     * Copy a table, sorted on a field, into a new B+ tree table keyed on the
+     * field, next to the table's file.  The copy is a snapshot: later changes
+     * to the table do not reach it.
+     */
+    public void handleCreateSortedCopy(String copyName, String tableName,
+            String fieldName, TransactionId tid) throws DbException,
+            IOException, TransactionAbortedException, simpledb.ParsingException {
+        int tableid;
+        try {
+            tableid = Database.getCatalog().getTableId(tableName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown table " + tableName);
+        }
+        try {
+            Database.getCatalog().getTupleDesc(tableid).fieldNameToIndex(fieldName);
+        } catch (NoSuchElementException e) {
+            throw new simpledb.ParsingException("Unknown field " + fieldName);
+        }
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        File tableFile = table instanceof HeapFile ? ((HeapFile) table).getFile()
+                : table instanceof BTreeFile ? ((BTreeFile) table).getFile() : null;
+        File dir = tableFile == null ? null : tableFile.getAbsoluteFile().getParentFile();
+        File copyFile = new File(dir, copyName + ".dat");
+        // tables are stored as name.dat in the same folder
+        try {
+            Database.getCatalog().getTableId(copyName);
+            throw new simpledb.ParsingException("Table " + copyName + " already exists");
+        } catch (NoSuchElementException e) {
+            // the name is free
+        }
+        if (copyFile.exists())
+            throw new simpledb.ParsingException("File " + copyFile + " already exists");
+        BTreeFile bf = BTreeFileEncoder.createSortedCopy(tid, copyName, tableName,
+                fieldName, copyFile, BTreeFileEncoder.DEFAULT_FILL_FACTOR,
+                BufferPool.DEFAULT_PAGES);
+        TableStats.setTableStats(copyName, new TableStats(bf.getId(),
+                TableStats.IOCOSTPERPAGE));
+        System.out.println("Created table " + copyName + " as a copy of "
+                + tableName + " sorted on " + fieldName);
+    }
+
     public void setTransaction(Transaction t) {
         curtrans = t;
     }
@@ -503,8 +578,11 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            is = new BufferedInputStream(is);
+            String[] createSorted = readCreateSorted(is);
+            ZStatement s = null;
+            if (createSorted == null)
+                s = new ZqlParser(is).readStatement();
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -517,7 +595,10 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (createSorted != null)
+                        handleCreateSortedCopy(createSorted[0], createSorted[1],
+                                createSorted[2], curtrans.getId());
+                    else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -57,6 +57,7 @@ public class Project extends Operator {
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
         child.rewind();
     }
 
@@ -80,6 +81,20 @@ public class Project extends Operator {
         return null;
     }
 
+    /**
+     * Projects a batch of the child's tuples, sharing the columns kept.
+     */
+    protected TupleBatch fetchNextBatch(int maxTuples) throws TransactionAbortedException,
+            DbException {
+        TupleBatch batch = child.nextBatch(maxTuples);
+        if (batch == null)
+            return null;
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = outFieldIds.get(i);
+        return batch.project(fields, td);
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[] { this.child };
@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * ReadAhead detects sequential page access by one scan and prefetches the
+ * pages the scan will visit next into the BufferPool on background threads
+ * (see {@link BufferPool#prefetchPages}), so that a cold scan waits on disk
+ * bandwidth instead of on one page latency after another.
+ * <p>
+ * Each scan owns one ReadAhead and reports every page it moves to.  Once
+ * the scan has moved to the page that follows the previous one, read-ahead
+ * keeps a window of prefetched pages in front of it.  The depth of the
+ * window adapts to the scan: it is sized to cover twice the time a prefetch
+ * takes at the rate the scan has been consuming pages, and is capped at a
+ * quarter of the BufferPool so prefetching cannot flush the pool.  A jump to
+ * a page outside the window resets it.
+ * <p>
+ * Not threadsafe; each scan uses its own instance from a single thread.
+ */
+public class ReadAhead {
+
+    /**
+     * The order in which a scan visits pages.
+     */
+    public interface PageSequence {
+        /**
+         * @param pid a page the scan visits
+         * @param n the maximum number of ids to return
+         * @return the ids of up to n pages the scan visits after pid, in
+         *         order; fewer if the rest is unknown or the scan ends
+         */
+        public List<PageId> pagesAfter(PageId pid, int n)
+                throws DbException, TransactionAbortedException;
+    }
+
+    /** Smallest number of pages prefetched ahead of a sequential scan */
+    public static final int MIN_DEPTH = 4;
+    /** Largest number of pages prefetched ahead of a sequential scan */
+    public static final int MAX_DEPTH = 64;
+
+    private static final int THREADS = 2;
+    // weight of a new sample in the moving averages
+    private static final double ALPHA = 0.25;
+
+    private static volatile boolean enabled = true;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private final PageSequence sequence;
+    // prefetched pages the scan has not reached yet, in scan order
+    private final LinkedList<PageId> window = new LinkedList<PageId>();
+    private PageId last;
+    private PageId expected;
+    private boolean sequential;
+    private int depth = MIN_DEPTH;
+    private long lastVisit;
+    // moving averages, in nanoseconds
+    private double interval;
+    private volatile double latency;
+
+    /**
+     * @param sequence the order in which the scan visits pages
+     */
+    public ReadAhead(PageSequence sequence) {
+        this.sequence = sequence;
+    }
+
+    /** Turn read-ahead on or off for all scans, e.g. to compare the two. */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /** @return true if scans read ahead */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** @return the current depth of the prefetch window, in pages */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Report that the scan moved to the specified page.  Issues prefetches
+     * if the scan is sequential and the window in front of it ran low.
+     */
+    public void visit(PageId pid) throws DbException, TransactionAbortedException {
+        if (!enabled || pid.equals(last))
+            return;
+        long now = System.nanoTime();
+        int ahead = window.indexOf(pid);
+        if (ahead >= 0) {
+            for (int i = 0; i <= ahead; i++)
+                window.removeFirst();
+        } else {
+            window.clear();
+        }
+        if (ahead >= 0 || pid.equals(expected)) {
+            double gap = now - lastVisit;
+            interval = sequential ? interval + ALPHA * (gap - interval) : gap;
+            sequential = true;
+        } else {
+            sequential = false;
+            depth = MIN_DEPTH;
+        }
+        last = pid;
+        lastVisit = now;
+
+        if (!sequential) {
+            List<PageId> next = sequence.pagesAfter(pid, 1);
+            expected = next.isEmpty() ? null : next.get(0);
+            return;
+        }
+        adaptDepth();
+        if (depth > 0 && window.size() <= depth / 2) {
+            PageId from = window.isEmpty() ? pid : window.getLast();
+            List<PageId> next = sequence.pagesAfter(from, depth - window.size());
+            if (!next.isEmpty()) {
+                window.addAll(next);
+                prefetch(next);
+            }
+        }
+        expected = null;
+        if (window.isEmpty()) {
+            List<PageId> next = sequence.pagesAfter(pid, 1);
+            expected = next.isEmpty() ? null : next.get(0);
+        }
+    }
+
+    /**
+     * Size the window to cover twice the prefetch latency at the rate the
+     * scan consumes pages.
+     */
+    private void adaptDepth() {
+        int max = Math.min(MAX_DEPTH, Database.getBufferPool().getNumPages() / 4);
+        if (max < MIN_DEPTH) {
+            // the pool is too small to hold pages ahead of the scan
+            depth = 0;
+            return;
+        }
+        if (latency > 0 && interval > 0)
+            depth = (int)Math.ceil(2 * latency / interval);
+        depth = Math.max(MIN_DEPTH, Math.min(max, depth));
+    }
+
+    private void prefetch(final List<PageId> pids) {
+        final BufferPool pool = Database.getBufferPool();
+        final long issued = System.nanoTime();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    pool.prefetchPages(pids);
+                } catch (RuntimeException e) {
+                    // e.g. the table was dropped; the scan reads what it needs
+                    return;
+                }
+                // time from issuing the batch until all of it landed
+                double sample = System.nanoTime() - issued;
+                latency = latency == 0 ? sample : latency + ALPHA * (sample - latency);
+            }
+        });
+    }
+}
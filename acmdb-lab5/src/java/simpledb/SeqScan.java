@@ -48,6 +48,16 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(this.tableid);
     }
 
+    /** @return the id of the table the operator scans */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /** @return the transaction the scan runs as a part of */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -126,6 +136,20 @@ public class SeqScan implements DbIterator {
         return heapiterator.next();
     }
 
+    /**
+     * Has the file iterator add the next tuples of the table to a batch; a
+     * HeapFile decodes its pages straight into the columns of the batch,
+     * without making a Tuple of each row.
+     */
+    public TupleBatch nextBatch(int maxTuples) throws TransactionAbortedException,
+            DbException {
+        if (!hasNext())
+            return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc(), maxTuples);
+        heapiterator.nextBatch(batch);
+        return batch;
+    }
+
     public void close() {
         // some code goes here
         heapiterator.close();
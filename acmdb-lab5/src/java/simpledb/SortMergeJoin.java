@@ -0,0 +1,284 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children on their join fields, sorting a child
+ * with an {@link ExternalSort} where the join needs it in order and it is
+ * not already (see {@link #isSorted}).  It supports equality and the
+ * inequality (band) predicates:
+ * <ul>
+ * <li>For =, both children are sorted and merged, holding the inner tuples
+ * with the current join key.
+ * <li>For &gt; and &gt;=, the outer tuples match a prefix of the sorted inner,
+ * and for &lt; and &lt;=, the inner tuples match a prefix of the sorted
+ * outer.  Each tuple of the other, driving, child is matched with that
+ * prefix, read from a budget of tuples kept in memory and, past that, by
+ * rescanning the sorted child.  The driving child is read as it comes, so
+ * only the child holding the prefixes is sorted.
+ * </ul>
+ * The output is in order of both join fields for =, and for the
+ * inequalities in the order of the driving child, whatever it was.
+ */
+public class SortMergeJoin extends JoinOperator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The pages of tuples the join and its sorts hold in memory by default. */
+    public static final int DEFAULT_MEMORY_PAGES = 64;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private final TupleDesc merge;
+    private final int memoryPages;
+    private final boolean driveLeft; // for the inequalities, whether child1 drives
+    private DbIterator input1; // child1, sorted unless it drives
+    private DbIterator input2; // child2, sorted unless it drives
+
+    // for =: the inner tuples with the key of the current outer tuple, and the
+    // first inner tuple past them
+    private Tuple outer;
+    private Field groupKey;
+    private ArrayList<Tuple> group = new ArrayList<Tuple>();
+    private int pos;
+    private Tuple lookahead;
+
+    // for the inequalities: the tuple driving the join, the child whose
+    // prefix it matches, the start of that prefix kept in memory, and how far
+    // into the prefix the driving tuple is
+    private DbIterator scanned;
+    private Tuple driver;
+    private ArrayList<Tuple> head = new ArrayList<Tuple>();
+    private boolean headComplete;
+    private int headTuples;
+    private int scannedPos; // the next tuple of scanned, once past the head
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor with a memory budget.
+     *
+     * @param memoryPages
+     *            the pages of tuples each sort, and the prefix kept for an
+     *            inequality, may hold
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
+        switch (p.getOperator()) {
+        case EQUALS:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+            break;
+        default:
+            throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+        }
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("a sort-merge join needs at least 3 pages");
+        this.p = p;
+        this.merge = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.memoryPages = memoryPages;
+        this.driveLeft = p.getOperator() == Predicate.Op.GREATER_THAN
+                || p.getOperator() == Predicate.Op.GREATER_THAN_OR_EQ;
+        setChildren(new DbIterator[] { child1, child2 });
+    }
+
+    /**
+     * @return true if the tuples of an iterator come in ascending order of a
+     *         field: a scan of a B+ tree keyed on it, a sort on it, or a
+     *         filter or sort-merge join of tuples in that order
+     */
+    public static boolean isSorted(DbIterator it, int field) {
+        if (it instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) it).getTableId());
+            return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+        }
+        if (it instanceof Filter)
+            return isSorted(((Filter) it).getChildren()[0], field);
+        if (it instanceof ExternalSort)
+            return ((ExternalSort) it).isASC() && ((ExternalSort) it).getSortField() == field;
+        if (it instanceof OrderBy)
+            return ((OrderBy) it).isASC() && ((OrderBy) it).getOrderByField() == field;
+        if (it instanceof SortMergeJoin)
+            return ((SortMergeJoin) it).sortedOn(field);
+        return false;
+    }
+
+    // whether the output is in ascending order of a field
+    private boolean sortedOn(int field) {
+        int n1 = child1.getTupleDesc().numFields();
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return field == p.getField1() || field == p.getField2() + n1;
+        // the driving child is not sorted, so its order is only kept
+        if (driveLeft)
+            return field < n1 && isSorted(child1, field);
+        return field >= n1 && isSorted(child2, field - n1);
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return merge;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        input1.open();
+        input2.open();
+        super.open();
+        start();
+    }
+
+    public void close() {
+        super.close();
+        input1.close();
+        input2.close();
+        group.clear();
+        head.clear();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        input1.rewind();
+        input2.rewind();
+        start();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        outer = null;
+        groupKey = null;
+        group.clear();
+        pos = 0;
+        driver = null;
+        head.clear();
+        if (p.getOperator() == Predicate.Op.EQUALS) {
+            lookahead = input2.hasNext() ? input2.next() : null;
+            return;
+        }
+        scanned = driveLeft ? input2 : input1;
+        headTuples = HashEquiJoin.memoryTuples(memoryPages, scanned.getTupleDesc().getSize());
+        while (head.size() < headTuples && scanned.hasNext())
+            head.add(scanned.next());
+        headComplete = !scanned.hasNext();
+    }
+
+    protected boolean nextPair(Sink out) throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return nextEqual(out);
+        return nextBand(out);
+    }
+
+    private boolean nextEqual(Sink out) throws TransactionAbortedException, DbException {
+        while (true) {
+            if (outer != null && pos < group.size()) {
+                out.addJoined(outer, group.get(pos++));
+                return true;
+            }
+            if (!input1.hasNext())
+                return false;
+            outer = input1.next();
+            pos = 0;
+            Field key = outer.getField(p.getField1());
+            if (groupKey != null && groupKey.equals(key))
+                continue;
+            group.clear();
+            groupKey = null;
+            while (lookahead != null
+                    && lookahead.getField(p.getField2()).compare(Predicate.Op.LESS_THAN, key))
+                lookahead = input2.hasNext() ? input2.next() : null;
+            if (lookahead == null || !lookahead.getField(p.getField2()).equals(key))
+                continue;
+            groupKey = key;
+            while (lookahead != null && lookahead.getField(p.getField2()).equals(key)) {
+                group.add(lookahead);
+                lookahead = input2.hasNext() ? input2.next() : null;
+            }
+        }
+    }
+
+    private boolean nextBand(Sink out) throws TransactionAbortedException, DbException {
+        DbIterator driving = driveLeft ? input1 : input2;
+        while (true) {
+            if (driver != null) {
+                Tuple t = nextInPrefix();
+                if (t != null) {
+                    if (driveLeft)
+                        out.addJoined(driver, t);
+                    else
+                        out.addJoined(t, driver);
+                    return true;
+                }
+                driver = null;
+            }
+            if (!driving.hasNext())
+                return false;
+            driver = driving.next();
+            scannedPos = 0;
+        }
+    }
+
+    // the next tuple of scanned matching driver, or null past the prefix
+    private Tuple nextInPrefix() throws TransactionAbortedException, DbException {
+        Tuple t;
+        if (scannedPos < head.size()) {
+            t = head.get(scannedPos);
+        } else {
+            if (headComplete)
+                return null;
+            if (scannedPos == head.size()) {
+                // past the head, read the rest of the prefix from the child
+                scanned.rewind();
+                for (int i = 0; i < head.size(); i++)
+                    scanned.next();
+            }
+            if (!scanned.hasNext())
+                return null;
+            t = scanned.next();
+        }
+        Tuple t1 = driveLeft ? driver : t;
+        Tuple t2 = driveLeft ? t : driver;
+        if (!p.filter(t1, t2))
+            return null;
+        scannedPos++;
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child1, child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child1 = children[0];
+        child2 = children[1];
+        boolean equals = p.getOperator() == Predicate.Op.EQUALS;
+        input1 = (!equals && driveLeft) || isSorted(child1, p.getField1()) ? child1
+                : new ExternalSort(p.getField1(), true, child1, memoryPages);
+        input2 = (!equals && !driveLeft) || isSorted(child2, p.getField2()) ? child2
+                : new ExternalSort(p.getField2(), true, child2, memoryPages);
+    }
+}
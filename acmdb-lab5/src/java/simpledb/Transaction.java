@@ -8,16 +8,50 @@ import java.io.*;
  */
 
 public class Transaction {
+    /** How a transaction is kept from seeing the changes of the others. */
+    public enum Mode {
+        /** strict two-phase locking, the default */
+        LOCKING,
+        /** read-only, from a snapshot of the database as of its start and
+            without locks (see {@link BufferPool#beginSnapshot}) */
+        SNAPSHOT,
+        /** reads without locks and keeps its writes private, then checks
+            at commit that no other commit changed what it read (see
+            {@link BufferPool#beginOptimistic}) */
+        OPTIMISTIC
+    }
+
     private final TransactionId tid;
+    private final Mode mode;
     volatile boolean started = false;
 
     public Transaction() {
+        this(Mode.LOCKING);
+    }
+
+    /**
+     * @param readOnly true for a transaction that only reads, from a
+     * snapshot of the database as of its start and without locks
+     */
+    public Transaction(boolean readOnly) {
+        this(readOnly ? Mode.SNAPSHOT : Mode.LOCKING);
+    }
+
+    /** @param mode how the transaction is kept apart from the others */
+    public Transaction(Mode mode) {
         tid = new TransactionId();
+        this.mode = mode;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (mode == Mode.SNAPSHOT) {
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
+        if (mode == Mode.OPTIMISTIC)
+            Database.getBufferPool().beginOptimistic(tid);
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +63,27 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Finish the transaction.  An optimistic transaction is validated
+     * first; if another commit changed what it read, it is aborted and
+     * TransactionAbortedException is thrown.
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && mode == Mode.OPTIMISTIC) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                abort();
+                throw e;
+            } catch (DbException e) {
+                abort();
+                throw new IOException("failed to install the pages of transaction " + tid.getId() + ": " + e.getMessage());
+            }
+        }
         transactionComplete(false);
     }
 
@@ -42,13 +95,19 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && mode == Mode.SNAPSHOT) {
+            // nothing to log or roll back
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //log the changes of this transaction's dirty pages; forcing
+                // the commit record makes them durable, and the pages are
+                // written later
+                Database.getBufferPool().logPages(tid);
                 Database.getLogFile().logCommit(tid);
             }
 
@@ -0,0 +1,258 @@
+package simpledb;
+
+/**
+ * TupleBatch holds a batch of tuples column by column, for operators that
+ * pass many tuples per call (see {@link DbIterator#nextBatch}): an int[] per
+ * integer field and a String[] per string field, and a selection vector of
+ * the rows that are part of the batch.  Operators such as {@link Filter}
+ * drop rows by shrinking the selection instead of copying the columns, and
+ * {@link Project} shares columns with its child's batch.  Joins add the
+ * pairs they find to a batch as its rows.  Rows added from tuples keep the
+ * tuples' RecordIds, so the tuples of a batch of a scan can be deleted.  A
+ * batch belongs to the caller of nextBatch, which may change it.
+ */
+public class TupleBatch implements JoinOperator.Sink {
+
+    /** The tuples batches hold by default. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int[][] ints; // per field, null for string fields
+    private final String[][] strings; // per field, null for int fields
+    private final RecordId[] rids; // per row, null for rows that are not stored
+    private final int capacity;
+    private int rows;
+    private final int[] selection;
+    private int selected;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td
+     *            the TupleDesc of the tuples in the batch
+     * @param capacity
+     *            the most rows the batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("a batch holds at least 1 tuple");
+        this.td = td;
+        this.capacity = capacity;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[capacity];
+            else
+                strings[i] = new String[capacity];
+        }
+        rids = new RecordId[capacity];
+        selection = new int[capacity];
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, String[][] strings, RecordId[] rids,
+            int capacity, int rows, int[] selection, int selected) {
+        this.td = td;
+        this.ints = ints;
+        this.strings = strings;
+        this.rids = rids;
+        this.capacity = capacity;
+        this.rows = rows;
+        this.selection = selection;
+        this.selected = selected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the rows stored, selected or not */
+    public int numRows() {
+        return rows;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return rows == capacity;
+    }
+
+    /** @return the number of selected rows, the tuples of the batch */
+    public int numSelected() {
+        return selected;
+    }
+
+    /** @return true if the batch has no selected rows */
+    public boolean isEmpty() {
+        return selected == 0;
+    }
+
+    /**
+     * @return the selection vector: the selected rows, in order, are its
+     *         first {@link #numSelected} entries
+     */
+    public int[] getSelection() {
+        return selection;
+    }
+
+    /**
+     * Keep only the first n entries of the selection vector, after an
+     * operator has moved the rows it keeps to the front.
+     */
+    public void setNumSelected(int n) {
+        if (n < 0 || n > selected)
+            throw new IllegalArgumentException("cannot select " + n + " of " + selected + " rows");
+        selected = n;
+    }
+
+    /** @return the values of an integer field, indexed by row */
+    public int[] getInts(int field) {
+        if (ints[field] == null)
+            throw new IllegalArgumentException("field " + field + " is not an integer");
+        return ints[field];
+    }
+
+    /** @return the values of a string field, indexed by row */
+    public String[] getStrings(int field) {
+        if (strings[field] == null)
+            throw new IllegalArgumentException("field " + field + " is not a string");
+        return strings[field];
+    }
+
+    private void set(int row, int field, Field f) {
+        if (ints[field] != null)
+            ints[field][row] = ((IntField) f).getValue();
+        else
+            strings[field][row] = ((StringField) f).getValue();
+    }
+
+    // start a new row, selected
+    private int addRow() {
+        if (rows == capacity)
+            throw new IllegalStateException("the batch is full");
+        selection[selected++] = rows;
+        return rows++;
+    }
+
+    /**
+     * Add a selected row for a stored tuple, whose fields the caller sets in
+     * the columns, for access methods that decode pages into a batch.
+     *
+     * @return the new row
+     */
+    int addStoredRow(RecordId rid) {
+        int row = addRow();
+        rids[row] = rid;
+        return row;
+    }
+
+    /** Add a tuple to the batch, with its RecordId, as a new selected row. */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < ints.length; i++)
+            set(row, i, t.getField(i));
+        rids[row] = t.getRecordId();
+    }
+
+    /**
+     * Add the fields of t1 followed by those of t2 as a new selected row,
+     * for a join, without merging them into a tuple.
+     */
+    public void addJoined(Tuple t1, Tuple t2) {
+        int row = addRow();
+        rids[row] = null;
+        int len1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < len1; i++)
+            set(row, i, t1.getField(i));
+        for (int i = len1; i < ints.length; i++)
+            set(row, i, t2.getField(i - len1));
+    }
+
+    /** @return the value of a field of a row */
+    public Field getField(int row, int field) {
+        if (ints[field] != null)
+            return new IntField(ints[field][row]);
+        return new StringField(strings[field][row], Type.STRING_LEN);
+    }
+
+    /** @return the RecordId of a row, or null if the row is not a stored tuple */
+    public RecordId getRecordId(int row) {
+        return rids[row];
+    }
+
+    /**
+     * @return a row as a Tuple, with the row's RecordId, for operators that
+     *         read tuples one at a time
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < ints.length; i++)
+            t.setField(i, getField(row, i));
+        t.setRecordId(rids[row]);
+        return t;
+    }
+
+    /**
+     * Keep the selected rows matching a predicate, comparing integer fields
+     * with an integer operand without making Fields of them.
+     */
+    public void filter(Predicate p) {
+        int field = p.getField();
+        int kept = 0;
+        if (ints[field] != null && p.getOperand() instanceof IntField) {
+            int[] values = ints[field];
+            int v = ((IntField) p.getOperand()).getValue();
+            for (int i = 0; i < selected; i++) {
+                int row = selection[i];
+                if (compare(p.getOp(), values[row], v))
+                    selection[kept++] = row;
+            }
+        } else {
+            for (int i = 0; i < selected; i++) {
+                int row = selection[i];
+                if (getField(row, field).compare(p.getOp(), p.getOperand()))
+                    selection[kept++] = row;
+            }
+        }
+        selected = kept;
+    }
+
+    // as IntField.compare
+    private static boolean compare(Predicate.Op op, int a, int b) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return a == b;
+        case NOT_EQUALS:
+            return a != b;
+        case GREATER_THAN:
+            return a > b;
+        case GREATER_THAN_OR_EQ:
+            return a >= b;
+        case LESS_THAN:
+            return a < b;
+        case LESS_THAN_OR_EQ:
+            return a <= b;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return a batch of some of the fields of this one, sharing its columns,
+     *         RecordIds and selection
+     * @param fields
+     *            the fields to keep, in order
+     * @param td
+     *            the TupleDesc of the kept fields
+     */
+    public TupleBatch project(int[] fields, TupleDesc td) {
+        int[][] pints = new int[fields.length][];
+        String[][] pstrings = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            pints[i] = ints[fields[i]];
+            pstrings[i] = strings[fields[i]];
+        }
+        return new TupleBatch(td, pints, pstrings, rids, capacity, rows, selection, selected);
+    }
+}
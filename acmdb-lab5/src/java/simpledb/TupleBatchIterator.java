@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TupleBatchIterator reads its child a batch at a time with
+ * {@link DbIterator#nextBatch}, and hands out the tuples of each batch one at
+ * a time, so that a plan of operators processing batches can feed an
+ * operator, or a caller, that reads tuples.  Batches pass through unchanged.
+ */
+public class TupleBatchIterator extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private final int batchSize;
+    private TupleBatch batch;
+    private int pos; // the next entry of the batch's selection
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the iterator to read batches of
+     * @param batchSize
+     *            the most tuples to read from the child at a time
+     */
+    public TupleBatchIterator(DbIterator child, int batchSize) {
+        this.child = child;
+        this.batchSize = batchSize;
+    }
+
+    public TupleBatchIterator(DbIterator child) {
+        this(child, TupleBatch.DEFAULT_SIZE);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+        batch = null;
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        super.rewind();
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (batch == null || pos == batch.numSelected()) {
+            batch = child.nextBatch(batchSize);
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.getSelection()[pos++]);
+    }
+
+    protected TupleBatch fetchNextBatch(int maxTuples) throws DbException,
+            TransactionAbortedException {
+        if (batch != null && pos < batch.numSelected())
+            return super.fetchNextBatch(maxTuples);
+        batch = null;
+        return child.nextBatch(maxTuples);
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+}
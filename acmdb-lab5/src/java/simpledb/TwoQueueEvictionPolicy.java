@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Full 2Q replacement (Johnson and Shasha).  A page seen for the first time
+ * enters the A1in FIFO; when it is evicted from there only its id is kept in
+ * the A1out ghost queue.  A page that misses again while its id is in A1out
+ * has proven it is hot and enters the Am LRU queue.  Hits on A1in pages are
+ * ignored, so a large sequential scan only ever cycles through A1in and
+ * cannot flush hot pages out of Am.
+ * <p>
+ * A hit only queues the page id (see AbstractEvictionPolicy.bufferAccess);
+ * Am is reordered when the buffered hits are applied before a victim is
+ * chosen, so the hit path never waits on the policy's monitor.
+ */
+public class TwoQueueEvictionPolicy extends AbstractEvictionPolicy {
+
+    /** Fraction of the pool reserved for A1in. */
+    public static final double IN_FRACTION = 0.25;
+    /** Size of the A1out ghost queue, as a fraction of the pool. */
+    public static final double OUT_FRACTION = 0.5;
+
+    private int maxIn = 1;
+    private int maxOut = 1;
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>(); // protected by this
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>(); // protected by this
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>(); // protected by this
+
+    public synchronized void setCapacity(int numPages) {
+        maxIn = Math.max(1, (int)(numPages * IN_FRACTION));
+        maxOut = Math.max(1, (int)(numPages * OUT_FRACTION));
+    }
+
+    protected void accessed(PageId pid) {
+        bufferAccess(pid);
+    }
+
+    protected void applyAccess(PageId pid) {
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    protected synchronized void added(PageId pid) {
+        if (a1in.contains(pid) || am.contains(pid))
+            return;
+        if (a1out.remove(pid))
+            am.add(pid);
+        else
+            a1in.add(pid);
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        if (a1in.remove(pid)) {
+            a1out.add(pid);
+            if (a1out.size() > maxOut) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } else {
+            am.remove(pid);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Evictable evictable) {
+        drainAccesses();
+        PageId victim = null;
+        if (a1in.size() > maxIn || am.isEmpty())
+            victim = firstEvictable(a1in, evictable);
+        if (victim == null)
+            victim = firstEvictable(am, evictable);
+        if (victim == null)
+            victim = firstEvictable(a1in, evictable);
+        return victim;
+    }
+
+    private static PageId firstEvictable(LinkedHashSet<PageId> queue, Evictable evictable) {
+        for (PageId pid : queue) {
+            if (evictable.canEvict(pid))
+                return pid;
+        }
+        return null;
+    }
+}
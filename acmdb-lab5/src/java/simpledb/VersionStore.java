@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the committed versions of pages that snapshot
+ * transactions may still read.  Every commit gets a timestamp from a
+ * logical clock, and a snapshot transaction sees the database as of the
+ * last commit before it began, without taking any locks.
+ * <p>
+ * A page's versions come from its before images: the first time a running
+ * transaction's changes to a page are logged, the page as it was logged
+ * before (see {@link Page#getBeforeImage}) is kept as the page before the
+ * transaction.  When the transaction commits, that image joins the page's
+ * versions, stamped with the commit timestamp as the time it stopped being
+ * current; when it aborts, the image is dropped.  Versions no snapshot can
+ * read any more are dropped as snapshots end.
+ * <p>
+ * A commit also stamps the pages it changed with its timestamp, so an
+ * optimistic transaction can tell at commit whether a page it read was
+ * changed since (see {@link #stamp} and {@link #committed}).  The stamps
+ * are kept in a fixed table indexed by page hash; pages that share a slot
+ * share a stamp, which costs a needless abort now and then but no memory
+ * per page.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** A committed image of a page, current until a commit timestamp. */
+    private static class Version {
+        final Page page;
+        final long until;
+
+        Version(Page page, long until) {
+            this.page = page;
+            this.until = until;
+        }
+    }
+
+    /** Number of slots of the page stamp table. */
+    private static final int STAMP_SLOTS = 1 << 12;
+
+    private long clock = 0; // the timestamp of the last commit; protected by this
+    // the running snapshots, with the timestamp each reads as of
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<TransactionId, Long>();
+    // the committed versions of each page, oldest first; protected by this
+    private final Map<PageId, List<Version>> versions = new HashMap<PageId, List<Version>>();
+    // the pages as they were before the running transaction that logged
+    // changes to them, and the pages of each such transaction; protected by this
+    private final Map<PageId, Page> before = new HashMap<PageId, Page>();
+    private final Map<TransactionId, List<PageId>> written = new HashMap<TransactionId, List<PageId>>();
+    // the timestamp of the last commit that changed a page, by page hash;
+    // protected by this
+    private final long[] stamps = new long[STAMP_SLOTS];
+
+    /**
+     * Start a snapshot transaction.
+     * @return the timestamp the transaction reads as of
+     */
+    public synchronized long begin(TransactionId tid) {
+        snapshots.put(tid, clock);
+        return clock;
+    }
+
+    /** @return true if tid is a running snapshot transaction */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** End a snapshot transaction, dropping the versions only it could read. */
+    public synchronized void end(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            prune();
+    }
+
+    /**
+     * Note that the changes of a running transaction to a page are about to
+     * be logged.  Must be called before the page's before image is reset.
+     *
+     * @param tid the transaction that changed the page
+     * @param image the page as it was logged before
+     */
+    public synchronized void logged(TransactionId tid, Page image) {
+        PageId pid = image.getId();
+        if (before.containsKey(pid))
+            return;
+        before.put(pid, image);
+        List<PageId> pids = written.get(tid);
+        if (pids == null) {
+            pids = new ArrayList<PageId>();
+            written.put(tid, pids);
+        }
+        pids.add(pid);
+    }
+
+    /**
+     * Commit a transaction: its changes become visible to the snapshots
+     * that begin from now on, and the pages as they were before it become
+     * versions for the snapshots that are running.  The pages it changed
+     * are stamped with its timestamp.
+     */
+    public synchronized void commit(TransactionId tid) {
+        clock++;
+        List<PageId> pids = written.remove(tid);
+        if (pids == null)
+            return;
+        for (PageId pid : pids) {
+            Page image = before.remove(pid);
+            stamps[slot(pid)] = clock;
+            if (snapshots.isEmpty())
+                continue;
+            List<Version> chain = versions.get(pid);
+            if (chain == null) {
+                chain = new ArrayList<Version>();
+                versions.put(pid, chain);
+            }
+            chain.add(new Version(image, clock));
+        }
+    }
+
+    /** Abort a transaction: forget the pages as they were before it. */
+    public synchronized void abort(TransactionId tid) {
+        List<PageId> pids = written.remove(tid);
+        if (pids == null)
+            return;
+        for (PageId pid : pids)
+            before.remove(pid);
+    }
+
+    /**
+     * The version of a page a snapshot transaction reads.
+     *
+     * @param tid the snapshot transaction
+     * @param current the page in the BufferPool
+     * @return the page as of the snapshot; the caller must not change it
+     */
+    public synchronized Page read(TransactionId tid, Page current) {
+        Long ts = snapshots.get(tid);
+        PageId pid = current.getId();
+        List<Version> chain = versions.get(pid);
+        if (chain != null) {
+            for (Version v : chain) {
+                if (v.until > ts)
+                    return v.page;
+            }
+        }
+        Page image = before.get(pid);
+        if (image != null)
+            return image;
+        // no running transaction logged changes to the page, so as it was
+        // last logged it is as the last commit left it
+        return current.getBeforeImage();
+    }
+
+    /**
+     * @return the timestamp of the last commit that changed the page, or of
+     * one that changed a page sharing its slot
+     */
+    public synchronized long stamp(PageId pid) {
+        return stamps[slot(pid)];
+    }
+
+    /**
+     * The page as the last commit left it, as a copy the caller may change.
+     * Callers that need the stamp of the copy must take it while holding
+     * this store's lock, e.g. <code>synchronized (versions) { ... }</code>.
+     *
+     * @param current the page in the BufferPool
+     */
+    public synchronized Page committed(Page current) {
+        Page image = before.get(current.getId());
+        // no running transaction logged changes to the page, so as it was
+        // last logged it is as the last commit left it
+        return (image != null ? image : current).getBeforeImage();
+    }
+
+    /** @return the number of page versions kept */
+    public synchronized int size() {
+        int n = 0;
+        for (List<Version> chain : versions.values())
+            n += chain.size();
+        return n;
+    }
+
+    private static int slot(PageId pid) {
+        return (pid.hashCode() & 0x7fffffff) % STAMP_SLOTS;
+    }
+
+    // drop the versions that were replaced before the oldest snapshot began
+    private void prune() {
+        if (snapshots.isEmpty()) {
+            versions.clear();
+            return;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<List<Version>> it = versions.values().iterator();
+        while (it.hasNext()) {
+            List<Version> chain = it.next();
+            while (!chain.isEmpty() && chain.get(0).until <= oldest)
+                chain.remove(0);
+            if (chain.isEmpty())
+                it.remove();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+
+    private static File copyFile() throws Exception {
+        File f = File.createTempFile("sorted", ".dat");
+        f.deleteOnExit();
+        return f;
+    }
+
+    // build a copy sorted on field c1 of a new table of rows random tuples
+    private static BTreeFile build(int rows, int maxValue, double fillFactor,
+            ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, maxValue, null, tuples, "c");
+        String table = Database.getCatalog().getTableName(hf.getId());
+        Transaction t = new Transaction();
+        t.start();
+        BTreeFile bf = BTreeFileEncoder.createSortedCopy(t.getId(), table + "_c1", table, "c1",
+                copyFile(), fillFactor, 3);
+        t.commit();
+        return bf;
+    }
+
+    // check the tree and that it holds the tuples, in key order
+    private static void check(BTreeFile bf, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        TransactionId tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            expected.add(t.get(1));
+        Collections.sort(expected);
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            keys.add(((IntField) it.next().getField(1)).getValue());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expected, keys);
+    }
+
+    /**
+     * A table many times the sort's memory loads into a valid tree holding
+     * all its tuples in order, which lookups and inserts then use.
+     */
+    @Test public void loadsLargeTable() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = build(100000, 5000, 1.0, tuples);
+        check(bf, tuples);
+
+        int key = tuples.get(0).get(1);
+        int matches = 0;
+        for (ArrayList<Integer> t : tuples)
+            matches += t.get(1) == key ? 1 : 0;
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            assertEquals(key, ((IntField) it.next().getField(1)).getValue());
+            found++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(matches, found);
+
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 1000; i++) {
+            ArrayList<Integer> tuple = new ArrayList<Integer>();
+            tuple.add(i);
+            tuple.add(i * 5);
+            tuples.add(tuple);
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), Utility.getHeapTuple(new int[] { i, i * 5 }));
+        }
+        t.commit();
+        check(bf, tuples);
+    }
+
+    /**
+     * The fill factor sets how full the pages are left; full pages take
+     * as few leaves as the tuples need.
+     */
+    @Test public void fillFactor() throws Exception {
+        int rows = 20000;
+        BTreeFile full = build(rows, 1 << 16, 1.0, new ArrayList<ArrayList<Integer>>());
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile half = build(rows, 1 << 16, 0.5, tuples);
+        check(half, tuples);
+        int perLeaf = (BufferPool.getPageSize() * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) / (8 * 8 + 1);
+        int leaves = (rows + perLeaf - 1) / perLeaf;
+        // the leaves and one root
+        assertEquals(leaves + 1, full.numPages());
+        assertTrue(half.numPages() >= 2 * leaves);
+    }
+
+    /**
+     * An empty table loads into a tree with one empty leaf.
+     */
+    @Test public void loadsEmptyTable() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = build(0, 10, 1.0, tuples);
+        assertEquals(1, bf.numPages());
+        check(bf, tuples);
+    }
+
+    /**
+     * The parser runs CREATE TABLE ... AS SELECT * ... ORDER BY statements,
+     * adding the sorted copy to the catalog.  The copy is a snapshot: later
+     * inserts into the table do not reach it.
+     */
+    @Test public void createSortedCopyStatement() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null, "c");
+        Database.getCatalog().addTable(hf, "bulkload");
+        new Parser().processNextStatement("CREATE TABLE bulkload_c0 AS SELECT * FROM bulkload ORDER BY c0;");
+        int id = Database.getCatalog().getTableId("bulkload_c0");
+        BTreeFile bf = (BTreeFile) Database.getCatalog().getDatabaseFile(id);
+        try {
+            assertEquals(0, bf.keyField());
+            assertEquals(new File(hf.getFile().getAbsoluteFile().getParentFile(), "bulkload_c0.dat"),
+                    bf.getFile());
+            TransactionId tid = new TransactionId();
+            BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+            Tuple t = new Tuple(hf.getTupleDesc());
+            t.setField(0, new IntField(1));
+            t.setField(1, new IntField(2));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+            int n = 0;
+            DbFileIterator it = bf.iterator(tid);
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+                n++;
+            }
+            it.close();
+            assertEquals(2000, n);
+            Database.getBufferPool().transactionComplete(tid);
+        } finally {
+            bf.getFile().delete();
+        }
+    }
+
+    /**
+     * A copy is never written over a table: names and files of tables in
+     * the catalog, and files holding data, are refused.
+     */
+    @Test public void refusesExistingTables() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null, "c");
+        Database.getCatalog().addTable(hf, "bulkload");
+        long length = hf.getFile().length();
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            BTreeFileEncoder.createSortedCopy(t.getId(), "bulkload", "bulkload", "c0", copyFile(), 1.0, 3);
+            fail("replaced a table's name");
+        } catch (DbException e) {
+            // expected
+        }
+        try {
+            BTreeFileEncoder.createSortedCopy(t.getId(), "bulkload_c0", "bulkload", "c0", hf.getFile(), 1.0, 3);
+            fail("replaced a table's file");
+        } catch (DbException e) {
+            // expected
+        }
+        t.commit();
+
+        new Parser().processNextStatement("CREATE TABLE bulkload AS SELECT * FROM bulkload ORDER BY c0;");
+        assertEquals(hf.getId(), Database.getCatalog().getTableId("bulkload"));
+        assertEquals(length, hf.getFile().length());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+    }
+}
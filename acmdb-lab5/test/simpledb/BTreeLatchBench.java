@@ -0,0 +1,53 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+/**
+ * Benchmarks of concurrent BTreeFile operations; run with ant bench.
+ */
+public class BTreeLatchBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: threads inserting random keys, each in its own range, in
+     * short transactions.  Reports the inserts per second with 1, 2 and 4
+     * threads; with splits committed apart from the inserts, no thread waits
+     * for another's commit, and commits share forces of the log.
+     */
+    @Test public void insertThroughput() throws Exception {
+        for (int threads : new int[] { 1, 2, 4 }) {
+            BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+            Database.resetBufferPool(1000);
+            AtomicBoolean done = new AtomicBoolean(false);
+            AtomicInteger committed = new AtomicInteger(0);
+            AtomicInteger aborts = new AtomicInteger(0);
+            long start = System.currentTimeMillis();
+            AtomicBoolean failed = new AtomicBoolean(false);
+            Thread[] workers = BTreeLatchTest.startInserters(bf, threads, 10, true, done, committed, aborts,
+                    failed);
+            Thread.sleep(2000);
+            done.set(true);
+            for (Thread worker : workers)
+                worker.join();
+            long ms = System.currentTimeMillis() - start;
+            System.out.println("B+ tree inserts, " + threads + " thread(s): "
+                    + (committed.get() * 1000L / ms) + " inserts/s, " + aborts.get() + " aborts");
+            assertFalse(failed.get());
+            BTreeLatchTest.check(bf);
+            assertEquals(10000 + committed.get(), BTreeLatchTest.count(bf));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeLatchBench.class);
+    }
+}
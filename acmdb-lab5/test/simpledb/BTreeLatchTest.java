@@ -0,0 +1,340 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+
+    static int count(BTreeFile bf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = bf.iterator(t.getId());
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        t.commit();
+        return n;
+    }
+
+    static void check(BTreeFile bf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        BTreeChecker.checkRep(bf, t.getId(), new HashMap<PageId, Page>(), true);
+        t.commit();
+    }
+
+    /**
+     * Inserts and searches lock the leaves they use, but not the root
+     * pointer or the internal pages they went through.
+     */
+    @Test public void internalPagesNotLocked() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 31000, null, null, 0);
+        BufferPool pool = Database.resetBufferPool(500);
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+
+        // a key whose leaf has room, so the insert changes no internal page
+        Transaction t = new Transaction();
+        t.start();
+        int key = 12345;
+        while (bf.findLeafPage(t.getId(), Permissions.READ_ONLY, new IntField(key)).getNumEmptySlots() == 0)
+            key += 1000;
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        Tuple tup = BTreeUtility.getBTreeTuple(new int[] { key, 1 });
+        pool.insertTuple(t.getId(), bf.getId(), tup);
+        DbFileIterator it = bf.indexIterator(t.getId(), new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        assertTrue(it.hasNext());
+        it.close();
+
+        BTreePageId leafId = (BTreePageId) tup.getRecordId().getPageId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) pool.getUnlockedPage(rootPtrId);
+        assertEquals(BTreePageId.INTERNAL, rootPtr.getRootId().pgcateg());
+        assertTrue(pool.holdsLock(t.getId(), leafId));
+        assertFalse(pool.holdsLock(t.getId(), rootPtrId));
+        assertFalse(pool.holdsLock(t.getId(), rootPtr.getRootId()));
+        t.commit();
+    }
+
+    /**
+     * A split is made by a system transaction that commits on its own: the
+     * inserting transaction locks no internal page, and the split stays
+     * when it aborts.
+     */
+    @Test public void splitOutlivesAbort() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 31000, null, null, 0);
+        BufferPool pool = Database.resetBufferPool(500);
+        BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+
+        // a key whose leaf is full
+        Transaction t = new Transaction();
+        t.start();
+        int key = 12345;
+        while (bf.findLeafPage(t.getId(), Permissions.READ_ONLY, new IntField(key)).getNumEmptySlots() > 0)
+            key += 1000;
+        t.commit();
+        int pages = bf.numPages();
+
+        t = new Transaction();
+        t.start();
+        Tuple tup = BTreeUtility.getBTreeTuple(new int[] { key, 1 });
+        pool.insertTuple(t.getId(), bf.getId(), tup);
+        assertTrue(bf.numPages() > pages);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) pool.getUnlockedPage(rootPtrId);
+        assertTrue(pool.holdsLock(t.getId(), tup.getRecordId().getPageId()));
+        assertFalse(pool.holdsLock(t.getId(), rootPtrId));
+        assertFalse(pool.holdsLock(t.getId(), rootPtr.getRootId()));
+        t.abort();
+
+        check(bf);
+        assertEquals(31000, count(bf));
+        Transaction t2 = new Transaction();
+        t2.start();
+        BTreeLeafPage leaf = bf.findLeafPage(t2.getId(), Permissions.READ_ONLY, new IntField(key));
+        assertTrue(leaf.getNumEmptySlots() > 0);
+        t2.commit();
+    }
+
+    /**
+     * A transaction that splits a leaf it has changed locks the internal
+     * page it changes until it completes, but searches through that page
+     * for keys in other leaves do not wait for it.
+     */
+    @Test public void searchPastUncommittedSplit() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 31000, null, null, 0);
+        final BufferPool pool = Database.resetBufferPool(500);
+
+        // fill a leaf with room until it splits
+        Transaction t = new Transaction();
+        t.start();
+        int k = 12345;
+        while (bf.findLeafPage(t.getId(), Permissions.READ_ONLY, new IntField(k)).getNumEmptySlots() == 0)
+            k += 1000;
+        t.commit();
+        int pages = bf.numPages();
+
+        t = new Transaction();
+        t.start();
+        Tuple tup = null;
+        while (bf.numPages() == pages) {
+            tup = BTreeUtility.getBTreeTuple(new int[] { k, 1 });
+            pool.insertTuple(t.getId(), bf.getId(), tup);
+        }
+        BTreeLeafPage leaf = (BTreeLeafPage) pool.getUnlockedPage(tup.getRecordId().getPageId());
+        BTreePageId parentId = leaf.getParentId();
+        assertTrue(pool.holdsLock(t.getId(), parentId));
+
+        // a key in a leaf under the same parent the split did not change
+        int key = -1;
+        BTreeInternalPage parent = (BTreeInternalPage) pool.getUnlockedPage(parentId);
+        Iterator<BTreeEntry> entries = parent.iterator();
+        while (key < 0 && entries.hasNext()) {
+            BTreePageId child = entries.next().getLeftChild();
+            if (!pool.holdsLock(t.getId(), child))
+                key = ((IntField) ((BTreeLeafPage) pool.getUnlockedPage(child)).iterator().next()
+                        .getField(0)).getValue();
+        }
+        assertTrue(key >= 0);
+
+        final BTreeFile file = bf;
+        final int search = key;
+        final AtomicBoolean found = new AtomicBoolean(false);
+        Thread searcher = new Thread() {
+            public void run() {
+                try {
+                    Transaction t2 = new Transaction();
+                    t2.start();
+                    DbFileIterator it = file.indexIterator(t2.getId(),
+                            new IndexPredicate(Op.EQUALS, new IntField(search)));
+                    it.open();
+                    found.set(it.hasNext());
+                    it.close();
+                    t2.commit();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        searcher.start();
+        searcher.join(5000);
+        assertTrue(found.get());
+        t.commit();
+        searcher.join();
+        check(bf);
+    }
+
+    private static void abort(Transaction t) {
+        try {
+            t.abort();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // threads inserting random keys in transactions of batch tuples until
+    // done, starting aborted transactions over; counts the tuples committed.
+    // With ownRanges, each thread inserts keys from its own range
+    static Thread[] startInserters(final BTreeFile bf, final int threads, final int batch,
+            final boolean ownRanges, final AtomicBoolean done, final AtomicInteger committed,
+            final AtomicInteger aborts, final AtomicBoolean failed) {
+        Thread[] workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            final Random random = new Random(w);
+            final int range = ownRanges ? BTreeUtility.MAX_RAND_VALUE / threads : BTreeUtility.MAX_RAND_VALUE;
+            final int low = ownRanges ? w * range : 0;
+            workers[w] = new Thread() {
+                public void run() {
+                    while (!done.get()) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            for (int i = 0; i < batch; i++) {
+                                Tuple tup = BTreeUtility.getBTreeTuple(new int[] {
+                                        low + random.nextInt(range), i });
+                                Database.getBufferPool().insertTuple(t.getId(), bf.getId(), tup);
+                            }
+                            t.commit();
+                            committed.addAndGet(batch);
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            abort(t);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            failed.set(true);
+                            abort(t);
+                            return;
+                        }
+                    }
+                }
+            };
+            workers[w].start();
+        }
+        return workers;
+    }
+
+    // the first tuple with a key from first up to last, or null
+    private static Tuple first(BTreeFile bf, TransactionId tid, int first, int last) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(first)));
+        it.open();
+        Tuple tup = it.hasNext() ? it.next() : null;
+        it.close();
+        if (tup == null || ((IntField) tup.getField(0)).getValue() >= last)
+            return null;
+        return tup;
+    }
+
+    /**
+     * Concurrent inserts that split leaves and internal pages, and deletes
+     * that merge them, leave a well-formed tree with every committed tuple.
+     */
+    @Test public void concurrentSplitsAndMerges() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        Database.resetBufferPool(500);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicInteger committed = new AtomicInteger(0);
+        AtomicInteger aborts = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        Thread[] workers = startInserters(bf, 4, 20, false, done, committed, aborts, failed);
+        while (committed.get() < 20000 && !failed.get())
+            Thread.sleep(10);
+        done.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        assertFalse(failed.get());
+        check(bf);
+        int size = 1000 + committed.get();
+        assertEquals(size, count(bf));
+
+        // delete most tuples, each thread the keys in its own range, found one
+        // at a time, since merges move tuples to other pages
+        final int threads = 4;
+        final BTreeFile file = bf;
+        final AtomicInteger deleted = new AtomicInteger(0);
+        workers = new Thread[threads];
+        for (int w = 0; w < threads; w++) {
+            final int low = w * BTreeUtility.MAX_RAND_VALUE / threads;
+            final int high = low + BTreeUtility.MAX_RAND_VALUE / threads * 9 / 10;
+            workers[w] = new Thread() {
+                public void run() {
+                    boolean more = true;
+                    while (more) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            int n = 0;
+                            for (; n < 50; n++) {
+                                Tuple tup = first(file, t.getId(), low, high);
+                                if (tup == null) {
+                                    more = false;
+                                    break;
+                                }
+                                Database.getBufferPool().deleteTuple(t.getId(), tup);
+                            }
+                            t.commit();
+                            deleted.addAndGet(n);
+                        } catch (TransactionAbortedException e) {
+                            abort(t);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            failed.set(true);
+                            abort(t);
+                            return;
+                        }
+                    }
+                }
+            };
+            workers[w].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        assertFalse(failed.get());
+        assertTrue(deleted.get() > size / 2);
+        check(bf);
+        assertEquals(size - deleted.get(), count(bf));
+    }
+
+    /**
+     * Threads inserting random keys, each in its own range, in short
+     * transactions, leave a well-formed tree with every committed tuple.
+     */
+    @Test public void concurrentInsertsInOwnRanges() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+        Database.resetBufferPool(1000);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicInteger committed = new AtomicInteger(0);
+        AtomicInteger aborts = new AtomicInteger(0);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Thread[] workers = startInserters(bf, 4, 10, true, done, committed, aborts, failed);
+        while (committed.get() < 2000 && !failed.get())
+            Thread.sleep(10);
+        done.set(true);
+        for (Thread worker : workers)
+            worker.join();
+        assertFalse(failed.get());
+        check(bf);
+        assertEquals(10000 + committed.get(), count(bf));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeLatchTest.class);
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of BufferPoolConcurrencyTest's table; run with ant bench.
+ */
+public class BufferPoolConcurrencyBench {
+    private static final int PAGES = BufferPoolConcurrencyTest.PAGES;
+    private static final int HITS_PER_THREAD = 20000;
+
+    private BufferPoolConcurrencyTest.CountingHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = BufferPoolConcurrencyTest.createCountingHeapFile();
+    }
+
+    /**
+     * Hammer resident pages from an increasing number of threads.  Every page
+     * must be read from disk exactly once, and the hit throughput is printed
+     * so it can be compared across core counts.
+     */
+    @Test public void hitThroughput() throws Exception {
+        TransactionId warm = new TransactionId();
+        for (int i = 0; i < PAGES; i++)
+            Database.getBufferPool().getPage(warm, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(PAGES, hf.reads.get());
+
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for (int nthreads = 1; nthreads <= maxThreads; nthreads *= 2) {
+            final AtomicInteger errors = new AtomicInteger(0);
+            Thread[] threads = new Thread[nthreads];
+            for (int i = 0; i < nthreads; i++) {
+                final int seed = i;
+                threads[i] = new Thread() {
+                    public void run() {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int j = 0; j < HITS_PER_THREAD; j++) {
+                                PageId pid = new HeapPageId(hf.getId(), (seed + j) % PAGES);
+                                Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                            }
+                            Database.getBufferPool().transactionComplete(tid);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                        }
+                    }
+                };
+            }
+            long start = System.nanoTime();
+            for (Thread t : threads)
+                t.start();
+            for (Thread t : threads)
+                t.join();
+            long elapsed = Math.max(1, System.nanoTime() - start);
+
+            assertEquals(0, errors.get());
+            long hitsPerSec = (long)nthreads * HITS_PER_THREAD * 1000000000L / elapsed;
+            System.out.println("BufferPool hits: " + nthreads + " threads, " + hitsPerSec + " hits/sec");
+        }
+        assertEquals(PAGES, hf.reads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyBench.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolConcurrencyTest {
+    static final int PAGES = 20;
+
+    // heap file that counts (and slows down) its disk reads
+    static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+
+        public CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            slowDown();
+            return super.readPage(pid);
+        }
+
+        @Override
+        public Page readPage(PageId pid, ByteBuffer frame) {
+            slowDown();
+            return super.readPage(pid, frame);
+        }
+
+        private void slowDown() {
+            reads.incrementAndGet();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                // just read the page
+            }
+        }
+    }
+
+    private CountingHeapFile hf;
+
+    // a fresh database with a table of PAGES full pages that counts its reads
+    static CountingHeapFile createCountingHeapFile() throws Exception {
+        Database.reset();
+        HeapFile tmp = SystemTestUtil.createRandomHeapFile(2, 504 * PAGES, null, null);
+        CountingHeapFile hf = new CountingHeapFile(tmp.getFile(), tmp.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return hf;
+    }
+
+    @Before public void setUp() throws Exception {
+        hf = createCountingHeapFile();
+    }
+
+    /**
+     * Threads that miss on the same page at the same time must share a single
+     * read, and all of them must get the same page object back.
+     */
+    @Test public void concurrentMissesShareOneLoad() throws Exception {
+        final PageId pid = new HeapPageId(hf.getId(), 0);
+        final int nthreads = 8;
+        final Page[] seen = new Page[nthreads];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        seen[id] = Database.getBufferPool().getPage(
+                                new TransactionId(), pid, Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(1, hf.reads.get());
+        for (int i = 0; i < nthreads; i++)
+            assertSame(seen[0], seen[i]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,49 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of BufferPool writes; run with ant bench.
+ */
+public class BufferPoolWriteBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: a large insert committed tuple at a time through the
+     * pool, and appended in bulk.
+     */
+    @Test public void bulkInsertBenchmark() throws Exception {
+        final int n = 504 * 100;
+        for (boolean bulk : new boolean[] { false, true }) {
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+            Transaction t = new Transaction();
+            t.start();
+            long start = System.nanoTime();
+            TupleIterator it = BufferPoolWriteTest.tuples(n);
+            if (bulk)
+                Database.getBufferPool().bulkInsert(t.getId(), hf.getId(), it);
+            else
+                while (it.hasNext())
+                    Database.getBufferPool().insertTuple(t.getId(), hf.getId(), it.next());
+            t.commit();
+            long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+            System.out.println("Inserting " + n + " tuples " + (bulk ? "in bulk" : "one at a time") + ": "
+                    + ms + " ms, " + (n * 1000L / ms) + " tuples/s");
+            Transaction reader = new Transaction();
+            reader.start();
+            assertEquals(n, BufferPoolWriteTest.count(hf, reader.getId()));
+            reader.commit();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolWriteBench.class);
+    }
+}
@@ -5,6 +5,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -48,6 +52,43 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class whose pages cannot be written back
+    class UnwritableHeapFile extends HeapFile {
+
+        public UnwritableHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            throw new IOException("disk full");
+        }
+    }
+
+    // class whose page writes wait for a latch, counting the writes
+    class BlockingHeapFile extends HeapFile {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+
+        public BlockingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+            super.writePage(page);
+            writes.incrementAndGet();
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +174,119 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * A dirty page that cannot be written when it is evicted stays in the
+     * pool, changes and all, and the eviction fails.
+     */
+    @Test public void evictionWriteFailure() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        UnwritableHeapFile bad = new UnwritableHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(bad, SystemTestUtil.getUUID());
+        Database.resetBufferPool(1);
+        HeapPageId first = new HeapPageId(bad.getId(), 0);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, first, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, p.iterator().next());
+        try {
+            Database.getBufferPool().getPage(tid, new HeapPageId(bad.getId(), 1), Permissions.READ_ONLY);
+            fail("evicted a page that could not be written");
+        } catch (DbException e) {
+            // expected
+        }
+        assertSame(p, Database.getBufferPool().getPage(tid, first, Permissions.READ_ONLY));
+        assertEquals(1, p.getNumEmptySlots());
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    /**
+     * Pages are written outside the pool's monitor: while a write is stuck,
+     * other transactions read pages into the pool and commit.  A page
+     * logged again while it is written stays unwritten.
+     */
+    @Test(timeout = 20000) public void writeOutsideMonitor() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 2, null, null);
+        final BlockingHeapFile slow = new BlockingHeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(slow, SystemTestUtil.getUUID());
+        HeapPageId first = new HeapPageId(slow.getId(), 0);
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, first, Permissions.READ_WRITE);
+        Iterator<Tuple> it = p.iterator();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        final Tuple second = it.next();
+
+        final Exception[] failure = new Exception[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    Database.getBufferPool().flushPages(tid);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        writer.start();
+        try {
+            assertTrue(slow.entered.await(10, TimeUnit.SECONDS));
+            TransactionId other = new TransactionId();
+            Database.getBufferPool().getPage(other, new HeapPageId(slow.getId(), 1), Permissions.READ_WRITE);
+            Database.getBufferPool().transactionComplete(other);
+            Database.getBufferPool().deleteTuple(tid, second);
+            Database.getBufferPool().logPages(tid);
+        } finally {
+            slow.release.countDown();
+        }
+        writer.join();
+        assertNull(failure[0]);
+        assertEquals(1, slow.writes.get());
+        Database.getBufferPool().flushPages(tid);
+        assertEquals(2, slow.writes.get());
+    }
+
+    static TupleIterator tuples(int n) {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        TupleIterator it = new TupleIterator(Utility.getTupleDesc(2), tuples);
+        it.open();
+        return it;
+    }
+
+    static int count(HeapFile hf, TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Unit test for BufferPool.bulkInsert(): the tuples go on new pages
+     * filled in memory, which are read back from the file.
+     */
+    @Test public void bulkInsert() throws Exception {
+        int pages = empty.numPages();
+        assertEquals(1200, Database.getBufferPool().bulkInsert(tid, empty.getId(), tuples(1200)));
+        assertEquals(pages + 3, empty.numPages());
+        assertEquals(1200, count(empty, tid));
+        HeapPage last = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(empty.getId(), pages + 2), Permissions.READ_ONLY);
+        assertEquals(504 * 3 - 1200, last.getNumEmptySlots());
+    }
+
+    /**
+     * An aborted bulk insert leaves its pages empty.
+     */
+    @Test public void bulkInsertAbort() throws Exception {
+        int pages = empty.numPages();
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().bulkInsert(t.getId(), empty.getId(), tuples(504 * HeapFile.EXTENT_PAGES + 10));
+        t.abort();
+        assertEquals(pages + HeapFile.EXTENT_PAGES + 1, empty.numPages());
+        assertEquals(0, count(empty, tid));
+    }
+
     /**
      * JUnit suite target
      */
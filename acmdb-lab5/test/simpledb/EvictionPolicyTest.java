@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class EvictionPolicyTest {
+
+    private static final EvictionPolicy.Evictable ALL = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            return true;
+        }
+    };
+
+    private static PageId pid(int pgno) {
+        return new HeapPageId(0, pgno);
+    }
+
+    /** Fill the policy with pages 0..n-1, as the BufferPool would on misses. */
+    private static void load(EvictionPolicy policy, int n) {
+        policy.setCapacity(n);
+        for (int i = 0; i < n; i++)
+            policy.pageAdded(pid(i));
+    }
+
+    /** Ask for a victim and remove it, as BufferPool.evictPage does. */
+    private static PageId evict(EvictionPolicy policy, EvictionPolicy.Evictable evictable) {
+        PageId victim = policy.chooseVictim(evictable);
+        if (victim != null)
+            policy.pageRemoved(victim);
+        return victim;
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: referenced pages get a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy clock = new ClockEvictionPolicy();
+        load(clock, 4);
+        clock.pageAccessed(pid(0));
+        clock.pageAccessed(pid(1));
+        assertEquals(pid(2), evict(clock, ALL));
+        assertEquals(pid(3), evict(clock, ALL));
+        // both bits were cleared by the first sweep
+        assertEquals(pid(0), evict(clock, ALL));
+        assertEquals(pid(1), evict(clock, ALL));
+        assertNull(evict(clock, ALL));
+    }
+
+    /**
+     * Unit test for LRUKEvictionPolicy: pages seen only once go before pages
+     * that were referenced K times, however recently they were seen.
+     */
+    @Test public void lruKPrefersSingleReferences() {
+        EvictionPolicy lruk = new LRUKEvictionPolicy(2);
+        load(lruk, 4);
+        lruk.pageAccessed(pid(0));
+        lruk.pageAccessed(pid(1));
+        lruk.pageAccessed(pid(3));
+        lruk.pageAccessed(pid(2));
+        lruk.pageAccessed(pid(2));
+        // page 3 has one more reference than its load, so it has 2 as well;
+        // nobody has fewer than K, so order by the 2nd most recent reference
+        assertEquals(pid(0), evict(lruk, ALL));
+
+        lruk.pageAdded(pid(4));
+        assertEquals(pid(4), evict(lruk, ALL));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a long scan of pages seen once
+     * must not evict pages that earned a place in the Am queue.
+     */
+    @Test public void twoQueueIsScanResistant() {
+        EvictionPolicy twoq = new TwoQueueEvictionPolicy();
+        twoq.setCapacity(8);
+        // pages 0 and 1 are loaded, evicted into A1out, and loaded again
+        for (int round = 0; round < 2; round++) {
+            twoq.pageAdded(pid(0));
+            twoq.pageAdded(pid(1));
+            if (round == 0) {
+                twoq.pageRemoved(pid(0));
+                twoq.pageRemoved(pid(1));
+            }
+        }
+        // now scan 100 pages through a pool of 8
+        int resident = 2;
+        for (int i = 100; i < 200; i++) {
+            if (resident == 8) {
+                PageId victim = evict(twoq, ALL);
+                assertFalse(pid(0).equals(victim));
+                assertFalse(pid(1).equals(victim));
+                resident--;
+            }
+            twoq.pageAdded(pid(i));
+            resident++;
+        }
+    }
+
+    /**
+     * Pages the BufferPool cannot evict are skipped by every policy.
+     */
+    @Test public void skipsUnevictablePages() {
+        EvictionPolicy.Evictable onlyOdd = new EvictionPolicy.Evictable() {
+            public boolean canEvict(PageId pid) {
+                return pid.pageNumber() % 2 == 1;
+            }
+        };
+        EvictionPolicy[] policies = { new ClockEvictionPolicy(),
+                new LRUKEvictionPolicy(), new TwoQueueEvictionPolicy() };
+        for (EvictionPolicy policy : policies) {
+            load(policy, 6);
+            Set<PageId> victims = new HashSet<PageId>();
+            PageId victim;
+            while ((victim = evict(policy, onlyOdd)) != null)
+                victims.add(victim);
+            assertEquals(new HashSet<PageId>(Arrays.asList(pid(1), pid(3), pid(5))), victims);
+        }
+    }
+
+    /**
+     * Hits and misses are counted as the BufferPool reports them.
+     */
+    @Test public void countsHitsAndMisses() throws Exception {
+        Database.reset();
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        BufferPool bp = Database.resetBufferPool(2, new LRUKEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        for (int round = 0; round < 3; round++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+            bp.getPage(tid, new HeapPageId(hf.getId(), round + 1), Permissions.READ_ONLY);
+        }
+        assertEquals(4, bp.getEvictionPolicy().getMisses());
+        assertEquals(2, bp.getEvictionPolicy().getHits());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Reads a hot table of 4 pages interleaved with a sequential scan of a
+     * 200 page table through a pool of 16, first with short bursts of the
+     * scan so the hot pages can prove themselves, then with bursts of 40
+     * scan pages.  Returns how many times a hot page missed in the second
+     * phase.
+     */
+    private static long hotMissesUnderScan(EvictionPolicy policy) throws Exception {
+        Database.reset();
+        HeapFile hot = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        HeapFile scan = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 200, null, null);
+        BufferPool bp = Database.resetBufferPool(16, policy);
+        int next = 0;
+        long hotMisses = 0;
+        for (int round = 0; round < 40; round++) {
+            boolean learning = round < 20;
+            TransactionId tid = new TransactionId();
+            long misses = policy.getMisses();
+            for (int i = 0; i < 4; i++)
+                bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+            if (!learning)
+                hotMisses += policy.getMisses() - misses;
+            for (int i = 0; i < (learning ? 2 : 40); i++) {
+                bp.getPage(tid, new HeapPageId(scan.getId(), next), Permissions.READ_ONLY);
+                next = (next + 1) % 200;
+            }
+            bp.transactionComplete(tid);
+        }
+        return hotMisses;
+    }
+
+    /**
+     * LRU-K and 2Q keep a hot set resident through long scans; CLOCK lets
+     * the scan sweep it out.
+     */
+    @Test public void hotSetSurvivesScans() throws Exception {
+        assertTrue(hotMissesUnderScan(new ClockEvictionPolicy()) > 0);
+        assertEquals(0, hotMissesUnderScan(new LRUKEvictionPolicy()));
+        assertEquals(0, hotMissesUnderScan(new TwoQueueEvictionPolicy()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+    /** Tuples of two int fields on a full page */
+    private static final int TUPLES_PER_PAGE = 504;
+
+    // the second fields of the tuples from sort, checking they are in order
+    private static ArrayList<Integer> drain(ExternalSort sort, boolean asc) throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        while (sort.hasNext()) {
+            int v = ((IntField) sort.next().getField(1)).getValue();
+            if (!values.isEmpty()) {
+                int last = values.get(values.size() - 1);
+                assertTrue(asc ? last <= v : last >= v);
+            }
+            values.add(v);
+        }
+        return values;
+    }
+
+    private static ArrayList<Integer> column(ArrayList<ArrayList<Integer>> tuples, boolean asc) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (ArrayList<Integer> t : tuples)
+            values.add(t.get(1));
+        Collections.sort(values);
+        if (!asc)
+            Collections.reverse(values);
+        return values;
+    }
+
+    /**
+     * A child that fits in memory is sorted without spilling.
+     */
+    @Test public void sortsInMemory() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+        ExternalSort sort = new ExternalSort(1, true, new SeqScan(tid, hf.getId()), 10);
+        sort.open();
+        assertEquals(column(tuples, true), drain(sort, true));
+        assertEquals(0, sort.getNumRuns());
+        assertEquals(1000, sort.getNumTuples());
+        sort.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A child larger than the memory budget is spilled in runs, which are
+     * merged in several passes when there are more than the budget merges
+     * at once; rewinding returns the tuples again.
+     */
+    @Test public void spillsAndMerges() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40 * TUPLES_PER_PAGE, null, tuples);
+        TransactionId tid = new TransactionId();
+        for (boolean asc : new boolean[] { true, false }) {
+            ExternalSort sort = new ExternalSort(1, asc, new SeqScan(tid, hf.getId()), 3);
+            sort.open();
+            ArrayList<Integer> expected = column(tuples, asc);
+            assertEquals(expected, drain(sort, asc));
+            // 40 pages in runs of 3 pages, then passes merging 2 at a time
+            assertTrue(sort.getNumRuns() > 14);
+            sort.rewind();
+            assertEquals(expected, drain(sort, asc));
+            sort.close();
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ExternalSortTest.class);
+    }
+}
@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -51,6 +53,29 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Rewinding drops a tuple hasNext() fetched ahead, also for operators
+   * above the filter.
+   */
+  @Test public void rewindDropsFetchedAhead() throws Exception {
+    Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(2));
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(0);
+    Project op = new Project(fields, new Type[] { Type.INT_TYPE }, new Filter(pred, scan));
+    op.open();
+    Tuple first = op.next();
+    assertTrue(op.hasNext());
+    op.rewind();
+    assertEquals(first.getField(0), op.next().getField(0));
+    int n = 1;
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(7, n);
+    op.close();
+  }
+
   /**
    * Unit test for Filter.getNext() using a &lt; predicate that filters
    *   some tuples
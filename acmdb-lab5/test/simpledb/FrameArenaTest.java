@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FrameArenaTest {
+    private HeapFile hf;
+    private HeapPageId pid;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        pid = new HeapPageId(hf.getId(), 0);
+    }
+
+    private static List<Tuple> tuples(HeapPage page) {
+        List<Tuple> result = new ArrayList<Tuple>();
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext())
+            result.add(it.next());
+        return result;
+    }
+
+    private HeapPage readIntoFrame(ByteBuffer frame) {
+        return (HeapPage) hf.readPage(pid, frame);
+    }
+
+    private static void scribble(ByteBuffer frame) {
+        for (int i = 0; i < frame.capacity(); i++)
+            frame.put(i, (byte) 0x5a);
+    }
+
+    /**
+     * Unit test for FrameArena.allocate() and release()
+     */
+    @Test public void allocateAndRelease() {
+        FrameArena arena = new FrameArena(4, BufferPool.getPageSize());
+        Set<ByteBuffer> frames = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer frame = arena.allocate();
+            assertTrue(frame.isDirect());
+            assertEquals(BufferPool.getPageSize(), frame.capacity());
+            frames.add(frame);
+        }
+        assertEquals(4, frames.size());
+        assertNull(arena.allocate());
+
+        ByteBuffer frame = frames.iterator().next();
+        arena.release(frame);
+        assertSame(frame, arena.allocate());
+    }
+
+    /**
+     * A page read into a frame must look exactly like one read onto the heap.
+     */
+    @Test public void framedPageMatchesHeapPage() throws Exception {
+        FrameArena arena = new FrameArena(1, BufferPool.getPageSize());
+        HeapPage framed = readIntoFrame(arena.allocate());
+        HeapPage plain = (HeapPage) hf.readPage(pid);
+
+        assertArrayEquals(plain.getPageData(), framed.getPageData());
+        assertEquals(plain.getNumEmptySlots(), framed.getNumEmptySlots());
+        assertEquals(tuples(plain).toString(), tuples(framed).toString());
+    }
+
+    /**
+     * A clean page keeps working after its frame was taken back and reused.
+     */
+    @Test public void detachCleanPage() throws Exception {
+        FrameArena arena = new FrameArena(1, BufferPool.getPageSize());
+        HeapPage page = readIntoFrame(arena.allocate());
+        byte[] before = page.getPageData();
+
+        ByteBuffer frame = page.detachFrame(true);
+        assertNotNull(frame);
+        assertNull(page.detachFrame(true));
+        scribble(frame);
+
+        assertArrayEquals(before, page.getPageData());
+    }
+
+    /**
+     * A dirty page keeps its changes after its frame was taken back and reused.
+     */
+    @Test public void detachDirtyPage() throws Exception {
+        FrameArena arena = new FrameArena(1, BufferPool.getPageSize());
+        HeapPage page = readIntoFrame(arena.allocate());
+        TransactionId tid = new TransactionId();
+        int empty = page.getNumEmptySlots();
+        Tuple t = Utility.getHeapTuple(new int[] { 4242, 4343 });
+        page.insertTuple(t);
+        page.markDirty(true, tid);
+
+        scribble(page.detachFrame(true));
+
+        assertEquals(empty - 1, page.getNumEmptySlots());
+        assertTrue(tuples(page).toString().contains("4242"));
+        // the before image is the page as it was read
+        assertEquals(empty, page.getBeforeImage().getNumEmptySlots());
+    }
+
+    /**
+     * A clean page whose logged changes are not on disk yet keeps them after
+     * its frame was taken back, rather than reading the page back from disk.
+     */
+    @Test public void detachUnwrittenPage() throws Exception {
+        FrameArena arena = new FrameArena(1, BufferPool.getPageSize());
+        HeapPage page = readIntoFrame(arena.allocate());
+        TransactionId tid = new TransactionId();
+        int empty = page.getNumEmptySlots();
+        page.insertTuple(Utility.getHeapTuple(new int[] { 4242, 4343 }));
+        page.markDirty(true, tid);
+        // logged: clean again, but the disk still has the page as it was read
+        page.setBeforeImage();
+        page.markDirty(false, null);
+
+        scribble(page.detachFrame(false));
+
+        assertEquals(empty - 1, page.getNumEmptySlots());
+        assertTrue(tuples(page).toString().contains("4242"));
+    }
+
+    /**
+     * A scan through a pool much smaller than the table only works if evicted
+     * pages give their frames back to the arena.
+     */
+    @Test public void evictionRecyclesFrames() throws Exception {
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * 10, null, null);
+        Database.resetBufferPool(3);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(504 * 10, count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
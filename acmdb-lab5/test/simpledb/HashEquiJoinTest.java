@@ -130,6 +130,65 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  // n tuples of the given width, keyed by the first field from 0 to keys - 1
+  private static TupleIterator randomTuples(int width, int n, int keys, long seed) {
+    java.util.Random random = new java.util.Random(seed);
+    int[] data = new int[width * n];
+    for (int i = 0; i < data.length; i++)
+      data[i] = i % width == 0 ? random.nextInt(keys) : random.nextInt();
+    return TestUtil.createTupleList(width, data);
+  }
+
+  private static ArrayList<String> sortedResult(DbIterator it) throws Exception {
+    ArrayList<String> ret = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      ret.add(it.next().toString());
+    it.close();
+    java.util.Collections.sort(ret);
+    return ret;
+  }
+
+  /**
+   * An inner child larger than the memory budget is partitioned and spilled,
+   * and gives the same result as a nested loops join, also after a rewind.
+   */
+  @Test public void spillingJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    // 3 pages hold about 1000 inner tuples, so this takes two passes
+    HashEquiJoin op = new HashEquiJoin(pred, randomTuples(width1, 3000, 2000, 1),
+        randomTuples(width2, 5000, 2000, 2), 3);
+    ArrayList<String> expected = sortedResult(new Join(pred, randomTuples(width1, 3000, 2000, 1),
+        randomTuples(width2, 5000, 2000, 2)));
+    assertTrue(expected.size() > 1000);
+    assertEquals(expected, sortedResult(op));
+
+    op.open();
+    int n = 0;
+    while (op.hasNext() && n < 100) {
+      op.next();
+      n++;
+    }
+    op.rewind();
+    ArrayList<String> again = new ArrayList<String>();
+    while (op.hasNext())
+      again.add(op.next().toString());
+    op.close();
+    java.util.Collections.sort(again);
+    assertEquals(expected, again);
+  }
+
+  /**
+   * A partition that does not shrink when partitioned again, since all of
+   * its keys are equal, is joined in blocks.
+   */
+  @Test public void skewedJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, randomTuples(width1, 30, 1, 1),
+        randomTuples(width2, 5000, 1, 2), 3);
+    assertEquals(30 * 5000, sortedResult(op).size());
+  }
+
   /**
    * JUnit suite target
    */
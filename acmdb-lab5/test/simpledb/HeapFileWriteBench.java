@@ -0,0 +1,39 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of HeapFile inserts; run with ant bench.
+ */
+public class HeapFileWriteBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: inserts into tables of more and more full pages.  Each
+     * insert locks the page it goes to and no other, so the rate stays flat.
+     */
+    @Test public void insertRateAsTableGrows() throws Exception {
+        for (int pages : new int[] { 1, 64, 256 }) {
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+            TransactionId t = new TransactionId();
+            long start = System.nanoTime();
+            for (int i = 0; i < 2000; i++)
+                HeapFileWriteTest.pageOf(hf, t, i);
+            long ns = System.nanoTime() - start;
+            int locked = Database.getBufferPool().getLockManager().holdsPage(t).size();
+            Database.getBufferPool().transactionComplete(t);
+            System.out.println("Insert into " + pages + " full pages: " + (2000L * 1000000000L / ns)
+                    + " inserts/s, " + locked + " pages locked");
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileWriteBench.class);
+    }
+}
@@ -7,6 +7,8 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
+import simpledb.systemtest.SystemTestUtil;
+
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
 
@@ -43,6 +45,105 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    static int pageOf(HeapFile hf, TransactionId tid, int i) throws Exception {
+        Tuple t = Utility.getHeapTuple(i, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        return t.getRecordId().getPageId().pageNumber();
+    }
+
+    /**
+     * An insert goes to a page with room without touching the full pages
+     * before it, also when the table was written outside this HeapFile.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3 + 10, null, null);
+        assertEquals(3, pageOf(hf, tid, 0));
+        for (int i = 0; i < 3; i++)
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), i)));
+    }
+
+    /**
+     * A slot freed by a delete is found by the next insert.
+     */
+    @Test public void insertReusesDeletedSlot() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        assertEquals(1, pageOf(hf, tid, 0));
+        assertEquals(3, pageOf(hf, tid, 0));
+        assertEquals(4, hf.numPages());
+    }
+
+    /**
+     * A slot freed by a committed delete is found by the first insert, even
+     * though the page on disk may not show it yet.
+     */
+    @Test public void insertSeesUnwrittenDelete() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage page = (HeapPage)Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), page.iterator().next());
+        t.commit();
+        assertEquals(1, pageOf(hf, tid, 0));
+    }
+
+    /**
+     * A page the free space map has wrong, here after an abort, is not
+     * kept locked by the insert that finds it full.
+     */
+    @Test public void fullPageReleased() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4 - 1, null, null);
+        TransactionId first = new TransactionId();
+        assertEquals(3, pageOf(hf, first, 0));
+        Database.getBufferPool().transactionComplete(first);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        HeapPage page = (HeapPage)Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Database.getBufferPool().deleteTuple(t.getId(), page.iterator().next());
+        t.abort();
+        TransactionId other = new TransactionId();
+        assertEquals(4, pageOf(hf, other, 1));
+        assertFalse(Database.getBufferPool().holdsLock(other, pid));
+        Database.getBufferPool().transactionComplete(other);
+    }
+
+    /**
+     * Concurrent inserters go to different pages when several have room.
+     */
+    @Test public void insertersSpread() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * 4, null, null);
+        for (int i = 0; i < 4; i++) {
+            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            Database.getBufferPool().deleteTuple(tid, page.iterator().next());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        TransactionId first = new TransactionId();
+        TransactionId second = new TransactionId();
+        int a = pageOf(hf, first, 0);
+        int b = pageOf(hf, second, 0);
+        Database.getBufferPool().transactionComplete(first);
+        Database.getBufferPool().transactionComplete(second);
+        assertTrue(a != b);
+    }
+
+    /**
+     * Inserts into tables of more and more full pages lock the page each
+     * goes to and no other.
+     */
+    @Test public void insertLocksFewPagesAsTableGrows() throws Exception {
+        for (int pages : new int[] { 1, 64, 256 }) {
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+            TransactionId t = new TransactionId();
+            for (int i = 0; i < 2000; i++)
+                pageOf(hf, t, i);
+            int locked = Database.getBufferPool().getLockManager().holdsPage(t).size();
+            Database.getBufferPool().transactionComplete(t);
+            assertTrue(locked <= 5);
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+    // n tuples of two fields named a.c0 and a.c1, the first from 0 to
+    // keys - 1, in random order
+    private static TupleIterator randomTuples(int n, int keys, long seed) {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { "a.c0", "a.c1" });
+        Random random = new Random(seed);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(random.nextInt(keys)));
+            t.setField(1, new IntField(random.nextInt()));
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    private static ArrayList<String> sortedResult(DbIterator it) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            ret.add(it.next().toString());
+        it.close();
+        Collections.sort(ret);
+        return ret;
+    }
+
+    // join n outer tuples with a B+ tree, filtered on its second field, with
+    // an index join in batches of 1 page and a nested loops join, and check
+    // they agree; returns the result size
+    private static int checkJoin(BTreeFile bf, Predicate.Op op, int n) throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate pred = new JoinPredicate(0, op, 0);
+        Predicate filter = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(100));
+        ArrayList<String> expected = sortedResult(new Join(pred, randomTuples(n, 500, 1),
+                new Filter(filter, new SeqScan(tid, bf.getId()))));
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred, randomTuples(n, 500, 1),
+                new Filter(filter, new SeqScan(tid, bf.getId())), 1);
+        assertEquals(expected, sortedResult(join));
+        Database.getBufferPool().transactionComplete(tid);
+        return expected.size();
+    }
+
+    /**
+     * Index joins find the same tuples as a nested loops join, for equality
+     * over several batches of outer tuples, and for the inequalities.
+     */
+    @Test public void matchesNestedLoops() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 500, null, null, 0);
+        assertTrue(checkJoin(bf, Predicate.Op.EQUALS, 1500) > 1000);
+        checkJoin(bf, Predicate.Op.GREATER_THAN, 20);
+        checkJoin(bf, Predicate.Op.GREATER_THAN_OR_EQ, 20);
+        checkJoin(bf, Predicate.Op.LESS_THAN, 20);
+        checkJoin(bf, Predicate.Op.LESS_THAN_OR_EQ, 20);
+    }
+
+    /**
+     * Outer tuples with the same key share one lookup, and rewinding looks
+     * them up again.
+     */
+    @Test public void sharedLookups() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 3000, 10, null, null, 0);
+        TransactionId tid = new TransactionId();
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(pred, randomTuples(200, 10, 1),
+                new SeqScan(tid, bf.getId()));
+        join.open();
+        int n = 0;
+        while (join.hasNext()) {
+            join.next();
+            n++;
+        }
+        assertEquals(10, join.lookups);
+        join.rewind();
+        int again = 0;
+        while (join.hasNext()) {
+            join.next();
+            again++;
+        }
+        join.close();
+        assertEquals(n, again);
+        assertEquals(10, join.lookups);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The optimizer looks up the matches of a small table in a B+ tree of a
+     * large one keyed on the join field, and joins two large tables without
+     * it.
+     */
+    @Test public void optimizerChoosesIndexJoin() throws Exception {
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, null, null, "c");
+        Database.getCatalog().addTable(small, "small");
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 20000, null, null, "c");
+        Database.getCatalog().addTable(big, "bigheap");
+        TransactionId tid = new TransactionId();
+        File copyFile = File.createTempFile("sorted", ".dat");
+        copyFile.deleteOnExit();
+        BTreeFileEncoder.createSortedCopy(tid, "big", "bigheap", "c0", copyFile, 1.0, 64);
+        TableStats.computeStatistics();
+
+        Parser p = new Parser();
+        DbIterator plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM small s, big b WHERE s.c0 = b.c0;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(findJoin(plan) instanceof IndexNestedLoopJoin);
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        assertEquals(sortedResult(new HashEquiJoin(pred, new SeqScan(tid, small.getId()),
+                new SeqScan(tid, big.getId()))).size(), sortedResult(plan).size());
+        plan = p.generateLogicalPlan(tid,
+                "SELECT * FROM bigheap h, big b WHERE h.c0 = b.c0;")
+                .physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(findJoin(plan) instanceof IndexNestedLoopJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the first operator with two children in a plan
+    private static DbIterator findJoin(DbIterator plan) {
+        while (plan instanceof Operator) {
+            DbIterator[] children = ((Operator) plan).getChildren();
+            if (children.length == 2)
+                return plan;
+            plan = children[0];
+        }
+        return null;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
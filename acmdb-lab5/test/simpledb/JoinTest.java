@@ -105,6 +105,58 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  // a tuple list of n tuples of the given width keyed 0 to n - 1, which
+  // counts the tuples read from it and the times it is rewound
+  static class CountingList extends TupleIterator {
+    int reads = 0;
+    int rewinds = 0;
+
+    CountingList(int width, int n) {
+      super(Utility.getTupleDesc(width), tuples(width, n));
+    }
+
+    private static java.util.ArrayList<Tuple> tuples(int width, int n) {
+      java.util.ArrayList<Tuple> ts = new java.util.ArrayList<Tuple>();
+      for (int i = 0; i < n; i++)
+        ts.add(Utility.getHeapTuple(i, width));
+      return ts;
+    }
+
+    public Tuple next() {
+      reads++;
+      return super.next();
+    }
+
+    public void rewind() {
+      rewinds++;
+      super.rewind();
+    }
+  }
+
+  /**
+   * The inner child is scanned once per block of outer tuples, and the join
+   * returns its first tuple before reading more than a block.
+   */
+  @Test public void blockNestedLoops() throws Exception {
+    // 1 page holds 512 tuples of 2 fields
+    CountingList outer = new CountingList(width1, 2000);
+    CountingList inner = new CountingList(width2, 100);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+    Join op = new Join(pred, outer, inner, 1);
+    op.open();
+    assertTrue(op.hasNext());
+    assertTrue(outer.reads <= 512);
+    int n = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(((IntField) t.getField(0)).getValue() < ((IntField) t.getField(width1)).getValue());
+      n++;
+    }
+    op.close();
+    assertEquals(100 * 99 / 2, n);
+    assertEquals(3, inner.rewinds);
+  }
+
   /**
    * JUnit suite target
    */
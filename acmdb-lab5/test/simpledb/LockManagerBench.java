@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of LockManager; run with ant bench.
+ */
+public class LockManagerBench {
+    private static final int OPS_PER_THREAD = 200000;
+
+    // lock every page of a large table for reading and release it all, in ns per page
+    private static long scanLockCost(int threshold, int pages) throws Exception {
+        LockManager lm = new LockManager();
+        lm.setEscalationThreshold(threshold);
+        long begin = System.nanoTime();
+        for (int round = 0; round < 10; round++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < pages; i++)
+                lm.acquireLock(tid, new HeapPageId(1, i), 0);
+            lm.releaseAllLock(tid);
+        }
+        return (System.nanoTime() - begin) / (10L * pages);
+    }
+
+    /**
+     * Benchmark: the cost of locking the pages of a large scan, with page
+     * locks only and with escalation to a table lock.
+     */
+    @Test public void scanLockThroughput() throws Exception {
+        int pages = 20000;
+        long paged = scanLockCost(Integer.MAX_VALUE, pages);
+        long escalated = scanLockCost(LockManager.DEFAULT_ESCALATION_THRESHOLD, pages);
+        System.out.println("Scan of " + pages + " pages: " + paged + " ns per page with page locks, "
+                + escalated + " ns per page with escalation");
+    }
+
+    // acquire and release locks on pages of one thread's own, from nthreads threads
+    private static long disjointOpsPerSec(final LockManager lm, int nthreads) throws Exception {
+        final AtomicInteger errors = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            final int table = i + 1;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        TransactionId tid = new TransactionId();
+                        for (int j = 0; j < OPS_PER_THREAD; j++) {
+                            PageId pid = new HeapPageId(table, j % 16);
+                            lm.acquireLock(tid, pid, j % 2);
+                            lm.releaseLock(tid, pid);
+                        }
+                        lm.releaseAllLock(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+        long elapsed = Math.max(1, System.nanoTime() - begin);
+        assertEquals(0, errors.get());
+        return (long)nthreads * OPS_PER_THREAD * 1000000000L / elapsed;
+    }
+
+    /**
+     * Benchmark: lock acquire/release throughput against the number of
+     * threads, for transactions on disjoint pages, with a single lock table
+     * monitor and with the striped table.
+     */
+    @Test public void disjointThroughput() throws Exception {
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int nthreads = 1; nthreads <= maxThreads; nthreads *= 2) {
+            long single = disjointOpsPerSec(new LockManager(1), nthreads);
+            long striped = disjointOpsPerSec(new LockManager(), nthreads);
+            System.out.println("Lock throughput: " + nthreads + " threads, " + single
+                    + " ops/sec with one stripe, " + striped + " ops/sec with "
+                    + LockManager.DEFAULT_STRIPES + " stripes");
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerBench.class);
+    }
+}
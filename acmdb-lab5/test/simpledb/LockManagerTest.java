@@ -0,0 +1,315 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    /** Time to wait before checking whether a request is still blocked, in ms */
+    private static final int TIMEOUT = 200;
+
+    private LockManager lm;
+    private PageId p0, p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    // requests a lock on its own thread and records how the request ended
+    private class Requester extends Thread {
+        final TransactionId tid;
+        final PageId pid;
+        final int type;
+        volatile boolean acquired;
+        volatile boolean aborted;
+
+        Requester(TransactionId tid, PageId pid, int type) {
+            this.tid = tid;
+            this.pid = pid;
+            this.type = type;
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquireLock(tid, pid, type);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+                lm.releaseAllLock(tid);
+            }
+        }
+    }
+
+    // requests a table lock on its own thread
+    private class TableRequester extends Thread {
+        final TransactionId tid;
+        final int table;
+        final int mode;
+        volatile boolean acquired;
+
+        TableRequester(TransactionId tid, int table, int mode) {
+            this.tid = tid;
+            this.table = table;
+            this.mode = mode;
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.acquireTableLock(tid, table, mode);
+                acquired = true;
+            } catch (TransactionAbortedException e) {
+                lm.releaseAllLock(tid);
+            }
+        }
+    }
+
+    /**
+     * A waiter that is not part of a deadlock blocks until the lock is
+     * released, however long that takes, and is never aborted.
+     */
+    @Test public void waiterWithoutDeadlockBlocks() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid1, p0, 1);
+        Requester r = new Requester(tid2, p0, 0);
+        r.join(5 * TIMEOUT);
+        assertTrue(r.isAlive());
+        assertFalse(r.acquired || r.aborted);
+
+        lm.releaseAllLock(tid1);
+        r.join();
+        assertTrue(r.acquired);
+        assertEquals(1, lm.getWaitCount());
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * The transaction that closes a cycle is aborted at once if it is the
+     * youngest on it.
+     */
+    @Test public void youngestRequesterAborted() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid1, p0, 0);
+        lm.acquireLock(tid2, p1, 0);
+        Requester r1 = new Requester(tid1, p1, 1);
+        Thread.sleep(TIMEOUT);
+
+        try {
+            lm.acquireLock(tid2, p0, 1);
+            fail("expected the younger transaction to be aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAllLock(tid2);
+        r1.join();
+        assertTrue(r1.acquired);
+        assertEquals(1, lm.getDeadlockCount());
+    }
+
+    /**
+     * When an older transaction closes the cycle, the youngest one is woken
+     * up and aborted instead.
+     */
+    @Test public void youngestWaiterAborted() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid1, p0, 1);
+        lm.acquireLock(tid2, p1, 1);
+        Requester r2 = new Requester(tid2, p0, 1);
+        Thread.sleep(TIMEOUT);
+
+        Requester r1 = new Requester(tid1, p1, 1);
+        r2.join();
+        assertTrue(r2.aborted);
+        r1.join();
+        assertTrue(r1.acquired);
+        assertEquals(1, lm.getDeadlockCount());
+        assertFalse(lm.holdsLock(tid2));
+    }
+
+    /**
+     * Two readers upgrading the same page deadlock; the younger one gives way.
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid1, p0, 0);
+        lm.acquireLock(tid2, p0, 0);
+        Requester r1 = new Requester(tid1, p0, 1);
+        Thread.sleep(TIMEOUT);
+        Requester r2 = new Requester(tid2, p0, 1);
+        r1.join();
+        r2.join();
+        assertTrue(r1.acquired);
+        assertTrue(r2.aborted);
+        assertEquals(1, lm.getDeadlockCount());
+    }
+
+    /**
+     * Many readers upgrading the same page at once form several cycles;
+     * all of them are broken, so only the oldest transaction is left.
+     */
+    @Test public void upgradeDeadlockAmongMany() throws Exception {
+        int n = 6;
+        TransactionId[] tids = new TransactionId[n];
+        for (int i = 0; i < n; i++) {
+            tids[i] = new TransactionId();
+            lm.acquireLock(tids[i], p0, 0);
+        }
+        Requester[] upgraders = new Requester[n];
+        for (int i = n - 1; i >= 0; i--)
+            upgraders[i] = new Requester(tids[i], p0, 1);
+        for (Requester r : upgraders)
+            r.join();
+        assertTrue(upgraders[0].acquired);
+        for (int i = 1; i < n; i++)
+            assertTrue(upgraders[i].aborted);
+        assertEquals(n - 1, lm.getDeadlockCount());
+    }
+
+    /**
+     * Requests are granted in arrival order: a reader does not overtake a
+     * queued writer, and a release wakes only the requests it grants.
+     */
+    @Test public void fifoGrants() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        lm.acquireLock(tid1, p0, 0);
+        Requester writer = new Requester(tid2, p0, 1);
+        Thread.sleep(TIMEOUT);
+        Requester reader = new Requester(tid3, p0, 0);
+        reader.join(TIMEOUT);
+        assertFalse(reader.acquired);
+
+        lm.releaseAllLock(tid1);
+        writer.join();
+        assertTrue(writer.acquired);
+        reader.join(TIMEOUT);
+        assertFalse(reader.acquired);
+
+        lm.releaseAllLock(tid2);
+        reader.join();
+        assertTrue(reader.acquired);
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * Page locks take intention locks on their table, which do not conflict
+     * with each other but keep out a table lock.
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        lm.acquireLock(tid1, p0, 0);
+        lm.acquireLock(tid2, p1, 1);
+        assertEquals(Lock.INTENTION_SHARED, lm.getTableLockMode(tid1, 1));
+        assertEquals(Lock.INTENTION_EXCLUSIVE, lm.getTableLockMode(tid2, 1));
+
+        TableRequester r = new TableRequester(tid3, 1, Lock.SHARED);
+        r.join(TIMEOUT);
+        assertFalse(r.acquired);
+        lm.releaseAllLock(tid2);
+        r.join();
+        assertTrue(r.acquired);
+        assertTrue(lm.holdsLock(tid3, p1));
+        assertEquals(0, lm.getDeadlockCount());
+    }
+
+    /**
+     * A transaction that locks more pages of a table than the threshold
+     * trades them for one table lock, which keeps writers out.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        TransactionId tid3 = new TransactionId();
+        for (int i = 0; i < 6; i++)
+            lm.acquireLock(tid1, new HeapPageId(1, i), 0);
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(Lock.SHARED, lm.getTableLockMode(tid1, 1));
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 100)));
+
+        lm.acquireLock(tid2, new HeapPageId(1, 7), 0);
+        Requester writer = new Requester(tid3, new HeapPageId(1, 8), 1);
+        writer.join(TIMEOUT);
+        assertFalse(writer.acquired);
+        lm.releaseAllLock(tid1);
+        writer.join();
+        assertTrue(writer.acquired);
+    }
+
+    /**
+     * Escalation does not wait: with another transaction writing the table
+     * it is put off, and the page locks stay.
+     */
+    @Test public void escalationPutOff() throws Exception {
+        lm.setEscalationThreshold(4);
+        TransactionId tid1 = new TransactionId();
+        TransactionId tid2 = new TransactionId();
+        lm.acquireLock(tid2, new HeapPageId(1, 9), 1);
+        for (int i = 0; i < 6; i++)
+            lm.acquireLock(tid1, new HeapPageId(1, i), 0);
+        assertEquals(0, lm.getEscalationCount());
+        assertEquals(Lock.INTENTION_SHARED, lm.getTableLockMode(tid1, 1));
+        assertFalse(lm.holdsLock(tid1, new HeapPageId(1, 7)));
+
+        lm.releaseAllLock(tid2);
+        for (int i = 6; i < 8; i++)
+            lm.acquireLock(tid1, new HeapPageId(1, i), 0);
+        assertEquals(1, lm.getEscalationCount());
+        assertEquals(Lock.SHARED, lm.getTableLockMode(tid1, 1));
+    }
+
+    // delete every tuple of a table of several pages with escalation to an exclusive table lock
+    private HeapFile deleteAll(boolean commit, ArrayList<ArrayList<Integer>> tuples) throws Exception {
+        Database.reset();
+        int rowsPerPage = BufferPool.getPageSize() * 8 / (8 * 8 + 1);
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, rowsPerPage * 20, null, tuples);
+        Database.getBufferPool().getLockManager().setEscalationThreshold(8);
+        TransactionId tid = new TransactionId();
+        Delete delete = new Delete(tid, new SeqScan(tid, f.getId(), ""));
+        delete.open();
+        while (delete.hasNext())
+            delete.next();
+        delete.close();
+        LockManager lock = Database.getBufferPool().getLockManager();
+        assertEquals(1, lock.getEscalationCount());
+        assertEquals(Lock.EXCLUSIVE, lock.getTableLockMode(tid, f.getId()));
+        Database.getBufferPool().transactionComplete(tid, commit);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return f;
+    }
+
+    /**
+     * Pages changed under an escalated table lock hold no page locks, but
+     * are still written out on commit and thrown away on abort.
+     */
+    @Test public void escalatedWritesCommitAndAbort() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = deleteAll(false, tuples);
+        SystemTestUtil.matchTuples(f, tuples);
+
+        f = deleteAll(true, new ArrayList<ArrayList<Integer>>());
+        SystemTestUtil.matchTuples(f, new ArrayList<ArrayList<Integer>>());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of LogFile; run with ant bench.
+ */
+public class LogFileBench {
+    private File f;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("logfile", ".log");
+        f.deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        f.delete();
+        for (File segment : LogFileTest.segments(f))
+            segment.delete();
+    }
+
+    /**
+     * Benchmark: commits/sec against the number of concurrent clients, and
+     * how many commits each force carried.
+     */
+    @Test public void commitThroughput() throws Exception {
+        for (int nclients = 1; nclients <= 16; nclients *= 2) {
+            LogFile log = new LogFile(f);
+            long rate = LogFileTest.commitsPerSec(log, nclients);
+            System.out.println("Group commit: " + nclients + " clients, " + rate + " commits/sec, "
+                    + String.format("%.1f", (double) log.getCommitCount() / log.getForceCount())
+                    + " commits per force");
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileBench.class);
+    }
+}
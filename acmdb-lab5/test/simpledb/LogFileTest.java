@@ -0,0 +1,377 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest {
+    private static final int COMMITS_PER_CLIENT = 200;
+    // the type and transaction id every record starts with
+    private static final int INT_AND_LONG = 4 + 8;
+
+    private File f;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        f = File.createTempFile("logfile", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() {
+        f.delete();
+        for (File segment : segments(f))
+            segment.delete();
+    }
+
+    // the segment files of the log in f
+    static File[] segments(final File f) {
+        return f.getParentFile().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(f.getName() + ".");
+            }
+        });
+    }
+
+    // begin and commit transactions from nclients threads at once
+    static long commitsPerSec(final LogFile log, int nclients) throws Exception {
+        final AtomicInteger errors = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] clients = new Thread[nclients];
+        for (int i = 0; i < nclients; i++) {
+            clients[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < COMMITS_PER_CLIENT; j++) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            clients[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread t : clients)
+            t.join();
+        long elapsed = Math.max(1, System.nanoTime() - begin);
+        assertEquals(0, errors.get());
+        return (long)nclients * COMMITS_PER_CLIENT * 1000000000L / elapsed;
+    }
+
+    /**
+     * A commit returns once the log is forced past its record; a lone
+     * committer gets a force of its own.
+     */
+    @Test public void commitForcesLog() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(1, log.getCommitCount());
+        assertEquals(1, log.getForceCount());
+        assertEquals(2, log.getTotalRecords());
+    }
+
+    /**
+     * Concurrent commits within one batch window share a force.
+     */
+    @Test public void concurrentCommitsShareForce() throws Exception {
+        int nclients = 4;
+        log.setGroupCommit(nclients, 200000);
+        commitsPerSec(log, nclients);
+        assertEquals(nclients * COMMITS_PER_CLIENT, log.getCommitCount());
+        assertTrue(log.getForceCount() < log.getCommitCount());
+    }
+
+    /**
+     * Commits survive a checkpoint, which truncates the log, in the middle of
+     * a workload.
+     */
+    @Test public void commitAcrossTruncate() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        log.logCheckpoint();
+        commitsPerSec(log, 2);
+        assertEquals(2 * COMMITS_PER_CLIENT + 1, log.getCommitCount());
+    }
+
+    /**
+     * UPDATE records come back from their LSNs with the page images they
+     * were written with, also when they wrapped around the log buffer, and
+     * take a page tag instead of class names.
+     */
+    @Test public void updateRecordsByLsn() throws Exception {
+        Database.reset();
+        int pageSize = BufferPool.getPageSize();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        int npages = hf.numPages();
+        assertTrue(npages > 2);
+        log = new LogFile(f, 3 * pageSize);
+        log.setGroupCommit(1, 0);
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+
+        List<Long> lsns = new ArrayList<Long>();
+        List<Page> pages = new ArrayList<Page>();
+        for (int i = 0; i < npages; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            Page before = hf.readPage(pid);
+            Page after = new HeapPage(pid, hf.readPage(new HeapPageId(hf.getId(), (i + 1) % npages)).getPageData());
+            lsns.add(log.logWrite(tid, before, after));
+            pages.add(before);
+            pages.add(after);
+        }
+        long recordSize = INT_AND_LONG + 2 * (1 + 2 * 4 + 4 + pageSize) + 8;
+        for (int i = 1; i < lsns.size(); i++)
+            assertEquals(recordSize, lsns.get(i) - lsns.get(i - 1));
+
+        for (int i = 0; i < lsns.size(); i++) {
+            RandomAccessFile raf = log.seek(lsns.get(i));
+            assertEquals(LogFile.UPDATE_RECORD, raf.readInt());
+            assertEquals(tid.getId(), raf.readLong());
+            Page before = log.readPageData(raf);
+            Page after = log.readPageData(raf);
+            assertEquals(pages.get(2 * i).getId(), before.getId());
+            assertTrue(Arrays.equals(pages.get(2 * i).getPageData(), before.getPageData()));
+            assertEquals(pages.get(2 * i + 1).getId(), after.getId());
+            assertTrue(Arrays.equals(pages.get(2 * i + 1).getPageData(), after.getPageData()));
+            assertEquals((long) lsns.get(i), raf.readLong());
+        }
+    }
+
+    /**
+     * After its first change since a checkpoint, a page is logged by the
+     * bytes that changed; a checkpoint has it logged whole again.
+     */
+    @Test public void deltaRecordsAfterFirstImage() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        long first = log.logWrite(tid, page, page);
+        page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+        long second = log.logWrite(tid, page.getBeforeImage(), page);
+        long end = log.getEndLsn();
+        assertEquals(LogFile.UPDATE_RECORD, log.seek(first).readInt());
+        assertEquals(LogFile.DELTA_RECORD, log.seek(second).readInt());
+        // a header byte and a slot of two integers changed
+        assertTrue(end - second < 64);
+
+        log.logCheckpoint();
+        long third = log.logWrite(tid, page, page);
+        assertEquals(LogFile.UPDATE_RECORD, log.seek(third).readInt());
+    }
+
+    /**
+     * The changed ranges of a page cover every changed byte, and close
+     * ranges are merged.
+     */
+    @Test public void changedRanges() {
+        byte[] before = new byte[64];
+        byte[] after = before.clone();
+        assertEquals(0, LogFile.changedRanges(before, after).size());
+        after[3] = 1;
+        after[5] = 1;
+        after[40] = 1;
+        after[63] = 1;
+        List<int[]> ranges = LogFile.changedRanges(before, after);
+        assertEquals(3, ranges.size());
+        assertTrue(Arrays.equals(new int[] { 3, 3 }, ranges.get(0)));
+        assertTrue(Arrays.equals(new int[] { 40, 1 }, ranges.get(1)));
+        assertTrue(Arrays.equals(new int[] { 63, 1 }, ranges.get(2)));
+    }
+
+    /**
+     * Flushing a transaction's pages puts their update records on disk
+     * first.
+     */
+    @Test public void writeAheadOfPages() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long begin = log.getEndLsn();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+        Database.getBufferPool().flushPages(tid);
+        assertTrue(log.getEndLsn() > begin);
+        assertTrue(log.getDurableLsn() >= log.getEndLsn());
+        RandomAccessFile raf = log.seek(begin);
+        assertEquals(LogFile.UPDATE_RECORD, raf.readInt());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Aborting a transaction whose pages were already flushed puts back the
+     * before images its update records carry.
+     */
+    @Test public void abortRollsBackFlushedPages() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        Database.getBufferPool().flushAllPages();
+        assertTrue(hf.numPages() > 1);
+        t.abort();
+        assertEquals(10, count(hf));
+    }
+
+    /**
+     * Aborting a transaction undoes the changes it logged by bytes as well,
+     * and leaves the changes of the transactions before it.
+     */
+    @Test public void abortUndoesDeltas() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        for (int i = 0; i < 3; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+            Database.getBufferPool().flushAllPages();
+        }
+        t.abort();
+        assertEquals(11, count(hf));
+    }
+
+    /**
+     * A commit forces the log once and leaves its pages to the page writer.
+     */
+    @Test public void commitForcesOnlyTheLog() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 1, 1 }));
+        long forces = log.getForceCount();
+        t.commit();
+        assertEquals(forces + 1, log.getForceCount());
+
+        Database.getBufferPool().writeLoggedPages();
+        Iterator<Tuple> it = ((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator();
+        int n = 0;
+        for (; it.hasNext(); it.next())
+            n++;
+        assertEquals(11, n);
+    }
+
+    private static int count(HeapFile hf) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * A checkpoint writes no pages: the pages dirty before it are dirty
+     * after it.
+     */
+    @Test public void checkpointDoesNotFlushPages() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 500; i++)
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page page = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        assertNotNull(page.isDirty());
+
+        log.logCheckpoint();
+        assertNotNull(page.isDirty());
+        t.commit();
+        assertEquals(510, count(hf));
+    }
+
+    /**
+     * Checkpoints truncate the log by deleting the segments before the
+     * oldest record recovery needs, and the records after stay readable.
+     */
+    @Test public void truncationDeletesSegments() throws Exception {
+        log = new LogFile(f, LogWriter.DEFAULT_BUFFER_SIZE, 4096);
+        log.setGroupCommit(1, 0);
+        long lsn = 0;
+        for (int i = 0; i < 4000; i++) {
+            TransactionId tid = new TransactionId();
+            lsn = log.getEndLsn();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+            if (i % 400 == 399)
+                log.logCheckpoint();
+        }
+        assertTrue(log.getEndLsn() > 10 * 4096);
+        assertTrue(segments(f).length <= 2);
+        assertEquals(LogFile.BEGIN_RECORD, log.seek(lsn).readInt());
+    }
+
+    /**
+     * A committed single-row insert logs a small delta, well under the two
+     * pages that whole before and after images would take.
+     */
+    @Test public void logVolumePerTransaction() throws Exception {
+        Database.reset();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        int ntxns = 200;
+        // the first commit logs the page whole
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { 0, 0 }));
+        t.commit();
+        long start = log.getEndLsn();
+        for (int i = 0; i < ntxns; i++) {
+            t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+            t.commit();
+        }
+        long perTxn = (log.getEndLsn() - start) / ntxns;
+        assertTrue(perTxn < BufferPool.getPageSize() / 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
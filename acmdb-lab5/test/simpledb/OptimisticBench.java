@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Benchmarks of optimistic transactions; run with ant bench.
+ */
+public class OptimisticBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: threads running short read-modify-write transactions on
+     * pages picked with more and more skew, under two-phase locking and
+     * optimistically.  Reports the commits per second and the aborts of
+     * each.
+     */
+    @Test public void skewedContention() throws Exception {
+        int pages = 16;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, pages * OptimisticTest.TUPLES_PER_PAGE, null, null);
+        for (double hot : new double[] { 0.0, 0.5, 0.9 }) {
+            for (Transaction.Mode mode : new Transaction.Mode[] { Transaction.Mode.LOCKING, Transaction.Mode.OPTIMISTIC }) {
+                long before = OptimisticTest.sum(hf);
+                AtomicBoolean done = new AtomicBoolean(false);
+                AtomicInteger commits = new AtomicInteger(0);
+                AtomicInteger aborts = new AtomicInteger(0);
+                AtomicBoolean failed = new AtomicBoolean(false);
+                long start = System.currentTimeMillis();
+                Thread[] workers = OptimisticTest.startIncrementers(hf, pages, hot, mode, done, commits, aborts,
+                        failed);
+                Thread.sleep(500);
+                done.set(true);
+                for (Thread worker : workers)
+                    worker.join();
+                long ms = System.currentTimeMillis() - start;
+                System.out.println("Skewed contention, " + (int)(hot * 100) + "% on one page, "
+                        + mode.toString().toLowerCase() + ": " + (commits.get() * 1000L / ms) + " commits/s, "
+                        + aborts.get() + " aborts");
+                assertFalse(failed.get());
+                assertEquals(before + commits.get(), OptimisticTest.sum(hf));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticBench.class);
+    }
+}
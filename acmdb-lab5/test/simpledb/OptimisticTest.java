@@ -0,0 +1,204 @@
+package simpledb;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OptimisticTest extends SimpleDbTestBase {
+    /** Tuples of two int fields on a full page */
+    static final int TUPLES_PER_PAGE = 504;
+
+    private static int count(HeapFile hf, TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private static int count(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int n = count(hf, t.getId());
+        t.commit();
+        return n;
+    }
+
+    private static void insert(HeapFile hf, Transaction t, int i) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+    }
+
+    /**
+     * The changes of an optimistic transaction are private until it
+     * commits, and it holds no locks others would wait for.
+     */
+    @Test public void writesPrivateUntilCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction writer = new Transaction(Transaction.Mode.OPTIMISTIC);
+        writer.start();
+        insert(hf, writer, 1);
+        assertEquals(11, count(hf, writer.getId()));
+        assertFalse(Database.getBufferPool().holdsLock(writer.getId(), new HeapPageId(hf.getId(), 0)));
+        assertEquals(10, count(hf));
+        writer.commit();
+        assertEquals(11, count(hf));
+    }
+
+    /**
+     * A transaction that read a page another one changed and committed
+     * since is aborted at commit, and its changes are dropped.
+     */
+    @Test public void conflictAborts() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        Transaction first = new Transaction(Transaction.Mode.OPTIMISTIC);
+        first.start();
+        assertEquals(10, count(hf, first.getId()));
+        Transaction second = new Transaction(Transaction.Mode.OPTIMISTIC);
+        second.start();
+        insert(hf, second, 1);
+        second.commit();
+        insert(hf, first, 2);
+        try {
+            first.commit();
+            fail("expected the first transaction to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(11, count(hf));
+    }
+
+    /**
+     * Transactions that touch different pages both commit.
+     */
+    @Test public void disjointPagesCommit() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 4 * TUPLES_PER_PAGE, null, null);
+        Transaction first = new Transaction(Transaction.Mode.OPTIMISTIC);
+        Transaction second = new Transaction(Transaction.Mode.OPTIMISTIC);
+        first.start();
+        second.start();
+        increment(hf, first, 0, 0);
+        increment(hf, second, 2, 2);
+        first.commit();
+        second.commit();
+        assertEquals(4 * TUPLES_PER_PAGE, count(hf));
+    }
+
+    // add one to the second field of the first tuple on page n, after
+    // reading the first tuple on page m
+    private static void increment(HeapFile hf, Transaction t, int n, int m) throws Exception {
+        BufferPool pool = Database.getBufferPool();
+        HeapPage read = (HeapPage)pool.getPage(t.getId(), new HeapPageId(hf.getId(), m), Permissions.READ_ONLY);
+        read.iterator().next();
+        HeapPage page = (HeapPage)pool.getPage(t.getId(), new HeapPageId(hf.getId(), n), Permissions.READ_WRITE);
+        Tuple old = page.iterator().next();
+        Tuple updated = new Tuple(old.getTupleDesc());
+        updated.setField(0, old.getField(0));
+        updated.setField(1, new IntField(((IntField)old.getField(1)).getValue() + 1));
+        page.deleteTuple(old);
+        page.insertTuple(updated);
+        page.markDirty(true, t.getId());
+    }
+
+    static long sum(HeapFile hf) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        long sum = 0;
+        while (it.hasNext())
+            sum += ((IntField)it.next().getField(1)).getValue();
+        it.close();
+        t.commit();
+        return sum;
+    }
+
+    // threads running short read-modify-write transactions in mode until
+    // done, on pages picked with probability hot as the first one, and
+    // uniformly otherwise; counts the commits and aborts
+    static Thread[] startIncrementers(final HeapFile hf, final int pages, final double hot,
+            final Transaction.Mode mode, final AtomicBoolean done, final AtomicInteger commits,
+            final AtomicInteger aborts, final AtomicBoolean failed) {
+        Thread[] workers = new Thread[4];
+        for (int w = 0; w < workers.length; w++) {
+            final Random random = new Random(w);
+            workers[w] = new Thread() {
+                // a page, the first one with probability hot
+                int pick() {
+                    return random.nextDouble() < hot ? 0 : random.nextInt(pages);
+                }
+
+                public void run() {
+                    while (!done.get()) {
+                        Transaction t = new Transaction(mode);
+                        t.start();
+                        try {
+                            increment(hf, t, pick(), pick());
+                            t.commit();
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            try {
+                                t.abort();
+                            } catch (Exception e2) {
+                                e2.printStackTrace();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            failed.set(true);
+                            return;
+                        }
+                    }
+                }
+            };
+            workers[w].start();
+        }
+        return workers;
+    }
+
+    /**
+     * Threads running short read-modify-write transactions on pages picked
+     * with more and more skew, under two-phase locking and optimistically:
+     * every committed increment, and nothing else, is in the table
+     * afterwards.
+     */
+    @Test public void skewedContention() throws Exception {
+        int pages = 16;
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, pages * TUPLES_PER_PAGE, null, null);
+        for (double hot : new double[] { 0.0, 0.5, 0.9 }) {
+            for (Transaction.Mode mode : new Transaction.Mode[] { Transaction.Mode.LOCKING, Transaction.Mode.OPTIMISTIC }) {
+                long before = sum(hf);
+                AtomicBoolean done = new AtomicBoolean(false);
+                AtomicInteger commits = new AtomicInteger(0);
+                AtomicInteger aborts = new AtomicInteger(0);
+                AtomicBoolean failed = new AtomicBoolean(false);
+                Thread[] workers = startIncrementers(hf, pages, hot, mode, done, commits, aborts, failed);
+                while (commits.get() < 100 && !failed.get())
+                    Thread.sleep(10);
+                done.set(true);
+                for (Thread worker : workers)
+                    worker.join();
+                assertFalse(failed.get());
+                assertTrue(commits.get() > 0);
+                assertEquals(before + commits.get(), sum(hf));
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
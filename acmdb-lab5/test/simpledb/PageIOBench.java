@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of PageIO; run with ant bench.
+ */
+public class PageIOBench {
+    private static final int SCAN_PAGES = 256;
+    private static final int ROUNDS = 5;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+    }
+
+    // the way HeapFile used to read pages: a new file handle for every page
+    private static void readPerCallOpen(File f, int pageNo, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        raf.seek((long) pageNo * data.length);
+        raf.readFully(data);
+        raf.close();
+    }
+
+    private static long coldScan(HeapFile hf) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        long start = System.nanoTime();
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        long elapsed = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(count > 0);
+        return Math.max(1, elapsed);
+    }
+
+    /**
+     * Microbenchmark: page reads per second when every read opens the file,
+     * through the shared channel, and through a mapping, followed by a cold
+     * scan of a table through a fresh BufferPool with and without mapping.
+     */
+    @Test public void coldScanThroughput() throws Exception {
+        // two int columns: 8 bytes plus one header bit per tuple
+        int rowsPerPage = BufferPool.getPageSize() * 8 / (8 * 8 + 1);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rowsPerPage * SCAN_PAGES, null, null);
+        PageIO io = PageIO.forFile(hf.getFile());
+        int pageSize = BufferPool.getPageSize();
+        byte[] data = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+
+        long open = Long.MAX_VALUE, channel = Long.MAX_VALUE, mapped = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < SCAN_PAGES; i++)
+                readPerCallOpen(hf.getFile(), i, data);
+            open = Math.min(open, System.nanoTime() - start);
+
+            io.setMapped(false);
+            start = System.nanoTime();
+            for (int i = 0; i < SCAN_PAGES; i++) {
+                buf.clear();
+                io.read((long) i * pageSize, buf);
+            }
+            channel = Math.min(channel, System.nanoTime() - start);
+
+            io.setMapped(true);
+            start = System.nanoTime();
+            for (int i = 0; i < SCAN_PAGES; i++) {
+                buf.clear();
+                io.read((long) i * pageSize, buf);
+            }
+            mapped = Math.min(mapped, System.nanoTime() - start);
+        }
+        io.setMapped(false);
+        System.out.println("PageIO page reads: open per read " + SCAN_PAGES * 1000000000L / Math.max(1, open)
+                + " pages/sec, channel " + SCAN_PAGES * 1000000000L / Math.max(1, channel)
+                + " pages/sec, mapped " + SCAN_PAGES * 1000000000L / Math.max(1, mapped) + " pages/sec");
+
+        long scan = Long.MAX_VALUE, mappedScan = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            hf.setMemoryMapped(false);
+            scan = Math.min(scan, coldScan(hf));
+            hf.setMemoryMapped(true);
+            mappedScan = Math.min(mappedScan, coldScan(hf));
+        }
+        hf.setMemoryMapped(false);
+        System.out.println("HeapFile cold scan: channel " + SCAN_PAGES * 1000000000L / scan
+                + " pages/sec, mapped " + SCAN_PAGES * 1000000000L / mappedScan + " pages/sec");
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageIOBench.class);
+    }
+}
@@ -0,0 +1,114 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageIOTest {
+    private File f;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        f = File.createTempFile("pageio", ".dat");
+        f.deleteOnExit();
+    }
+
+    private static byte[] page(int fill) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        Arrays.fill(data, (byte) fill);
+        return data;
+    }
+
+    /**
+     * Unit test for PageIO.read() and write()
+     */
+    @Test public void readWrite() throws Exception {
+        PageIO io = PageIO.forFile(f);
+        int pageSize = BufferPool.getPageSize();
+        io.write(0, page(1));
+        io.write(2L * pageSize, page(3));
+        assertEquals(3L * pageSize, io.size());
+
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        assertEquals(pageSize, io.read(2L * pageSize, buf));
+        assertArrayEquals(page(3), buf.array());
+
+        // the hole in between reads as zeroes
+        buf.clear();
+        assertEquals(pageSize, io.read(pageSize, buf));
+        assertArrayEquals(page(0), buf.array());
+
+        // so does everything past the end of the file
+        buf = ByteBuffer.wrap(page(7));
+        assertEquals(0, io.read(3L * pageSize, buf));
+        assertArrayEquals(page(0), buf.array());
+    }
+
+    /**
+     * All users of a file share its PageIO, which survives closeAll().
+     */
+    @Test public void sharedPerFile() throws Exception {
+        PageIO io = PageIO.forFile(f);
+        assertSame(io, PageIO.forFile(new File(f.getPath())));
+        io.write(0, page(5));
+
+        PageIO.closeAll();
+        ByteBuffer buf = ByteBuffer.allocate(BufferPool.getPageSize());
+        io.read(0, buf);
+        assertArrayEquals(page(5), buf.array());
+    }
+
+    /**
+     * Mapped reads see writes made through the channel, including ones that
+     * grow the file past the current mapping.
+     */
+    @Test public void mappedReadsSeeWrites() throws Exception {
+        PageIO io = PageIO.forFile(f);
+        int pageSize = BufferPool.getPageSize();
+        io.setMapped(true);
+        io.write(0, page(1));
+
+        ByteBuffer buf = ByteBuffer.allocate(pageSize);
+        io.read(0, buf);
+        assertArrayEquals(page(1), buf.array());
+
+        io.write(0, page(2));
+        io.write(pageSize, page(4));
+        buf.clear();
+        io.read(0, buf);
+        assertArrayEquals(page(2), buf.array());
+        buf.clear();
+        assertEquals(pageSize, io.read(pageSize, buf));
+        assertArrayEquals(page(4), buf.array());
+
+        io.setMapped(false);
+    }
+
+    /**
+     * A mapped HeapFile returns the same tuples as an unmapped one.
+     */
+    @Test public void mappedHeapFile() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, tuples);
+        hf.setMemoryMapped(true);
+        try {
+            SystemTestUtil.matchTuples(hf, tuples);
+        } finally {
+            hf.setMemoryMapped(false);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageIOTest.class);
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of read-ahead on ReadAheadTest's slow disk; run with ant bench.
+ */
+public class ReadAheadBench {
+    private static final int PAGES = ReadAheadTest.PAGES;
+
+    private ReadAheadTest.SlowHeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        hf = ReadAheadTest.createSlowHeapFile();
+    }
+
+    @After public void tearDown() {
+        ReadAhead.setEnabled(true);
+    }
+
+    /**
+     * Benchmark: a cold scan of a table on a slow disk with and without
+     * read-ahead.
+     */
+    @Test public void coldScanThroughput() throws Exception {
+        ReadAhead.setEnabled(false);
+        long without = ReadAheadTest.scan(hf);
+        assertEquals(0, hf.prefetched.get());
+        ReadAhead.setEnabled(true);
+        long with = ReadAheadTest.scan(hf);
+        System.out.println("Cold scan of " + PAGES + " pages at " + ReadAheadTest.LATENCY_MS + "ms per read: "
+                + PAGES * 1000000000L / without + " pages/sec without read-ahead, "
+                + PAGES * 1000000000L / with + " pages/sec with read-ahead");
+        assertEquals(PAGES, hf.reads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadBench.class);
+    }
+}
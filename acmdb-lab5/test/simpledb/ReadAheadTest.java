@@ -0,0 +1,273 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest {
+    static final int PAGES = 200;
+    // simulated latency of one disk read
+    static final long LATENCY_MS = 5;
+
+    /**
+     * Heap file on a slow disk: every read costs LATENCY_MS, but a run of
+     * pages staged with one read costs it only once.  Counts the reads of
+     * each page and which of them the read-ahead threads did.
+     */
+    static class SlowHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger(0);
+        final AtomicInteger prefetched = new AtomicInteger(0);
+        final AtomicInteger stages = new AtomicInteger(0);
+        private final ThreadLocal<int[]> staged = new ThreadLocal<int[]>();
+
+        public SlowHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        private static void sleep() {
+            try {
+                Thread.sleep(LATENCY_MS);
+            } catch (InterruptedException e) {
+                // just read
+            }
+        }
+
+        @Override
+        public void stagePages(int firstPageNo, int numPages) throws IOException {
+            stages.incrementAndGet();
+            sleep();
+            staged.set(new int[] { firstPageNo, firstPageNo + numPages });
+            super.stagePages(firstPageNo, numPages);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            count(pid);
+            return super.readPage(pid);
+        }
+
+        @Override
+        public Page readPage(PageId pid, ByteBuffer frame) {
+            count(pid);
+            return super.readPage(pid, frame);
+        }
+
+        private void count(PageId pid) {
+            reads.incrementAndGet();
+            if (Thread.currentThread().getName().equals("simpledb-read-ahead"))
+                prefetched.incrementAndGet();
+            int[] run = staged.get();
+            if (run == null || pid.pageNumber() < run[0] || pid.pageNumber() >= run[1])
+                sleep();
+        }
+    }
+
+    private SlowHeapFile hf;
+
+    // a fresh database with a table of PAGES pages on a slow disk
+    static SlowHeapFile createSlowHeapFile() throws Exception {
+        Database.reset();
+        // two int columns: 8 bytes plus one header bit per tuple
+        int rowsPerPage = BufferPool.getPageSize() * 8 / (8 * 8 + 1);
+        HeapFile tmp = SystemTestUtil.createRandomHeapFile(2, rowsPerPage * PAGES, null, null);
+        SlowHeapFile hf = new SlowHeapFile(tmp.getFile(), tmp.getTupleDesc());
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        return hf;
+    }
+
+    @Before public void setUp() throws Exception {
+        hf = createSlowHeapFile();
+    }
+
+    @After public void tearDown() {
+        ReadAhead.setEnabled(true);
+    }
+
+    // scan hf through a fresh BufferPool; returns the time taken in ns
+    static long scan(SlowHeapFile hf) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        hf.reads.set(0);
+        hf.prefetched.set(0);
+        hf.stages.set(0);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        long start = System.nanoTime();
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        long elapsed = System.nanoTime() - start;
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(count > 0);
+        return elapsed;
+    }
+
+    /**
+     * A sequential scan has most of its pages prefetched, in staged runs,
+     * and still reads every page exactly once.
+     */
+    @Test public void sequentialScanPrefetches() throws Exception {
+        scan(hf);
+        assertEquals(PAGES, hf.reads.get());
+        assertTrue(hf.prefetched.get() > PAGES / 2);
+        assertTrue(hf.stages.get() > 0);
+    }
+
+    /**
+     * Jumping around does not trigger read-ahead.
+     */
+    @Test public void randomAccessDoesNotPrefetch() throws Exception {
+        ReadAhead ra = new ReadAhead(new ReadAhead.PageSequence() {
+            public List<PageId> pagesAfter(PageId pid, int n) {
+                List<PageId> pids = new ArrayList<PageId>();
+                for (int i = pid.pageNumber() + 1; i < Math.min(PAGES, pid.pageNumber() + 1 + n); i++)
+                    pids.add(new HeapPageId(hf.getId(), i));
+                return pids;
+            }
+        });
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 20; i++) {
+            PageId pid = new HeapPageId(hf.getId(), (i * 37) % PAGES);
+            ra.visit(pid);
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(20, hf.reads.get());
+        assertEquals(0, hf.prefetched.get());
+    }
+
+    /**
+     * A scan that consumes pages faster than they arrive gets a deeper
+     * window, up to a quarter of the pool.
+     */
+    @Test public void depthAdapts() throws Exception {
+        ReadAhead ra = new ReadAhead(new ReadAhead.PageSequence() {
+            public List<PageId> pagesAfter(PageId pid, int n) {
+                List<PageId> pids = new ArrayList<PageId>();
+                for (int i = pid.pageNumber() + 1; i < Math.min(PAGES, pid.pageNumber() + 1 + n); i++)
+                    pids.add(new HeapPageId(hf.getId(), i));
+                return pids;
+            }
+        });
+        TransactionId tid = new TransactionId();
+        int maxDepth = 0;
+        for (int i = 0; i < PAGES; i++) {
+            PageId pid = new HeapPageId(hf.getId(), i);
+            ra.visit(pid);
+            Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            maxDepth = Math.max(maxDepth, ra.getDepth());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(maxDepth > ReadAhead.MIN_DEPTH);
+        assertTrue(maxDepth <= BufferPool.DEFAULT_PAGES / 4);
+    }
+
+    /**
+     * A full scan of a B+ tree prefetches leaves and reads each leaf once.
+     */
+    @Test public void btreeScanPrefetches() throws Exception {
+        final Map<PageId, Integer> reads = Collections.synchronizedMap(new HashMap<PageId, Integer>());
+        final AtomicInteger prefetched = new AtomicInteger(0);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile tmp = BTreeUtility.createRandomBTreeFile(2, 20000, null, tuples, 0);
+        BTreeFile bf = new BTreeFile(tmp.getFile(), 0, tmp.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                if (((BTreePageId) pid).pgcateg() == BTreePageId.LEAF) {
+                    Integer n = reads.get(pid);
+                    reads.put(pid, n == null ? 1 : n + 1);
+                }
+                if (Thread.currentThread().getName().equals("simpledb-read-ahead"))
+                    prefetched.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(bf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(bf, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+        for (Integer n : reads.values())
+            assertEquals(1, (int) n);
+        assertTrue(prefetched.get() > 0);
+    }
+
+    /**
+     * A prefetch takes no locks, so it can read a page that a rollback then
+     * restores on disk and discards; it must read the page again rather than
+     * install the image it read first.
+     */
+    @Test public void prefetchOverlappingDiscard() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger(0);
+        HeapFile blocking = new HeapFile(hf.getFile(), hf.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                return blockFirst(super.readPage(pid));
+            }
+
+            @Override
+            public Page readPage(PageId pid, ByteBuffer frame) {
+                return blockFirst(super.readPage(pid, frame));
+            }
+
+            private Page blockFirst(Page page) {
+                if (reads.incrementAndGet() == 1) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // just return the page
+                    }
+                }
+                return page;
+            }
+        };
+        Database.getCatalog().addTable(blocking, SystemTestUtil.getUUID());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final HeapPageId pid = new HeapPageId(blocking.getId(), 0);
+
+        Thread prefetcher = new Thread() {
+            public void run() {
+                Database.getBufferPool().prefetchPages(Arrays.asList((PageId) pid));
+            }
+        };
+        prefetcher.start();
+        entered.await();
+        // what a rollback does: put the old image on disk, then discard
+        blocking.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        Database.getBufferPool().discardPage(pid);
+        release.countDown();
+        prefetcher.join();
+
+        assertEquals(2, reads.get());
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(2, reads.get());
+        assertFalse(page.iterator().hasNext());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
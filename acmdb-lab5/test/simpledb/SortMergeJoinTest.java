@@ -0,0 +1,139 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+    // n tuples with fields named alias.c0, alias.c1, ..., keyed by the first
+    // field from 0 to keys - 1, in random order
+    private static TupleIterator randomTuples(String alias, int width, int n, int keys, long seed) {
+        Type[] types = new Type[width];
+        String[] names = new String[width];
+        for (int i = 0; i < width; i++) {
+            types[i] = Type.INT_TYPE;
+            names[i] = alias + ".c" + i;
+        }
+        TupleDesc td = new TupleDesc(types, names);
+        Random random = new Random(seed);
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(td);
+            for (int j = 0; j < width; j++)
+                t.setField(j, new IntField(j == 0 ? random.nextInt(keys) : random.nextInt()));
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+    private static ArrayList<String> sortedResult(DbIterator it) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            ret.add(it.next().toString());
+        it.close();
+        Collections.sort(ret);
+        return ret;
+    }
+
+    // join with a sort-merge and a nested loops join, with 3 pages so the
+    // sorts spill, and check they agree; returns the result size
+    private static int checkJoin(Predicate.Op op, int n1, int n2) throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, op, 0);
+        ArrayList<String> expected = sortedResult(new Join(pred,
+                randomTuples("a", 2, n1, 1000, 1), randomTuples("b", 3, n2, 1000, 2)));
+        SortMergeJoin smj = new SortMergeJoin(pred,
+                randomTuples("a", 2, n1, 1000, 1), randomTuples("b", 3, n2, 1000, 2), 3);
+        assertEquals(expected, sortedResult(smj));
+        return expected.size();
+    }
+
+    /**
+     * An equality join of unsorted children with many equal keys.
+     */
+    @Test public void equalityJoin() throws Exception {
+        assertTrue(checkJoin(Predicate.Op.EQUALS, 3000, 5000) > 1000);
+    }
+
+    /**
+     * Band joins, where the prefix matching a tuple is longer than the
+     * part kept in memory.
+     */
+    @Test public void inequalityJoins() throws Exception {
+        checkJoin(Predicate.Op.GREATER_THAN, 40, 2000);
+        checkJoin(Predicate.Op.GREATER_THAN_OR_EQ, 40, 2000);
+        checkJoin(Predicate.Op.LESS_THAN, 2000, 40);
+        checkJoin(Predicate.Op.LESS_THAN_OR_EQ, 2000, 40);
+    }
+
+    /**
+     * A band join keeps the order of its driving child, so a later merge
+     * join can use it without sorting, and rewinding gives the same output.
+     * The driving child is not sorted by the join itself.
+     */
+    @Test public void outputOrder() throws Exception {
+        JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+        assertFalse(SortMergeJoin.isSorted(new SortMergeJoin(pred,
+                randomTuples("a", 2, 200, 1000, 1), randomTuples("b", 3, 200, 1000, 2)), 0));
+        SortMergeJoin smj = new SortMergeJoin(pred,
+                new ExternalSort(0, true, randomTuples("a", 2, 200, 1000, 1), 3),
+                randomTuples("b", 3, 200, 1000, 2));
+        assertTrue(SortMergeJoin.isSorted(smj, 0));
+        assertFalse(SortMergeJoin.isSorted(smj, 2));
+        smj.open();
+        int last = Integer.MIN_VALUE;
+        int n = 0;
+        while (smj.hasNext()) {
+            int key = ((IntField) smj.next().getField(0)).getValue();
+            assertTrue(last <= key);
+            last = key;
+            n++;
+        }
+        smj.rewind();
+        int again = 0;
+        while (smj.hasNext()) {
+            smj.next();
+            again++;
+        }
+        smj.close();
+        assertEquals(n, again);
+    }
+
+    /**
+     * Scans of B+ trees are sorted on their key field, and the optimizer
+     * merges children that are both in order.
+     */
+    @Test public void sortedInputs() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 1);
+        TransactionId tid = new TransactionId();
+        assertTrue(SortMergeJoin.isSorted(new SeqScan(tid, bf.getId()), 1));
+        assertFalse(SortMergeJoin.isSorted(new SeqScan(tid, bf.getId()), 0));
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(5));
+        assertTrue(SortMergeJoin.isSorted(new Filter(p, new SeqScan(tid, bf.getId())), 1));
+
+        LogicalJoinNode lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.EQUALS);
+        DbIterator a = new ExternalSort(0, true, randomTuples("a", 2, 10, 10, 1), 3);
+        DbIterator b = new ExternalSort(0, true, randomTuples("b", 2, 10, 10, 2), 3);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, b) instanceof SortMergeJoin);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, randomTuples("b", 2, 10, 10, 2))
+                instanceof HashEquiJoin);
+        lj = new LogicalJoinNode("a", "b", "c0", "c0", Predicate.Op.LESS_THAN);
+        assertTrue(JoinOptimizer.instantiateJoin(lj, a, randomTuples("b", 2, 10, 10, 2))
+                instanceof SortMergeJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
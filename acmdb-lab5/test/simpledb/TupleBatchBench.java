@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static simpledb.TupleBatchTest.lessThan;
+
+/**
+ * Benchmarks of batch at a time execution; run with ant bench.
+ */
+public class TupleBatchBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: queries over a lineitem-like table of (orderkey, quantity,
+     * price, discount, shipdate), run a tuple at a time and a batch at a
+     * time from cached pages.  Reports the best of 3 runs of each:
+     * <ul>
+     * <li>scan-filter-aggregate, like TPC-H Q6: the sum of price over a
+     * range of shipdates, discounts and quantities
+     * <li>a join with an orders-like table of (orderkey, priority), like
+     * TPC-H Q12: the number of lineitems of urgent orders shipped in a range
+     * </ul>
+     */
+    @Test public void tupleVersusBatchBenchmark() throws Exception {
+        HashMap<Integer, Integer> spec = new HashMap<Integer, Integer>();
+        HeapFile lineitem = SystemTestUtil.createRandomHeapFile(5, 200000, 1000, spec, null);
+        HeapFile orders = SystemTestUtil.createRandomHeapFile(2, 20000, 1000, spec, null);
+        Database.resetBufferPool(2000);
+        TransactionId tid = new TransactionId();
+        for (int q = 0; q < 2; q++) {
+            long[] best = new long[] { Long.MAX_VALUE, Long.MAX_VALUE };
+            long[] result = new long[2];
+            for (int run = 0; run < 6; run++) {
+                boolean batched = run % 2 == 1;
+                DbIterator plan = new Filter(lessThan(4, 500), new Filter(
+                        new Predicate(4, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(300)),
+                        new Filter(lessThan(3, 100), new Filter(lessThan(1, 240),
+                                new SeqScan(tid, lineitem.getId())))));
+                if (q == 1)
+                    plan = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                            new Filter(lessThan(1, 200), new SeqScan(tid, orders.getId())), plan);
+                int field = q == 0 ? 2 : 0;
+                long start = System.nanoTime();
+                long sum = 0;
+                plan.open();
+                if (batched) {
+                    TupleBatch batch;
+                    while ((batch = plan.nextBatch(TupleBatch.DEFAULT_SIZE)) != null) {
+                        int[] values = batch.getInts(field);
+                        int[] selection = batch.getSelection();
+                        for (int i = 0; i < batch.numSelected(); i++)
+                            sum += q == 0 ? values[selection[i]] : 1;
+                    }
+                } else {
+                    while (plan.hasNext()) {
+                        Tuple t = plan.next();
+                        sum += q == 0 ? ((IntField) t.getField(field)).getValue() : 1;
+                    }
+                }
+                plan.close();
+                long ns = System.nanoTime() - start;
+                int i = batched ? 1 : 0;
+                best[i] = Math.min(best[i], ns);
+                result[i] = sum;
+            }
+            assertEquals(result[0], result[1]);
+            System.out.println((q == 0 ? "scan-filter-aggregate" : "join")
+                    + ": tuple at a time " + best[0] / 1000000 + " ms, batch at a time "
+                    + best[1] / 1000000 + " ms");
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchBench.class);
+    }
+}
@@ -0,0 +1,239 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+    private static ArrayList<String> sortedResult(DbIterator it) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        it.open();
+        while (it.hasNext())
+            ret.add(it.next().toString());
+        it.close();
+        Collections.sort(ret);
+        return ret;
+    }
+
+    // the same, reading the iterator a batch of 100 tuples at a time
+    private static ArrayList<String> sortedBatchResult(DbIterator it) throws Exception {
+        ArrayList<String> ret = new ArrayList<String>();
+        it.open();
+        TupleBatch batch;
+        while ((batch = it.nextBatch(100)) != null) {
+            assertFalse(batch.isEmpty());
+            assertTrue(batch.numRows() <= 100);
+            for (int i = 0; i < batch.numSelected(); i++)
+                ret.add(batch.getTuple(batch.getSelection()[i]).toString());
+        }
+        it.close();
+        Collections.sort(ret);
+        return ret;
+    }
+
+    static Predicate lessThan(int field, int value) {
+        return new Predicate(field, Predicate.Op.LESS_THAN, new IntField(value));
+    }
+
+    // a projection of a filtered scan
+    private static DbIterator scanFilterProject(TransactionId tid, HeapFile f) {
+        ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        return new Project(fields, types, new Filter(lessThan(1, 300),
+                new Filter(lessThan(0, 500), new SeqScan(tid, f.getId()))));
+    }
+
+    /**
+     * Scans, filters and projections give the same tuples a batch at a time
+     * as one at a time, also when mixing next() and nextBatch().
+     */
+    @Test public void scanFilterProject() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 1000, null, null);
+        TransactionId tid = new TransactionId();
+        ArrayList<String> expected = sortedResult(scanFilterProject(tid, f));
+        assertTrue(expected.size() > 100);
+        assertEquals(expected, sortedBatchResult(scanFilterProject(tid, f)));
+        assertEquals(expected, sortedResult(new TupleBatchIterator(scanFilterProject(tid, f), 7)));
+
+        DbIterator plan = scanFilterProject(tid, f);
+        plan.open();
+        ArrayList<String> mixed = new ArrayList<String>();
+        while (plan.hasNext()) {
+            mixed.add(plan.next().toString());
+            TupleBatch batch = plan.nextBatch(10);
+            if (batch == null)
+                break;
+            for (int i = 0; i < batch.numSelected(); i++)
+                mixed.add(batch.getTuple(batch.getSelection()[i]).toString());
+        }
+        plan.close();
+        Collections.sort(mixed);
+        assertEquals(expected, mixed);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples read from batches of a scan keep their RecordIds, through
+     * filters and projections, so they can be deleted.
+     */
+    @Test public void deleteFromBatches() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, tuples);
+        int kept = 0;
+        for (ArrayList<Integer> t : tuples)
+            if (t.get(0) >= 500)
+                kept++;
+        TransactionId tid = new TransactionId();
+        ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(1, 0));
+        Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+        DbIterator plan = new TupleBatchIterator(new Project(fields, types,
+                new Filter(lessThan(0, 500), new SeqScan(tid, f.getId()))), 100);
+        Delete delete = new Delete(tid, plan);
+        delete.open();
+        assertEquals(tuples.size() - kept, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        assertEquals(kept, sortedResult(new SeqScan(tid, f.getId())).size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * String fields are kept in columns of Strings and filtered through
+     * their Fields.
+     */
+    @Test public void stringFields() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("s" + (i % 10), Type.STRING_LEN));
+            tuples.add(t);
+        }
+        Predicate p = new Predicate(1, Predicate.Op.EQUALS, new StringField("s3", Type.STRING_LEN));
+        Filter filter = new Filter(p, new TupleIterator(td, tuples));
+        filter.open();
+        TupleBatch batch = filter.nextBatch(TupleBatch.DEFAULT_SIZE);
+        assertEquals(30, batch.numSelected());
+        assertEquals(300, batch.numRows());
+        for (int i = 0; i < batch.numSelected(); i++) {
+            int row = batch.getSelection()[i];
+            assertEquals("s3", batch.getStrings(1)[row]);
+            assertEquals(row, batch.getInts(0)[row]);
+        }
+        assertNull(filter.nextBatch(TupleBatch.DEFAULT_SIZE));
+        filter.close();
+    }
+
+    /**
+     * A scan decodes string fields of a heap file into a batch as next()
+     * reads them.
+     */
+    @Test public void scanStringFields() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        File file = File.createTempFile("strings", ".dat");
+        file.deleteOnExit();
+        HeapFile f = new HeapFile(file, td);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 500; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(i % 7 == 0 ? "" : "s" + i, Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        }
+        ArrayList<String> expected = sortedResult(new SeqScan(tid, f.getId()));
+        assertEquals(500, expected.size());
+        assertEquals(expected, sortedBatchResult(new SeqScan(tid, f.getId())));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Aggregates merge integer columns a batch at a time.
+     */
+    @Test public void aggregate() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 20, null, tuples);
+        HashMap<Integer, Integer> sums = new HashMap<Integer, Integer>();
+        int total = 0;
+        for (ArrayList<Integer> t : tuples) {
+            Integer sum = sums.get(t.get(0));
+            sums.put(t.get(0), (sum == null ? 0 : sum) + t.get(1));
+            total += t.get(1);
+        }
+        TransactionId tid = new TransactionId();
+        Aggregate agg = new Aggregate(new SeqScan(tid, f.getId()), 1, 0, Aggregator.Op.SUM);
+        agg.open();
+        int groups = 0;
+        while (agg.hasNext()) {
+            Tuple t = agg.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertEquals((int) sums.get(key), ((IntField) t.getField(1)).getValue());
+            groups++;
+        }
+        agg.close();
+        assertEquals(sums.size(), groups);
+
+        agg = new Aggregate(new SeqScan(tid, f.getId()), 1, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+        agg.open();
+        TupleBatch batch = agg.nextBatch(TupleBatch.DEFAULT_SIZE);
+        assertEquals(1, batch.numSelected());
+        assertEquals(total, batch.getInts(0)[batch.getSelection()[0]]);
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // the j-th of the kinds of join, of f1 with f2 or bf
+    private static DbIterator join(int j, TransactionId tid, HeapFile f1, HeapFile f2,
+            BTreeFile bf) {
+        JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        JoinPredicate lt = new JoinPredicate(0, Predicate.Op.LESS_THAN, 0);
+        SeqScan s1 = new SeqScan(tid, f1.getId());
+        SeqScan s2 = new SeqScan(tid, f2.getId());
+        switch (j) {
+        case 0:
+            return new Join(lt, s1, s2);
+        case 1:
+            return new HashEquiJoin(eq, s1, s2);
+        case 2:
+            return new SortMergeJoin(eq, s1, s2);
+        case 3:
+            return new SortMergeJoin(lt, s1, s2);
+        default:
+            return new IndexNestedLoopJoin(eq, s1, new SeqScan(tid, bf.getId()));
+        }
+    }
+
+    /**
+     * Joins add the pairs they find to batches, giving the same tuples as
+     * one at a time.
+     */
+    @Test public void joins() throws Exception {
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 300, 200, null, null);
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(3, 500, 200, null, null);
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(3, 500, 200, null, null, 0);
+        TransactionId tid = new TransactionId();
+        for (int j = 0; j < 5; j++) {
+            ArrayList<String> expected = sortedResult(join(j, tid, f1, f2, bf));
+            assertTrue(expected.size() > 100);
+            assertEquals(expected, sortedBatchResult(join(j, tid, f1, f2, bf)));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleBatchTest.class);
+    }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class VersionStoreTest extends SimpleDbTestBase {
+    private HeapFile hf;
+
+    @Before public void createTable() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    }
+
+    private static int count(HeapFile hf, TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private void insert(Transaction t, int i) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] { i, i }));
+    }
+
+    /**
+     * A snapshot does not see the commits after it began; a later one does.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 1);
+        writer.commit();
+        assertEquals(10, count(hf, reader.getId()));
+        reader.commit();
+
+        reader = new Transaction(true);
+        reader.start();
+        assertEquals(11, count(hf, reader.getId()));
+        reader.commit();
+    }
+
+    /**
+     * A snapshot reads pages a writer holds locks on, without waiting and
+     * without seeing the uncommitted changes, before and after they are
+     * logged.
+     */
+    @Test public void snapshotTakesNoLocks() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 1);
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(10, count(hf, reader.getId()));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(10, count(hf, reader.getId()));
+        assertFalse(Database.getBufferPool().holdsLock(reader.getId(), new HeapPageId(hf.getId(), 0)));
+        writer.commit();
+        assertEquals(10, count(hf, reader.getId()));
+        reader.commit();
+    }
+
+    /**
+     * A snapshot transaction cannot write.
+     */
+    @Test(expected = DbException.class) public void snapshotIsReadOnly() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        try {
+            insert(reader, 1);
+        } finally {
+            reader.commit();
+        }
+    }
+
+    /**
+     * Versions are kept while a snapshot may read them, and dropped once
+     * the snapshots end.
+     */
+    @Test public void versionsDroppedWhenSnapshotsEnd() throws Exception {
+        VersionStore versions = Database.getBufferPool().getVersionStore();
+        Transaction writer = new Transaction();
+        writer.start();
+        insert(writer, 1);
+        writer.commit();
+        assertEquals(0, versions.size());
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        for (int i = 0; i < 3; i++) {
+            writer = new Transaction();
+            writer.start();
+            insert(writer, i);
+            writer.commit();
+        }
+        assertEquals(3, versions.size());
+        assertEquals(11, count(hf, reader.getId()));
+        reader.commit();
+        assertEquals(0, versions.size());
+    }
+
+    /**
+     * A writer committing single-row inserts while a reporting query scans
+     * the table over and over, with the scans under shared locks and from
+     * snapshots.  A snapshot scanned twice gives the same count both times,
+     * and snapshot scans never abort.
+     */
+    @Test public void mixedWorkload() throws Exception {
+        for (final boolean snapshot : new boolean[] { false, true }) {
+            final AtomicBoolean done = new AtomicBoolean(false);
+            Thread writer = new Thread() {
+                public void run() {
+                    for (int i = 0; !done.get(); i++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        try {
+                            insert(t, i);
+                            t.commit();
+                        } catch (TransactionAbortedException e) {
+                            try {
+                                t.abort();
+                            } catch (Exception e2) {
+                                e2.printStackTrace();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            return;
+                        }
+                    }
+                }
+            };
+            writer.start();
+            int scanAborts = 0;
+            for (int scans = 0; scans < 100; scans++) {
+                Transaction t = new Transaction(snapshot);
+                t.start();
+                try {
+                    int n = count(hf, t.getId());
+                    if (snapshot)
+                        assertEquals(n, count(hf, t.getId()));
+                    t.commit();
+                } catch (TransactionAbortedException e) {
+                    t.abort();
+                    scanAborts++;
+                }
+            }
+            done.set(true);
+            writer.join();
+            if (snapshot)
+                assertEquals(0, scanAborts);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(VersionStoreTest.class);
+    }
+}
@@ -0,0 +1,31 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of deadlock aborts; run with ant bench.
+ */
+public class AbortRateBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: the share of transactions aborted when threads race to
+     * increment one value, as in AbortRateTest.
+     */
+    @Test public void abortRate() throws Exception {
+        for (int threads : new int[] { 2, 10 }) {
+            setUp();
+            int aborts = AbortRateTest.validateAborts(threads);
+            System.out.println(threads + " threads: " + aborts + " aborts for " + threads + " commits, abort rate "
+                    + String.format("%.2f", (double) aborts / (aborts + threads)));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AbortRateBench.class);
+    }
+}
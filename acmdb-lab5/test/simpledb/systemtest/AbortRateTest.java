@@ -0,0 +1,123 @@
+package simpledb.systemtest;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Counts the transactions aborted by deadlock detection when threads race
+ * to increment a single value, read first and then upgrade to a write.
+ */
+public class AbortRateTest extends SimpleDbTestBase {
+
+    private static class Incrementer extends Thread {
+        private final int tableId;
+        private final CountDownLatch start;
+        public Exception exception = null;
+        public int aborts = 0;
+
+        public Incrementer(int tableId, CountDownLatch start) {
+            this.tableId = tableId;
+            this.start = start;
+        }
+
+        public void run() {
+            try {
+                start.await();
+                // retry until an increment commits
+                while (true) {
+                    Transaction tr = new Transaction();
+                    try {
+                        tr.start();
+                        Query q1 = new Query(new SeqScan(tr.getId(), tableId, ""), tr.getId());
+                        q1.start();
+                        int i = ((IntField) q1.next().getField(0)).getValue();
+                        q1.close();
+                        Thread.sleep(1);
+
+                        Query q2 = new Query(new Delete(tr.getId(), new SeqScan(tr.getId(), tableId, "")), tr.getId());
+                        q2.start();
+                        q2.next();
+                        q2.close();
+
+                        Tuple t = new Tuple(SystemTestUtil.SINGLE_INT_DESCRIPTOR);
+                        t.setField(0, new IntField(i + 1));
+                        HashSet<Tuple> hs = new HashSet<Tuple>();
+                        hs.add(t);
+                        Query q3 = new Query(new Insert(tr.getId(),
+                                new TupleIterator(t.getTupleDesc(), hs), tableId), tr.getId());
+                        q3.start();
+                        q3.next();
+                        q3.close();
+
+                        tr.commit();
+                        break;
+                    } catch (TransactionAbortedException te) {
+                        tr.transactionComplete(true);
+                        aborts++;
+                    }
+                }
+            } catch (Exception e) {
+                exception = e;
+            }
+        }
+    }
+
+    /**
+     * Race threads to increment one value, check the deadlock count and the
+     * final value, and return the number of aborts.
+     */
+    static int validateAborts(int threads) throws Exception {
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        columnSpecification.put(0, 0);
+        DbFile table = SystemTestUtil.createRandomHeapFile(1, 1, columnSpecification, null);
+
+        CountDownLatch start = new CountDownLatch(1);
+        Incrementer[] list = new Incrementer[threads];
+        for (int i = 0; i < threads; i++) {
+            list[i] = new Incrementer(table.getId(), start);
+            list[i].start();
+        }
+        start.countDown();
+        int aborts = 0;
+        for (Incrementer incrementer : list) {
+            incrementer.join(60 * 1000);
+            assertFalse("Timed out waiting for transaction to complete", incrementer.isAlive());
+            if (incrementer.exception != null)
+                throw new RuntimeException("Child thread threw an exception.", incrementer.exception);
+            aborts += incrementer.aborts;
+        }
+
+        // every abort broke a deadlock, and every deadlock cost one abort
+        assertEquals(aborts, Database.getBufferPool().getLockManager().getDeadlockCount());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        assertEquals(threads, ((IntField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return aborts;
+    }
+
+    @Test public void testTwoThreads() throws Exception {
+        validateAborts(2);
+    }
+
+    @Test public void testTenThreads() throws Exception {
+        validateAborts(10);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AbortRateTest.class);
+    }
+}
@@ -0,0 +1,77 @@
+package simpledb.systemtest;
+
+import org.junit.Test;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks of the eviction policies; run with ant bench.  Replays the
+ * QueryTest workload under every policy with a pool that is much smaller
+ * than the data, and reports each policy's hit ratio.
+ * The join order is fixed (left-deep, base tables always on the inner side)
+ * so that every policy sees exactly the same page reference string: a few
+ * small tables that are rescanned constantly, interleaved with repeated
+ * sequential scans of the large hobbies table.
+ */
+public class EvictionPolicyBench extends SimpleDbTestBase {
+	private static final int POOL_PAGES = 40;
+
+	private HeapFile emp, dept, hobby, hobbies;
+
+	private int runQuery(EvictionPolicy policy) throws Exception {
+		BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+		Transaction t = new Transaction();
+		t.start();
+		long start = System.currentTimeMillis();
+
+		// SELECT * FROM emp,dept,hobbies,hobby WHERE emp.c1 = dept.c0
+		// AND hobbies.c0 = emp.c2 AND hobbies.c1 = hobby.c0 AND emp.c3 < 1000;
+		DbIterator empScan = new Filter(new Predicate(3, Predicate.Op.LESS_THAN, new IntField(1000)),
+				new SeqScan(t.getId(), emp.getId(), "emp"));
+		DbIterator plan = new Join(new JoinPredicate(1, Predicate.Op.EQUALS, 0),
+				empScan, new SeqScan(t.getId(), dept.getId(), "dept"));
+		plan = new Join(new JoinPredicate(2, Predicate.Op.EQUALS, 0),
+				plan, new SeqScan(t.getId(), hobbies.getId(), "hobbies"));
+		plan = new Join(new JoinPredicate(10, Predicate.Op.EQUALS, 0),
+				plan, new SeqScan(t.getId(), hobby.getId(), "hobby"));
+
+		int rows = 0;
+		plan.open();
+		while (plan.hasNext()) {
+			plan.next();
+			rows++;
+		}
+		plan.close();
+		t.commit();
+
+		EvictionPolicy stats = bp.getEvictionPolicy();
+		long accesses = stats.getHits() + stats.getMisses();
+		System.out.println(policy.getClass().getSimpleName() + ": " + rows + " rows, "
+				+ stats.getHits() + " hits, " + stats.getMisses() + " misses, hit ratio "
+				+ (accesses == 0 ? 0 : stats.getHits() * 100 / accesses) + "%, "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return rows;
+	}
+
+	/**
+	 * Benchmark: hit ratio and run time of the QueryTest join under each policy.
+	 */
+	@Test public void replayQueryTestWorkload() throws Exception {
+		// same tables as QueryTest
+		emp = SystemTestUtil.createRandomHeapFile(6, 100000, null, null, "c");
+		dept = SystemTestUtil.createRandomHeapFile(3, 1000, null, null, "c");
+		hobby = SystemTestUtil.createRandomHeapFile(6, 1000, null, null, "c");
+		hobbies = SystemTestUtil.createRandomHeapFile(2, 200000, null, null, "c");
+
+		int clockRows = runQuery(new ClockEvictionPolicy());
+		assertEquals(clockRows, runQuery(new LRUKEvictionPolicy()));
+		assertEquals(clockRows, runQuery(new TwoQueueEvictionPolicy()));
+	}
+
+	/** Make test compatible with older version of ant. */
+	public static junit.framework.Test suite() {
+		return new junit.framework.JUnit4TestAdapter(EvictionPolicyBench.class);
+	}
+}
@@ -68,6 +68,12 @@ public class InsertTest extends SimpleDbTestBase {
         validateInsert(1, 1, 1);
     }
 
+    /** A child large enough to be appended in bulk. */
+    @Test public void testManyToSome()
+            throws IOException, DbException, TransactionAbortedException {
+        validateInsert(2, 504 * 70, 100);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(InsertTest.class);
@@ -0,0 +1,48 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import simpledb.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Benchmarks of crash recovery; run with ant bench.
+ */
+public class RecoveryBench extends SimpleDbTestBase {
+
+    /**
+     * Benchmark: restart time after the RecoveryTest workload crashes,
+     * against the size of the log it left.
+     */
+    @Test public void restartTime() throws Exception {
+        File dir = RecoveryTest.createDir();
+        try {
+            RecoveryTest.crash(dir);
+            Utility.openHeapFile(2, new File(dir, "committed.dat"));
+            Utility.openHeapFile(2, new File(dir, "lost.dat"));
+            File logFile = new File(dir, "log");
+            LogFile log = new LogFile(logFile);
+            long logBytes = 0;
+            for (File f : dir.listFiles()) {
+                if (f.getName().startsWith(logFile.getName() + "."))
+                    logBytes += f.length();
+            }
+            long start = System.nanoTime();
+            log.recover();
+            long elapsed = System.nanoTime() - start;
+            System.out.println("Recovered " + logBytes + " bytes of log in " + elapsed / 1000000 + " ms on "
+                    + LogFile.RECOVERY_THREADS + " threads");
+        } finally {
+            RecoveryTest.deleteDir(dir);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryBench.class);
+    }
+}
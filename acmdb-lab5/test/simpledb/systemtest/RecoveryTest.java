@@ -0,0 +1,155 @@
+package simpledb.systemtest;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Test;
+
+import simpledb.*;
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+/**
+ * Crash recovery: runs a workload in a separate JVM, kills it in the middle,
+ * and recovers the database from what it left on disk.
+ */
+public class RecoveryTest extends SimpleDbTestBase {
+    private static final int ROWS_PER_TRANSACTION = 50;
+    private static final int LOSER_ROWS = 1000;
+    private static final int COMMITS_BEFORE_CRASH = 100;
+    private static final int CHECKPOINT_EVERY = 10;
+
+    /**
+     * The workload the crash interrupts.  A loser transaction inserts rows
+     * into the second table and never commits, and its rows are flushed to
+     * disk before a checkpoint.  Then transactions of ROWS_PER_TRANSACTION rows (i, j) are
+     * committed into the first table one after another, each printing its i
+     * once committed, with a checkpoint every CHECKPOINT_EVERY of them.
+     * Once COMMITS_BEFORE_CRASH have committed, the JVM halts, without
+     * shutdown hooks, in the middle of the next; the log goes to the working
+     * directory.
+     */
+    public static class Workload {
+        public static void main(String[] args) throws Exception {
+            HeapFile committed = Utility.openHeapFile(2, new File(args[0]));
+            HeapFile lost = Utility.openHeapFile(2, new File(args[1]));
+
+            Transaction loser = new Transaction();
+            loser.start();
+            for (int j = 0; j < LOSER_ROWS; j++)
+                Database.getBufferPool().insertTuple(loser.getId(), lost.getId(),
+                        Utility.getHeapTuple(new int[] { -1, j }));
+            Database.getBufferPool().flushAllPages();
+            Database.getLogFile().logCheckpoint();
+
+            for (int i = 0; ; i++) {
+                Transaction t = new Transaction();
+                t.start();
+                for (int j = 0; j < ROWS_PER_TRANSACTION; j++)
+                    Database.getBufferPool().insertTuple(t.getId(), committed.getId(),
+                            Utility.getHeapTuple(new int[] { i, j }));
+                if (i == COMMITS_BEFORE_CRASH)
+                    Runtime.getRuntime().halt(1);
+                if (i % CHECKPOINT_EVERY == CHECKPOINT_EVERY - 1)
+                    Database.getLogFile().logCheckpoint();
+                t.commit();
+                System.out.println(i);
+                System.out.flush();
+            }
+        }
+    }
+
+    private static List<Tuple> scan(DbFile f) throws Exception {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return tuples;
+    }
+
+    /**
+     * Run the workload in dir until it crashes, with its tables in
+     * committed.dat and lost.dat and its log in log.
+     *
+     * @return the last transaction the workload reported committed
+     */
+    static int crash(File dir) throws Exception {
+        File committedFile = new File(dir, "committed.dat");
+        File lostFile = new File(dir, "lost.dat");
+        committedFile.createNewFile();
+        lostFile.createNewFile();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Workload.class.getName(), committedFile.getAbsolutePath(), lostFile.getAbsolutePath());
+        pb.directory(dir);
+        pb.redirectErrorStream(true);
+        Process p = pb.start();
+        BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+        int lastCommitted = -1;
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (line.matches("\\d+"))
+                lastCommitted = Integer.parseInt(line);
+        }
+        p.waitFor();
+        return lastCommitted;
+    }
+
+    // a fresh temporary directory for a workload
+    static File createDir() throws IOException {
+        File dir = File.createTempFile("recovery", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    static void deleteDir(File dir) {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    /**
+     * Let the workload crash once it has committed COMMITS_BEFORE_CRASH
+     * transactions, then recover: every transaction it reported committed
+     * is there in full, none of the transaction in flight is, and the
+     * loser's rows are gone.
+     */
+    @Test public void crashMidWorkload() throws Exception {
+        File dir = createDir();
+        try {
+            int lastCommitted = crash(dir);
+            assertEquals(COMMITS_BEFORE_CRASH - 1, lastCommitted);
+
+            HeapFile committed = Utility.openHeapFile(2, new File(dir, "committed.dat"));
+            HeapFile lost = Utility.openHeapFile(2, new File(dir, "lost.dat"));
+            new LogFile(new File(dir, "log")).recover();
+
+            Map<Integer, Integer> rows = new HashMap<Integer, Integer>();
+            for (Tuple t : scan(committed)) {
+                int i = ((IntField) t.getField(0)).getValue();
+                Integer n = rows.get(i);
+                rows.put(i, n == null ? 1 : n + 1);
+            }
+            for (int i = 0; i <= lastCommitted; i++)
+                assertEquals(Integer.valueOf(ROWS_PER_TRANSACTION), rows.get(i));
+            assertNull(rows.get(COMMITS_BEFORE_CRASH));
+            for (int i : rows.keySet())
+                assertTrue(i <= lastCommitted);
+            assertEquals(0, scan(lost).size());
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -83,6 +84,12 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            @Override
+            public Page readPage(PageId pid, ByteBuffer frame) {
+                readCount += 1;
+                return super.readPage(pid, frame);
+            }
+
             public int readCount = 0;
         }
 
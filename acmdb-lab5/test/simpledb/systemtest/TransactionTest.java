@@ -1,6 +1,7 @@
 package simpledb.systemtest;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.concurrent.BrokenBarrierException;
@@ -226,7 +227,7 @@ public class TransactionTest extends SimpleDbTestBase {
         validateTransactions(10);
     }
 
-    @Test public void testAllDirtyFails()
+    @Test public void testAllDirtySucceeds()
             throws IOException, DbException, TransactionAbortedException {
         // Allocate a file with ~10 pages of data
         HeapFile f = SystemTestUtil.createRandomHeapFile(2, 512*10, null, null);
@@ -239,11 +240,42 @@ public class TransactionTest extends SimpleDbTestBase {
         // Insert a new row
         EvictionTest.insertRow(f, t);
 
-        // Scanning the table must fail because it can't evict the dirty page
-        try {
-            EvictionTest.findMagicTuple(f, t);
-            fail("Expected scan to run out of available buffer pages");
-        } catch (DbException e) {}
+        // The scan evicts the dirty page, after logging it
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+
+        t = new Transaction();
+        t.start();
+        assertTrue(EvictionTest.findMagicTuple(f, t));
+        t.commit();
+    }
+
+    /**
+     * An insert of many more pages than the pool holds runs, and its abort
+     * takes all of them back.
+     */
+    @Test public void testLargeInsertSmallPool()
+            throws IOException, DbException, TransactionAbortedException {
+        int rows = 512 * 10;
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile source = SystemTestUtil.createRandomHeapFile(2, rows, null, tuples);
+        Database.resetBufferPool(4);
+
+        for (boolean commit : new boolean[] { false, true }) {
+            Transaction t = new Transaction();
+            t.start();
+            Insert insert = new Insert(t.getId(), new SeqScan(t.getId(), source.getId(), ""), f.getId());
+            insert.open();
+            assertEquals(rows, ((IntField) insert.next().getField(0)).getValue());
+            insert.close();
+            t.transactionComplete(!commit);
+        }
+        assertTrue(f.numPages() > 4);
+
+        Transaction t = new Transaction();
+        t.start();
+        SystemTestUtil.matchTuples(new SeqScan(t.getId(), f.getId(), ""), tuples);
         t.commit();
     }
 